@@ -7,11 +7,14 @@ import org.elasticsearch.client.Client
 import org.slf4j.LoggerFactory
 import webby.commons.system.log.PageLog
 
+import scala.concurrent.Future
+import scala.util.Success
+
 /**
  * Класс для выполнения прямых запросов к Эластику для заданного индекса и типа (index, tpe).
  */
 class ElasticIndexMapping(client: Client, val index: String, val tpe: String = "main") {
-  import ElasticSearch.executeAndGet
+  import ElasticSearch.{SameThreadContext, executeAndGet, executeAsync}
 
   val log = LoggerFactory.getLogger(getClass)
 
@@ -23,6 +26,18 @@ class ElasticIndexMapping(client: Client, val index: String, val tpe: String = "
     resp
   }
 
+  /**
+    * Асинхронный аналог [[withPageLog]]. [[PageLog]] берётся в момент запроса, а время добавляется
+    * в него по готовности ответа, в каком бы потоке он ни пришёл.
+    */
+  protected def withPageLogAsync[R](query: => Future[R])(time: (R, Long) => Long): Future[R] = {
+    val pageLog = PageLog.get()
+    val t0 = System.currentTimeMillis()
+    val future = query
+    if (pageLog == null) future
+    else future.andThen {case Success(resp) => pageLog.addEsQuery(time(resp, System.currentTimeMillis() - t0))}(SameThreadContext)
+  }
+
   def baseHttpPath: String = "/" + index + "/" + tpe
 
   def rawPrepareIndex(id: String): IndexRequestBuilder =
@@ -43,8 +58,11 @@ class ElasticIndexMapping(client: Client, val index: String, val tpe: String = "
   def count(block: SearchRequestBuilder => Any): Long =
     search(rb => block(rb.setSize(0))).getHits.getTotalHits
 
+  /** Запрос поиска по этому индексу и типу, без выполнения */
+  def prepareSearch(): SearchRequestBuilder = client.prepareSearch(index).setTypes(tpe)
+
   def search(block: SearchRequestBuilder => Any): SearchResponse = {
-    val builder = client.prepareSearch(index).setTypes(tpe)
+    val builder = prepareSearch()
     block(builder)
     val resp: SearchResponse = executeAndGet(builder)
     PageLog.addEsQuery(resp.getTookInMillis)
@@ -74,4 +92,40 @@ class ElasticIndexMapping(client: Client, val index: String, val tpe: String = "
     block(builder)
     withPageLog(executeAndGet(builder))
   }
+
+  // ------------------------------- Async methods -------------------------------
+
+  // Асинхронные запросы не занимают поток на время ожидания ответа. Несколько запросов, отправленных подряд,
+  // выполняются одновременно, см. `AsyncResult.future`.
+  // Колбэки future без своего ExecutionContext выполняются в потоке эластика и должны быть короткими.
+
+  def indexAsync(id: String)(block: IndexRequestBuilder => Any): Future[IndexResponse] = {
+    val builder = client.prepareIndex(index, tpe, id)
+    block(builder)
+    withPageLogAsync(executeAsync(builder))((_, time) => time)
+  }
+
+  def deleteAsync(id: String)(block: DeleteRequestBuilder => Any): Future[DeleteResponse] = {
+    val builder = client.prepareDelete(index, tpe, id)
+    block(builder)
+    withPageLogAsync(executeAsync(builder))((_, time) => time)
+  }
+
+  def searchAsync(block: SearchRequestBuilder => Any): Future[SearchResponse] = {
+    val builder = prepareSearch()
+    block(builder)
+    withPageLogAsync(executeAsync(builder))((resp, _) => resp.getTookInMillis)
+  }
+
+  def getAsync(id: String)(block: GetRequestBuilder => Any): Future[GetResponse] = {
+    val builder = client.prepareGet(index, tpe, id)
+    block(builder)
+    withPageLogAsync(executeAsync(builder))((_, time) => time)
+  }
+
+  def multiGetAsync(block: MultiGetRequestBuilder => Any): Future[MultiGetResponse] = {
+    val builder = client.prepareMultiGet
+    block(builder)
+    withPageLogAsync(executeAsync(builder))((_, time) => time)
+  }
 }
@@ -0,0 +1,167 @@
+package orm.elasticsearch
+
+import java.io.Closeable
+import java.util.NoSuchElementException
+import java.util.concurrent.LinkedBlockingQueue
+
+import org.elasticsearch.action.ActionListener
+import org.elasticsearch.action.search.{SearchRequestBuilder, SearchResponse}
+import org.elasticsearch.client.transport.NoNodeAvailableException
+import org.elasticsearch.common.unit.TimeValue
+import org.elasticsearch.search.SearchHit
+import org.slf4j.LoggerFactory
+import orm.elasticsearch.ElasticSearch.ActionRequestBuilderResp
+import webby.commons.system.log.PageLog
+
+/**
+  * Ленивый итератор по всем результатам поиска, страница за страницей через scroll.
+  * Нужен для выгрузок и обработки больших выборок, см. [[EsTypeClient.scrollIterator]].
+  *
+  *  - Следующая страница запрашивается асинхронно сразу, как только получена текущая, и приходит,
+  *    пока текущая перебирается. В памяти не больше двух страниц на поток.
+  *  - Записи создаются из [[SearchHit]] только при выдаче.
+  *  - Scroll контексты очищаются, когда итератор дочитан, при ошибке и при [[close]].
+  *    Недочитанный итератор нужно закрыть.
+  */
+class EsHitIterator[C] private[elasticsearch](streams: Seq[EsHitIterator.PageStream],
+                                              convert: SearchHit => C,
+                                              onPage: SearchResponse => Unit) extends Iterator[C] with Closeable {
+  import EsHitIterator._
+
+  private val events = new LinkedBlockingQueue[Event]()
+  private var started = false
+  private var closed = false
+  /** Потоки, которые ещё не дочитаны */
+  private var active = streams.size
+  private var hits: Array[SearchHit] = EmptyHits
+  private var pos = 0
+
+  override def hasNext: Boolean = {
+    if (!started) {
+      started = true
+      streams.foreach(s => request(s, s.first))
+    }
+    while (pos >= hits.length && !closed && active > 0) nextPage()
+    pos < hits.length
+  }
+
+  override def next(): C = {
+    if (!hasNext) throw new NoSuchElementException("next on empty EsHitIterator")
+    val hit = hits(pos)
+    hits(pos) = null // Выданные hit'ы больше не держим
+    pos += 1
+    convert(hit)
+  }
+
+  /**
+    * Прекратить чтение и очистить scroll контексты. Ждёт завершения запросов, которые уже отправлены,
+    * чтобы очистить и их контексты.
+    */
+  override def close(): Unit = {
+    if (!closed) {
+      closed = true
+      hits = EmptyHits
+      pos = 0
+      // Ответы приходят в любом порядке, поэтому сначала считаем отправленные запросы, потом ждём столько же ответов
+      var pending = streams.count(_.inFlight)
+      while (pending > 0) {
+        events.take() match {
+          case Event(stream, _, response, _) =>
+            stream.inFlight = false
+            if (response != null && response.getScrollId != null) stream.scrollId = response.getScrollId
+        }
+        pending -= 1
+      }
+      val scrollIds = streams.flatMap(s => Option(s.scrollId))
+      streams.foreach(_.scrollId = null)
+      if (scrollIds.nonEmpty) {
+        try ElasticSearch.clearScrolls(scrollIds)
+        catch {case e: Exception => log.warn("Cannot clear scrolls " + scrollIds.mkString(", "), e)}
+      }
+    }
+  }
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  private def request(stream: PageStream, builder: SearchBuilder): Unit = {
+    stream.inFlight = true
+    val listener = new ActionListener[SearchResponse] {
+      override def onResponse(response: SearchResponse): Unit = events.add(Event(stream, builder, response, null))
+      override def onFailure(e: Throwable): Unit = events.add(Event(stream, builder, null, e))
+    }
+    try builder.execute(listener)
+    catch {case e: Throwable => listener.onFailure(e)}
+  }
+
+  private def nextPage(): Unit = {
+    val event = events.take()
+    val stream = event.stream
+    stream.inFlight = false
+    val response: SearchResponse =
+      try event.error match {
+        case null => event.response
+        case _: NoNodeAvailableException => ElasticSearch.executeAndGet(event.builder) // Повтор с ожиданием узла
+        case e => throw e
+      } catch {
+        case e: Throwable =>
+          active -= 1
+          close()
+          throw e
+      }
+    PageLog.addEsQuery(response.getTookInMillis)
+    onPage(response)
+    if (response.getScrollId != null) stream.scrollId = response.getScrollId
+    val page: Array[SearchHit] = response.getHits.getHits
+    (if (page.isEmpty) None else stream.next(response, page)) match {
+      case Some(builder) => request(stream, builder)
+      case None =>
+        active -= 1
+        stream.release()
+    }
+    hits = page
+    pos = 0
+  }
+}
+
+
+object EsHitIterator {
+  private val log = LoggerFactory.getLogger(getClass)
+
+  val DefaultPageSize = 500
+  val DefaultKeepAlive: TimeValue = TimeValue.timeValueMinutes(1)
+
+  private type SearchBuilder = ActionRequestBuilderResp[SearchResponse]
+  private val EmptyHits = new Array[SearchHit](0)
+
+  private case class Event(stream: PageStream, builder: SearchBuilder, response: SearchResponse, error: Throwable)
+
+  /**
+    * Поток страниц поиска. Все методы, кроме запросов, вызываются в потоке, читающем итератор.
+    */
+  private[elasticsearch] abstract class PageStream {
+    def first: SearchBuilder
+
+    /** Запрос следующей страницы, None - это была последняя */
+    def next(response: SearchResponse, page: Array[SearchHit]): Option[SearchBuilder]
+
+    var scrollId: String = _
+    var inFlight: Boolean = false
+
+    def release(): Unit = {
+      if (scrollId != null) {
+        try ElasticSearch.clearScroll(scrollId)
+        catch {case e: Exception => log.warn("Cannot clear scroll " + scrollId, e)}
+        scrollId = null
+      }
+    }
+  }
+
+  /**
+    * Scroll по запросу `search`, у которого уже задан размер страницы.
+    */
+  private[elasticsearch] def scroll(search: SearchRequestBuilder, keepAlive: TimeValue): PageStream = new PageStream {
+    override val first: SearchBuilder = search.setScroll(keepAlive)
+    override def next(response: SearchResponse, page: Array[SearchHit]): Option[SearchBuilder] =
+      Some(ElasticSearch.client.prepareSearchScroll(response.getScrollId).setScroll(keepAlive))
+  }
+}
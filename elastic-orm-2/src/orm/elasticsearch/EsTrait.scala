@@ -7,14 +7,18 @@ import org.elasticsearch.action.delete.{DeleteRequestBuilder, DeleteResponse}
 import org.elasticsearch.action.get._
 import org.elasticsearch.action.index.IndexRequestBuilder
 import org.elasticsearch.action.search.{SearchRequestBuilder, SearchResponse}
+import org.elasticsearch.common.unit.TimeValue
 import org.elasticsearch.index.query.MoreLikeThisQueryBuilder.Item
 import org.elasticsearch.index.query.QueryBuilders._
 import org.elasticsearch.index.query._
 import org.elasticsearch.search.{SearchHit, SearchHits}
+import orm.elasticsearch.ElasticSearch.SameThreadContext
 import querio.{DbEnum, ScalaDbEnum, ScalaDbEnumCls}
 
 // for Scala 2.11: import scala.collection.JavaConversions._
 import scala.collection.JavaConverters._
+import scala.concurrent.Future
+import scala.util.Success
 
 /**
  * Trait, реализующий этот trait должен задавать основную конфигурацию класса для индексации Elastic'ом.
@@ -367,12 +371,30 @@ trait EsMeta[C <: EsRecord] extends EsTrait {
   def fieldName: String
   def prefix: String
 
-  protected def field[A](name: String, fromRecord: Record => A, conv: Conv[A]): F[A] =
+  /** Имена полей _source верхнего уровня. Заполняется при инициализации полей, поэтому без инициализатора. */
+  private var _fieldNames: ju.LinkedHashSet[String] = _
+
+  private def registerField(name: String): Unit = {
+    if (_fieldNames == null) _fieldNames = new ju.LinkedHashSet[String]()
+    _fieldNames.add(name)
+  }
+
+  /** Имена полей _source верхнего уровня в порядке объявления */
+  def fieldNames: Iterable[String] = if (_fieldNames == null) Nil else _fieldNames.asScala
+
+  protected def field[A](name: String, fromRecord: Record => A, conv: Conv[A]): F[A] = {
+    registerField(name)
     new EsField[A, Record](prefix + name, fromRecord, conv)
-  protected def boostField(fromRecord: Record => Double): F[Double] =
+  }
+  protected def boostField(fromRecord: Record => Double): F[Double] = {
+    registerField(boostName)
     new EsField[Double, Record](prefix + boostName, fromRecord, new AsIs[Double])
+  }
   protected def objectListField[CC <: EsRecord, M <: EsSubTypeMeta[CC]]
-  (name: String, fromRecord: Record => Iterable[_], meta: M): FList[CC, M] = meta.withPrefix(name, prefix + name + ".").asInstanceOf[FList[CC, M]]
+  (name: String, fromRecord: Record => Iterable[_], meta: M): FList[CC, M] = {
+    registerField(name)
+    meta.withPrefix(name, prefix + name + ".").asInstanceOf[FList[CC, M]]
+  }
 
   def validateRecord(r: Record): Boolean
   def makeWrite(r: Record): EsWrite
@@ -384,6 +406,22 @@ trait EsMeta[C <: EsRecord] extends EsTrait {
   def fromGet(resp: GetResponse): Option[C] = if (resp.isExists) Some(makeObject(new EsClassGetData(resp))) else None
   def fromGetList(resp: GetResponse): List[C] = if (resp.isExists) List(makeObject(new EsClassGetData(resp))) else Nil
   def fromMap(map: ju.Map[String, AnyRef]): C = makeObject(new EsClassMapData(map))
+  def fromHit(searchHit: SearchHit, fields: EsSourceFields): C = makeObject(new EsClassHitSourceData(searchHit, fields))
+
+  /**
+    * Набор полей для частичной загрузки записей, см. [[EsSourceFields]]. Id загружается всегда.
+    * Создавать его лучше один раз, а не на каждый запрос.
+    */
+  def sourceFields(fields: EsField[_, _]*): EsSourceFields = sourceFieldsByName(fields.map(_.name): _*)
+
+  /** То же, что [[sourceFields]], по именам полей, например, для вложенных объектов: `sourceFieldsByName(Cat.colors.fieldName)` */
+  def sourceFieldsByName(names: String*): EsSourceFields = {
+    val sourceNames = names.filter(n => n != "_id" && !n.endsWith("._id"))
+    for (n <- sourceNames) {
+      require(_fieldNames != null && _fieldNames.contains(EsSourceFields.topName(n)), "No field '" + n + "' in " + getClass.getName)
+    }
+    new EsSourceFields(sourceNames)
+  }
 }
 
 /**
@@ -416,16 +454,28 @@ trait EsTypeClient[C <: EsTypeRecord] {
 
   // ------------------------------- Private & protected methods -------------------------------
 
-  protected def searchResponse(search: Object, response: SearchResponse): EsResult[C] = {
+  protected def searchResponse(search: Object, response: SearchResponse,
+                               fromHit: SearchHit => C = meta.fromHit): EsResult[C] = {
     val hits: SearchHits = response.getHits
 
     new EsResult[C](took = response.getTookInMillis,
       found = hits.totalHits().toInt,
-      rows = hits.hits().map(meta.fromHit)(scala.collection.breakOut),
+      rows = hits.hits().map(fromHit)(scala.collection.breakOut),
       aggs = Option(response.getAggregations),
       esQueryBuilder = search)
   }
 
+  protected def multiGetResponse(search: Object, response: MultiGetResponse): EsResult[C] = {
+    val hits: Array[MultiGetItemResponse] = response.getResponses
+    val rows: Vector[C] = hits.flatMap(r => meta.fromGetList(r.getResponse))(scala.collection.breakOut)
+
+    new EsResult[C](took = 0,
+      found = rows.size,
+      rows = rows,
+      aggs = None,
+      esQueryBuilder = search)
+  }
+
   /**
    * Замерить время выполнения запроса, который не возвращает затраченное время, и выполнить этот
    * запрос. Полученное время учитывается в статистике вызовом метода [[statAddOne()]]
@@ -438,6 +488,12 @@ trait EsTypeClient[C <: EsTypeRecord] {
     result
   }
 
+  /** Асинхронный аналог [[statByRealTime]]: время учитывается по готовности ответа */
+  protected def statByRealTimeAsync[R](query: => Future[R]): Future[R] = {
+    val t0 = System.currentTimeMillis()
+    query.andThen {case Success(_) => statAddOne(System.currentTimeMillis() - t0)}(SameThreadContext)
+  }
+
   /**
    * Получить время выполнения запроса из результата [[EsResult]] и учесть это время в статистике
    * вызовом метода [[statAddOne()]].
@@ -447,6 +503,7 @@ trait EsTypeClient[C <: EsTypeRecord] {
 
   /**
    * Учесть время, выполненное этим запросом.
+   * Для асинхронных запросов вызывается в потоке, где пришёл ответ.
    */
   protected def statAddOne(millis: Long): Unit = {}
 
@@ -477,15 +534,7 @@ trait EsTypeClient[C <: EsTypeRecord] {
       b.add(em.index, em.tpe, ids.asJava)
       search = b
     })
-
-    val hits: Array[MultiGetItemResponse] = response.getResponses
-    val rows: Vector[C] = hits.flatMap(r => meta.fromGetList(r.getResponse))(scala.collection.breakOut)
-
-    new EsResult[C](took = 0,
-      found = rows.size,
-      rows = rows,
-      aggs = None,
-      esQueryBuilder = search)
+    multiGetResponse(search, response)
   }
 
   def searchRaw(block: SearchRequestBuilder => Any): SearchResponse =
@@ -500,6 +549,43 @@ trait EsTypeClient[C <: EsTypeRecord] {
     stat(searchResponse(search, resp))
   }
 
+  /**
+    * Поиск с загрузкой только полей `fields` (см. [[EsSourceFields]]): они передаются в `_source` includes
+    * запроса и разбираются из `_source` без построения карты всех полей. Остальные поля записей будут пустыми.
+    */
+  def searchFields(fields: EsSourceFields)(block: SearchRequestBuilder => Any): EsResult[C] = {
+    var search: SearchRequestBuilder = null
+    val resp = em.search {b =>
+      block(b)
+      b.setFetchSource(fields.includes, null)
+      search = b
+    }
+    stat(searchResponse(search, resp, meta.fromHit(_, fields)))
+  }
+
+  // ------------------------------- Async methods -------------------------------
+  // Не занимают поток на время запроса, см. `ElasticIndexMapping.searchAsync`.
+  // Записи создаются из ответа в потоке эластика, где он пришёл.
+
+  def searchAsync(block: SearchRequestBuilder => Any): Future[EsResult[C]] = {
+    var search: SearchRequestBuilder = null
+    em.searchAsync {b =>
+      block(b)
+      search = b
+    }.map(resp => stat(searchResponse(search, resp)))(SameThreadContext)
+  }
+
+  def getAsync(id: String): Future[Option[C]] =
+    statByRealTimeAsync(em.getAsync(id)(a => a)).map(meta.fromGet)(SameThreadContext)
+
+  def multiGetAsync(ids: Iterable[String]): Future[EsResult[C]] = {
+    var search: MultiGetRequestBuilder = null
+    statByRealTimeAsync(em.multiGetAsync {b =>
+      b.add(em.index, em.tpe, ids.asJava)
+      search = b
+    }).map(multiGetResponse(search, _))(SameThreadContext)
+  }
+
   def moreLikeThisItem(id: String): MoreLikeThisQueryBuilder.Item = new MoreLikeThisQueryBuilder.Item(em.index, em.tpe, id)
   def moreLikeThisItem(id: Int): MoreLikeThisQueryBuilder.Item = moreLikeThisItem(id.toString)
 
@@ -514,4 +600,16 @@ trait EsTypeClient[C <: EsTypeRecord] {
     }
     stat(searchResponse(search, resp))
   }
+
+  /**
+    * Ленивый итератор по всем найденным записям через scroll, см. [[EsHitIterator]].
+    * Недочитанный итератор нужно закрыть.
+    */
+  def scrollIterator(pageSize: Int = EsHitIterator.DefaultPageSize, keepAlive: TimeValue = EsHitIterator.DefaultKeepAlive)
+                    (block: SearchRequestBuilder => Any): EsHitIterator[C] = {
+    val builder = em.prepareSearch().setSize(pageSize)
+    block(builder)
+    new EsHitIterator[C](Seq(EsHitIterator.scroll(builder, keepAlive)), meta.fromHit,
+      response => statAddOne(response.getTookInMillis))
+  }
 }
@@ -45,6 +45,19 @@ abstract class AbstractElasticMappings(mapList: ElasticMapListTrait) {
 
   /** Получить Mapping по его полному имени, например ros.tag */
   def get(fullName: String): Option[Reindexable[_ <: TableRecord]] = allMap.get(fullName)
+
+  /**
+    * Очередь переиндексации для [[reindexLater]]. Её параметры можно задать, переопределив этот метод.
+    */
+  protected def makeReindexQueue: ReindexQueue = new ReindexQueue()
+
+  lazy val reindexQueue: ReindexQueue = makeReindexQueue
+
+  /**
+    * Поставить запись таблицы в очередь переиндексации (см. [[ReindexQueue]]).
+    * В отличие от [[Reindexable.reindexRecord]], частые изменения одной записи схлопываются и индексируются пачками.
+    */
+  def reindexLater(fullName: String, id: Int): Unit = get(fullName).foreach(reindexQueue.add(_, id))
 }
 
 
@@ -91,13 +104,16 @@ object ElasticMappings {
                                         writeFactory: TR => Option[EsTypeWrite],
                                         esTypeClientNoStat: EsTypeClient[_ <: EsTypeRecord]) extends Reindexable[TR] {
     def reindexRecord(id: Int): Option[Future[IndexResponse]] =
-      (for (tr <- getByIdForIndex(id);
-            record <- writeFactory(tr))
-        yield record) match {
+      writeForIndex(id) match {
         case Some(record) => Some(Future(ElasticSearch.executeAndGet(record.prepareIndex)))
         case None => esTypeClientNoStat.delete(id.toString)(a => a); None
       }
 
+    /**
+      * Запись для индексации по id, None - запись нужно удалить из индекса
+      */
+    def writeForIndex(id: Int): Option[EsTypeWrite] = getByIdForIndex(id).flatMap(writeFactory)
+
     /**
       * Shortcut для создания RelatedMapping
       */
@@ -0,0 +1,99 @@
+package orm.elasticsearch.utils
+
+import java.util.concurrent.{CountDownLatch, LinkedBlockingQueue, TimeUnit}
+
+import org.scalatest.{FunSuite, Matchers}
+import orm.elasticsearch.utils.ElasticMappings.{Mapping, RelatedMapping}
+import querio.TableRecord
+
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+
+class ReindexQueueTest extends FunSuite with Matchers {
+
+  /** Очередь, которая вместо bulk запроса запоминает пачки id */
+  private class RecordingQueue(windowMillis: Long, maxPending: Int = 100000)
+    extends ReindexQueue(windowMillis = windowMillis, threads = 1, maxPending = maxPending) {
+    val batches = new LinkedBlockingQueue[Vector[Int]]()
+    /** Индексация ждёт, пока он не откроется */
+    @volatile var gate = new CountDownLatch(0)
+
+    override protected def indexBatch(mapping: Mapping[_ <: TableRecord], ids: ArrayBuffer[Int]): Unit = {
+      gate.await()
+      batches.add(ids.toVector)
+    }
+
+    def nextBatch(): Vector[Int] = batches.poll(5, TimeUnit.SECONDS)
+  }
+
+  private def mapping(): Mapping[TableRecord] = Mapping[TableRecord](null, null, _ => None, _ => None, null)
+
+  test("repeated changes of a record are coalesced") {
+    val q = new RecordingQueue(windowMillis = 100)
+    val m = mapping()
+    for (_ <- 1 to 5; id <- 1 to 3) q.add(m, id)
+
+    // Записи, поставленные в разные миллисекунды, могут попасть в разные пачки
+    val indexed = ArrayBuffer[Int]()
+    while (indexed.size < 3) indexed ++= q.nextBatch()
+    indexed shouldEqual Seq(1, 2, 3)
+    q.batches.poll(300, TimeUnit.MILLISECONDS) shouldBe null
+    q.metrics.enqueued shouldEqual 3
+    q.metrics.coalesced shouldEqual 12
+    q.depth shouldEqual 0
+    q.shutdown()
+  }
+
+  test("records younger than the window wait for the next batch") {
+    val q = new RecordingQueue(windowMillis = 200)
+    val m = mapping()
+    q.add(m, 1)
+    q.add(m, 2)
+    Thread.sleep(100)
+    q.add(m, 3)
+    q.add(m, 1)
+
+    val batches = ArrayBuffer[Vector[Int]]()
+    while (batches.map(_.size).sum < 3) batches += q.nextBatch()
+    batches.flatten shouldEqual Seq(1, 2, 3)
+    batches.last shouldEqual Vector(3)
+
+    // Изменение во время индексации переиндексирует запись ещё раз, после текущей
+    q.gate = new CountDownLatch(1)
+    q.add(m, 4)
+    Thread.sleep(300)
+    q.add(m, 4)
+    q.gate.countDown()
+    q.nextBatch() shouldEqual Vector(4)
+    q.nextBatch() shouldEqual Vector(4)
+    q.shutdown()
+  }
+
+  test("permits are returned once records leave the queue") {
+    val q = new RecordingQueue(windowMillis = 0, maxPending = 2)
+    val main = mapping()
+    val related = RelatedMapping[TableRecord](main, null, id => Some(id * 10))
+
+    // Записей больше maxPending: add ждёт, пока пачки освободят места
+    Await.result(Future(for (id <- 1 to 20) q.add(related, id)), 5.seconds)
+    val indexed = ArrayBuffer[Int]()
+    while (indexed.size < 20) indexed ++= q.nextBatch()
+    indexed.sorted shouldEqual (1 to 20).map(_ * 10)
+    q.depth shouldEqual 0
+
+    // Поток индексации занят, новые записи остаются в очереди
+    q.gate = new CountDownLatch(1)
+    q.add(main, 1000)
+    Thread.sleep(100)
+    Await.result(Future {q.add(main, 1); q.add(main, 2)}, 1.second)
+    val third = Future(q.add(main, 3))
+    Thread.sleep(200)
+    third.isCompleted shouldBe false
+
+    q.gate.countDown()
+    Await.result(third, 5.seconds)
+    q.shutdown()
+  }
+}
@@ -0,0 +1,302 @@
+package orm.elasticsearch
+
+import java.util.concurrent._
+import java.util.concurrent.atomic.{AtomicLong, AtomicReference}
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.elasticsearch.action.ActionListener
+import org.elasticsearch.action.bulk.{BulkRequest, BulkResponse}
+import org.elasticsearch.action.index.IndexRequest
+import org.elasticsearch.client.Client
+import org.elasticsearch.rest.RestStatus
+import org.slf4j.LoggerFactory
+import webby.commons.concurrent.longaction.LongActionStatus
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+
+/**
+  * Параллельная индексация большого числа записей пачками (bulk), например, при полной переиндексации таблицы.
+  *
+  *  - Записи читаются из итератора в вызывающем потоке (итератор курсора БД не обязан быть потокобезопасным)
+  *    пачками по `maxActions`. По умолчанию (`parallelism = 1`) `writeFactory` тоже вызывается в вызывающем потоке.
+  *    При `parallelism > 1` пачки отдаются в пул из `parallelism` потоков, и тогда `writeFactory` должна быть
+  *    потокобезопасной и не должна зависеть от соединения с БД или транзакции, привязанных к потоку.
+  *  - Bulk запрос отправляется, когда в нём набралось `maxActions` записей или `maxBytes` байт.
+  *    Одновременно выполняется не больше `concurrency` запросов.
+  *  - Записи, отклонённые эластиком из-за перегрузки (429, 503), а также целые запросы, завершившиеся ошибкой,
+  *    повторяются с экспоненциальной задержкой, до `maxRetries` раз. Прочие ошибки записей не прерывают индексацию,
+  *    а попадают в [[BulkIndexer.Result]].
+  *  - Память ограничена: чтение из итератора ждёт, пока освободится место в очереди пачек, а пачки ждут
+  *    завершения отправленных запросов. Обработанные записи нигде не запоминаются.
+  *
+  * Прогресс и скорость выводятся в [[LongActionStatus]], если он передан.
+  */
+class BulkIndexer(client: Client, config: BulkIndexer.Config = BulkIndexer.Config()) {
+  import BulkIndexer._
+
+  /**
+    * Проиндексировать все записи итератора.
+    *
+    * @param items        Записи для индексации
+    * @param writeFactory Фабрика записи для индексации. None - запись пропускается.
+    * @param status       Статус действия для прогресса и отмены, может быть null
+    * @param total        Общее число записей для прогресса, 0 - неизвестно
+    */
+  def run[TR](items: Iterator[TR], writeFactory: TR => Option[EsTypeWrite],
+              status: LongActionStatus = null, total: Int = 0): Result = {
+    runRequests[TR](items, writeFactory(_).map(_.prepareIndex.request()), status, total)
+  }
+
+  /** То же, что [[run]], но с готовыми запросами индексации */
+  private[elasticsearch] def runRequests[TR](items: Iterator[TR], toRequest: TR => Option[IndexRequest],
+                                             status: LongActionStatus = null, total: Int = 0): Result =
+    new Run[TR](toRequest, status, total).run(items)
+
+  private class Run[TR](toRequest: TR => Option[IndexRequest], status: LongActionStatus, total: Int) {
+    private val startTime = System.currentTimeMillis()
+    private val processed = new AtomicLong
+    private val skipped = new AtomicLong
+    private val indexed = new AtomicLong
+    private val failed = new AtomicLong
+    private val retries = new AtomicLong
+    private val bulks = new AtomicLong
+    private val bytes = new AtomicLong
+    private val failureSamples = new ConcurrentLinkedQueue[String]()
+    private val failureSampleCount = new AtomicLong
+    private val lastFailedResponse = new AtomicReference[BulkResponse]()
+    private val lastError = new AtomicReference[Throwable]()
+    private val writeError = new AtomicReference[Throwable]()
+
+    /** Пул для writeFactory, null - она вызывается в вызывающем потоке */
+    private val writers: ExecutorService =
+      if (config.parallelism == 1) null
+      else Executors.newFixedThreadPool(config.parallelism,
+        new BasicThreadFactory.Builder().namingPattern("es-bulk-write-%d").daemon(true).build())
+    private val scheduler = Executors.newSingleThreadScheduledExecutor(
+      new BasicThreadFactory.Builder().namingPattern("es-bulk-retry-%d").daemon(true).build())
+    /** Пачки записей, ожидающие или проходящие writeFactory */
+    private val batchPermits = new Semaphore(config.parallelism * 2)
+    /** Отправленные, но ещё не завершённые bulk запросы (включая ожидающие повтора) */
+    private val inFlight = new Semaphore(config.concurrency)
+    /** Незавершённые пачки и запросы. Сам Run тоже участник, пока читает итератор. */
+    private val pending = new Phaser(1)
+
+    def run(items: Iterator[TR]): Result = {
+      if (status != null) {
+        status.progress = 0
+        status.maxProgress = total
+        status.updater = updateStatus
+      }
+      var cancelled = false
+      try {
+        while (items.hasNext && !cancelled && writeError.get() == null) {
+          if (status != null && status.isCancelRequested) cancelled = true
+          else {
+            val batch = new ArrayBuffer[TR](config.maxActions)
+            while (batch.size < config.maxActions && items.hasNext) batch += items.next()
+            if (writers == null) writeBatch(batch)
+            else {
+              batchPermits.acquire()
+              pending.register()
+              writers.execute(new Runnable {
+                override def run(): Unit = {
+                  try writeBatch(batch)
+                  catch {case e: Throwable => writeError.compareAndSet(null, e)}
+                  finally {
+                    batchPermits.release()
+                    pending.arriveAndDeregister()
+                  }
+                }
+              })
+            }
+          }
+        }
+        pending.arriveAndAwaitAdvance()
+      } finally {
+        if (writers != null) writers.shutdownNow()
+        scheduler.shutdownNow()
+        if (status != null) {
+          updateStatus(status)
+          status.updater = null
+        }
+      }
+      if (writeError.get() != null) throw writeError.get()
+      val result = new Result(
+        processed = processed.get(), indexed = indexed.get(), skipped = skipped.get(), failed = failed.get(),
+        retries = retries.get(), bulks = bulks.get(), bytes = bytes.get(),
+        tookMillis = System.currentTimeMillis() - startTime, cancelled = cancelled,
+        failureSamples = failureSamples.toArray(new Array[String](0)).toVector,
+        lastFailedResponse = lastFailedResponse.get(), lastError = lastError.get())
+      if (result.failed > 0) log.warn("Bulk indexing finished with failures: " + result)
+      result
+    }
+
+    private def writeBatch(batch: ArrayBuffer[TR]): Unit = {
+      var bulk = new BulkRequest()
+      var i = 0
+      while (i < batch.size) {
+        toRequest(batch(i)) match {
+          case Some(request) =>
+            bulk.add(request)
+            if (bulk.estimatedSizeInBytes() >= config.maxBytes) {
+              send(bulk)
+              bulk = new BulkRequest()
+            }
+          case None =>
+            skipped.incrementAndGet()
+        }
+        processed.incrementAndGet()
+        i += 1
+      }
+      if (bulk.numberOfActions() > 0) send(bulk)
+    }
+
+    private def send(bulk: BulkRequest): Unit = {
+      inFlight.acquire()
+      pending.register()
+      bulks.incrementAndGet()
+      bytes.addAndGet(bulk.estimatedSizeInBytes())
+      execute(bulk, 0)
+    }
+
+    private def execute(bulk: BulkRequest, attempt: Int): Unit = {
+      val listener = new ActionListener[BulkResponse] {
+        override def onResponse(response: BulkResponse): Unit = {
+          try onBulkResponse(bulk, response, attempt)
+          catch {case e: Throwable => finish(bulk.numberOfActions(), e)}
+        }
+        override def onFailure(e: Exception): Unit = {
+          if (attempt < config.maxRetries) retry(bulk, attempt)
+          else finish(bulk.numberOfActions(), e)
+        }
+      }
+      try client.bulk(bulk, listener)
+      catch {case e: Exception => listener.onFailure(e)}
+    }
+
+    private def onBulkResponse(bulk: BulkRequest, response: BulkResponse, attempt: Int): Unit = {
+      if (!response.hasFailures) {
+        indexed.addAndGet(response.getItems.length)
+        done()
+      } else {
+        val retryBulk = new BulkRequest()
+        val canRetry = attempt < config.maxRetries
+        var permanentFailures = 0
+        for (item <- response.getItems) {
+          if (!item.isFailed) indexed.incrementAndGet()
+          else if (canRetry && isRetryable(item.getFailure.getStatus)) retryBulk.add(bulk.requests().get(item.getItemId))
+          else {
+            permanentFailures += 1
+            addFailureSample(item.getId + ": " + item.getFailureMessage)
+          }
+        }
+        if (permanentFailures > 0) {
+          failed.addAndGet(permanentFailures)
+          lastFailedResponse.set(response)
+        }
+        if (retryBulk.numberOfActions() > 0) retry(retryBulk, attempt)
+        else done()
+      }
+    }
+
+    /** Повторить запрос с задержкой. Место в [[inFlight]] остаётся занятым, это и есть backpressure при перегрузке. */
+    private def retry(bulk: BulkRequest, attempt: Int): Unit = {
+      retries.incrementAndGet()
+      scheduler.schedule(new Runnable {
+        override def run(): Unit = execute(bulk, attempt + 1)
+      }, backoffMillis(attempt), TimeUnit.MILLISECONDS)
+    }
+
+    private def finish(failedActions: Int, e: Throwable): Unit = {
+      failed.addAndGet(failedActions)
+      lastError.set(e)
+      addFailureSample(e.toString)
+      done()
+    }
+
+    private def done(): Unit = {
+      inFlight.release()
+      pending.arriveAndDeregister()
+    }
+
+    private def addFailureSample(message: String): Unit = {
+      if (failureSampleCount.incrementAndGet() <= MaxFailureSamples) failureSamples.add(message)
+    }
+
+    private def backoffMillis(attempt: Int): Long = {
+      val base = math.min(config.maxBackoffMillis, config.initialBackoffMillis << math.min(attempt, 20))
+      // Случайная задержка в пределах [base/2, base], чтобы повторы разных запросов не шли одной волной
+      base / 2 + (Random.nextDouble() * (base / 2)).toLong
+    }
+
+    private val updateStatus: LongActionStatus => Any = {s =>
+      val seconds = math.max(1L, System.currentTimeMillis() - startTime) / 1000.0
+      s.progress = math.min(processed.get(), Int.MaxValue).toInt
+      s.message = "Indexed " + indexed.get() + (if (total > 0) " of " + total else "") +
+        ", " + (indexed.get() / seconds).toLong + " docs/s, " + (bytes.get() / seconds / 1024).toLong + " KB/s" +
+        ", failed " + failed.get() + ", retries " + retries.get()
+    }
+  }
+}
+
+object BulkIndexer {
+  private val log = LoggerFactory.getLogger(getClass)
+
+  final val DefaultMaxActions = 1000
+  private final val MaxFailureSamples = 100
+
+  /**
+    * @param maxActions           Максимальное число записей в одном bulk запросе
+    * @param maxBytes             Максимальный размер bulk запроса в байтах (примерный, по оценке эластика)
+    * @param concurrency          Максимальное число одновременно выполняемых bulk запросов
+    * @param parallelism          Число потоков для writeFactory. 1 - вызывающий поток, больше 1 - пул потоков,
+    *                             тогда writeFactory должна быть потокобезопасной
+    * @param maxRetries           Сколько раз повторять запрос или отклонённые записи
+    * @param initialBackoffMillis Задержка перед первым повтором, дальше она удваивается
+    * @param maxBackoffMillis     Максимальная задержка перед повтором
+    */
+  case class Config(maxActions: Int = DefaultMaxActions,
+                    maxBytes: Long = 5L * 1024 * 1024,
+                    concurrency: Int = 4,
+                    parallelism: Int = 1,
+                    maxRetries: Int = 8,
+                    initialBackoffMillis: Long = 100,
+                    maxBackoffMillis: Long = 10000) {
+    require(maxActions > 0 && maxBytes > 0 && concurrency > 0 && parallelism > 0 && maxRetries >= 0, "Invalid bulk indexer config")
+  }
+
+  /**
+    * Итог индексации.
+    *
+    * @param processed          Прочитано записей из итератора
+    * @param indexed            Успешно проиндексировано
+    * @param skipped            Пропущено (writeFactory вернула None)
+    * @param failed             Не удалось проиндексировать
+    * @param failureSamples     Первые сообщения об ошибках
+    * @param lastFailedResponse Последний ответ, в котором были неисправимые ошибки записей, либо null
+    * @param lastError          Последняя ошибка запроса целиком, либо null
+    */
+  class Result(val processed: Long,
+               val indexed: Long,
+               val skipped: Long,
+               val failed: Long,
+               val retries: Long,
+               val bulks: Long,
+               val bytes: Long,
+               val tookMillis: Long,
+               val cancelled: Boolean,
+               val failureSamples: Vector[String],
+               val lastFailedResponse: BulkResponse,
+               val lastError: Throwable) {
+    def isSuccess: Boolean = failed == 0 && !cancelled
+
+    override def toString: String =
+      "BulkIndexer.Result(processed=" + processed + ", indexed=" + indexed + ", skipped=" + skipped + ", failed=" + failed +
+        ", retries=" + retries + ", bulks=" + bulks + ", bytes=" + bytes + ", took=" + tookMillis + "ms" +
+        (if (cancelled) ", cancelled" else "") + (if (failureSamples.nonEmpty) ", first failure: " + failureSamples.head else "") + ")"
+  }
+
+  private def isRetryable(status: RestStatus): Boolean =
+    status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE
+}
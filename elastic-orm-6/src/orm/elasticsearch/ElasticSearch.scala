@@ -2,14 +2,16 @@ package orm.elasticsearch
 
 import java.io.{FileNotFoundException, IOException}
 import java.net.{HttpURLConnection, URL}
+import java.util.concurrent.{Executors, RejectedExecutionException, ScheduledExecutorService, TimeUnit}
 
 import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.module.scala.DefaultScalaModule
 import io.netty.handler.codec.http.HttpMethod
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
 import org.elasticsearch.action.bulk.BulkResponse
 import org.elasticsearch.action.search.SearchResponse
-import org.elasticsearch.action.{ActionRequest, ActionRequestBuilder, ActionResponse}
+import org.elasticsearch.action.{ActionListener, ActionRequest, ActionRequestBuilder, ActionResponse}
 import org.elasticsearch.client.Client
 import org.elasticsearch.client.transport.NoNodeAvailableException
 import org.elasticsearch.common.unit.TimeValue
@@ -22,6 +24,7 @@ import webby.mvc.AppPluginHolder
 
 import scala.annotation.tailrec
 import scala.collection.JavaConverters._
+import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.util.Random
 
 abstract class ElasticSearch {
@@ -53,6 +56,37 @@ abstract class ElasticSearch {
     doExecute(10)
   }
 
+  /**
+    * Неблокирующий аналог [[executeAndGet]]: ответ приходит в [[Future]], поток не ждёт.
+    * Если нет доступного узла, запрос повторяется через планировщик с растущей случайной паузой,
+    * до 10 попыток.
+    */
+  def executeAsync[Resp <: ActionResponse](builder: ActionRequestBuilderResp[Resp]): Future[Resp] = {
+    val promise = Promise[Resp]()
+    def doExecute(tryNum: Int): Unit = {
+      val listener = new ActionListener[Resp] {
+        override def onResponse(response: Resp): Unit = promise.success(response)
+        override def onFailure(e: Exception): Unit = e match {
+          case _: NoNodeAvailableException if tryNum < 10 =>
+            // Full jitter: случайная пауза до 100, 200, 400 ... 2000 мс
+            val delay = Random.nextInt(math.min(2000, 100 << (tryNum - 1)))
+            try retryScheduler.schedule(new Runnable {
+              override def run(): Unit = doExecute(tryNum + 1)
+            }, delay, TimeUnit.MILLISECONDS)
+            catch {case re: RejectedExecutionException => promise.failure(re)}
+          case _: NoNodeAvailableException =>
+            log.error("No node available in 10 tries for query: " + builder.toString)
+            promise.failure(e)
+          case _ => promise.failure(e)
+        }
+      }
+      try builder.execute(listener)
+      catch {case e: Exception => listener.onFailure(e)}
+    }
+    doExecute(1)
+    promise.future
+  }
+
   /**
     * Сделать http запрос напрямую к elastic-серверу.
     * Например, чтобы задать mapping, нужно вызвать этот метод с параметрами:
@@ -151,25 +185,35 @@ abstract class ElasticSearch {
     executeAndGet(client.prepareClearScroll().setScrollIds(scrollIds.asJava))
   }
 
-  def bulkIndex[TR <: TableRecord](items: Iterator[TR], writeFactory: TR => Option[EsTypeWrite], bulkSize: Int = 100): Either[BulkResponse, Unit] = {
-    @tailrec
-    def doBulk(items: Stream[TR]): Either[BulkResponse, Unit] = {
-      val bulkRequest = client.prepareBulk()
-      val (curItems, nextItems) = items.splitAt(bulkSize)
-      for (item <- curItems) {
-        writeFactory(item).foreach(record => bulkRequest.add(record.prepareIndex))
-      }
-      bulkRequest.execute().actionGet() match {
-        case result if result.hasFailures => Left(result)
-        case _ => if (nextItems.isEmpty) Right(()) else doBulk(nextItems)
-      }
-    }
-    doBulk(items.toStream)
+  /**
+    * Проиндексировать записи пачками через [[BulkIndexer]], с повтором отклонённых записей.
+    * `writeFactory` вызывается в текущем потоке; для параллельного вызова используйте
+    * [[bulkIndexer]] с `parallelism > 1`.
+    * Возвращает Left с последним ответом, в котором остались неисправимые ошибки записей.
+    */
+  def bulkIndex[TR <: TableRecord](items: Iterator[TR], writeFactory: TR => Option[EsTypeWrite],
+                                   bulkSize: Int = 100): Either[BulkResponse, Unit] = {
+    val result = bulkIndexer(BulkIndexer.Config(maxActions = bulkSize, parallelism = 1)).run(items, writeFactory)
+    if (result.lastFailedResponse != null) Left(result.lastFailedResponse)
+    else if (result.lastError != null) throw result.lastError
+    else Right(())
   }
+
+  def bulkIndexer(config: BulkIndexer.Config = BulkIndexer.Config()): BulkIndexer = new BulkIndexer(client, config)
 }
 
 
 object ElasticSearch extends ElasticSearch {
+  /** Планировщик повторов [[executeAsync]] */
+  private lazy val retryScheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+    new BasicThreadFactory.Builder().namingPattern("es-retry-%d").daemon(true).build())
+
+  /** Выполняет колбэки future в потоке эластика, где пришёл ответ. Колбэки должны быть короткими. */
+  private[elasticsearch] object SameThreadContext extends ExecutionContext {
+    override def execute(runnable: Runnable): Unit = runnable.run()
+    override def reportFailure(cause: Throwable): Unit = log.error("Async callback failed", cause)
+  }
+
   /** Настройки индекса эластика
     * При необходимости можно добавить другие поля  */
   @JsonIgnoreProperties(ignoreUnknown = true)
@@ -30,6 +30,22 @@ class EsClassHitData(val hit: SearchHit) extends EsClassData {
   override def score: Option[Float] = Some(hit.getScore)
 }
 
+/**
+  * Данные найденной записи, в которой загружены только поля [[EsSourceFields]].
+  */
+class EsClassHitSourceData(val hit: SearchHit, fields: EsSourceFields) extends EsClassData {
+  private val values: Array[AnyRef] = fields.decode(hit)
+  val hf = hit.getHighlightFields
+  @Nullable override def getId: String = hit.getId
+  @Nullable override def get(field: String): AnyRef = fields.slot(field) match {
+    case -1 => null
+    case i => values(i)
+  }
+  @Nullable override def getHighlightedField(field: String): HighlightField = hf.get(field)
+  override def isFieldHighlighted(field: String): Boolean = hf.containsKey(field)
+  override def score: Option[Float] = Some(hit.getScore)
+}
+
 class EsClassHitFieldsData(val hit: SearchHit) extends EsClassData {
   val fields: ju.Map[String, DocumentField] = hit.getFields
   val hf = hit.getHighlightFields
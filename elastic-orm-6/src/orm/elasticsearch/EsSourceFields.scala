@@ -0,0 +1,107 @@
+package orm.elasticsearch
+
+import java.{lang => jl, util => ju}
+
+import com.fasterxml.jackson.core.{JsonFactory, JsonParser, JsonToken}
+import org.elasticsearch.search.SearchHit
+
+/**
+  * Набор полей `_source`, которые нужно загрузить, для частичной загрузки записей.
+  * Создаётся один раз через [[EsMeta.sourceFields]] и хранится, например, в поле объекта.
+  *
+  * Обычный [[EsMeta.fromHit]] разбирает весь `_source` в [[ju.Map]] упакованных значений.
+  * Здесь `_source` читается потоком Jackson: значения нужных полей кладутся в массив по номерам полей (слотам),
+  * остальные поля пропускаются, не создавая объектов. Чтение заканчивается, как только найдены все поля.
+  * Поля, которых нет в наборе, в записи будут пустыми (null, None, 0).
+  *
+  * [[EsTypeClient.searchFields]] также передаёт эти поля в `_source` includes запроса.
+  */
+final class EsSourceFields private[elasticsearch](names: Seq[String]) {
+  import EsSourceFields._
+
+  /** Поля верхнего уровня, по одному на слот */
+  val topNames: Array[String] = names.map(topName).distinct.toArray
+  /** Пути полей для `_source` includes */
+  val includes: Array[String] = names.distinct.toArray
+
+  private val slots = new ju.HashMap[String, Integer](topNames.length * 2)
+  topNames.indices.foreach(i => slots.put(topNames(i), i))
+
+  /** Номер слота поля верхнего уровня, -1 - поле не загружается */
+  def slot(field: String): Int = slots.get(field) match {
+    case null => -1
+    case i => i.intValue()
+  }
+
+  /**
+    * Разобрать значения полей из JSON `_source`. Значения имеют те же типы, что и в
+    * `SearchHit.getSourceAsMap`: Integer/Long, Double, String, Boolean, [[ju.ArrayList]], [[ju.HashMap]].
+    */
+  def decode(bytes: Array[Byte], offset: Int, length: Int): Array[AnyRef] = {
+    val values = new Array[AnyRef](topNames.length)
+    val p = jsonFactory.createParser(bytes, offset, length)
+    try {
+      if (p.nextToken() != JsonToken.START_OBJECT) throw new IllegalArgumentException("_source is not a JSON object")
+      var remaining = topNames.length
+      while (remaining > 0 && p.nextToken() == JsonToken.FIELD_NAME) {
+        val i = slot(p.getCurrentName)
+        val token = p.nextToken()
+        if (i < 0) p.skipChildren()
+        else {
+          values(i) = readValue(p, token)
+          remaining -= 1
+        }
+      }
+    } finally p.close()
+    values
+  }
+
+  /** Разобрать значения полей из `_source` найденной записи */
+  def decode(hit: SearchHit): Array[AnyRef] = {
+    val source = hit.getSourceRef
+    if (source == null) new Array[AnyRef](topNames.length)
+    else {
+      val ref = source.toBytesRef
+      if (ref.length > 0 && ref.bytes(ref.offset) == '{') decode(ref.bytes, ref.offset, ref.length)
+      else {
+        // Не JSON (SMILE, CBOR и т.п.) - разбираем средствами эластика
+        val map = hit.getSourceAsMap
+        topNames.map(map.get)
+      }
+    }
+  }
+}
+
+object EsSourceFields {
+  private val jsonFactory = new JsonFactory()
+
+  private[elasticsearch] def topName(path: String): String = {
+    val dot = path.indexOf('.')
+    if (dot < 0) path else path.substring(0, dot)
+  }
+
+  private def readValue(p: JsonParser, token: JsonToken): AnyRef = token match {
+    case JsonToken.VALUE_STRING => p.getText
+    case JsonToken.VALUE_NUMBER_INT => p.getNumberValue
+    case JsonToken.VALUE_NUMBER_FLOAT => jl.Double.valueOf(p.getDoubleValue)
+    case JsonToken.VALUE_TRUE => jl.Boolean.TRUE
+    case JsonToken.VALUE_FALSE => jl.Boolean.FALSE
+    case JsonToken.START_OBJECT =>
+      val map = new ju.HashMap[String, AnyRef]()
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        val name = p.getCurrentName
+        map.put(name, readValue(p, p.nextToken()))
+      }
+      map
+    case JsonToken.START_ARRAY =>
+      val list = new ju.ArrayList[AnyRef]()
+      var t = p.nextToken()
+      while (t != JsonToken.END_ARRAY) {
+        list.add(readValue(p, t))
+        t = p.nextToken()
+      }
+      list
+    case _ => null
+  }
+}
+
@@ -10,16 +10,21 @@ import org.elasticsearch.action.get._
 import org.elasticsearch.action.index.IndexRequestBuilder
 import org.elasticsearch.action.search._
 import org.elasticsearch.common.geo.GeoPoint
+import org.elasticsearch.common.unit.TimeValue
 import org.elasticsearch.index.query.MoreLikeThisQueryBuilder.Item
 import org.elasticsearch.index.query.QueryBuilders._
 import org.elasticsearch.index.query._
+import org.elasticsearch.search.slice.SliceBuilder
 import org.elasticsearch.search.{SearchHit, SearchHits}
+import orm.elasticsearch.ElasticSearch.SameThreadContext
 import querio.DbEnum
 
 import scala.collection.mutable
 
 // for Scala 2.11: import scala.collection.JavaConversions._
 import scala.collection.JavaConverters._
+import scala.concurrent.Future
+import scala.util.Success
 
 /*
 Live template for Intellij IDEA, named "elasticorm_estypetrait"
@@ -485,18 +490,35 @@ trait EsMeta[C <: EsRecord] extends EsTrait {
     if (p.isEmpty) name else p + "." + name
   }
 
+  /** Имена полей _source верхнего уровня. Заполняется при инициализации полей, поэтому без инициализатора. */
+  private var _fieldNames: ju.LinkedHashSet[String] = _
+
+  private def registerField(name: String): Unit = {
+    if (_fieldNames == null) _fieldNames = new ju.LinkedHashSet[String]()
+    _fieldNames.add(name)
+  }
+
+  /** Имена полей _source верхнего уровня в порядке объявления */
+  def fieldNames: Iterable[String] = if (_fieldNames == null) Nil else _fieldNames.asScala
+
   override protected def idField(fr: (Record) => String): EsField =
     new EsField(subFieldName("_id"))
 
-  override protected def field[W, R](name: String, fromRecord: Record => W, conv: Conv[W, R]): F[R] =
+  override protected def field[W, R](name: String, fromRecord: Record => W, conv: Conv[W, R]): F[R] = {
+    registerField(name)
     new EsField(subFieldName(name))
+  }
 
-  override protected def boostField(fromRecord: Record => Double): F[Double] =
+  override protected def boostField(fromRecord: Record => Double): F[Double] = {
+    registerField(boostName)
     new EsField(subFieldName(boostName))
+  }
 
   override protected def objectListField[CC <: EsRecord, M <: EsSubTypeMeta[CC]]
-  (name: String, fromRecord: Record => Iterable[M#Record], meta: M): FList[CC, M] =
+  (name: String, fromRecord: Record => Iterable[M#Record], meta: M): FList[CC, M] = {
+    registerField(name)
     meta.withPath(name, subFieldName(name)).asInstanceOf[FList[CC, M]]
+  }
 
   def validateRecord(r: Record): Boolean
   def makeWrite(r: Record): EsWrite
@@ -508,6 +530,22 @@ trait EsMeta[C <: EsRecord] extends EsTrait {
   def fromGet(resp: GetResponse): Option[C] = if (resp.isExists) Some(makeObject(new EsClassGetData(resp))) else None
   def fromGetList(resp: GetResponse): List[C] = if (resp.isExists) List(makeObject(new EsClassGetData(resp))) else Nil
   def fromMap(map: ju.Map[String, AnyRef]): C = makeObject(new EsClassMapData(map))
+  def fromHit(searchHit: SearchHit, fields: EsSourceFields): C = makeObject(new EsClassHitSourceData(searchHit, fields))
+
+  /**
+    * Набор полей для частичной загрузки записей, см. [[EsSourceFields]]. Id загружается всегда.
+    * Создавать его лучше один раз, а не на каждый запрос.
+    */
+  def sourceFields(fields: EsField*): EsSourceFields = sourceFieldsByName(fields.map(_.name): _*)
+
+  /** То же, что [[sourceFields]], по именам полей, например, для вложенных объектов: `sourceFieldsByName(Cat.colors.fieldName)` */
+  def sourceFieldsByName(names: String*): EsSourceFields = {
+    val sourceNames = names.filter(n => n != "_id" && !n.endsWith("._id"))
+    for (n <- sourceNames) {
+      require(_fieldNames != null && _fieldNames.contains(EsSourceFields.topName(n)), "No field '" + n + "' in " + getClass.getName)
+    }
+    new EsSourceFields(sourceNames)
+  }
 }
 
 /**
@@ -545,16 +583,28 @@ trait EsTypeClient[C <: EsTypeRecord] {
 
   // ------------------------------- Private & protected methods -------------------------------
 
-  protected def searchResponse(search: Object, response: SearchResponse): EsResult[C] = {
+  protected def searchResponse(search: Object, response: SearchResponse,
+                               fromHit: SearchHit => C = meta.fromHit): EsResult[C] = {
     val hits: SearchHits = response.getHits
 
     new EsResult[C](took = response.getTook.millis(),
       found = hits.getTotalHits.toInt,
-      rows = hits.getHits.map(meta.fromHit)(collection.breakOut),
+      rows = hits.getHits.map(fromHit)(collection.breakOut),
       aggs = Option(response.getAggregations),
       esQueryBuilder = search)
   }
 
+  protected def multiGetResponse(search: Object, response: MultiGetResponse): EsResult[C] = {
+    val hits: Array[MultiGetItemResponse] = response.getResponses
+    val rows: Vector[C] = hits.flatMap(r => meta.fromGetList(r.getResponse))(scala.collection.breakOut)
+
+    new EsResult[C](took = 0,
+      found = rows.size,
+      rows = rows,
+      aggs = None,
+      esQueryBuilder = search)
+  }
+
   /**
     * Замерить время выполнения запроса, который не возвращает затраченное время, и выполнить этот
     * запрос. Полученное время учитывается в статистике вызовом метода [[statAddOne()]]
@@ -567,6 +617,12 @@ trait EsTypeClient[C <: EsTypeRecord] {
     result
   }
 
+  /** Асинхронный аналог [[statByRealTime]]: время учитывается по готовности ответа */
+  protected def statByRealTimeAsync[R](query: => Future[R]): Future[R] = {
+    val t0 = System.currentTimeMillis()
+    query.andThen {case Success(_) => statAddOne(System.currentTimeMillis() - t0)}(SameThreadContext)
+  }
+
   /**
     * Получить время выполнения запроса из результата [[EsResult]] и учесть это время в статистике
     * вызовом метода [[statAddOne()]].
@@ -576,6 +632,7 @@ trait EsTypeClient[C <: EsTypeRecord] {
 
   /**
     * Учесть время, выполненное этим запросом.
+    * Для асинхронных запросов вызывается в потоке, где пришёл ответ.
     */
   protected def statAddOne(millis: Long): Unit = {}
 
@@ -606,15 +663,7 @@ trait EsTypeClient[C <: EsTypeRecord] {
       b.add(em.index, em.tpe, ids.asJava)
       search = b
     })
-
-    val hits: Array[MultiGetItemResponse] = response.getResponses
-    val rows: Vector[C] = hits.flatMap(r => meta.fromGetList(r.getResponse))(scala.collection.breakOut)
-
-    new EsResult[C](took = 0,
-      found = rows.size,
-      rows = rows,
-      aggs = None,
-      esQueryBuilder = search)
+    multiGetResponse(search, response)
   }
 
   def searchRaw(block: SearchRequestBuilder => Any): SearchResponse =
@@ -629,6 +678,43 @@ trait EsTypeClient[C <: EsTypeRecord] {
     stat(searchResponse(search, resp))
   }
 
+  /**
+    * Поиск с загрузкой только полей `fields` (см. [[EsSourceFields]]): они передаются в `_source` includes
+    * запроса и разбираются из `_source` без построения карты всех полей. Остальные поля записей будут пустыми.
+    */
+  def searchFields(fields: EsSourceFields)(block: SearchRequestBuilder => Any): EsResult[C] = {
+    var search: SearchRequestBuilder = null
+    val resp = em.search {b =>
+      block(b)
+      b.setFetchSource(fields.includes, null)
+      search = b
+    }
+    stat(searchResponse(search, resp, meta.fromHit(_, fields)))
+  }
+
+  // ------------------------------- Async methods -------------------------------
+  // Не занимают поток на время запроса, см. `ElasticIndexMapping.searchAsync`.
+  // Записи создаются из ответа в потоке эластика, где он пришёл.
+
+  def searchAsync(block: SearchRequestBuilder => Any): Future[EsResult[C]] = {
+    var search: SearchRequestBuilder = null
+    em.searchAsync {b =>
+      block(b)
+      search = b
+    }.map(resp => stat(searchResponse(search, resp)))(SameThreadContext)
+  }
+
+  def getAsync(id: String)(block: GetRequestBuilder => Any = a => ()): Future[Option[C]] =
+    statByRealTimeAsync(em.getAsync(id)(block)).map(meta.fromGet)(SameThreadContext)
+
+  def multiGetAsync(ids: Iterable[String]): Future[EsResult[C]] = {
+    var search: MultiGetRequestBuilder = null
+    statByRealTimeAsync(em.multiGetAsync {b =>
+      b.add(em.index, em.tpe, ids.asJava)
+      search = b
+    }).map(multiGetResponse(search, _))(SameThreadContext)
+  }
+
   def moreLikeThisItem(id: String): MoreLikeThisQueryBuilder.Item = new MoreLikeThisQueryBuilder.Item(em.index, em.tpe, id)
   def moreLikeThisItem(id: Int): MoreLikeThisQueryBuilder.Item = moreLikeThisItem(id.toString)
 
@@ -660,4 +746,39 @@ trait EsTypeClient[C <: EsTypeRecord] {
   def clearScroll(block: ClearScrollRequestBuilder => Any): ClearScrollResponse = {
     em.clearScroll(block)
   }
+
+  /**
+    * Ленивый итератор по всем найденным записям через scroll, см. [[EsHitIterator]].
+    * Недочитанный итератор нужно закрыть.
+    */
+  def scrollIterator(pageSize: Int = EsHitIterator.DefaultPageSize, keepAlive: TimeValue = EsHitIterator.DefaultKeepAlive)
+                    (block: SearchRequestBuilder => Any): EsHitIterator[C] =
+    hitIterator(Seq(EsHitIterator.scroll(prepareSearch(pageSize, block), keepAlive)))
+
+  /**
+    * Как [[scrollIterator]], но scroll делится на `slices` частей, которые читаются параллельно.
+    * Порядок записей не сохраняется.
+    */
+  def slicedScrollIterator(slices: Int, pageSize: Int = EsHitIterator.DefaultPageSize,
+                           keepAlive: TimeValue = EsHitIterator.DefaultKeepAlive)
+                          (block: SearchRequestBuilder => Any): EsHitIterator[C] =
+    if (slices <= 1) scrollIterator(pageSize, keepAlive)(block)
+    else hitIterator((0 until slices).map(id =>
+      EsHitIterator.scroll(prepareSearch(pageSize, block).slice(new SliceBuilder(id, slices)), keepAlive)))
+
+  /**
+    * Ленивый итератор по всем найденным записям через search_after, без scroll контекстов на сервере.
+    * В `block` нужно задать сортировку, последнее поле которой уникально (например, id).
+    */
+  def searchAfterIterator(pageSize: Int = EsHitIterator.DefaultPageSize)(block: SearchRequestBuilder => Any): EsHitIterator[C] =
+    hitIterator(Seq(EsHitIterator.searchAfter(prepareSearch(pageSize, block), pageSize)))
+
+  private def prepareSearch(pageSize: Int, block: SearchRequestBuilder => Any): SearchRequestBuilder = {
+    val builder = em.prepareSearch().setSize(pageSize)
+    block(builder)
+    builder
+  }
+
+  private def hitIterator(streams: Seq[EsHitIterator.PageStream]): EsHitIterator[C] =
+    new EsHitIterator[C](streams, meta.fromHit, response => statAddOne(response.getTook.millis()))
 }
@@ -32,7 +32,7 @@ import scala.concurrent.Future
   * object DbHooks {
   *   def resetRecordCache(tableName: String, id: Int, change: TrRecordChange, propagateServers: Boolean) {
   *     ...
-  *     ElasticMap.get(tableName).foreach(_.reindexRecord(id))
+  *     ElasticMap.reindexLater(tableName, id)
   *     ...
   *   }
   * }
@@ -63,6 +63,19 @@ abstract class AbstractElasticMappings(mapList: ElasticMapListTrait) {
 
   /** Получить Mapping по его полному имени, например ros.tag */
   def get(fullName: String): Seq[Reindexable[_ <: TableRecord]] = allMap.getOrElse(fullName, Nil)
+
+  /**
+    * Очередь переиндексации для [[reindexLater]]. Её параметры можно задать, переопределив этот метод.
+    */
+  protected def makeReindexQueue: ReindexQueue = new ReindexQueue()
+
+  lazy val reindexQueue: ReindexQueue = makeReindexQueue
+
+  /**
+    * Поставить запись таблицы в очередь переиндексации (см. [[ReindexQueue]]).
+    * В отличие от [[Reindexable.reindexRecord]], частые изменения одной записи схлопываются и индексируются пачками.
+    */
+  def reindexLater(fullName: String, id: Int): Unit = get(fullName).foreach(reindexQueue.add(_, id))
 }
 
 
@@ -109,13 +122,16 @@ object ElasticMappings {
                                         writeFactory: TR => Option[EsTypeWrite],
                                         esTypeClientsNoStat: Seq[EsTypeClient[_ <: EsTypeRecord]]) extends Reindexable[TR] {
     def reindexRecord(id: Int): Option[Future[IndexResponse]] =
-      (for (tr <- getByIdForIndex(id);
-            record <- writeFactory(tr))
-        yield record) match {
+      writeForIndex(id) match {
         case Some(record) => Some(Future(ElasticSearch.executeAndGet(record.prepareIndex)))
         case None => esTypeClientsNoStat.foreach(_.delete(id.toString)(_ => ())); None
       }
 
+    /**
+      * Запись для индексации по id, None - запись нужно удалить из индекса
+      */
+    def writeForIndex(id: Int): Option[EsTypeWrite] = getByIdForIndex(id).flatMap(writeFactory)
+
     /**
       * Shortcut для создания RelatedMapping
       */
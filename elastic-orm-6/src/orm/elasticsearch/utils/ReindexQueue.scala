@@ -0,0 +1,230 @@
+package orm.elasticsearch.utils
+
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.{ConcurrentHashMap, LinkedBlockingQueue, Semaphore}
+
+import org.elasticsearch.action.DocWriteRequest
+import org.elasticsearch.action.bulk.BulkRequestBuilder
+import org.slf4j.LoggerFactory
+import orm.elasticsearch.ElasticSearch
+import orm.elasticsearch.utils.ElasticMappings.{Mapping, Reindexable, RelatedMapping}
+import querio.TableRecord
+import webby.commons.system.metrics.LatencyHistogram
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Очередь переиндексации записей по изменениям в БД, см. [[AbstractElasticMappings.reindexLater]].
+  *
+  *  - Повторные изменения одной записи (маппинг, id), пока она ждёт в очереди, схлопываются в одно.
+  *    Каждая запись ждёт в очереди не меньше `windowMillis`, чтобы пачка изменений успела схлопнуться:
+  *    в bulk запрос берутся записи по порядку постановки до первой, которая ждёт меньше `windowMillis`.
+  *  - Накопленные id индексируются одним bulk запросом на пачку до `maxBatch` записей,
+  *    вместе с удалением записей, которые больше не годятся для индексации.
+  *  - [[RelatedMapping]] не индексирует сам, а ставит в эту же очередь основную запись. Поэтому
+  *    10k изменений подчинённых строк одной основной записи превращаются в одну её переиндексацию.
+  *  - Каждая запись всегда обрабатывается одним и тем же из `threads` потоков, по порядку.
+  *    Запись убирается из очереди до чтения из БД, поэтому изменение, пришедшее во время индексации,
+  *    переиндексирует её ещё раз, уже после текущей.
+  *  - В очереди не больше `maxPending` записей, при переполнении [[add]] ждёт, пока место освободится.
+  *
+  * @param windowMillis Минимальное время ожидания записи в очереди
+  * @param maxBatch     Максимальное число записей в одном bulk запросе
+  * @param threads      Число потоков индексации
+  * @param maxPending   Максимальное число записей в очереди
+  */
+class ReindexQueue(windowMillis: Long = 200,
+                   maxBatch: Int = 500,
+                   threads: Int = 2,
+                   maxPending: Int = 100000) {
+  import ReindexQueue._
+  require(windowMillis >= 0 && maxBatch > 0 && threads > 0 && maxPending > 0, "Invalid reindex queue config")
+
+  /** Записи в очереди и время их постановки */
+  private val pending = new ConcurrentHashMap[Key, java.lang.Long]()
+  private val permits = new Semaphore(maxPending)
+  private val shards: Array[Shard] = Array.tabulate(threads)(new Shard(_))
+
+  val metrics = new Metrics
+
+  /**
+    * Поставить запись в очередь переиндексации. Если она уже в очереди, то изменение схлопывается с ней.
+    */
+  def add(target: Reindexable[_ <: TableRecord], id: Int): Unit = enqueue(new Key(target, id), waitPermit = true)
+
+  /** Число записей в очереди */
+  def depth: Int = pending.size()
+
+  /** Сколько миллисекунд ждёт самая старая запись в очереди, 0 - очередь пуста */
+  def lagMillis: Long = {
+    val now = System.currentTimeMillis()
+    var lag = 0L
+    for (shard <- shards) {
+      val head = shard.queue.peek()
+      if (head != null) {
+        val enqueuedAt = pending.get(head)
+        if (enqueuedAt != null) lag = math.max(lag, now - enqueuedAt)
+      }
+    }
+    lag
+  }
+
+  /** Остановить потоки индексации. Записи, оставшиеся в очереди, не индексируются. */
+  def shutdown(): Unit = shards.foreach(_.thread.interrupt())
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  /**
+    * @param waitPermit Ждать места в очереди. Потоки индексации не ждут (иначе они могут заблокировать
+    *                   друг друга) и ставят основные записи [[RelatedMapping]] сверх `maxPending`.
+    */
+  private def enqueue(key: Key, waitPermit: Boolean): Unit = {
+    if (pending.containsKey(key)) metrics.coalescedCounter.increment()
+    else {
+      if (waitPermit) permits.acquire()
+      key.hasPermit = waitPermit
+      if (pending.putIfAbsent(key, System.currentTimeMillis()) == null) {
+        metrics.enqueuedCounter.increment()
+        shards((key.hashCode & Int.MaxValue) % threads).queue.add(key)
+      } else {
+        if (waitPermit) permits.release()
+        metrics.coalescedCounter.increment()
+      }
+    }
+  }
+
+  private class Shard(n: Int) extends Runnable {
+    val queue = new LinkedBlockingQueue[Key]()
+    val thread = new Thread(this, "es-reindex-" + n)
+    thread.setDaemon(true)
+    thread.start()
+
+    override def run(): Unit = {
+      val batch = new java.util.ArrayList[Key](maxBatch)
+      try {
+        while (true) {
+          val first = queue.take()
+          val wait = pending.get(first).longValue() + windowMillis - System.currentTimeMillis()
+          if (wait > 0) Thread.sleep(wait)
+          batch.add(first)
+          // Ключи в очереди идут по времени постановки. Из очереди их забирает только этот поток,
+          // поэтому после peek() poll() вернёт тот же ключ.
+          val dueAt = System.currentTimeMillis() - windowMillis
+          var next = queue.peek()
+          while (next != null && batch.size() < maxBatch && pending.get(next).longValue() <= dueAt) {
+            batch.add(queue.poll())
+            next = queue.peek()
+          }
+          try process(batch)
+          catch {case e: Exception => log.error("Reindex batch failed", e)}
+          batch.clear()
+        }
+      } catch {
+        case _: InterruptedException => // shutdown
+      }
+    }
+  }
+
+  private def process(batch: java.util.List[Key]): Unit = {
+    val now = System.currentTimeMillis()
+    val byTarget = mutable.LinkedHashMap[Reindexable[_ <: TableRecord], ArrayBuffer[Int]]()
+    var i = 0
+    while (i < batch.size()) {
+      val key = batch.get(i)
+      // Убираем из очереди до чтения из БД: новое изменение этой записи встанет в очередь заново
+      metrics.lag.record(now - pending.remove(key).longValue())
+      if (key.hasPermit) permits.release()
+      byTarget.getOrElseUpdate(key.target, ArrayBuffer[Int]()) += key.id
+      i += 1
+    }
+    for ((target, ids) <- byTarget) {
+      target match {
+        case m: Mapping[_] => indexBatch(m, ids)
+        case r: RelatedMapping[_] =>
+          for (id <- ids; mainId <- r.getMainIdForIndex(id)) enqueue(new Key(r.mainMapping, mainId), waitPermit = false)
+      }
+    }
+  }
+
+  /** Проиндексировать пачку записей маппинга одним bulk запросом, удалив из индекса те, что больше не годятся */
+  protected def indexBatch(mapping: Mapping[_ <: TableRecord], ids: ArrayBuffer[Int]): Unit = {
+    val bulk: BulkRequestBuilder = ElasticSearch.client.prepareBulk()
+    for (id <- ids) {
+      mapping.writeForIndex(id) match {
+        case Some(write) => bulk.add(write.prepareIndex)
+        case None =>
+          for (client <- mapping.esTypeClientsNoStat)
+            bulk.add(ElasticSearch.client.prepareDelete(client.em.index, client.em.tpe, id.toString))
+      }
+    }
+    if (bulk.numberOfActions() > 0) {
+      metrics.batchCounter.increment()
+      try {
+        val response = ElasticSearch.executeAndGet(bulk)
+        var indexed = 0
+        var deleted = 0
+        var failed = 0
+        for (item <- response.getItems) {
+          if (item.isFailed) {
+            failed += 1
+            log.warn("Cannot reindex " + mapping.table._fullTableName + " #" + item.getId + ": " + item.getFailureMessage)
+          } else if (item.getOpType == DocWriteRequest.OpType.DELETE) deleted += 1
+          else indexed += 1
+        }
+        metrics.failedCounter.add(failed)
+        metrics.indexedCounter.add(indexed)
+        metrics.deletedCounter.add(deleted)
+      } catch {
+        case e: Exception =>
+          metrics.failedCounter.add(bulk.numberOfActions())
+          log.error("Cannot reindex " + ids.size + " records of " + mapping.table._fullTableName, e)
+      }
+    }
+  }
+}
+
+object ReindexQueue {
+  private val log = LoggerFactory.getLogger(getClass)
+
+  /** Ключ записи в очереди. Маппинги сравниваются по ссылке. */
+  private final class Key(val target: Reindexable[_ <: TableRecord], val id: Int) {
+    /** Ключ занимает место в очереди (permit) */
+    var hasPermit: Boolean = false
+
+    override def hashCode(): Int = System.identityHashCode(target) * 31 + id
+    override def equals(obj: Any): Boolean = obj match {
+      case k: Key => (k.target eq target) && k.id == id
+      case _ => false
+    }
+  }
+
+  /**
+    * Метрики очереди переиндексации.
+    *
+    *  - enqueued - поставлено в очередь, coalesced - изменения, схлопнутые с уже стоящими в очереди,
+    *  - indexed, deleted - проиндексировано и удалено из индекса, failed - ошибки,
+    *  - batches - bulk запросы,
+    *  - lag - время от постановки в очередь до начала индексации (мс).
+    */
+  final class Metrics {
+    private[utils] val enqueuedCounter = new LongAdder
+    private[utils] val coalescedCounter = new LongAdder
+    private[utils] val indexedCounter = new LongAdder
+    private[utils] val deletedCounter = new LongAdder
+    private[utils] val failedCounter = new LongAdder
+    private[utils] val batchCounter = new LongAdder
+    val lag = new LatencyHistogram
+
+    def enqueued: Long = enqueuedCounter.sum()
+    def coalesced: Long = coalescedCounter.sum()
+    def indexed: Long = indexedCounter.sum()
+    def deleted: Long = deletedCounter.sum()
+    def failed: Long = failedCounter.sum()
+    def batches: Long = batchCounter.sum()
+
+    def toShortString: String =
+      "enqueued=" + enqueued + " coalesced=" + coalesced + " indexed=" + indexed + " deleted=" + deleted +
+        " failed=" + failed + " batches=" + batches + " lag: " + lag.snapshot().toShortString
+  }
+}
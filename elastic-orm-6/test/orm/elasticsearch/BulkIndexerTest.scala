@@ -0,0 +1,144 @@
+package orm.elasticsearch
+
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentHashMap, Executors, TimeUnit}
+
+import org.elasticsearch.action.ActionListener
+import org.elasticsearch.action.DocWriteRequest.OpType
+import org.elasticsearch.action.bulk.{BulkItemResponse, BulkRequest, BulkResponse}
+import org.elasticsearch.action.index.{IndexRequest, IndexResponse}
+import org.elasticsearch.client.Client
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException
+import org.scalatest.{FunSuite, Matchers}
+import webby.commons.concurrent.longaction.LongActionStatus
+
+class BulkIndexerTest extends FunSuite with Matchers {
+
+  /**
+    * Эластик в памяти: отвечает на bulk запросы асинхронно, в своём пуле потоков.
+    *
+    * @param itemStatus Ответ на запись: null - успех, иначе причина ошибки
+    * @param failRequest Отклонить запрос целиком (номер запроса с 1)
+    */
+  private class FakeEs(itemStatus: Int => Exception = _ => null,
+                       failRequest: Int => Boolean = _ => false,
+                       delayMillis: Long = 1) {
+    private val executor = Executors.newFixedThreadPool(4)
+    val requests = new AtomicInteger
+    val inFlight = new AtomicInteger
+    val maxInFlight = new AtomicInteger
+    /** Успешно проиндексированные id */
+    val indexed = ConcurrentHashMap.newKeySet[String]()
+
+    val client: Client = Proxy.newProxyInstance(getClass.getClassLoader, Array(classOf[Client]), new InvocationHandler {
+      override def invoke(proxy: Any, method: Method, args: Array[AnyRef]): AnyRef = method.getName match {
+        case "bulk" if args.length == 2 =>
+          bulk(args(0).asInstanceOf[BulkRequest], args(1).asInstanceOf[ActionListener[BulkResponse]])
+          null
+        case name => throw new UnsupportedOperationException(name)
+      }
+    }).asInstanceOf[Client]
+
+    private def bulk(request: BulkRequest, listener: ActionListener[BulkResponse]): Unit = {
+      val n = requests.incrementAndGet()
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), math.max)
+      executor.execute(new Runnable {
+        override def run(): Unit = {
+          Thread.sleep(delayMillis)
+          inFlight.decrementAndGet()
+          if (failRequest(n)) listener.onFailure(new RuntimeException("node disconnected"))
+          else {
+            val items = Array.tabulate[BulkItemResponse](request.numberOfActions()) {i =>
+              val id = request.requests().get(i).asInstanceOf[IndexRequest].id()
+              itemStatus(id.toInt) match {
+                case null =>
+                  indexed.add(id)
+                  new BulkItemResponse(i, OpType.INDEX, null: IndexResponse)
+                case e => new BulkItemResponse(i, OpType.INDEX, new BulkItemResponse.Failure("idx", "main", id, e))
+              }
+            }
+            listener.onResponse(new BulkResponse(items, delayMillis))
+          }
+        }
+      })
+    }
+
+    def shutdown(): Unit = {
+      executor.shutdown()
+      executor.awaitTermination(5, TimeUnit.SECONDS)
+    }
+  }
+
+  private def request(i: Int): Option[IndexRequest] =
+    if (i % 100 == 1) None
+    else Some(new IndexRequest("idx", "main", i.toString).source(java.util.Collections.singletonMap("n", Int.box(i))))
+
+  test("rejected items and failed requests are retried") {
+    val rejected = ConcurrentHashMap.newKeySet[Int]()
+    val es = new FakeEs(
+      itemStatus = {
+        case 777 => new IllegalArgumentException("mapper_parsing_exception")
+        case i if i % 7 == 0 && rejected.add(i) => new EsRejectedExecutionException("queue is full")
+        case _ => null
+      },
+      failRequest = _ % 5 == 0)
+    val config = BulkIndexer.Config(maxActions = 50, concurrency = 3, initialBackoffMillis = 1, maxBackoffMillis = 5, maxRetries = 20)
+    val result = new BulkIndexer(es.client, config).runRequests[Int](Iterator.range(0, 5000), request)
+    es.shutdown()
+
+    result.processed shouldEqual 5000
+    result.skipped shouldEqual 50
+    result.failed shouldEqual 1
+    result.indexed shouldEqual 5000 - 50 - 1
+    result.retries should be > 0L
+    result.failureSamples.head should include("777")
+    result.lastFailedResponse should not be null
+    result.lastError shouldBe null
+    es.indexed.size() shouldEqual 5000 - 50 - 1
+    es.indexed.contains("777") shouldBe false
+  }
+
+  test("bulks in flight are limited by concurrency") {
+    val es = new FakeEs(delayMillis = 5)
+    val config = BulkIndexer.Config(maxActions = 10, concurrency = 2, parallelism = 3)
+    val result = new BulkIndexer(es.client, config).runRequests[Int](Iterator.range(0, 1000), request)
+    es.shutdown()
+
+    result.indexed shouldEqual 990
+    es.maxInFlight.get() should be <= 2
+  }
+
+  test("writeFactory runs in the calling thread by default") {
+    val es = new FakeEs()
+    val threads = ConcurrentHashMap.newKeySet[Thread]()
+    val result = new BulkIndexer(es.client).runRequests[Int](Iterator.range(0, 3000), {i =>
+      threads.add(Thread.currentThread())
+      request(i)
+    })
+    es.shutdown()
+
+    result.indexed shouldEqual 2970
+    threads.size() shouldEqual 1
+    threads.contains(Thread.currentThread()) shouldBe true
+  }
+
+  test("cancel stops reading items") {
+    val es = new FakeEs()
+    val status = new LongActionStatus()
+    status.start(statefulAction = false)
+    val items = Iterator.range(0, 100000).map {i =>
+      if (i == 2500) status.requestCancel()
+      i
+    }
+    val result = new BulkIndexer(es.client, BulkIndexer.Config(maxActions = 100)).runRequests[Int](items, request, status, 100000)
+    es.shutdown()
+
+    result.cancelled shouldBe true
+    result.isSuccess shouldBe false
+    result.processed should be < 3000L
+    result.indexed shouldEqual es.indexed.size().toLong
+    status.updater shouldBe null
+    status.progress.toLong shouldEqual result.processed
+  }
+}
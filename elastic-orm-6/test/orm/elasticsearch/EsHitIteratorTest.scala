@@ -0,0 +1,41 @@
+package orm.elasticsearch
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.elasticsearch.action.ActionListener
+import org.elasticsearch.action.search.{SearchAction, SearchRequestBuilder, SearchResponse}
+import org.elasticsearch.search.SearchHit
+import org.scalatest.{FunSuite, Matchers}
+
+class EsHitIteratorTest extends FunSuite with Matchers {
+
+  /** Запрос, на который через delayMillis приходит ошибка */
+  private class DelayedFailure(delayMillis: Long, answered: AtomicInteger) extends SearchRequestBuilder(null, SearchAction.INSTANCE) {
+    override def execute(listener: ActionListener[SearchResponse]): Unit = {
+      new Thread(new Runnable {
+        override def run(): Unit = {
+          Thread.sleep(delayMillis)
+          answered.incrementAndGet()
+          listener.onFailure(new RuntimeException("failed after " + delayMillis))
+        }
+      }).start()
+    }
+  }
+
+  private def stream(builder: SearchRequestBuilder): EsHitIterator.PageStream = new EsHitIterator.PageStream {
+    override def first = builder
+    override def next(response: SearchResponse, page: Array[SearchHit]) = None
+  }
+
+  test("close waits for every request in flight") {
+    val answered = new AtomicInteger
+    // Первый поток падает сразу, остальные отвечают в обратном порядке
+    val streams = Seq(0L, 300L, 50L).map(delay => stream(new DelayedFailure(delay, answered)))
+    val it = new EsHitIterator[SearchHit](streams, identity, _ => ())
+
+    (the[RuntimeException] thrownBy it.hasNext).getMessage shouldEqual "failed after 0"
+    answered.get() shouldEqual 3
+    streams.exists(_.inFlight) shouldBe false
+    it.hasNext shouldBe false
+  }
+}
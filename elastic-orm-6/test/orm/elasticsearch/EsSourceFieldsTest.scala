@@ -0,0 +1,44 @@
+package orm.elasticsearch
+
+import java.nio.charset.StandardCharsets
+import java.{lang => jl, util => ju}
+
+import org.scalatest.{FunSuite, Matchers}
+
+class EsSourceFieldsTest extends FunSuite with Matchers {
+  private val source =
+    """{"skip":{"a":[1,{"b":2}],"c":"x"},"name":"Кот","age":7,"big":12345678901,"weight":4.5,""" +
+      """"alive":true,"tags":["a","b"],"owner":{"id":3,"nick":null},"rest":"not needed"}"""
+
+  private def decode(fields: EsSourceFields): Array[AnyRef] = {
+    val bytes = ("  " + source).getBytes(StandardCharsets.UTF_8)
+    fields.decode(bytes, 2, bytes.length - 2)
+  }
+
+  test("decode only requested fields with source map types") {
+    val fields = new EsSourceFields(Seq("name", "age", "big", "weight", "alive", "tags", "owner", "missing"))
+    val values = decode(fields)
+    values(fields.slot("name")) shouldEqual "Кот"
+    values(fields.slot("age")) shouldEqual jl.Integer.valueOf(7)
+    values(fields.slot("big")) shouldEqual jl.Long.valueOf(12345678901L)
+    values(fields.slot("weight")) shouldEqual jl.Double.valueOf(4.5)
+    values(fields.slot("alive")) shouldEqual jl.Boolean.TRUE
+    values(fields.slot("tags")) shouldEqual ju.Arrays.asList("a", "b")
+    val owner = new ju.HashMap[String, AnyRef]()
+    owner.put("id", jl.Integer.valueOf(3))
+    owner.put("nick", null)
+    values(fields.slot("owner")) shouldEqual owner
+    values(fields.slot("missing")) shouldBe null
+    fields.slot("rest") shouldEqual -1
+    fields.slot("skip") shouldEqual -1
+  }
+
+  test("nested paths share the top level slot") {
+    val fields = new EsSourceFields(Seq("owner.id", "owner.nick", "age"))
+    fields.includes shouldEqual Array("owner.id", "owner.nick", "age")
+    fields.topNames shouldEqual Array("owner", "age")
+    val values = decode(fields)
+    values(fields.slot("age")) shouldEqual jl.Integer.valueOf(7)
+    values(fields.slot("owner")).asInstanceOf[ju.Map[String, AnyRef]].get("id") shouldEqual jl.Integer.valueOf(3)
+  }
+}
@@ -0,0 +1,63 @@
+package webby.bench
+
+import java.util.concurrent.TimeUnit
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+import com.google.common.base.Charsets
+import org.apache.commons.codec.binary.Hex
+import org.openjdk.jmh.annotations._
+import webby.api.libs.CryptoSigner
+
+/**
+  * Проверка подписанной куки сессии: прежняя реализация CryptoSigner (clone + init Mac на каждый вызов,
+  * getBytes, Hex, substring и ==) против текущей, а также компактный двоичный токен.
+  * Запуск: sbt "webby-bench/jmh:run -prof gc .*CryptoSignerBench.*"
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class CryptoSignerBench {
+  private val key = "0123456789abcdef0123456789abcdef".getBytes
+  private val initialMac = Mac.getInstance("HmacSHA1")
+  private val keySpec = new SecretKeySpec(key, "HmacSHA1")
+
+  var signer: CryptoSigner = _
+  var composed: String = _
+  var token: String = _
+
+  @Setup
+  def setup(): Unit = {
+    signer = new CryptoSigner(key)
+    composed = signer.signComposeLong(0x12345678abcdef99L)
+    token = signer.signTokenLong(0x12345678abcdef99L)
+  }
+
+  /** Прежняя реализация verifyComposedLong */
+  @Benchmark
+  def verifyComposedLongOld(): Option[Long] = {
+    if (composed.length > 40) {
+      val hmac = composed.substring(0, 40)
+      val value = composed.substring(40)
+      val mac = initialMac.clone().asInstanceOf[Mac]
+      mac.init(keySpec)
+      if (Hex.encodeHexString(mac.doFinal(value.getBytes(Charsets.UTF_8))) == hmac) Some(java.lang.Long.parseLong(value, 36))
+      else None
+    } else None
+  }
+
+  @Benchmark
+  def verifyComposedLong(): Option[Long] = signer.verifyComposedLong(composed)
+
+  @Benchmark
+  def verifyTokenLong(): Option[Long] = signer.verifyTokenLong(token)
+
+  @Benchmark
+  def signComposeLong(): String = signer.signComposeLong(0x12345678abcdef99L)
+
+  @Benchmark
+  def signTokenLong(): String = signer.signTokenLong(0x12345678abcdef99L)
+}
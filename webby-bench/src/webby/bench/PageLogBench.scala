@@ -0,0 +1,42 @@
+package webby.bench
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import webby.commons.system.log.{LogLineBuffer, PageLog}
+
+/**
+  * Сравнение форматирования строки page.log: toLogString + getBytes против writeTo в буфер потока.
+  * Запуск: sbt "webby-bench/jmh:run -prof gc .*PageLogBench.*"
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class PageLogBench {
+  var log: PageLog = _
+
+  @Setup
+  def setup(): Unit = {
+    log = new PageLog("144.76.172.79", "example.com", "GET", "/search/%D0%BF%D1%80%D0%B8%D0%BC%D0%B5%D1%80?page=2&sort=date")
+    log.addDbQuery("select 1", 3)
+    log.addDbQuery("select 2", 5)
+    log.addEsQuery(12)
+    log.setUserSess(123456, "user@example.com")
+    log.setResultStatus(200)
+    log.setFinishedTime(log.started + 42)
+  }
+
+  @Benchmark
+  def toLogString(): Array[Byte] = log.toLogString.getBytes(StandardCharsets.UTF_8)
+
+  @Benchmark
+  def writeTo(): Int = {
+    val buf = LogLineBuffer.get().clear()
+    log.writeTo(buf)
+    buf.length
+  }
+}
@@ -1,10 +1,9 @@
 package webby.adm
 
 import querio.{AnyTable, TrDeleteChange, TrRecordChange, TrSomeChange}
+import webby.commons.cache.ExpiringIdTokenCache
 import webby.commons.cache.table.AbstractRecordsCache
 
-import scala.collection.immutable.{IntMap, LongMap}
-
 trait StaffSessCacheTrait[StaffSess <: StaffSessTrait] extends AbstractRecordsCache {
 
   def byId(now: Long, id: Int): Option[StaffSess]
@@ -13,28 +12,51 @@ trait StaffSessCacheTrait[StaffSess <: StaffSessTrait] extends AbstractRecordsCa
 }
 
 
+/**
+  * Кеш сессий сотрудников. Хранит не больше [[maxSize]] сессий, истёкшие сессии не возвращаются и вытесняются
+  * при заполнении. Токены, которых нет в БД, запоминаются на [[missingTokenTtlMillis]], чтобы перебор токенов
+  * не нагружал БД.
+  */
 class StdStaffSessCache[Adm <: AdmTrait](val adm: Adm) extends StaffSessCacheTrait[Adm#StaffSess] {
   type StaffSess = adm.StaffSess
   override def dbTable: AnyTable = adm.staffSessTable
 
-  protected var partialIdCache: IntMap[StaffSess] = IntMap.empty
-  protected var partialTokenCache: LongMap[StaffSess] = LongMap.empty
-
-  override def byId(now: Long, id: Int): Option[StaffSess] = partialIdCache.get(id).orElse {
-    val maybeRecord: Option[StaffSess] = readRecordById(now, id)
-    maybeRecord.foreach(putRecord)
-    maybeRecord
-  }.filter(_.endTime.toEpochMilli > now)
+  /** Максимальное число сессий в кеше */
+  protected def maxSize: Int = 10000
+  /** Сколько помнить токен, которого нет в БД */
+  protected def missingTokenTtlMillis: Long = 10000L
+  /** Максимальное число запомненных отсутствующих токенов */
+  protected def maxMissingTokens: Int = 100000
+
+  /** lazy, чтобы настройки выше можно было переопределить и через val */
+  protected lazy val cache: ExpiringIdTokenCache[StaffSess] =
+    new ExpiringIdTokenCache[StaffSess](maxSize, missingTokenTtlMillis, maxMissingTokens)(
+      _.id, _.token, _.endTime.toEpochMilli)
+
+  override def byId(now: Long, id: Int): Option[StaffSess] = cache.getById(now, id) match {
+    case null =>
+      val maybeRecord: Option[StaffSess] = readRecordById(now, id)
+      maybeRecord.foreach(cache.put(now, _))
+      maybeRecord
+    case record => Some(record)
+  }
 
-  override def byToken(now: Long, token: Long): Option[StaffSess] = partialTokenCache.get(token).orElse {
-    val maybeRecord: Option[StaffSess] = readRecordByToken(now, token)
-    maybeRecord.foreach(putRecord)
-    maybeRecord
-  }.filter(_.endTime.toEpochMilli > now)
+  override def byToken(now: Long, token: Long): Option[StaffSess] = cache.getByToken(now, token) match {
+    case null =>
+      if (cache.isMissingToken(now, token)) None
+      else {
+        val maybeRecord: Option[StaffSess] = readRecordByToken(now, token)
+        maybeRecord match {
+          case Some(record) => cache.put(now, record)
+          case None => cache.putMissingToken(now, token)
+        }
+        maybeRecord
+      }
+    case record => Some(record)
+  }
 
   override def resetCache(): Unit = {
-    partialIdCache = IntMap.empty
-    partialTokenCache = LongMap.empty
+    cache.clear()
     super.resetCache()
   }
 
@@ -42,33 +64,27 @@ class StdStaffSessCache[Adm <: AdmTrait](val adm: Adm) extends StaffSessCacheTra
     * Reset value for one record, i.e. recalculate hash for the record.
     */
   override def resetRecord(id: Int, change: TrRecordChange): Unit = {
-    def deleteChange(id: Int): Unit = {
-      partialIdCache.get(id).foreach {record =>
-        partialIdCache -= record.id
-        partialTokenCache -= record.token
-      }
-    }
-
+    val now = System.currentTimeMillis()
     change match {
-      case some: TrSomeChange => putRecord(some.mtr.toRecord.asInstanceOf[StaffSess])
-      case del: TrDeleteChange => deleteChange(id)
+      case some: TrSomeChange => cache.put(now, some.mtr.toRecord.asInstanceOf[StaffSess])
+      case del: TrDeleteChange => cache.removeById(id)
       case _ =>
-        readRecordById(System.currentTimeMillis(), id) match {
-          case Some(record) => putRecord(record)
-          case None => deleteChange(id)
+        readRecordById(now, id) match {
+          case Some(record) => cache.put(now, record)
+          case None => cache.removeById(id)
         }
     }
     super.resetRecord(id, change)
   }
 
+  override def resetRecordFromPeer(id: Int): Unit = {
+    cache.removeById(id)
+    listeners.foreach(_.onResetRecordFromPeer(id))
+  }
+
   protected def readRecordById(now: Long, id: Int): Option[StaffSess] =
     adm.db.findById(adm.staffSessTable, id).filter(_.endTime.toEpochMilli > now)
 
   protected def readRecordByToken(now: Long, token: Long): Option[StaffSess] =
     adm.db.findByField(adm.staffSessTable.token, token).filter(_.endTime.toEpochMilli > now)
-
-  protected def putRecord(record: StaffSess): Unit = {
-    partialIdCache = partialIdCache.updated(record.id, record)
-    partialTokenCache = partialTokenCache.updated(record.token, record)
-  }
 }
@@ -1,7 +1,7 @@
 package webby.api.controllers
 
 import java.io.InputStream
-import java.nio.file.{Files, Path}
+import java.nio.file.Path
 
 import com.google.common.io.ByteStreams
 import com.google.common.net.HttpHeaders
@@ -15,6 +15,8 @@ import webby.mvc.{StdCtl, StdPaths}
 /**
   * Простенький класс для хостинга статики в DEV режиме.
   * Стандартный объект Assets не подходит, т.к. он не умеет хостить произвольную статику без добавления её в classpath
+  *
+  * Файлы отдаются через [[StaticFileServer.default]]: с ETag, Range, сжатием и без чтения больших файлов в heap.
   */
 object StaticCtl extends StdCtl {
 
@@ -30,10 +32,9 @@ object StaticCtl extends StdCtl {
     val path: Path = base.resolve(subPath).toAbsolutePath
     if (!path.startsWith(base)) {
       BadRequest("Invalid path")
-    } else if (Files.isDirectory(path) || !Files.exists(path)) {
-      NotFoundRaw
     } else {
-      filePlainResult(Files.readAllBytes(path), path.getFileName.toString)
+      // Нет файла или это директория - StaticFileServer вернёт NotFound
+      StaticFileServer.default.serve(path)(req).withHeader(HttpHeaders.ACCESS_CONTROL_ALLOW_ORIGIN, "*")
     }
   }
 
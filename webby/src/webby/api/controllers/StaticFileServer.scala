@@ -0,0 +1,350 @@
+package webby.api.controllers
+
+import java.io.ByteArrayOutputStream
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{Files, NoSuchFileException, NotDirectoryException, Path}
+import java.time.ZonedDateTime
+import java.time.format.{DateTimeFormatter, DateTimeParseException}
+import java.util.concurrent.Callable
+import java.util.zip.GZIPOutputStream
+
+import com.google.common.cache.{Cache, CacheBuilder, Weigher}
+import com.google.common.hash.Hashing
+import com.google.common.net.HttpHeaders._
+import io.netty.handler.codec.http.HttpResponseStatus
+import webby.api.libs.MimeTypes
+import webby.api.mvc._
+import webby.commons.time.StdDates
+
+/**
+  * Отдача статических файлов без чтения их в heap на каждый запрос.
+  *
+  *  - Большие файлы отдаются через [[FileResult]], то есть через netty FileRegion (sendfile).
+  *  - Небольшие файлы (до `hotFileMaxSize`) держатся в памяти, в LRU кеше размером `hotCacheMaxBytes`.
+  *  - Сжатие: если рядом с файлом лежит `file.br` или `file.gz` не старше самого файла, он отдаётся как есть.
+  *    Иначе сжимаемые файлы до `gzipMaxSize` сжимаются gzip'ом один раз, и результат хранится в том же LRU кеше.
+  *    Brotli кодировщика в зависимостях нет, поэтому br бывает только заранее сжатым.
+  *  - Сильный ETag по содержимому (для файлов больше `hashMaxSize` - по размеру и времени изменения),
+  *    If-None-Match, If-Modified-Since, а также одиночные Range запросы с If-Range.
+  *
+  * Все кеши привязаны к (путь, время изменения, размер), поэтому изменённый файл сразу отдаётся заново.
+  *
+  * @param hotCacheMaxBytes Объём LRU кеша содержимого небольших файлов и сжатых вариантов
+  * @param hotFileMaxSize   Файлы не больше этого размера отдаются из памяти
+  * @param gzipMaxSize      Файлы не больше этого размера сжимаются на лету (один раз)
+  * @param hashMaxSize      Для файлов не больше этого размера ETag вычисляется по содержимому
+  * @param cacheControl     Значение заголовка Cache-Control, null - не выставлять
+  */
+class StaticFileServer(hotCacheMaxBytes: Long = 32L * 1024 * 1024,
+                       hotFileMaxSize: Int = 64 * 1024,
+                       gzipMaxSize: Int = 4 * 1024 * 1024,
+                       hashMaxSize: Long = 16L * 1024 * 1024,
+                       cacheControl: String = null) {
+  import StaticFileServer._
+
+  private case class FileKey(path: Path, lastModified: Long, size: Long)
+
+  /** Описание версии файла: ETag, заранее сжатые варианты */
+  private class FileInfo(val key: FileKey, val contentType: String) {
+    val compressible: Boolean = isCompressible(contentType)
+    val etagBase: String =
+      if (key.size <= hashMaxSize) com.google.common.io.Files.asByteSource(key.path.toFile).hash(Hashing.murmur3_128()).toString
+      else java.lang.Long.toHexString(key.size) + "-" + java.lang.Long.toHexString(key.lastModified)
+    val lastModifiedHttp: String = StdDates.httpDateFormatMillis(key.lastModified)
+    val brPath: Path = if (compressible) precompressed(key, ".br") else null
+    val gzPath: Path = if (compressible) precompressed(key, ".gz") else null
+  }
+
+  /** Описание зависит от типа содержимого (сжимаемость), а тип может передать вызывающий код */
+  private case class InfoKey(file: FileKey, contentType: String)
+
+  /** Вариант содержимого: файл (исходный или заранее сжатый) либо сжатые на лету байты */
+  private case class BodyKey(file: FileKey, gzipped: Boolean)
+
+  private val infoCache: Cache[InfoKey, FileInfo] = CacheBuilder.newBuilder().maximumSize(10000).build()
+
+  private val bodyCache: Cache[BodyKey, Array[Byte]] = CacheBuilder.newBuilder()
+    .maximumWeight(hotCacheMaxBytes)
+    .weigher(new Weigher[BodyKey, Array[Byte]] {
+      override def weigh(key: BodyKey, value: Array[Byte]): Int = value.length + 64
+    })
+    .build()
+
+  def serve(path: Path, contentType: String = null)(implicit req: RequestHeader): Result =
+    serve(path, contentType, req.headers)
+
+  /**
+    * Отдать файл с учётом заголовков запроса.
+    *
+    * @param contentType Тип содержимого, null - определить по расширению файла
+    */
+  def serve(path: Path, contentType: String, headers: Headers): Result = {
+    val key: FileKey = fileKey(path) match {
+      case null => return Results.NotFoundRaw("File not found")
+      case k => k
+    }
+    val ct: String = if (contentType != null) contentType else MimeTypes.forPath(path).getOrElse(MimeTypes.BINARY)
+    val info: FileInfo = infoCache.get(InfoKey(key, ct), new Callable[FileInfo] {
+      override def call(): FileInfo = new FileInfo(key, ct)
+    })
+
+    val range: String = headers.get(RANGE) match {
+      case Some(r) if ifRangeMatches(info, headers.get(IF_RANGE)) => r
+      case _ => null
+    }
+    if (range != null) {
+      parseRange(range, key.size) match {
+        case NoRange => ()
+        case Unsatisfiable =>
+          return withCommonHeaders(PlainResult(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE), info, "\"" + info.etagBase + "\"", "")
+            .withHeader(CONTENT_RANGE, "bytes */" + key.size)
+        case ByteRange(start, end) =>
+          return rangeResult(info, start, end)
+      }
+    }
+
+    // Выбор варианта содержимого: заранее сжатый br, заранее сжатый gz, сжатый на лету gzip, исходный файл
+    val acceptEncoding: String = headers.get(ACCEPT_ENCODING).orNull
+    val brFile: FileKey =
+      if (info.brPath != null && acceptsEncoding(acceptEncoding, "br")) fileKey(info.brPath) else null
+    val gzFile: FileKey =
+      if (brFile == null && info.gzPath != null && acceptsEncoding(acceptEncoding, "gzip")) fileKey(info.gzPath) else null
+    val gzipOnTheFly: Boolean =
+      brFile == null && gzFile == null && info.compressible && key.size <= gzipMaxSize && acceptsEncoding(acceptEncoding, "gzip")
+
+    // Условные заголовки не зависят от варианта, поэтому проверяются до сжатия
+    if (isNotModified(info, headers)) {
+      // Сжатие, которое ещё не выполнялось, считаем выгодным: файл для 304 не сжимается
+      val encoding: String =
+        if (brFile != null) "br"
+        else if (gzFile != null) "gzip"
+        else if (gzipOnTheFly) bodyCache.getIfPresent(BodyKey(key, gzipped = true)) match {
+          case bytes if bytes != null && bytes.isEmpty => ""
+          case _ => "gzip"
+        }
+        else ""
+      return withCommonHeaders(PlainResult(HttpResponseStatus.NOT_MODIFIED), info, variantEtag(info, encoding), encoding)
+    }
+
+    val gzipped: Array[Byte] =
+      if (gzipOnTheFly) {
+        gzipBytes(key) match {
+          case bytes if bytes.isEmpty => null
+          case bytes => bytes
+        }
+      } else null
+    val encoding: String = if (brFile != null) "br" else if (gzFile != null || gzipped != null) "gzip" else ""
+    val file: FileKey = if (brFile != null) brFile else if (gzFile != null) gzFile else key
+    val etag = variantEtag(info, encoding)
+
+    if (gzipped != null) {
+      withCommonHeaders(PlainResult(HttpResponseStatus.OK, gzipped), info, etag, encoding)
+    } else if (file.size <= hotFileMaxSize) {
+      withCommonHeaders(PlainResult(HttpResponseStatus.OK, fileBytes(file)), info, etag, encoding)
+    } else {
+      withCommonHeaders(new FileResult(HttpResponseStatus.OK, file.path, 0L, file.size), info, etag, encoding)
+    }
+  }
+
+  /** Очистить кеши, например, при замене файлов без изменения времени модификации */
+  def invalidateAll(): Unit = {
+    infoCache.invalidateAll()
+    bodyCache.invalidateAll()
+  }
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  /** @return null, если файла нет или это не обычный файл */
+  private def fileKey(path: Path): FileKey = {
+    try {
+      val attrs = Files.readAttributes(path, classOf[BasicFileAttributes])
+      if (attrs.isRegularFile) FileKey(path, attrs.lastModifiedTime().toMillis, attrs.size()) else null
+    } catch {
+      case _: NoSuchFileException | _: NotDirectoryException => null
+    }
+  }
+
+  private def precompressed(key: FileKey, ext: String): Path = {
+    val p = key.path.resolveSibling(key.path.getFileName.toString + ext)
+    fileKey(p) match {
+      case null => null
+      case k => if (k.lastModified >= key.lastModified) p else null
+    }
+  }
+
+  private def fileBytes(key: FileKey): Array[Byte] =
+    bodyCache.get(BodyKey(key, gzipped = false), new Callable[Array[Byte]] {
+      override def call(): Array[Byte] = Files.readAllBytes(key.path)
+    })
+
+  /** Сжатые байты файла, либо пустой массив, если сжатие не уменьшает размер */
+  private def gzipBytes(key: FileKey): Array[Byte] =
+    bodyCache.get(BodyKey(key, gzipped = true), new Callable[Array[Byte]] {
+      override def call(): Array[Byte] = {
+        val source: Array[Byte] =
+          if (key.size <= hotFileMaxSize) fileBytes(key) else Files.readAllBytes(key.path)
+        val compressed = gzip(source)
+        if (compressed.length < source.length) compressed else Array.emptyByteArray
+      }
+    })
+
+  private def rangeResult(info: FileInfo, start: Long, end: Long): Result = {
+    val key = info.key
+    val length = end - start + 1
+    val result: Result =
+      if (key.size <= hotFileMaxSize) {
+        PlainResult(HttpResponseStatus.PARTIAL_CONTENT, java.util.Arrays.copyOfRange(fileBytes(key), start.toInt, end.toInt + 1))
+      } else {
+        new FileResult(HttpResponseStatus.PARTIAL_CONTENT, key.path, start, length)
+      }
+    withCommonHeaders(result, info, "\"" + info.etagBase + "\"", "")
+      .withHeader(CONTENT_RANGE, "bytes " + start + "-" + end + "/" + key.size)
+  }
+
+  private def variantEtag(info: FileInfo, encoding: String): String =
+    "\"" + info.etagBase + (if (encoding.isEmpty) "" else "-" + encoding) + "\""
+
+  private def withCommonHeaders(result: Result, info: FileInfo, etag: String, encoding: String): Result = {
+    var r = result
+      .withHeader(CONTENT_TYPE, info.contentType)
+      .withHeader(ETAG, etag)
+      .withHeader(LAST_MODIFIED, info.lastModifiedHttp)
+      .withHeader(ACCEPT_RANGES, "bytes")
+    if (info.compressible) r = r.withHeader(VARY, ACCEPT_ENCODING)
+    if (encoding.nonEmpty) r = r.withHeader(CONTENT_ENCODING, encoding)
+    if (cacheControl != null) r = r.withHeader(CACHE_CONTROL, cacheControl)
+    r
+  }
+
+  /**
+    * If-None-Match сравнивается с базой ETag без учёта варианта сжатия (слабое сравнение, как требует RFC 7232),
+    * If-Modified-Since проверяется только при отсутствии If-None-Match.
+    */
+  private def isNotModified(info: FileInfo, headers: Headers): Boolean = headers.get(IF_NONE_MATCH) match {
+    case Some(ifNoneMatch) => etagListMatches(ifNoneMatch, info.etagBase)
+    case None =>
+      headers.get(IF_MODIFIED_SINCE) match {
+        case Some(ims) => parseHttpDate(ims) match {
+          case -1L => false
+          case since => info.key.lastModified / 1000 <= since / 1000
+        }
+        case None => false
+      }
+  }
+
+  /** If-Range: Range применяется, только если файл не изменился. Сравнение ETag здесь сильное. */
+  private def ifRangeMatches(info: FileInfo, ifRange: Option[String]): Boolean = ifRange match {
+    case None => true
+    case Some(v) =>
+      val value = v.trim
+      if (value.startsWith("\"") || value.startsWith("W/")) value == "\"" + info.etagBase + "\""
+      else value == info.lastModifiedHttp
+  }
+}
+
+object StaticFileServer {
+  /** Сервер с настройками по умолчанию для [[StaticCtl]] */
+  lazy val default = new StaticFileServer()
+
+  private[controllers] sealed trait RangeSpec
+  /** Заголовка нет, он неверный или в нём несколько диапазонов: отдаётся весь файл */
+  private[controllers] case object NoRange extends RangeSpec
+  private[controllers] case object Unsatisfiable extends RangeSpec
+  /** Диапазон байт, конец включительно */
+  private[controllers] case class ByteRange(start: Long, end: Long) extends RangeSpec
+
+  /**
+    * Разобрать заголовок Range для файла размером `size`. Поддерживается только один диапазон:
+    * для нескольких диапазонов, как и для неверного заголовка, отдаётся весь файл.
+    */
+  private[controllers] def parseRange(header: String, size: Long): RangeSpec = {
+    val value = header.trim
+    if (!value.regionMatches(true, 0, "bytes=", 0, 6) || value.indexOf(',') != -1) return NoRange
+    val spec = value.substring(6).trim
+    val dash = spec.indexOf('-')
+    if (dash == -1) return NoRange
+    val first = parseNonNegative(spec.substring(0, dash).trim)
+    val last = parseNonNegative(spec.substring(dash + 1).trim)
+    if (dash == 0) {
+      // bytes=-N: последние N байт
+      if (last < 0) NoRange
+      else if (last == 0 || size == 0) Unsatisfiable
+      else ByteRange(math.max(0L, size - last), size - 1)
+    } else {
+      if (first < 0) NoRange
+      else if (spec.length > dash + 1 && (last < 0 || last < first)) NoRange
+      else if (first >= size) Unsatisfiable
+      else ByteRange(first, if (last < 0) size - 1 else math.min(last, size - 1))
+    }
+  }
+
+  private def parseNonNegative(s: String): Long = {
+    if (s.isEmpty || s.length > 18) -1L
+    else {
+      var i = 0
+      var v = 0L
+      while (i < s.length) {
+        val c = s.charAt(i)
+        if (c < '0' || c > '9') return -1L
+        v = v * 10 + (c - '0')
+        i += 1
+      }
+      v
+    }
+  }
+
+  /** Содержит ли Accept-Encoding кодировку с ненулевым q */
+  private[webby] def acceptsEncoding(acceptEncoding: String, encoding: String): Boolean = {
+    if (acceptEncoding == null) return false
+    var from = 0
+    while (from < acceptEncoding.length) {
+      var to = acceptEncoding.indexOf(',', from)
+      if (to == -1) to = acceptEncoding.length
+      val item = acceptEncoding.substring(from, to).trim
+      val semi = item.indexOf(';')
+      val name = if (semi == -1) item else item.substring(0, semi).trim
+      if (name.equalsIgnoreCase(encoding)) {
+        if (semi == -1) return true
+        val q = item.indexOf("q=", semi)
+        if (q == -1) return true
+        try return item.substring(q + 2).trim.toDouble > 0
+        catch {case _: NumberFormatException => return false}
+      }
+      from = to + 1
+    }
+    false
+  }
+
+  private def etagListMatches(ifNoneMatch: String, etagBase: String): Boolean = {
+    if (ifNoneMatch.trim == "*") return true
+    for (raw <- ifNoneMatch.split(',')) {
+      var tag = raw.trim
+      if (tag.startsWith("W/")) tag = tag.substring(2)
+      if (tag.length >= 2 && tag.charAt(0) == '"' && tag.charAt(tag.length - 1) == '"') {
+        tag = tag.substring(1, tag.length - 1)
+        val dash = tag.lastIndexOf('-')
+        if (tag == etagBase || (dash != -1 && tag.substring(0, dash) == etagBase)) return true
+      }
+    }
+    false
+  }
+
+  /** @return Время в миллисекундах, либо -1 */
+  private def parseHttpDate(value: String): Long = {
+    try ZonedDateTime.parse(value.trim, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant.toEpochMilli
+    catch {case _: DateTimeParseException => -1L}
+  }
+
+  private def isCompressible(contentType: String): Boolean = {
+    val ct = contentType.toLowerCase
+    ct.startsWith("text/") || ct.contains("javascript") || ct.contains("json") || ct.contains("xml") || ct.contains("svg")
+  }
+
+  private[webby] def gzip(bytes: Array[Byte]): Array[Byte] = {
+    val bos = new ByteArrayOutputStream(bytes.length / 3 + 64)
+    val stream = new GZIPOutputStream(bos, 8192)
+    try stream.write(bytes)
+    finally stream.close()
+    bos.toByteArray
+  }
+}
@@ -0,0 +1,166 @@
+package webby.api.http
+
+import java.util
+
+/**
+  * Разбор заголовка Accept без регулярных выражений и промежуточных кортежей.
+  *
+  * [[accepts]] проверяет тип прямо по тексту заголовка и ничего не создаёт, поэтому для проверки
+  * одного типа не нужно разбирать и сортировать весь список [[parse]].
+  * Пустые и неверные (без '/') элементы пропускаются.
+  */
+object AcceptHeader {
+
+  /**
+    * @return The media types list of the Accept header, sorted by preference (preferred first).
+    */
+  def parse(header: String): Seq[MediaRange] = {
+    if (header == null || header.isEmpty) return Nil
+    val items = new util.ArrayList[Item](4)
+    forEachItem(header) {(rangeStart, rangeEnd, q) =>
+      items.add(new Item(q, MediaRange(header.substring(rangeStart, rangeEnd))))
+      true
+    }
+    // Устойчивая сортировка по возрастанию и разворот, как раньше при сортировке кортежей (q, MediaRange)
+    items.sort(ItemOrdering)
+    val result = new Array[MediaRange](items.size())
+    var i = 0
+    while (i < result.length) {
+      result(i) = items.get(result.length - 1 - i).range
+      i += 1
+    }
+    result
+  }
+
+  /**
+    * Check if the Accept header accepts a given media type. An absent or empty header accepts everything.
+    *
+    * @return true if `mimeType` matches the Accept header, otherwise false
+    */
+  def accepts(header: CharSequence, mimeType: String): Boolean = {
+    if (header == null) return true
+    var found = false
+    var hasItems = false
+    forEachItem(header) {(rangeStart, rangeEnd, _) =>
+      hasItems = true
+      found = rangeAccepts(header, rangeStart, rangeEnd, mimeType)
+      !found
+    }
+    found || !hasItems
+  }
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  private final class Item(val q: Double, val range: MediaRange)
+
+  private object ItemOrdering extends util.Comparator[Item] {
+    override def compare(a: Item, b: Item): Int = {
+      val c = java.lang.Double.compare(a.q, b.q)
+      if (c != 0) c else MediaRange.ordering.compare(a.range, b.range)
+    }
+  }
+
+  /**
+    * Обойти элементы заголовка. `f` получает границы медиа-диапазона (без q и следующих за ним параметров)
+    * и q-значение, и возвращает false, чтобы остановить обход.
+    */
+  private def forEachItem(header: CharSequence)(f: (Int, Int, Double) => Boolean): Unit = {
+    val len = header.length()
+    var itemStart = 0
+    var proceed = true
+    while (proceed && itemStart < len) {
+      var itemEnd = itemStart
+      while (itemEnd < len && header.charAt(itemEnd) != ',') itemEnd += 1
+      val start = skipSpaces(header, itemStart, itemEnd)
+      var end = trimEnd(header, start, itemEnd)
+      if (start < end) {
+        var q = 1.0 // “The default value is q=1.”
+        val qParam = findQParam(header, start, end)
+        if (qParam != -1) {
+          q = parseQ(header, qParam + 2, end)
+          end = trimEnd(header, start, paramStart(header, start, qParam))
+        }
+        if (hasSlash(header, start, end)) proceed = f(start, end, q)
+      }
+      itemStart = itemEnd + 1
+    }
+  }
+
+  /**
+    * “The first "q" parameter (if any) separates the media-range parameter(s) from the accept-params.”
+    * @return Позиция "q=" первого параметра q, либо -1
+    */
+  private def findQParam(header: CharSequence, start: Int, end: Int): Int = {
+    var i = start
+    while (i < end) {
+      if (header.charAt(i) == ';') {
+        val p = skipSpaces(header, i + 1, end)
+        if (p + 2 < end && header.charAt(p) == 'q' && header.charAt(p + 1) == '=' && isQChar(header.charAt(p + 2))) return p
+      }
+      i += 1
+    }
+    -1
+  }
+
+  /** Позиция ';', открывающей параметр, который начинается в `paramPos` */
+  private def paramStart(header: CharSequence, start: Int, paramPos: Int): Int = {
+    var i = paramPos - 1
+    while (i > start && header.charAt(i) != ';') i -= 1
+    i
+  }
+
+  private def parseQ(header: CharSequence, from: Int, end: Int): Double = {
+    var i = from
+    while (i < end && isQChar(header.charAt(i))) i += 1
+    header.subSequence(from, i).toString.toDouble
+  }
+
+  private def rangeAccepts(header: CharSequence, start: Int, end: Int, mimeType: String): Boolean = {
+    var slash = start
+    while (header.charAt(slash) != '/') slash += 1
+    var subEnd = slash + 1
+    while (subEnd < end && header.charAt(subEnd) != ';') subEnd += 1
+    val typeLen = slash - start
+    val subLen = subEnd - slash - 1
+    val mimeSlash = mimeType.indexOf('/')
+    val mimeTypeLen = if (mimeSlash == -1) mimeType.length else mimeSlash
+    val anyType = typeLen == 1 && header.charAt(start) == '*'
+    val anySubType = subLen == 1 && header.charAt(slash + 1) == '*'
+    if (anyType && anySubType) true
+    else if (anySubType) typeLen == mimeTypeLen && regionEquals(header, start, mimeType, 0, typeLen)
+    else subEnd - start == mimeType.length && regionEquals(header, start, mimeType, 0, mimeType.length)
+  }
+
+  private def regionEquals(header: CharSequence, from: Int, s: String, sFrom: Int, len: Int): Boolean = {
+    var i = 0
+    while (i < len) {
+      if (header.charAt(from + i) != s.charAt(sFrom + i)) return false
+      i += 1
+    }
+    true
+  }
+
+  private def hasSlash(header: CharSequence, start: Int, end: Int): Boolean = {
+    var i = start
+    while (i < end && header.charAt(i) != ';') {
+      if (header.charAt(i) == '/') return true
+      i += 1
+    }
+    false
+  }
+
+  @inline private def isQChar(c: Char): Boolean = (c >= '0' && c <= '9') || c == '.'
+  @inline private def isSpace(c: Char): Boolean = c == ' ' || c == '\t'
+
+  private def skipSpaces(header: CharSequence, from: Int, end: Int): Int = {
+    var i = from
+    while (i < end && isSpace(header.charAt(i))) i += 1
+    i
+  }
+
+  private def trimEnd(header: CharSequence, start: Int, end: Int): Int = {
+    var i = end
+    while (i > start && isSpace(header.charAt(i - 1))) i -= 1
+    i
+  }
+}
@@ -20,12 +20,20 @@ object Crypto {
 
   private lazy val secret: Option[String] = App.maybeApp.flatMap(_.configuration.getString("application.secret"))
   private lazy val secretBytes: Option[Array[Byte]] = secret.map(_.getBytes(Charsets.UTF_8))
+  private lazy val secretSigner: Option[CryptoSigner] = secretBytes.map(new CryptoSigner(_))
+
+  private val hmacSha1 = new ThreadLocal[Mac] {
+    override def initialValue(): Mac = Mac.getInstance("HmacSHA1")
+  }
+
+  private def signer: CryptoSigner =
+    secretSigner.getOrElse(throw new WebbyException("Configuration error", "Missing application.secret"))
 
   /**
     * Signs the given String with HMAC-SHA1 using the given key.
     */
   def sign(message: String, key: Array[Byte]): String = {
-    val mac = Mac.getInstance("HmacSHA1")
+    val mac = hmacSha1.get()
     mac.init(new SecretKeySpec(key, "HmacSHA1"))
     Hex.encodeHexString(mac.doFinal(message.getBytes(Charsets.UTF_8)))
   }
@@ -33,10 +41,7 @@ object Crypto {
   /**
     * Signs the given String with HMAC-SHA1 using the application’s secret key.
     */
-  def sign(message: String): String = {
-    val sb = secretBytes.getOrElse(throw new WebbyException("Configuration error", "Missing application.secret"))
-    sign(message, sb)
-  }
+  def sign(message: String): String = signer.signHex(message)
 
   /**
     * Encrypt a String with the AES encryption standard using the application secret
@@ -89,18 +94,9 @@ object Crypto {
   }
 
 
-  def verifyHmac(cookieValue: String): Option[String] = {
-    val (hmac, value) = cookieValue.splitAt(40)
-    if (Crypto.sign(value) == hmac) Some(value) else None
-  }
+  def verifyHmac(cookieValue: String): Option[String] = signer.verifyComposed(cookieValue)
 
-  def verifyHmacLong(cookieValue: String): Option[Long] = {
-    verifyHmac(cookieValue).map {tokenStr =>
-      try {
-        java.lang.Long.parseLong(tokenStr, 36)
-      } catch {case e: NumberFormatException => return None}
-    }
-  }
+  def verifyHmacLong(cookieValue: String): Option[Long] = signer.verifyComposedLong(cookieValue)
 
   def signHmacLong(token: Long): String = {
     val tokenStr = java.lang.Long.toString(token, 36)
@@ -1,36 +1,90 @@
 package webby.api.libs
+import java.nio.ByteBuffer
+import java.security.MessageDigest
 import javax.crypto.Mac
 import javax.crypto.spec.SecretKeySpec
 
-import com.google.common.base.Charsets
-import org.apache.commons.codec.binary.Hex
+import webby.commons.io.codec.Base64UEF
 
 /**
   * Cryptographic signer using provided key and MAC algorithm
   *
+  * Подписи проверяются на каждый запрос (куки сессий), поэтому:
+  *  - [[Mac]] создаётся и инициализируется ключом один раз на поток,
+  *  - строки подписываются напрямую, кодируясь в UTF-8 в буфер потока, без `getBytes` и `substring`,
+  *  - подписи сравниваются за постоянное время, чтобы по времени ответа нельзя было подобрать подпись.
+  *
+  * Кроме текстового формата `hex(sign) + message` есть компактный двоичный формат токенов:
+  * base64url ([[Base64UEF]]) от `sign + message`, см. [[signToken]] и [[verifyToken]].
+  *
   * Requires sbt dependency
   * {{{
   *   deps += "commons-codec" % "commons-codec" % "1.10"
   * }}}
   */
 class CryptoSigner(key: Array[Byte], macAlgorithm: String = "HmacSHA1") {
-  private val initialMac = Mac.getInstance(macAlgorithm)
+  import CryptoSigner._
+
   private val keySpec = new SecretKeySpec(key, macAlgorithm)
 
+  private class State {
+    val mac: Mac = {
+      val m = Mac.getInstance(macAlgorithm)
+      m.init(keySpec)
+      m
+    }
+    val digest = new Array[Byte](mac.getMacLength)
+    var utf8 = new Array[Byte](InitialBufferSize)
+  }
+
+  private val state = new ThreadLocal[State] {
+    override def initialValue(): State = new State
+  }
+
+  /** Длина подписи в байтах (20 для HmacSHA1) */
+  val macLength: Int = state.get().mac.getMacLength
+
+  /** Длина подписи в hex символах */
+  val hexLength: Int = macLength * 2
+
   /**
     * Signs the given array of bytes with HMAC-SHA1
     */
-  def sign(message: Array[Byte]): Array[Byte] = {
-    val mac = initialMac.clone().asInstanceOf[Mac]
-    mac.init(keySpec)
-    mac.doFinal(message)
+  def sign(message: Array[Byte]): Array[Byte] = state.get().mac.doFinal(message)
+
+  /**
+    * Подписать байты буфера от position до limit. Position буфера сдвигается до limit.
+    */
+  def sign(message: ByteBuffer): Array[Byte] = {
+    val mac = state.get().mac
+    mac.update(message)
+    mac.doFinal()
+  }
+
+  /**
+    * Подписать строку в кодировке UTF-8, не создавая промежуточный массив байт.
+    */
+  def sign(message: CharSequence): Array[Byte] = {
+    val s = state.get()
+    updateUtf8(s, message, 0, message.length())
+    s.mac.doFinal()
   }
 
   /**
     * Signs the given String with HMAC-SHA1 and produce hex string
     */
   def signHex(message: String): String = {
-    Hex.encodeHexString(sign(message.getBytes(Charsets.UTF_8)))
+    val s = state.get()
+    signInto(s, message, 0, message.length())
+    val chars = new Array[Char](hexLength)
+    var i = 0
+    while (i < macLength) {
+      val b = s.digest(i)
+      chars(i * 2) = HexDigits((b >> 4) & 0xf)
+      chars(i * 2 + 1) = HexDigits(b & 0xf)
+      i += 1
+    }
+    new String(chars)
   }
 
   /**
@@ -40,18 +94,24 @@ class CryptoSigner(key: Array[Byte], macAlgorithm: String = "HmacSHA1") {
     signHex(message) + message
   }
 
+  /**
+    * Проверить подпись составного сообщения `sign` + `message`, не выделяя его части.
+    */
+  def isValidComposed(composed: CharSequence): Boolean = {
+    if (composed.length() <= hexLength) false
+    else {
+      val s = state.get()
+      signInto(s, composed, hexLength, composed.length())
+      hexEquals(s.digest, composed)
+    }
+  }
+
   /**
     * Verify signed message consisting of `sign` + `message`.
     * Returns message if sign is correct.
     */
   def verifyComposed(composed: String): Option[String] = {
-    if (composed.length > 40) {
-      val hmac = composed.substring(0, 40)
-      val value = composed.substring(40)
-      if (signHex(value) == hmac) Some(value) else None
-    } else {
-      None
-    }
+    if (isValidComposed(composed)) Some(composed.substring(hexLength)) else None
   }
 
   /**
@@ -68,10 +128,171 @@ class CryptoSigner(key: Array[Byte], macAlgorithm: String = "HmacSHA1") {
     * Returns Long message if sign is correct.
     */
   def verifyComposedLong(composed: String): Option[Long] = {
-    verifyComposed(composed).map {message =>
-      try {
-        java.lang.Long.parseLong(message, 36)
-      } catch {case e: NumberFormatException => return None}
+    if (!isValidComposed(composed)) None
+    else parseLong36(composed, hexLength)
+  }
+
+  // ------------------------------- Binary tokens -------------------------------
+
+  /**
+    * Компактный токен: base64url ([[Base64UEF]]) от `sign + message`.
+    * Для Long сообщения с HmacSHA1 это 40 символов против 53 у [[signComposeLong]].
+    */
+  def signToken(message: Array[Byte]): String = {
+    val s = state.get()
+    s.mac.update(message)
+    s.mac.doFinal(s.digest, 0)
+    val token = new Array[Byte](macLength + message.length)
+    System.arraycopy(s.digest, 0, token, 0, macLength)
+    System.arraycopy(message, 0, token, macLength, message.length)
+    Base64UEF.encodeToString(token)
+  }
+
+  /**
+    * Проверить токен [[signToken]].
+    * @return Сообщение, если токен верный
+    */
+  def verifyToken(token: String): Option[Array[Byte]] = {
+    val bytes: Array[Byte] =
+      try Base64UEF.decode(token)
+      catch {case e: IndexOutOfBoundsException => null} // Символы не из алфавита base64
+    if (bytes == null || bytes.length < macLength) None
+    else {
+      val s = state.get()
+      s.mac.update(bytes, macLength, bytes.length - macLength)
+      s.mac.doFinal(s.digest, 0)
+      if (!regionEquals(s.digest, bytes)) None
+      else Some(java.util.Arrays.copyOfRange(bytes, macLength, bytes.length))
+    }
+  }
+
+  def signTokenLong(message: Long): String = {
+    val bytes = new Array[Byte](8)
+    var i = 0
+    while (i < 8) {
+      bytes(i) = (message >>> (56 - i * 8)).toByte
+      i += 1
+    }
+    signToken(bytes)
+  }
+
+  def verifyTokenLong(token: String): Option[Long] = verifyToken(token) match {
+    case Some(bytes) if bytes.length == 8 =>
+      var v = 0L
+      var i = 0
+      while (i < 8) {
+        v = (v << 8) | (bytes(i) & 0xff)
+        i += 1
+      }
+      Some(v)
+    case _ => None
+  }
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  /** Подписать часть строки, записав подпись в s.digest */
+  private def signInto(s: State, message: CharSequence, from: Int, to: Int): Unit = {
+    updateUtf8(s, message, from, to)
+    s.mac.doFinal(s.digest, 0)
+  }
+
+  /** Закодировать часть строки в UTF-8 в буфер потока и передать в mac */
+  private def updateUtf8(s: State, message: CharSequence, from: Int, to: Int): Unit = {
+    val need = (to - from) * 3
+    if (s.utf8.length < need) {
+      if (need > MaxBufferSize) {
+        s.mac.update(message.subSequence(from, to).toString.getBytes(java.nio.charset.StandardCharsets.UTF_8))
+        return
+      }
+      s.utf8 = new Array[Byte](need)
+    }
+    val buf = s.utf8
+    var pos = 0
+    var i = from
+    while (i < to) {
+      val c = message.charAt(i)
+      if (c < 0x80) {
+        buf(pos) = c.toByte
+        pos += 1
+      } else if (c < 0x800) {
+        buf(pos) = (0xc0 | (c >> 6)).toByte
+        buf(pos + 1) = (0x80 | (c & 0x3f)).toByte
+        pos += 2
+      } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(message.charAt(i + 1))) {
+        val cp = Character.toCodePoint(c, message.charAt(i + 1))
+        buf(pos) = (0xf0 | (cp >> 18)).toByte
+        buf(pos + 1) = (0x80 | ((cp >> 12) & 0x3f)).toByte
+        buf(pos + 2) = (0x80 | ((cp >> 6) & 0x3f)).toByte
+        buf(pos + 3) = (0x80 | (cp & 0x3f)).toByte
+        pos += 4
+        i += 1
+      } else if (Character.isSurrogate(c)) {
+        // Одиночный суррогат: String.getBytes(UTF-8) заменяет его на '?'
+        buf(pos) = '?'.toByte
+        pos += 1
+      } else {
+        buf(pos) = (0xe0 | (c >> 12)).toByte
+        buf(pos + 1) = (0x80 | ((c >> 6) & 0x3f)).toByte
+        buf(pos + 2) = (0x80 | (c & 0x3f)).toByte
+        pos += 3
+      }
+      i += 1
+    }
+    s.mac.update(buf, 0, pos)
+  }
+
+  /** Сравнение подписи с hex символами в начале `composed` за постоянное время */
+  private def hexEquals(digest: Array[Byte], composed: CharSequence): Boolean = {
+    var diff = 0
+    var i = 0
+    while (i < macLength) {
+      val b = digest(i)
+      diff |= HexDigits((b >> 4) & 0xf) ^ composed.charAt(i * 2)
+      diff |= HexDigits(b & 0xf) ^ composed.charAt(i * 2 + 1)
+      i += 1
+    }
+    diff == 0
+  }
+
+  /** Сравнение подписи с началом токена за постоянное время */
+  private def regionEquals(digest: Array[Byte], token: Array[Byte]): Boolean = {
+    var diff = 0
+    var i = 0
+    while (i < macLength) {
+      diff |= digest(i) ^ token(i)
+      i += 1
+    }
+    diff == 0
+  }
+}
+
+object CryptoSigner {
+  private final val InitialBufferSize = 256
+  private final val MaxBufferSize = 64 * 1024
+  private val HexDigits: Array[Char] = "0123456789abcdef".toCharArray
+
+  /** Сравнение массивов за постоянное время (зависит только от длины) */
+  def constantTimeEquals(a: Array[Byte], b: Array[Byte]): Boolean = MessageDigest.isEqual(a, b)
+
+  /** Long.parseLong(s.substring(from), 36) без создания подстроки */
+  private def parseLong36(s: CharSequence, from: Int): Option[Long] = {
+    val len = s.length()
+    var i = from
+    val negative = i < len && s.charAt(i) == '-'
+    if (negative || (i < len && s.charAt(i) == '+')) i += 1
+    if (i == len) return None
+    // Накапливаем отрицательное значение, как Long.parseLong, чтобы поместился Long.MinValue
+    val limit: Long = if (negative) Long.MinValue else -Long.MaxValue
+    val multmin: Long = limit / 36
+    var result = 0L
+    while (i < len) {
+      val digit = Character.digit(s.charAt(i), 36)
+      if (digit < 0 || result < multmin) return None
+      result *= 36
+      if (result < limit + digit) return None
+      result -= digit
+      i += 1
     }
+    Some(if (negative) result else -result)
   }
 }
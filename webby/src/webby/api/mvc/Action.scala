@@ -13,11 +13,24 @@ trait Action extends Handler {
   def apply(rh: RequestHeader, body: Array[Byte]): Result
 }
 
+/**
+ * An action that never blocks the calling thread. It's always executed on the Netty worker thread,
+ * even when blocking actions are dispatched to a separate pool (see `netty.action-dispatch`).
+ */
+trait NonBlockingAction extends Action
+
 object SimpleAction {
   def apply(block: RequestHeader => Result) = new Action {
     override def apply(rh: RequestHeader, body: Array[Byte]): Result = block(rh)
   }
 
+  /**
+   * Cheap action that doesn't block (no DB or other I/O), see [[NonBlockingAction]].
+   */
+  def nonBlocking(block: RequestHeader => Result) = new NonBlockingAction {
+    override def apply(rh: RequestHeader, body: Array[Byte]): Result = block(rh)
+  }
+
   def withBodyParser[A](bodyParser: BodyParser[A])(block: (RequestHeader, A) => Result) = new Action {
     override def apply(rh: RequestHeader, body: Array[Byte]): Result = {
       bodyParser(rh, body) match {
@@ -56,15 +56,20 @@ trait Cookies {
 /**
   * Реализация Cookies
   *
+  * Заголовок не разбирается целиком: [[get]] и [[contains]] ищут одну куку прямо в тексте заголовка,
+  * не создавая объектов, а значение декодируется только у найденной куки. Полный разбор через netty
+  * выполняется лишь при обращении к [[asMap]]. Результаты поиска совпадают с [[asMap]]: при повторе имени
+  * берётся первая кука, а куки с неверным url-кодированием пропускаются.
+  *
   * @param headerText Текст хедера с куками.
   */
-class CookiesImpl(headerText: String) extends Cookies {
+class CookiesImpl(headerText: CharSequence) extends Cookies {
   import scala.collection.JavaConverters._
 
-  val cookies: Map[String, String] = {
+  lazy val cookies: Map[String, String] = {
     val b = Map.newBuilder[String, String]
     val cookieSet: util.Set[codec.http.cookie.Cookie] =
-      try ServerCookieDecoder.LAX.decode(headerText)
+      try ServerCookieDecoder.LAX.decode(headerText.toString)
       catch {
         case e: IllegalArgumentException => Collections.emptySet()
       }
@@ -78,12 +83,100 @@ class CookiesImpl(headerText: String) extends Cookies {
     b.result()
   }
 
-  override def contains(name: String): Boolean = cookies.contains(name)
-  override def get(name: String): Option[String] = cookies.get(name)
+  override def contains(name: String): Boolean = {
+    val range = CookiesImpl.findValue(headerText, name)
+    range != CookiesImpl.NotFound &&
+      (!CookiesImpl.needsDecoding(headerText, range) || CookiesImpl.decode(headerText, range) != null)
+  }
+
+  override def get(name: String): Option[String] = {
+    val range = CookiesImpl.findValue(headerText, name)
+    if (range == CookiesImpl.NotFound) None
+    else Option(CookiesImpl.decode(headerText, range))
+  }
+
   override def toString = cookies.toString()
   override def asMap: Map[String, String] = cookies
 }
 
+object CookiesImpl {
+  private[mvc] final val NotFound = -1L
+
+  /**
+    * Найти значение куки `name` в тексте заголовка, повторяя разбор netty [[ServerCookieDecoder.LAX]].
+    * Кавычки вокруг значения отбрасываются.
+    *
+    * @return Начало и конец значения, упакованные в Long (см. [[start]], [[end]]), либо [[NotFound]].
+    */
+  private[mvc] def findValue(header: CharSequence, name: String): Long = {
+    val len = header.length()
+    var i = 0
+    while (i < len) {
+      // Пропускаем пробелы и разделители
+      while (i < len && isSeparator(header.charAt(i))) i += 1
+      if (i < len) {
+        val nameBegin = i
+        while (i < len && header.charAt(i) != ';' && header.charAt(i) != '=') i += 1
+        val nameEnd = i
+        if (i < len && header.charAt(i) == '=') {
+          var valueBegin = i + 1
+          while (i < len && header.charAt(i) != ';') i += 1
+          var valueEnd = i
+          if (nameEnd - nameBegin == name.length && regionEquals(header, nameBegin, name)) {
+            if (valueEnd > valueBegin && header.charAt(valueBegin) == '"') {
+              if (valueEnd - valueBegin >= 2 && header.charAt(valueEnd - 1) == '"') {
+                valueBegin += 1
+                valueEnd -= 1
+              } else valueBegin = -1 // Одинокая кавычка: netty пропускает такую куку
+            }
+            if (valueBegin != -1) return (valueBegin.toLong << 32) | valueEnd
+          }
+        }
+      }
+    }
+    NotFound
+  }
+
+  @inline private[mvc] def start(range: Long): Int = (range >>> 32).toInt
+  @inline private[mvc] def end(range: Long): Int = range.toInt
+
+  /** Значение содержит url-кодированные символы */
+  private[mvc] def needsDecoding(header: CharSequence, range: Long): Boolean = {
+    var i = start(range)
+    val e = end(range)
+    while (i < e) {
+      val c = header.charAt(i)
+      if (c == '%' || c == '+') return true
+      i += 1
+    }
+    false
+  }
+
+  /** Декодированное значение, null - если url-кодирование неверное */
+  private[mvc] def decode(header: CharSequence, range: Long): String = {
+    val raw = header.subSequence(start(range), end(range)).toString
+    if (!needsDecoding(header, range)) raw
+    else {
+      try URLDecoder.decode(raw, "utf-8")
+      catch {
+        case e: IllegalArgumentException => null
+      }
+    }
+  }
+
+  private def isSeparator(c: Char): Boolean =
+    c == ' ' || c == ';' || c == ',' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0b
+
+  private def regionEquals(header: CharSequence, from: Int, name: String): Boolean = {
+    var i = 0
+    while (i < name.length) {
+      if (header.charAt(from + i) != name.charAt(i)) return false
+      i += 1
+    }
+    true
+  }
+}
+
 /**
   * Helper utilities to encode Cookies.
   */
@@ -108,6 +201,12 @@ object Cookies {
     case None => empty
   }
 
+  /**
+    * Extract cookies from the Cookie header, null if there is no header.
+    */
+  def fromHeader(header: CharSequence): Cookies =
+    if (header == null) empty else new CookiesImpl(header)
+
   /**
     * A cookie to be discarded.  This contains only the data necessary for discarding a cookie.
     *
@@ -1,7 +1,7 @@
 package webby.api.mvc
 import com.google.common.net.HttpHeaders
 import io.netty.handler.codec.http.HttpMethod
-import webby.api.http.MediaRange
+import webby.api.http.{AcceptHeader, MediaRange}
 
 import scala.annotation.implicitNotFound
 
@@ -100,39 +100,19 @@ abstract class BaseRequestHeader extends RequestHeader {
     case -1 => host
     case idx => host.substring(0, idx)
   }
-  override lazy val cookies: Cookies = Cookies.fromHeader(headers.get(HttpHeaders.COOKIE))
+  override lazy val cookies: Cookies = Cookies.fromHeader(headers.http.get(HttpHeaders.COOKIE): CharSequence)
 
   override lazy val contentType: ContentTypePair = ContentTypePair.parse(headers.http.get(HttpHeaders.CONTENT_TYPE))
 
-  override lazy val acceptedTypes: Seq[webby.api.http.MediaRange] = {
-    val mediaTypes = acceptHeader(HttpHeaders.ACCEPT).map(item => (item._1, MediaRange(item._2)))
-    mediaTypes.sorted.map(_._2).reverse
-  }
-
-  /**
-    * @return The items of an Accept* header, with their q-value.
-    */
-  private def acceptHeader(headerName: String): Seq[(Double, String)] = {
-    for {
-      header <- headers.get(headerName).toSeq
-      value0 <- header.split(',')
-      value = value0.trim
-    } yield {
-      RequestHeader.qPattern.findFirstMatchIn(value) match {
-        case Some(m) => (m.group(1).toDouble, m.before.toString)
-        case None => (1.0, value) // “The default value is q=1.”
-      }
-    }
-  }
+  override lazy val acceptedTypes: Seq[webby.api.http.MediaRange] = AcceptHeader.parse(headers.http.get(HttpHeaders.ACCEPT))
 
   /**
     * Check if this request accepts a given media type.
+    * Проверяется прямо текст заголовка, без разбора и сортировки [[acceptedTypes]].
     *
     * @return true if `mimeType` matches the Accept header, otherwise false
     */
-  override def accepts(mimeType: String): Boolean = {
-    acceptedTypes.isEmpty || acceptedTypes.exists(_.accepts(mimeType))
-  }
+  override def accepts(mimeType: String): Boolean = AcceptHeader.accepts(headers.http.get(HttpHeaders.ACCEPT), mimeType)
 
   override def toString: String = method.name() + " " + uri
 }
@@ -211,22 +191,46 @@ object ContentTypePair {
   val empty = new ContentTypePair("", defaultCharset)
 
   /**
-    * Разобрать заголовок Content-Type
+    * Разобрать заголовок Content-Type.
+    * Для типичного заголовка без заглавных букв и пробелов создаются только строки имени и кодировки.
+    * Кодировка берётся до следующего параметра, кавычки вокруг неё отбрасываются.
     */
   def parse(contentTypeHeader: String): ContentTypePair = {
     if (contentTypeHeader == null) empty
     else {
       contentTypeHeader.indexOf(';') match {
-        case -1 => new ContentTypePair(contentTypeHeader.trim.toLowerCase, defaultCharset)
+        case -1 => new ContentTypePair(lowerCase(contentTypeHeader.trim), defaultCharset)
         case delimIdx =>
-          val name = contentTypeHeader.substring(0, delimIdx).trim.toLowerCase
+          val name = lowerCase(contentTypeHeader.substring(0, delimIdx).trim)
           contentTypeHeader.indexOf("charset=", delimIdx + 1) match {
             case -1 => new ContentTypePair(name, defaultCharset)
-            case charsetIdx => new ContentTypePair(name, contentTypeHeader.substring(charsetIdx + 8).trim)
+            case charsetIdx =>
+              var start = charsetIdx + 8
+              var end = contentTypeHeader.indexOf(';', start) match {
+                case -1 => contentTypeHeader.length
+                case idx => idx
+              }
+              while (start < end && contentTypeHeader.charAt(start) <= ' ') start += 1
+              while (end > start && contentTypeHeader.charAt(end - 1) <= ' ') end -= 1
+              if (end - start >= 2 && contentTypeHeader.charAt(start) == '"' && contentTypeHeader.charAt(end - 1) == '"') {
+                start += 1
+                end -= 1
+              }
+              new ContentTypePair(name, contentTypeHeader.substring(start, end))
           }
       }
     }
   }
+
+  /** toLowerCase без создания новой строки, если заглавных букв нет */
+  private def lowerCase(s: String): String = {
+    var i = 0
+    while (i < s.length) {
+      if (Character.isUpperCase(s.charAt(i))) return s.toLowerCase
+      i += 1
+    }
+    s
+  }
 }
 
 /**
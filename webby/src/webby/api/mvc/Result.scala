@@ -1,7 +1,10 @@
 package webby.api.mvc
+import java.nio.file.{Files, Path}
 import java.time.LocalDateTime
+import javax.annotation.Nullable
 
 import com.google.common.net.HttpHeaders._
+import io.netty.buffer.{ByteBuf, ByteBufUtil}
 import io.netty.handler.codec.http
 import io.netty.handler.codec.http.HttpResponseStatus
 import webby.commons.system.log.PageLog
@@ -80,11 +83,64 @@ sealed trait WithHeaders[+A <: Result] {
 
 /**
   * A plain HTTP result.
+  *
+  * Body can be set either as a byte array, or as a Netty [[ByteBuf]] (see [[withContent]]).
+  * The byte array is wrapped by the server without copying. The [[ByteBuf]] is written to the channel as is,
+  * and the server releases it after writing, so a result with [[content]] can be sent only once
+  * and must not be cached.
   */
-class PlainResult(var status: HttpResponseStatus, var body: Array[Byte]) extends Result with WithHeaders[PlainResult] {
+class PlainResult(var status: HttpResponseStatus, private var bodyBytes: Array[Byte]) extends Result with WithHeaders[PlainResult] {
   val headers: mutable.Buffer[(String, String)] = mutable.Buffer[(String, String)]()
   val cookies: mutable.Buffer[http.cookie.Cookie] = mutable.Buffer[http.cookie.Cookie]()
 
+  @Nullable private var bodyBuf: ByteBuf = null
+
+  /**
+    * Response body as a byte array.
+    * For a result with [[content]] this returns a copy of the buffer readable bytes.
+    */
+  def body: Array[Byte] = if (bodyBuf ne null) ByteBufUtil.getBytes(bodyBuf) else bodyBytes
+
+  def body_=(bytes: Array[Byte]): Unit = {
+    releaseContent()
+    bodyBytes = bytes
+  }
+
+  /** Response body as a Netty buffer, or null if the body is set as a byte array. */
+  @Nullable def content: ByteBuf = bodyBuf
+
+  /**
+    * Sets response body as a Netty buffer (usually pooled and direct, see [[webby.commons.text.SB#toByteBuf]]).
+    * This result takes ownership of the buffer.
+    */
+  def withContent(buf: ByteBuf): this.type = {
+    releaseContent()
+    bodyBuf = buf
+    bodyBytes = Array.emptyByteArray
+    this
+  }
+
+  /** Length of the response body in bytes. */
+  def contentLength: Int = if (bodyBuf ne null) bodyBuf.readableBytes() else bodyBytes.length
+
+  /**
+    * Passes the body buffer ownership to the caller (the server), leaving this result with an empty body.
+    * Returns null if the body is set as a byte array.
+    */
+  @Nullable private[webby] def takeContent(): ByteBuf = {
+    val buf = bodyBuf
+    bodyBuf = null
+    buf
+  }
+
+  /** Releases the body buffer, if any. Needed only when the result is discarded without being sent. */
+  def releaseContent(): Unit = {
+    if (bodyBuf ne null) {
+      bodyBuf.release()
+      bodyBuf = null
+    }
+  }
+
   /**
     * Adds HTTP headers to this result.
     */
@@ -127,6 +183,38 @@ object PlainResult {
 }
 
 
+/**
+  * A file HTTP result.
+  *
+  * The server sends the file part `[offset, offset + length)` through Netty [[io.netty.channel.DefaultFileRegion]]
+  * (sendfile where possible), so file bytes never land on the heap. The file is opened only when the response is written.
+  * Content-Length is set by the server. Usually built by [[webby.api.controllers.StaticFileServer]].
+  */
+class FileResult(var status: HttpResponseStatus, val file: Path, val offset: Long, val length: Long)
+  extends Result with WithHeaders[FileResult] {
+  require(offset >= 0 && length >= 0, "Invalid file region")
+
+  val headers: mutable.Buffer[(String, String)] = mutable.Buffer[(String, String)]()
+  val cookies: mutable.Buffer[http.cookie.Cookie] = mutable.Buffer[http.cookie.Cookie]()
+
+  override def withHeader(name: String, value: String): this.type = {
+    headers += ((name, value))
+    this
+  }
+
+  override def withCookie(cookie: Cookie): this.type = {
+    cookies += cookie
+    this
+  }
+
+  override def as(contentType: String): FileResult = withHeader(CONTENT_TYPE, contentType)
+}
+
+object FileResult {
+  /** Whole file */
+  def apply(status: HttpResponseStatus, file: Path): FileResult = new FileResult(status, file, 0L, Files.size(file))
+}
+
 /**
   * An `AsyncResult` handles a `Promise` of result for cases where the result is not ready yet.
   *
@@ -139,6 +227,10 @@ class AsyncResult(rh: RequestHeader, body: => Result)(implicit val ec: Execution
   def execute(pageLog: PageLog): Future[Result] = {
     if (executed) throw new IllegalStateException("AsyncResult already executed")
     executed = true
+    run(pageLog)
+  }
+
+  protected def run(pageLog: PageLog): Future[Result] =
     Future {
       PageLog.set(pageLog)
       try {
@@ -148,6 +240,16 @@ class AsyncResult(rh: RequestHeader, body: => Result)(implicit val ec: Execution
       }
       finally PageLog.remove()
     }
+
+  /** Применить финалайзеры к готовому результату */
+  protected def finish(result: Result, pageLog: PageLog): Result = {
+    PageLog.set(pageLog)
+    try {
+      ActionTools.executeWithFinalizers(result, rh, finalizers)
+    } catch {
+      case e: ResultException => e.getResult(rh)
+    }
+    finally PageLog.remove()
   }
 
   def prependFinalizer(finalizer: Result => Result): Unit = {
@@ -192,3 +294,35 @@ class AsyncResult(rh: RequestHeader, body: => Result)(implicit val ec: Execution
     */
   def as(contentType: String): AsyncResult = {prependFinalizer(_.as(contentType)); this}
 }
+
+object AsyncResult {
+  /**
+    * Результат, который сам является [[Future]], например, собран из нескольких асинхронных запросов
+    * (см. `ElasticIndexMapping.searchAsync`). Запросы можно отправить сразу все, и поток не ждёт их ответов.
+    * `body` выполняется в `ec` с установленным [[PageLog]], финалайзеры - по готовности результата.
+    * [[ResultException]] ловится только из самого `body`, но не из колбэков future.
+    *
+    * {{{
+    * AsyncResult.future(req) {
+    *   val a = em.searchAsync(...)
+    *   val b = em.searchAsync(...)
+    *   for (ra <- a; rb <- b) yield Ok(...)
+    * }
+    * }}}
+    */
+  def future(rh: RequestHeader)(body: => Future[Result])(implicit ec: ExecutionContext): AsyncResult =
+    new FutureAsyncResult(rh, body)
+
+  private class FutureAsyncResult(rh: RequestHeader, body: => Future[Result])(implicit ec: ExecutionContext)
+    extends AsyncResult(rh, throw new IllegalStateException("Unused body")) {
+
+    override protected def run(pageLog: PageLog): Future[Result] =
+      Future {
+        PageLog.set(pageLog)
+        // ResultException - это ControlThrowable, Future его не ловит
+        try body
+        catch {case e: ResultException => Future.successful(e.getResult(rh))}
+        finally PageLog.remove()
+      }.flatten.map(finish(_, pageLog))
+  }
+}
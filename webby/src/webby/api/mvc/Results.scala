@@ -5,6 +5,7 @@ import java.nio.file.{Files, Path}
 import com.google.common.base.Charsets
 import com.google.common.net.HttpHeaders
 import com.google.common.net.HttpHeaders._
+import io.netty.buffer.ByteBuf
 import io.netty.handler.codec.http.HttpResponseStatus
 import io.netty.handler.codec.http.HttpResponseStatus._
 import webby.api.http.ContentTypes
@@ -16,7 +17,7 @@ import webby.html.StdHtmlView
   *
   * @param status the HTTP response status, e.g ‘200 OK’
   */
-class ResultStatus(status: HttpResponseStatus) extends PlainResult(status, body = Array.emptyByteArray) {
+class ResultStatus(status: HttpResponseStatus) extends PlainResult(status, Array.emptyByteArray) {
 
   def html(content: String): PlainResult = apply(content, ContentTypes.textHtmlUtf8)
   def text(content: String): PlainResult = apply(content, ContentTypes.textPlainUtf8)
@@ -34,6 +35,12 @@ class ResultStatus(status: HttpResponseStatus) extends PlainResult(status, body
   }
 
   def apply(content: String, contentType: String): PlainResult = apply(content.getBytes(Charsets.UTF_8), contentType)
+
+  /** Body in Netty buffer, written to the channel without copying. See [[PlainResult#withContent]]. */
+  def apply(content: ByteBuf, contentType: String): PlainResult = {
+    withContent(content)
+    withHeader(CONTENT_TYPE, contentType)
+  }
 }
 
 class ResultOk extends ResultStatus(OK) {
@@ -64,6 +71,11 @@ trait Results {
   def Ok: ResultOk = new ResultOk
   def Ok(htmlView: StdHtmlView): PlainResult = OkHtml(htmlView.result)
   def OkHtml(htmlViewResult: String): PlainResult = Ok(htmlViewResult, ContentTypes.textHtmlUtf8)
+  /**
+    * Generates a ‘200 OK’ result with html rendered straight into a pooled buffer, without intermediate
+    * String and Array[Byte]. Such result can be sent only once, so don't cache it.
+    */
+  def OkHtmlBuf(htmlView: StdHtmlView): PlainResult = Ok(htmlView.resultBuf, ContentTypes.textHtmlUtf8)
   def JsonOk(obj: Any): PlainResult = StdJs.get.result(obj)
 
   /** Generates a ‘201 CREATED’ result. */
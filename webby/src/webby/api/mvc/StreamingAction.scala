@@ -0,0 +1,99 @@
+package webby.api.mvc
+
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, Path, StandardOpenOption}
+
+import io.netty.buffer.ByteBuf
+
+import scala.concurrent.{ExecutionContext, Future}
+
+/**
+  * An action that receives the request body in chunks, as they arrive, instead of the whole
+  * aggregated byte array. Request body is not limited by the server aggregator (1 MB),
+  * use [[maxContentLength]] instead.
+  *
+  * All [[StreamingBody]] methods are called on the Netty worker thread of the request channel.
+  */
+trait StreamingAction extends Handler {
+  /**
+    * Maximum request body length in bytes. Larger requests are rejected with ‘413 REQUEST_ENTITY_TOO_LARGE’.
+    */
+  def maxContentLength: Long = Long.MaxValue
+
+  /**
+    * Called when request headers are received, before any body chunk.
+    * Can throw [[ResultException]] to reject the request without reading its body.
+    */
+  def start(rh: RequestHeader): StreamingBody
+}
+
+/**
+  * Request body consumer for [[StreamingAction]].
+  */
+trait StreamingBody {
+  /**
+    * Receives the next non-empty body chunk.
+    * The chunk is released after the returned future completes, and until then the server stops reading
+    * from the channel (backpressure through channel autoRead). Return `Future.unit` if the chunk
+    * is processed synchronously.
+    */
+  def onChunk(chunk: ByteBuf): Future[Unit]
+
+  /**
+    * Called after the last chunk is processed. The returned result is sent to the client.
+    */
+  def onComplete(): Result
+
+  /**
+    * Called when the request is aborted: the connection is closed, the body is too large,
+    * or [[onChunk]] failed. Release resources here.
+    */
+  def onAbort(cause: Throwable): Unit = ()
+}
+
+object StreamingAction {
+  def apply(block: RequestHeader => StreamingBody): StreamingAction = new StreamingAction {
+    override def start(rh: RequestHeader): StreamingBody = block(rh)
+  }
+
+  /**
+    * Action that spills the request body into a temp file incrementally, never holding it on the heap.
+    * The file is deleted right after `block` returns, so move it if it's needed later
+    * (e.g. for [[AsyncResult]]).
+    *
+    * @param ioContext Context for the file writes, so that disk IO does not block the Netty worker.
+    *                  One request writes at most one chunk at a time.
+    */
+  def toTempFile(maxLength: Long, ioContext: ExecutionContext = webby.core.Execution.internalContext)
+                (block: (RequestHeader, Path) => Result): StreamingAction = new StreamingAction {
+    override def maxContentLength: Long = maxLength
+    override def start(rh: RequestHeader): StreamingBody = new TempFileStreamingBody(rh, block, ioContext)
+  }
+}
+
+/**
+  * [[StreamingBody]] that writes chunks into a temp file in `ioContext`. See [[StreamingAction.toTempFile]].
+  * The server reads the next chunk only after the previous one is written, so a slow disk
+  * holds back only this request.
+  */
+class TempFileStreamingBody(rh: RequestHeader, block: (RequestHeader, Path) => Result,
+                            ioContext: ExecutionContext = webby.core.Execution.internalContext)
+  extends StreamingBody {
+  val path: Path = Files.createTempFile("webby-body", ".tmp")
+  private val channel: FileChannel = FileChannel.open(path, StandardOpenOption.WRITE)
+
+  override def onChunk(chunk: ByteBuf): Future[Unit] = Future {
+    while (chunk.isReadable) chunk.readBytes(channel, chunk.readableBytes())
+  }(ioContext)
+
+  override def onComplete(): Result = {
+    channel.close()
+    try block(rh, path)
+    finally Files.deleteIfExists(path)
+  }
+
+  override def onAbort(cause: Throwable): Unit = {
+    channel.close()
+    Files.deleteIfExists(path)
+  }
+}
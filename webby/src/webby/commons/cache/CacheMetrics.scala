@@ -0,0 +1,59 @@
+package webby.commons.cache
+
+import java.util.concurrent.atomic.LongAdder
+
+import com.google.common.cache.Cache
+import webby.commons.system.metrics.LatencyHistogram
+
+/**
+  * Метрики кешей с обновлением, см. [[SimpleCache]] и [[TimedCache]].
+  *
+  *  - hits - значение отдано из кеша без ожидания (включая устаревшие значения, пока идёт фоновое обновление),
+  *  - misses - вызов ждал загрузки значения,
+  *  - staleHits - отдано устаревшее значение (часть hits),
+  *  - refreshes - фоновые обновления, refreshFailures - из них неудачные,
+  *  - loadTime - время всех загрузок, и синхронных, и фоновых (мс).
+  */
+final class CacheMetrics {
+  private val hitCounter = new LongAdder
+  private val missCounter = new LongAdder
+  private val staleHitCounter = new LongAdder
+  private val refreshCounter = new LongAdder
+  private val refreshFailureCounter = new LongAdder
+  val loadTime = new LatencyHistogram
+  /** Кеш guava, hits и misses которого берутся из его stats(), либо null */
+  @volatile private var statsCache: Cache[_, _] = null
+
+  def hits: Long = hitCounter.sum() + (if (statsCache == null) 0L else statsCache.stats().hitCount())
+  def misses: Long = missCounter.sum() + (if (statsCache == null) 0L else statsCache.stats().missCount())
+  def staleHits: Long = staleHitCounter.sum()
+  def refreshes: Long = refreshCounter.sum()
+  def refreshFailures: Long = refreshFailureCounter.sum()
+
+  /** Считать hits и misses по статистике кеша guava (он должен быть создан с recordStats) */
+  private[cache] def useStatsOf(cache: Cache[_, _]): Unit = statsCache = cache
+
+  private[cache] def hit(): Unit = hitCounter.increment()
+  private[cache] def miss(): Unit = missCounter.increment()
+  private[cache] def staleHit(): Unit = {
+    hitCounter.increment()
+    staleHitCounter.increment()
+  }
+
+  /** Выполнить загрузку, записав её время. Для фоновых обновлений считает также их число и ошибки. */
+  private[cache] def timeLoad[V](refresh: Boolean)(load: => V): V = {
+    val start = System.nanoTime()
+    if (refresh) refreshCounter.increment()
+    try load
+    catch {
+      case e: Throwable =>
+        if (refresh) refreshFailureCounter.increment()
+        throw e
+    } finally loadTime.record((System.nanoTime() - start) / 1000000L)
+  }
+
+  /** Строка для логов и MBean'ов: "hits=10 misses=1 stale=2 refreshes=3 failures=0 load: count=4 mean=..." */
+  def toShortString: String =
+    "hits=" + hits + " misses=" + misses + " stale=" + staleHits + " refreshes=" + refreshes +
+      " failures=" + refreshFailures + " load: " + loadTime.snapshot().toShortString
+}
@@ -0,0 +1,20 @@
+package webby.commons.cache
+
+import java.util.concurrent.{ExecutorService, LinkedBlockingQueue, ThreadPoolExecutor, TimeUnit}
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+
+/**
+  * Общий пул для фонового обновления кешей [[SimpleCache]] и [[TimedCache]].
+  * Потоки - демоны и завершаются, если простаивают.
+  */
+object CacheRefresh {
+  val threadCount: Int = math.max(2, Runtime.getRuntime.availableProcessors() / 2)
+
+  lazy val executor: ExecutorService = {
+    val executor = new ThreadPoolExecutor(threadCount, threadCount, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue[Runnable](),
+      new BasicThreadFactory.Builder().namingPattern("cache-refresh-%d").daemon(true).build())
+    executor.allowCoreThreadTimeOut(true)
+    executor
+  }
+}
@@ -0,0 +1,51 @@
+package webby.commons.cache
+
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+  * Потокобезопасный вариант [[IntIntPositiveValueMap]]: записи разбиты по шардам, у каждого шарда своя блокировка.
+  * Ротация идёт по шардам, см. [[ShardedRotatable]]. Расход памяти на запись тот же - 17.5 байт.
+  *
+  * Requires sbt dependencies
+  * {{{
+  *   deps += "com.carrotsearch" % "hppc" % "0.7.1" % "optional"
+  * }}}
+  *
+  * @param expectedElementCount Ожидаемое общее число записей
+  * @param shardCount           Число шардов
+  */
+@ThreadSafe
+class ConcurrentIntIntPositiveValueMap(expectedElementCount: Int, shardCount: Int = 16)
+  extends ShardedRotatable[IntIntPositiveValueMap](shardCount, n => new IntIntPositiveValueMap(expectedElementCount / n + 1)) {
+
+  def get(key: Int, default: Int): Int = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.get(key, default))
+  }
+
+  def containsKey(key: Int): Boolean = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.containsKey(key))
+  }
+
+  def put(key: Int, value: Int): Int = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.put(key, value))
+  }
+
+  def putIfAbsent(key: Int, value: Int): Boolean = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.putIfAbsent(key, value))
+  }
+
+  /** Атомарно положить `putValue`, если записи нет, иначе прибавить `incrementValue`. Подходит для счётчиков. */
+  def putOrAdd(key: Int, putValue: Int, incrementValue: Int): Int = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.putOrAdd(key, putValue, incrementValue))
+  }
+
+  def remove(key: Int): Int = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.remove(key))
+  }
+}
@@ -0,0 +1,40 @@
+package webby.commons.cache
+
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+  * Потокобезопасный вариант [[IntObjectPositiveKeyMap]]: записи разбиты по шардам, у каждого шарда своя блокировка.
+  * Ротация идёт по шардам, см. [[ShardedRotatable]].
+  *
+  * Requires sbt dependencies
+  * {{{
+  *   deps += "com.carrotsearch" % "hppc" % "0.7.1" % "optional"
+  * }}}
+  *
+  * @param expectedElementCount Ожидаемое общее число записей
+  * @param shardCount           Число шардов
+  */
+@ThreadSafe
+class ConcurrentIntObjectPositiveKeyMap[V <: AnyRef](expectedElementCount: Int, shardCount: Int = 16)
+  extends ShardedRotatable[IntObjectPositiveKeyMap[V]](shardCount, n => new IntObjectPositiveKeyMap[V](expectedElementCount / n + 1)) {
+
+  def get(key: Int, default: V): V = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.get(key, default))
+  }
+
+  def containsKey(key: Int): Boolean = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.containsKey(key))
+  }
+
+  def put(key: Int, value: V): Unit = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.put(key, value))
+  }
+
+  def remove(key: Int): Unit = {
+    val shard = shardOf(key)
+    shard.synchronized(shard.remove(key))
+  }
+}
@@ -0,0 +1,37 @@
+package webby.commons.cache
+
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+  * Потокобезопасный вариант [[LongPositiveSet]]: значения разбиты по шардам, у каждого шарда своя блокировка.
+  * Ротация идёт по шардам, см. [[ShardedRotatable]].
+  *
+  * Requires sbt dependencies
+  * {{{
+  *   deps += "com.carrotsearch" % "hppc" % "0.7.1" % "optional"
+  * }}}
+  *
+  * @param expectedElementCount Ожидаемое общее число значений
+  * @param shardCount           Число шардов
+  */
+@ThreadSafe
+class ConcurrentLongPositiveSet(expectedElementCount: Int, shardCount: Int = 16)
+  extends ShardedRotatable[LongPositiveSet](shardCount, n => new LongPositiveSet(expectedElementCount / n + 1)) {
+
+  def contains(v: Long): Boolean = {
+    val shard = shardOf(v)
+    shard.synchronized(shard.contains(v))
+  }
+
+  /** @return true - если элемента не было в наборе, false - если он уже там есть (даже если старый) */
+  def add(v: Long): Boolean = {
+    val shard = shardOf(v)
+    shard.synchronized(shard.add(v))
+  }
+
+  /** @return true - если элемент был в коллекции (даже если старый), false - если его там не было */
+  def remove(v: Long): Boolean = {
+    val shard = shardOf(v)
+    shard.synchronized(shard.remove(v))
+  }
+}
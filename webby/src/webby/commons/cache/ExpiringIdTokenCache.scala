@@ -0,0 +1,183 @@
+package webby.commons.cache
+
+import java.util
+import java.util.concurrent.locks.StampedLock
+import javax.annotation.concurrent.ThreadSafe
+
+import com.carrotsearch.hppc.{IntObjectHashMap, LongArrayList, LongLongHashMap, LongObjectHashMap}
+import webby.commons.cache.ExpiringIdTokenCache.Entry
+
+/**
+  * Ограниченный по размеру кеш записей с двумя ключами (id и токен) и временем жизни, которое
+  * задаёт сама запись (например, время окончания сессии). Подходит для сессий, см. [[webby.adm.StdStaffSessCache]].
+  *
+  * Истёкшие записи не возвращаются и удаляются при заполнении кеша. Если после этого кеш всё ещё заполнен,
+  * удаляется десятая часть записей с самым ранним временем окончания. Записи дополнительно упорядочены
+  * по времени окончания, поэтому вытеснение не перебирает весь кеш.
+  * Время окончания читается из записи один раз, в [[put]].
+  *
+  * Кроме того, кеш помнит токены, которых нет в БД (negative caching), чтобы перебор токенов не приводил
+  * к запросу в БД на каждый запрос. Такая пометка живёт `missingTokenTtlMillis` и снимается при [[put]]
+  * записи с этим токеном.
+  *
+  * Requires sbt dependencies
+  * {{{
+  *   deps += "com.carrotsearch" % "hppc" % "0.7.1" % "optional"
+  * }}}
+  *
+  * @param maxSize                Максимальное число записей
+  * @param missingTokenTtlMillis  Сколько помнить отсутствующий токен. 0 - не помнить.
+  * @param maxMissingTokens       Максимальное число запомненных отсутствующих токенов
+  * @param idOf                   id записи
+  * @param tokenOf                Токен записи
+  * @param expiresAt              Время окончания жизни записи в миллисекундах
+  */
+@ThreadSafe
+final class ExpiringIdTokenCache[V <: AnyRef](maxSize: Int,
+                                              missingTokenTtlMillis: Long,
+                                              maxMissingTokens: Int)
+                                             (idOf: V => Int, tokenOf: V => Long, expiresAt: V => Long) {
+  require(maxSize > 0, "maxSize must be positive")
+
+  private val lock = new StampedLock
+  private val byIdMap = new IntObjectHashMap[Entry[V]]()
+  private val byTokenMap = new LongObjectHashMap[Entry[V]]()
+  /** Записи в порядке времени окончания */
+  private val byExpiry = new util.TreeSet[Entry[V]](ExpiringIdTokenCache.expiryOrder)
+  /** Отсутствующий токен -> время, до которого он считается отсутствующим */
+  private val missingTokens = new LongLongHashMap()
+
+  /** Запись по id, null - записи нет в кеше или она истекла */
+  def getById(now: Long, id: Int): V = {
+    val stamp = lock.readLock()
+    try alive(now, byIdMap.get(id))
+    finally lock.unlockRead(stamp)
+  }
+
+  /** Запись по токену, null - записи нет в кеше или она истекла */
+  def getByToken(now: Long, token: Long): V = {
+    val stamp = lock.readLock()
+    try alive(now, byTokenMap.get(token))
+    finally lock.unlockRead(stamp)
+  }
+
+  /** Токен недавно искали в БД и не нашли */
+  def isMissingToken(now: Long, token: Long): Boolean = {
+    val stamp = lock.readLock()
+    try missingTokens.getOrDefault(token, 0L) > now
+    finally lock.unlockRead(stamp)
+  }
+
+  /**
+    * Добавить или заменить запись. Истёкшие записи не добавляются, а старая версия записи удаляется.
+    */
+  def put(now: Long, record: V): Unit = {
+    val id = idOf(record)
+    val token = tokenOf(record)
+    val stamp = lock.writeLock()
+    try {
+      removeLocked(id)
+      missingTokens.remove(token)
+      val entry = new Entry(record, id, token, expiresAt(record))
+      if (entry.expiresAt > now) {
+        if (byIdMap.size() >= maxSize) evict(now)
+        byIdMap.put(id, entry)
+        byTokenMap.put(token, entry)
+        byExpiry.add(entry)
+      }
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /** Запомнить, что токена нет в БД */
+  def putMissingToken(now: Long, token: Long): Unit = if (missingTokenTtlMillis > 0) {
+    val stamp = lock.writeLock()
+    try {
+      if (missingTokens.size() >= maxMissingTokens) {
+        purgeMissingTokens(now)
+        // Если все пометки живые, то нас, скорее всего, перебирают. Начинаем заново, чтобы не расти.
+        if (missingTokens.size() >= maxMissingTokens) missingTokens.clear()
+      }
+      missingTokens.put(token, now + missingTokenTtlMillis)
+    } finally lock.unlockWrite(stamp)
+  }
+
+  def removeById(id: Int): Unit = {
+    val stamp = lock.writeLock()
+    try removeLocked(id)
+    finally lock.unlockWrite(stamp)
+  }
+
+  def clear(): Unit = {
+    val stamp = lock.writeLock()
+    try {
+      byIdMap.clear()
+      byTokenMap.clear()
+      byExpiry.clear()
+      missingTokens.clear()
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /** Число записей, включая истёкшие, но ещё не удалённые */
+  def size: Int = {
+    val stamp = lock.readLock()
+    try byIdMap.size()
+    finally lock.unlockRead(stamp)
+  }
+
+  def missingTokenCount: Int = {
+    val stamp = lock.readLock()
+    try missingTokens.size()
+    finally lock.unlockRead(stamp)
+  }
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  @inline private def alive(now: Long, entry: Entry[V]): V =
+    if (entry != null && entry.expiresAt > now) entry.record else null.asInstanceOf[V]
+
+  private def removeLocked(id: Int): Unit = {
+    val old = byIdMap.remove(id)
+    if (old != null) {
+      // Токен мог уже перейти к записи с другим id, её не трогаем
+      if (byTokenMap.get(old.token) eq old) byTokenMap.remove(old.token)
+      byExpiry.remove(old)
+    }
+  }
+
+  /**
+    * Освободить место: удалить истёкшие записи, а если их мало - записи, которые истекут раньше всех.
+    * И те, и другие стоят в начале [[byExpiry]].
+    */
+  private def evict(now: Long): Unit = {
+    while (!byExpiry.isEmpty && byExpiry.first().expiresAt <= now) removeLocked(byExpiry.first().id)
+    if (byIdMap.size() >= maxSize) {
+      var toRemove = byIdMap.size() - maxSize + math.max(1, maxSize / 10)
+      while (toRemove > 0 && !byExpiry.isEmpty) {
+        removeLocked(byExpiry.first().id)
+        toRemove -= 1
+      }
+    }
+  }
+
+  private def purgeMissingTokens(now: Long): Unit = {
+    val it = missingTokens.iterator()
+    val expired = new LongArrayList()
+    while (it.hasNext) {
+      val c = it.next()
+      if (c.value <= now) expired.add(c.key)
+    }
+    for (i <- 0 until expired.size()) missingTokens.remove(expired.get(i))
+  }
+}
+
+object ExpiringIdTokenCache {
+  /** Запись кеша с ключами и временем окончания на момент добавления */
+  private final class Entry[V](val record: V, val id: Int, val token: Long, val expiresAt: Long)
+
+  private val expiryOrder: util.Comparator[Entry[_]] = new util.Comparator[Entry[_]] {
+    override def compare(a: Entry[_], b: Entry[_]): Int = {
+      val c = java.lang.Long.compare(a.expiresAt, b.expiresAt)
+      if (c != 0) c else Integer.compare(a.id, b.id)
+    }
+  }
+}
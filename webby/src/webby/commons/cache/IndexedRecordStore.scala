@@ -0,0 +1,310 @@
+package webby.commons.cache
+
+import java.util
+import java.util.concurrent.locks.StampedLock
+import javax.annotation.concurrent.ThreadSafe
+
+import com.carrotsearch.hppc.{IntHashSet, IntObjectHashMap}
+
+/**
+  * Потокобезопасное хранилище записей по int-ключу со вторичными индексами (значение поля -> id записей).
+  * Основа для [[webby.commons.cache.table.ConcurrentTableCache]], но от БД не зависит.
+  *
+  * Записи лежат в [[IntObjectHashMap]], индексы обновляются вместе с записями под одной блокировкой
+  * [[StampedLock]]: чтения идут параллельно, изменения - по одному. [[get]], [[contains]] и [[size]] сначала
+  * читают без блокировки (optimistic read) и берут её, только если в это время шла запись.
+  * Отсортированные id и записи ([[ids]], [[values]]) запоминаются до следующего изменения.
+  *
+  * Полная перезагрузка ([[reload]]) заполняет новый снимок без блокировки, читатели в это время видят старый.
+  * Изменения, сделанные во время перезагрузки, попадают в старый снимок, а их id возвращаются из [[reload]],
+  * чтобы вызывающий мог перечитать эти записи в новом снимке. Если во время перезагрузки данные сброшены
+  * ([[clear]], [[markStale]]), то загрузка повторяется.
+  *
+  * Индексы объявляются через [[index]] до первой загрузки.
+  *
+  * Requires sbt dependencies
+  * {{{
+  *   deps += "com.carrotsearch" % "hppc" % "0.7.1" % "optional"
+  * }}}
+  *
+  * @param expectedSize Ожидаемое число записей
+  * @tparam R Тип записи
+  */
+@ThreadSafe
+final class IndexedRecordStore[R <: AnyRef](expectedSize: Int = 16) {
+  private val lock = new StampedLock
+  private val reloadMonitor = new Object
+
+  private var indexes: Vector[Index[_]] = Vector.empty
+  /** Текущий снимок, null - данные ещё не загружены, либо сброшены через [[clear]] */
+  @volatile private var data: Data = null
+  /** id записей, изменённых во время перезагрузки. Не null только во время [[reload]]. */
+  private var changedWhileReloading: IntHashSet = null
+  /** Данные сброшены во время перезагрузки, её нужно повторить */
+  private var staleWhileReloading: Boolean = false
+
+  /**
+    * Объявить вторичный индекс. Записи, для которых `key` вернул null, в индекс не попадают.
+    * Вызывать до первой загрузки, обычно в конструкторе кеша.
+    */
+  def index[K](key: R => K): Index[K] = {
+    val stamp = lock.writeLock()
+    try {
+      if (data != null) throw new IllegalStateException("Indexes must be declared before the first load")
+      val idx = new Index[K](indexes.size, key)
+      indexes :+= idx
+      idx
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /** Данные загружены? */
+  def isLoaded: Boolean = data != null
+
+  /** Идёт перезагрузка, либо данные загружены - т.е. изменения записей нужно применять. */
+  def isTracking: Boolean = {
+    val stamp = lock.readLock()
+    try data != null || changedWhileReloading != null
+    finally lock.unlockRead(stamp)
+  }
+
+  def get(id: Int): Option[R] = optimisticRead(d => Option(d.records.get(id)))
+
+  def contains(id: Int): Boolean = optimisticRead(_.records.containsKey(id))
+
+  def size: Int = optimisticRead(_.records.size())
+
+  /** Все id, отсортированные по возрастанию */
+  def ids: Array[Int] = read(_.sortedIds.clone())
+
+  /** Все записи, отсортированные по id */
+  def values: Vector[R] = read(_.sortedValues)
+
+  /**
+    * Добавить или заменить запись. Если данные не загружены, то ничего не делает
+    * (кроме отметки id, если идёт перезагрузка).
+    */
+  def put(id: Int, record: R): Unit = write(id) {d =>
+    if (d != null) d.put(id, record)
+  }
+
+  /** Удалить запись. Так же, как и [[put]], работает только с загруженными данными. */
+  def remove(id: Int): Unit = write(id) {d =>
+    if (d != null) d.remove(id)
+  }
+
+  /** Сбросить все данные. Следующий [[reload]] загрузит их заново, а идущий сейчас - повторит загрузку. */
+  def clear(): Unit = {
+    val stamp = lock.writeLock()
+    try {
+      data = null
+      if (changedWhileReloading != null) staleWhileReloading = true
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /**
+    * Отметить, что все данные устарели.
+    *
+    * @return true, если данные загружены и перезагрузку должен запустить вызывающий.
+    *         false, если данных нет, либо перезагрузка уже идёт: тогда она повторит загрузку после окончания.
+    */
+  def markStale(): Boolean = {
+    val stamp = lock.writeLock()
+    try {
+      if (changedWhileReloading != null) {
+        staleWhileReloading = true
+        false
+      } else data != null
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /**
+    * Загрузить все записи в новый снимок и заменить им текущий.
+    * Одновременно может идти только одна перезагрузка, остальные ждут её окончания.
+    *
+    * @param fill Заполнение снимка: получает функцию добавления записи `(id, record) => Unit`
+    * @return id записей, изменённых через [[put]]/[[remove]] во время загрузки.
+    *         Новый снимок мог получить их старые версии, поэтому их стоит перечитать.
+    */
+  def reload(fill: ((Int, R) => Unit) => Unit): Array[Int] = reloadMonitor.synchronized {
+    var changedIds: Array[Int] = null
+    var again = true
+    while (again) {
+      val fresh = new Data(startTracking())
+      var loaded = false
+      try {
+        fill(fresh.put)
+        loaded = true
+      } finally {
+        val stamp = lock.writeLock()
+        try {
+          if (loaded) data = fresh
+          again = loaded && staleWhileReloading
+          changedIds = changedWhileReloading.toArray
+          changedWhileReloading = null
+          staleWhileReloading = false
+        } finally lock.unlockWrite(stamp)
+      }
+    }
+    changedIds
+  }
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  /**
+    * Короткое чтение без блокировки. Если во время чтения шла запись (снимок мог быть несогласованным,
+    * вплоть до исключения внутри `body`), оно повторяется под блокировкой.
+    */
+  @inline private def optimisticRead[A](body: Data => A): A = {
+    val stamp = lock.tryOptimisticRead()
+    if (stamp != 0L) {
+      try {
+        val d = data
+        val res = body(if (d == null) emptyData else d)
+        if (lock.validate(stamp)) return res
+      } catch {
+        case _: RuntimeException => // Повторим под блокировкой
+      }
+    }
+    read(body)
+  }
+
+  @inline private def read[A](body: Data => A): A = {
+    val stamp = lock.readLock()
+    try {
+      val d = data
+      body(if (d == null) emptyData else d)
+    } finally lock.unlockRead(stamp)
+  }
+
+  private def write(id: Int)(body: Data => Unit): Unit = {
+    val stamp = lock.writeLock()
+    try {
+      body(data)
+      if (changedWhileReloading != null) changedWhileReloading.add(id)
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /** Начать отслеживать изменения для [[reload]], возвращает текущий список индексов */
+  private def startTracking(): Vector[Index[_]] = {
+    val stamp = lock.writeLock()
+    try {
+      changedWhileReloading = new IntHashSet()
+      staleWhileReloading = false
+      indexes
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /**
+    * Снимок данных: записи и индексы к ним. Сам по себе не потокобезопасен.
+    */
+  private class Data(indexList: Vector[Index[_]]) {
+    val records = new IntObjectHashMap[R](expectedSize)
+    val indexData: Array[util.HashMap[Any, IntHashSet]] = Array.fill(indexList.size)(new util.HashMap[Any, IntHashSet]())
+    /** Отсортированные id и записи, null - изменились. Вычисляются читателями, которых может быть несколько сразу. */
+    @volatile private var sortedIdsCache: Array[Int] = null
+    @volatile private var sortedValuesCache: Vector[R] = null
+
+    def sortedIds: Array[Int] = {
+      var res = sortedIdsCache
+      if (res == null) {
+        res = records.keys().toArray
+        util.Arrays.sort(res)
+        sortedIdsCache = res
+      }
+      res
+    }
+
+    def sortedValues: Vector[R] = {
+      var res = sortedValuesCache
+      if (res == null) {
+        res = sortedIds.map(records.get)(collection.breakOut)
+        sortedValuesCache = res
+      }
+      res
+    }
+
+    def put(id: Int, record: R): Unit = {
+      val old: R = records.put(id, record)
+      if (old == null) sortedIdsCache = null
+      sortedValuesCache = null
+      if (indexList.nonEmpty) {
+        if (old != null) unindex(id, old)
+        for (idx <- indexList) {
+          val k = idx.key(record)
+          if (k != null) {
+            var set = indexData(idx.position).get(k)
+            if (set == null) {
+              set = new IntHashSet(4)
+              indexData(idx.position).put(k, set)
+            }
+            set.add(id)
+          }
+        }
+      }
+    }
+
+    def remove(id: Int): Unit = {
+      val old: R = records.remove(id)
+      if (old != null) {
+        sortedIdsCache = null
+        sortedValuesCache = null
+        if (indexList.nonEmpty) unindex(id, old)
+      }
+    }
+
+    private def unindex(id: Int, record: R): Unit = {
+      for (idx <- indexList) {
+        val k = idx.key(record)
+        if (k != null) {
+          val set = indexData(idx.position).get(k)
+          if (set != null) {
+            set.remove(id)
+            if (set.isEmpty) indexData(idx.position).remove(k)
+          }
+        }
+      }
+    }
+  }
+
+  private lazy val emptyData = new Data(Vector.empty)
+
+  /**
+    * Вторичный индекс: значение ключа -> id записей.
+    */
+  final class Index[K] private[IndexedRecordStore](private[IndexedRecordStore] val position: Int,
+                                                    private[IndexedRecordStore] val key: R => K) {
+    /** id записей с этим значением ключа, отсортированные по возрастанию */
+    def ids(k: K): Array[Int] = read {d =>
+      if (position >= d.indexData.length) Array.emptyIntArray
+      else d.indexData(position).get(k) match {
+        case null => Array.emptyIntArray
+        case set =>
+          val res = set.toArray
+          util.Arrays.sort(res)
+          res
+      }
+    }
+
+    /** Записи с этим значением ключа, отсортированные по id */
+    def records(k: K): Vector[R] = read {d =>
+      if (position >= d.indexData.length) Vector.empty
+      else d.indexData(position).get(k) match {
+        case null => Vector.empty
+        case set =>
+          val res = set.toArray
+          util.Arrays.sort(res)
+          res.map(d.records.get)(collection.breakOut)
+      }
+    }
+
+    /** Любая запись с этим значением ключа (с наименьшим id). Удобно для уникальных индексов. */
+    def first(k: K): Option[R] = records(k).headOption
+
+    def contains(k: K): Boolean = read {d =>
+      position < d.indexData.length && d.indexData(position).containsKey(k)
+    }
+
+    /** Число разных значений ключа */
+    def keyCount: Int = read {d => if (position >= d.indexData.length) 0 else d.indexData(position).size()}
+  }
+}
@@ -25,7 +25,7 @@ import com.carrotsearch.hppc.procedures.IntIntProcedure
   * }}}
   */
 @NotThreadSafe
-class IntIntPositiveValueMap(expectedElementCount: Int) {
+class IntIntPositiveValueMap(expectedElementCount: Int) extends Rotatable {
   private var map = new IntIntHashMap(expectedElementCount)
 
   def get(key: Int, default: Int): Int = {
@@ -40,11 +40,28 @@ class IntIntPositiveValueMap(expectedElementCount: Int) {
 
   def containsKey(key: Int): Boolean = map.containsKey(key)
 
-  def put(key: Int, value: Int): Int = map.put(key, safeValue(value))
+  def put(key: Int, value: Int): Int = unmark(map.put(key, safeValue(value)))
   def putIfAbsent(key: Int, value: Int): Boolean = map.putIfAbsent(key, safeValue(value))
-  def putOrAdd(key: Int, putValue: Int, incrementValue: Int): Int = map.putOrAdd(key, safeValue(putValue), safeValue(incrementValue))
 
-  def remove(key: Int): Int = map.remove(key)
+  /**
+    * Положить `putValue`, если записи нет, иначе прибавить к ней `incrementValue`.
+    * Старая (помеченная при ротации) запись становится новой.
+    */
+  def putOrAdd(key: Int, putValue: Int, incrementValue: Int): Int = {
+    safeValue(putValue)
+    safeValue(incrementValue)
+    val index = map.indexOf(key)
+    if (map.indexExists(index)) {
+      val value = unmark(map.indexGet(index)) + incrementValue
+      map.indexReplace(index, value)
+      value
+    } else {
+      map.indexInsert(index, key, putValue)
+      putValue
+    }
+  }
+
+  def remove(key: Int): Int = unmark(map.remove(key))
   def clear(): Unit = map.clear()
   def release(): Unit = map.release()
 
@@ -71,6 +88,9 @@ class IntIntPositiveValueMap(expectedElementCount: Int) {
 
   // ------------------------------- Private & protected methods -------------------------------
 
+  /** Снять пометку старой записи */
+  @inline private def unmark(value: Int): Int = if (value < 0) ~value else value
+
   private def safeValue(value: Int): Int = {
     require(value >= 0, "Value cannot be negative: " + value)
     value
@@ -15,7 +15,7 @@ import com.carrotsearch.hppc.procedures.IntObjectProcedure
   * }}}
   */
 @NotThreadSafe
-class IntObjectPositiveKeyMap[V <: AnyRef](expectedElementCount: Int) {
+class IntObjectPositiveKeyMap[V <: AnyRef](expectedElementCount: Int) extends Rotatable {
   private var map = new IntObjectHashMap[V](expectedElementCount)
 
   def get(key: Int, default: V): V = {
@@ -0,0 +1,82 @@
+package webby.commons.cache
+
+import java.nio.ByteBuffer
+
+import com.esotericsoftware.kryo.Kryo
+import com.esotericsoftware.kryo.io.{ByteBufferInput, Input, Output}
+
+/**
+  * Сериализация бинов через [[Kryo]] для [[KryoNamedCache]] и [[OffHeapKryoCache]].
+  *
+  * Kryo, буфер записи и объекты чтения создаются один раз на поток, поэтому запись и чтение
+  * не создают промежуточных объектов, кроме самого результата.
+  *
+  * @param beanClass   Класс бина
+  * @param init        Дополнительная процедура инициализации [[Kryo]]
+  * @param classLoader Загрузчик классов для Kryo, запрашивается при первом использовании в потоке
+  */
+class KryoBeanCodec[B](beanClass: Class[B], init: Kryo => Unit, classLoader: => ClassLoader) {
+  import KryoBeanCodec._
+
+  private class State {
+    val kryo: Kryo = {
+      val k = new Kryo
+      k.setClassLoader(classLoader)
+      k.register(beanClass)
+      init(k)
+      k
+    }
+    var output = new Output(InitialBufferSize, MaxBufferSize)
+    val input = new Input()
+    val bufferInput = new ByteBufferInput()
+  }
+
+  private val state = new ThreadLocal[State] {
+    override def initialValue(): State = new State
+  }
+
+  /**
+    * Сериализовать бин в буфер потока и передать его в `consume` (буфер, длина).
+    * Буфер нельзя сохранять: после выхода из `consume` он будет переиспользован.
+    */
+  def write[R](bean: B)(consume: (Array[Byte], Int) => R): R = {
+    val s = state.get()
+    val output = s.output
+    output.clear()
+    s.kryo.writeObject(output, bean)
+    try consume(output.getBuffer, output.position())
+    finally {
+      // Не держим в потоке буфер, выросший под один большой бин
+      if (output.getBuffer.length > ShrinkBufferSize) s.output = new Output(InitialBufferSize, MaxBufferSize)
+    }
+  }
+
+  /** Сериализовать бин в массив точно по размеру данных */
+  def toBytes(bean: B): Array[Byte] = write(bean)(java.util.Arrays.copyOf(_, _))
+
+  def fromBytes(bytes: Array[Byte]): B = {
+    val s = state.get()
+    s.input.setBuffer(bytes)
+    try s.kryo.readObject[B](s.input, beanClass)
+    finally s.input.setBuffer(EmptyBytes)
+  }
+
+  /**
+    * Прочитать бин из буфера, от его position до limit, не копируя данные (подходит для direct буферов).
+    */
+  def fromBuffer(buffer: ByteBuffer): B = {
+    val s = state.get()
+    s.bufferInput.setBuffer(buffer)
+    try s.kryo.readObject[B](s.bufferInput, beanClass)
+    finally s.bufferInput.setBuffer(EmptyBuffer)
+  }
+}
+
+object KryoBeanCodec {
+  private final val InitialBufferSize = 256
+  private final val MaxBufferSize = 1024 * 1024
+  private final val ShrinkBufferSize = 64 * 1024
+
+  private val EmptyBytes = new Array[Byte](0)
+  private val EmptyBuffer = ByteBuffer.allocate(0)
+}
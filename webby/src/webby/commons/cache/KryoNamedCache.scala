@@ -1,13 +1,13 @@
 package webby.commons.cache
 
 import com.esotericsoftware.kryo.Kryo
-import com.esotericsoftware.kryo.io.{Input, Output}
 import webby.api.App
 
 import scala.reflect.ClassTag
 
 /**
   * Версия [[NamedCache]], которая использует библиотеку [[Kryo]] для сериализации данных в кеше.
+  * Для очень большого числа объектов лучше подходит [[OffHeapKryoCache]], который хранит данные вне heap.
   *
   * Requires sbt dependencies
   * {{{
@@ -29,15 +29,7 @@ class KryoNamedCache[B: ClassTag](cacheName: String,
   val cache: NamedCache = new NamedCache(cacheName)
   private val versionKey = "_version"
   private val beanClass = implicitly[ClassTag[B]].runtimeClass.asInstanceOf[Class[B]]
-  private val kryo = new ThreadLocal[Kryo] {
-    override def initialValue(): Kryo = {
-      val k = new Kryo
-      k.setClassLoader(App.app.classloader)
-      k.register(beanClass)
-      init(k)
-      k
-    }
-  }
+  private val codec = new KryoBeanCodec[B](beanClass, init, App.app.classloader)
 
   // Проверить версию бинов в кеше. Сбросить кеш, если версии отличаются.
   if (!cache.get[Int](versionKey).contains(beanVersion)) cache.removeAll()
@@ -57,7 +49,7 @@ class KryoNamedCache[B: ClassTag](cacheName: String,
   /**
     * Установить вечное значение (поле timeToLiveSeconds в ehcache.xml игнорируется)
     */
-  def setEternal(key: String, bean: B) = cache.set(key, toValue(bean))
+  def setEternal(key: String, bean: B) = cache.setEternal(key, toValue(bean))
 
   def get(key: String): Option[B] = {
     val element = cache.cache.get(key)
@@ -98,17 +90,8 @@ class KryoNamedCache[B: ClassTag](cacheName: String,
 
   // ------------------------------- Private & protected methods -------------------------------
 
-  private def toValue(bean: B): Array[Byte] = {
-    val output: Output = new Output(256, 1024 * 1024)
-    kryo.get().writeObject(output, bean)
-    output.close()
-    output.getBuffer
-  }
+  /** Значение для ehcache: массив точно по размеру сериализованных данных */
+  private def toValue(bean: B): Array[Byte] = codec.toBytes(bean)
 
-  private def fromValue(bytes: Array[Byte]): B = {
-    val input: Input = new Input(bytes)
-    val bean: B = kryo.get().readObject[B](input, beanClass)
-    input.close()
-    bean
-  }
+  private def fromValue(bytes: Array[Byte]): B = codec.fromBytes(bytes)
 }
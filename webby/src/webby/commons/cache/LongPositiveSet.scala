@@ -24,7 +24,7 @@ import scala.collection.mutable
   * }}}
   */
 @NotThreadSafe
-class LongPositiveSet(expectedElementCount: Int) {
+class LongPositiveSet(expectedElementCount: Int) extends Rotatable {
   private var set = new LongHashSet(expectedElementCount)
 
   def contains(v: Long): Boolean = {
@@ -5,6 +5,7 @@ import java.util
 import net.sf.ehcache.{Cache, CacheManager, Element}
 import webby.api.App
 
+import scala.annotation.tailrec
 import scala.collection.JavaConverters._
 import scala.collection.mutable
 import scala.reflect.ClassTag
@@ -109,21 +110,33 @@ class NamedCache(val name: String) {
   /**
     * Увеличить счётчик типа Int на величину value. Возвращает новое значение счётчика после увеличения.
     * Также, устанавливается время жизни счётчика (поле timeToLiveSeconds в ehcache.xml игнорируется).
+    * Увеличение атомарно (через compare-and-set ehcache), но при частых увеличениях одного счётчика
+    * из многих потоков лучше подходит [[StripedCounters]].
     */
-  def inc(key: String, value: Int, timeToLiveSeconds: Int): Int = {
-    val newVal = get[Int](key, 0) + value
-    set(key, newVal, timeToLiveSeconds)
-    newVal
-  }
+  def inc(key: String, value: Int, timeToLiveSeconds: Int): Int = incElement(key, value, newVal => {
+    val element = new Element(key, newVal)
+    if (timeToLiveSeconds == 0) element.setEternal(true)
+    element.setTimeToLive(timeToLiveSeconds)
+    element
+  })
 
   /**
     * Увеличить счётчик типа Int на величину value. Возвращает новое значение счётчика после увеличения.
     * Время жизни счётчика берём из поля timeToLiveSeconds в ehcache.xml
     */
-  def inc(key: String, value: Int): Int = {
-    val newVal = get[Int](key, 0) + value
-    set(key, newVal)
-    newVal
+  def inc(key: String, value: Int): Int = incElement(key, value, newVal => new Element(key, newVal))
+
+  @tailrec
+  private def incElement(key: String, value: Int, newElement: Int => Element): Int = {
+    val old: Element = cache.get(key)
+    if (old == null) {
+      if (cache.putIfAbsent(newElement(value)) == null) value
+      else incElement(key, value, newElement)
+    } else {
+      val newVal = old.getObjectValue.asInstanceOf[Int] + value
+      if (cache.replace(old, newElement(newVal))) newVal
+      else incElement(key, value, newElement)
+    }
   }
 
   /**
@@ -0,0 +1,77 @@
+package webby.commons.cache
+
+import com.esotericsoftware.kryo.Kryo
+import webby.api.App
+
+import scala.reflect.ClassTag
+
+/**
+  * Аналог [[KryoNamedCache]], который хранит сериализованные бины вне heap, в [[OffHeapSlabStore]].
+  * Подходит для миллионов мелких объектов: в heap остаются только ключи, и сборщик мусора не обходит данные.
+  * Запись идёт через буфер потока прямо в слаб, чтение десериализует бин прямо из слаба.
+  *
+  * В отличие от [[KryoNamedCache]], не использует ehcache и живёт только в памяти процесса,
+  * поэтому версия бинов не нужна.
+  *
+  * @param maxBytes          Максимальный объём памяти вне heap
+  * @param timeToLiveSeconds Время жизни значений по умолчанию, 0 - вечные значения
+  * @param init              Дополнительная процедура инициализации [[Kryo]]
+  * @param classLoader       Загрузчик классов для Kryo
+  * @tparam B Bean класс, который будет храниться в этом хранилище, и сериализоваться через [[Kryo]].
+  */
+class OffHeapKryoCache[B: ClassTag](maxBytes: Long,
+                                    timeToLiveSeconds: Int = 0,
+                                    init: Kryo => Unit = _ => (),
+                                    classLoader: => ClassLoader = App.app.classloader) {
+  val store = new OffHeapSlabStore(maxBytes)
+  private val beanClass = implicitly[ClassTag[B]].runtimeClass.asInstanceOf[Class[B]]
+  private val codec = new KryoBeanCodec[B](beanClass, init, classLoader)
+
+  /**
+    * Установить значение со стандартным временем жизни.
+    * @return false, если значение не поместилось
+    */
+  def set(key: String, bean: B): Boolean = set(key, bean, timeToLiveSeconds)
+
+  /**
+    * Установить значение и время его жизни.
+    * @param timeToLiveSeconds Время жизни в секундах, либо 0 если значение должно храниться вечно.
+    */
+  def set(key: String, bean: B, timeToLiveSeconds: Int): Boolean = {
+    val expiresAt: Long =
+      if (timeToLiveSeconds == 0) Long.MaxValue
+      else System.currentTimeMillis() + timeToLiveSeconds * 1000L
+    codec.write(bean)(store.put(key, _, _, expiresAt))
+  }
+
+  /**
+    * Установить вечное значение
+    */
+  def setEternal(key: String, bean: B): Boolean = set(key, bean, 0)
+
+  def get(key: String): Option[B] = store.read(key, System.currentTimeMillis())(codec.fromBuffer)
+
+  def get(key: String, default: => B): B = get(key).getOrElse(default)
+
+  def contains(key: String): Boolean = store.contains(key, System.currentTimeMillis())
+
+  /**
+    * Удалить объект из кеша.
+    * @return true if the element was removed, false if it was not found in the cache
+    */
+  def remove(key: String): Boolean = store.remove(key)
+
+  /**
+    * Полностью очистить кеш
+    */
+  def removeAll(): Unit = store.clear()
+
+  /**
+    * Выполнить действие для каждого элемента кэша
+    * Подразумевается, что вы знаете что делаете, потому что кэш может быть большим
+    *
+    * @param callback функция, которая принимает на вход ключ кэша и его значение
+    */
+  def foreach(callback: (String, B) => Unit): Unit =
+    store.keys.foreach {key => get(key).foreach(callback(key, _))}
+}
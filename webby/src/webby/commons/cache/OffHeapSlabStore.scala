@@ -0,0 +1,311 @@
+package webby.commons.cache
+
+import java.nio.ByteBuffer
+import java.util.concurrent.locks.StampedLock
+import javax.annotation.concurrent.ThreadSafe
+
+import com.carrotsearch.hppc.{IntArrayList, LongArrayList, ObjectLongHashMap}
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Хранилище байтовых значений по строковому ключу вне heap, в direct буферах (слабах).
+  * Нужно, чтобы миллионы мелких значений не нагружали сборщик мусора: в heap остаются только ключи.
+  *
+  * Память выделяется слабами по `slabSize` байт, но не больше `maxBytes` в сумме. Каждый слаб отдаётся
+  * одному классу размеров и делится на одинаковые куски (как в memcached). Запись занимает кусок
+  * наименьшего подходящего класса: заголовок, ключ и значение точной длины.
+  * Когда свободных кусков в классе нет, а память закончилась, вытесняются записи этого класса по кругу.
+  * Если же у класса нет ни одного слаба, то ему передаётся слаб другого класса, к которому дольше всего
+  * не обращались, вместе со всеми его записями. Иначе классы, не получившие слабов до заполнения памяти,
+  * не смогли бы хранить ничего.
+  *
+  * Чтение идёт под общей (read) блокировкой прямо из слаба, изменения - под эксклюзивной.
+  *
+  * @param maxBytes     Максимальный объём памяти под слабы
+  * @param slabSize     Размер одного слаба, он же максимальный размер записи
+  * @param minChunkSize Размер куска наименьшего класса
+  */
+@ThreadSafe
+final class OffHeapSlabStore(maxBytes: Long, slabSize: Int = 1024 * 1024, minChunkSize: Int = 64) {
+  import OffHeapSlabStore._
+  require(slabSize >= minChunkSize && minChunkSize >= HeaderSize + 8, "Invalid slab or chunk size")
+  require(maxBytes >= slabSize, "maxBytes must be at least slabSize")
+
+  private class SizeClass(val chunkSize: Int) {
+    val chunksPerSlab: Int = slabSize / chunkSize
+    val slabIds = new IntArrayList()
+    val free = new LongArrayList()
+    /** Номер следующего куска для вытеснения среди всех кусков класса */
+    var evictCursor: Int = 0
+  }
+
+  private val lock = new StampedLock
+  private val sizeClasses: Array[SizeClass] = {
+    val sizes = ArrayBuffer[Int]()
+    var size = minChunkSize
+    while (size < slabSize) {
+      sizes += size
+      size = math.max(size + 8, (size * GrowthFactor).toInt + 7 & ~7)
+    }
+    sizes += slabSize
+    sizes.map(new SizeClass(_)).toArray
+  }
+  private val slabs = ArrayBuffer[ByteBuffer]()
+  private val slabClasses = new IntArrayList()
+  /** Время последнего обращения к слабу по часам [[clock]], для выбора слаба для передачи другому классу */
+  private val slabAccess = new Array[Long]((maxBytes / slabSize).toInt)
+  /** Логические часы, растут с каждым изменением */
+  private var clock = 0L
+  private val index = new ObjectLongHashMap[String]()
+
+  /**
+    * Положить значение. Старое значение по этому ключу заменяется.
+    *
+    * @param expiresAt Время окончания жизни в миллисекундах, Long.MaxValue - вечное значение
+    * @return false, если значение слишком большое или для него нет места
+    */
+  def put(key: String, value: Array[Byte], length: Int, expiresAt: Long): Boolean = {
+    val need: Int = HeaderSize + key.length * 2 + length
+    if (need > slabSize) {
+      remove(key)
+      return false
+    }
+    val stamp = lock.writeLock()
+    try {
+      val old = index.getOrDefault(key, NoAddress)
+      if (old != NoAddress) freeChunk(old)
+      val address: Long = allocate(classFor(need))
+      if (address == NoAddress) {
+        index.remove(key)
+        false
+      } else {
+        val buf = slabs(slabOf(address))
+        val offset = offsetOf(address)
+        buf.putInt(offset, key.length)
+        buf.putInt(offset + 4, length)
+        buf.putLong(offset + 8, expiresAt)
+        val dup = buf.duplicate()
+        dup.position(offset + HeaderSize)
+        dup.asCharBuffer().put(key)
+        dup.position(offset + HeaderSize + key.length * 2)
+        dup.put(value, 0, length)
+        clock += 1
+        slabAccess(slabOf(address)) = clock
+        index.put(key, address)
+        true
+      }
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /**
+    * Прочитать значение, не копируя его. `read` получает буфер, у которого position - начало значения,
+    * а limit - его конец. Буфер действует только внутри `read`.
+    *
+    * @return None, если значения нет или оно истекло
+    */
+  def read[A](key: String, now: Long)(read: ByteBuffer => A): Option[A] = {
+    val stamp = lock.readLock()
+    try {
+      val address = index.getOrDefault(key, NoAddress)
+      if (address == NoAddress) None
+      else {
+        val slab = slabs(slabOf(address))
+        val offset = offsetOf(address)
+        // Запись без синхронизации: время обращения нужно только приблизительно
+        slabAccess(slabOf(address)) = clock
+        if (slab.getLong(offset + 8) <= now) None
+        else {
+          val start = offset + HeaderSize + slab.getInt(offset) * 2
+          val buf = slab.duplicate()
+          buf.limit(start + slab.getInt(offset + 4)).position(start)
+          Some(read(buf))
+        }
+      }
+    } finally lock.unlockRead(stamp)
+  }
+
+  /** Копия значения, null - значения нет или оно истекло */
+  def get(key: String, now: Long): Array[Byte] = read(key, now) {buf =>
+    val bytes = new Array[Byte](buf.remaining())
+    buf.get(bytes)
+    bytes
+  }.orNull
+
+  def contains(key: String, now: Long): Boolean = read(key, now)(_ => true).isDefined
+
+  def remove(key: String): Boolean = {
+    val stamp = lock.writeLock()
+    try {
+      val address = index.getOrDefault(key, NoAddress)
+      if (address == NoAddress) false
+      else {
+        index.remove(key)
+        freeChunk(address)
+        true
+      }
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /** Удалить все значения. Выделенная память остаётся за хранилищем. */
+  def clear(): Unit = {
+    val stamp = lock.writeLock()
+    try {
+      index.clear()
+      for (cls <- sizeClasses) {
+        cls.free.clear()
+        cls.evictCursor = 0
+        for (i <- 0 until cls.slabIds.size()) addFreeChunks(cls, cls.slabIds.get(i))
+      }
+    } finally lock.unlockWrite(stamp)
+  }
+
+  /** Все ключи, включая истёкшие */
+  def keys: Array[String] = {
+    val stamp = lock.readLock()
+    try {
+      val res = new Array[String](index.size())
+      var i = 0
+      val it = index.keys().iterator()
+      while (it.hasNext) {
+        res(i) = it.next().value
+        i += 1
+      }
+      res
+    } finally lock.unlockRead(stamp)
+  }
+
+  /** Число значений, включая истёкшие */
+  def size: Int = {
+    val stamp = lock.readLock()
+    try index.size()
+    finally lock.unlockRead(stamp)
+  }
+
+  /** Объём выделенной памяти */
+  def allocatedBytes: Long = {
+    val stamp = lock.readLock()
+    try slabs.size.toLong * slabSize
+    finally lock.unlockRead(stamp)
+  }
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  private def classFor(need: Int): SizeClass = {
+    var i = 0
+    while (sizeClasses(i).chunkSize < need) i += 1
+    sizeClasses(i)
+  }
+
+  private def allocate(cls: SizeClass): Long = {
+    if (cls.free.isEmpty) {
+      if ((slabs.size + 1).toLong * slabSize <= maxBytes) {
+        val slabId = slabs.size
+        slabs += ByteBuffer.allocateDirect(slabSize)
+        slabClasses.add(sizeClasses.indexOf(cls))
+        cls.slabIds.add(slabId)
+        addFreeChunks(cls, slabId)
+      } else if (!cls.slabIds.isEmpty) {
+        evictOne(cls)
+      } else {
+        reassignSlab(cls)
+      }
+    }
+    if (cls.free.isEmpty) NoAddress
+    else cls.free.remove(cls.free.size() - 1)
+  }
+
+  private def addFreeChunks(cls: SizeClass, slabId: Int): Unit = {
+    // В обратном порядке, чтобы куски выдавались с начала слаба
+    var i = cls.chunksPerSlab - 1
+    while (i >= 0) {
+      val offset = i * cls.chunkSize
+      slabs(slabId).putInt(offset, FreeMark)
+      cls.free.add(address(slabId, offset))
+      i -= 1
+    }
+  }
+
+  /** Вытеснить следующую по кругу запись класса */
+  private def evictOne(cls: SizeClass): Unit = {
+    val total = cls.slabIds.size() * cls.chunksPerSlab
+    var tries = 0
+    while (tries < total) {
+      val n = cls.evictCursor % total
+      cls.evictCursor = (n + 1) % total
+      val slabId = cls.slabIds.get(n / cls.chunksPerSlab)
+      val offset = (n % cls.chunksPerSlab) * cls.chunkSize
+      val buf = slabs(slabId)
+      if (buf.getInt(offset) != FreeMark) {
+        index.remove(keyAt(buf, offset))
+        freeChunk(address(slabId, offset))
+        return
+      }
+      tries += 1
+    }
+  }
+
+  /**
+    * Передать классу `cls` слаб другого класса, к которому дольше всего не обращались.
+    * Все записи этого слаба удаляются.
+    */
+  private def reassignSlab(cls: SizeClass): Unit = {
+    var slabId = -1
+    var i = 0
+    while (i < slabs.size) {
+      if (sizeClasses(slabClasses.get(i)) ne cls) {
+        if (slabId == -1 || slabAccess(i) < slabAccess(slabId)) slabId = i
+      }
+      i += 1
+    }
+    if (slabId != -1) {
+      val old = sizeClasses(slabClasses.get(slabId))
+      val buf = slabs(slabId)
+      var n = 0
+      while (n < old.chunksPerSlab) {
+        val offset = n * old.chunkSize
+        if (buf.getInt(offset) != FreeMark) index.remove(keyAt(buf, offset))
+        n += 1
+      }
+      old.slabIds.removeFirst(slabId)
+      old.evictCursor = 0
+      val free = new LongArrayList(old.free.size())
+      for (j <- 0 until old.free.size()) {
+        val a = old.free.get(j)
+        if (slabOf(a) != slabId) free.add(a)
+      }
+      old.free.clear()
+      old.free.addAll(free)
+
+      slabClasses.set(slabId, sizeClasses.indexOf(cls))
+      cls.slabIds.add(slabId)
+      addFreeChunks(cls, slabId)
+    }
+  }
+
+  private def keyAt(buf: ByteBuffer, offset: Int): String = {
+    val chars = new Array[Char](buf.getInt(offset))
+    val dup = buf.duplicate()
+    dup.position(offset + HeaderSize)
+    dup.asCharBuffer().get(chars)
+    new String(chars)
+  }
+
+  private def freeChunk(address: Long): Unit = {
+    val slabId = slabOf(address)
+    slabs(slabId).putInt(offsetOf(address), FreeMark)
+    sizeClasses(slabClasses.get(slabId)).free.add(address)
+  }
+}
+
+object OffHeapSlabStore {
+  /** Заголовок куска: длина ключа в символах (int), длина значения (int), время окончания жизни (long) */
+  private final val HeaderSize = 16
+  private final val FreeMark = -1
+  private final val NoAddress = -1L
+  private final val GrowthFactor = 1.25
+
+  @inline private def address(slabId: Int, offset: Int): Long = (slabId.toLong << 32) | offset
+  @inline private def slabOf(address: Long): Int = (address >>> 32).toInt
+  @inline private def offsetOf(address: Long): Int = address.toInt
+}
@@ -1,18 +1,33 @@
 package webby.commons.cache
 
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.{CompletableFuture, CompletionException, ConcurrentHashMap, ExecutionException, Executor, TimeUnit}
+import java.util.function.BiConsumer
 
 import com.google.common.cache.CacheBuilder
-import webby.commons.concurrent.LockSet
+
+import scala.annotation.tailrec
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success}
 
 /**
   * Класс, служащий в качестве обёртки над каким-либо сервисом. Спасает от множества повторяющихся
-  * запросов, т.к., выстраивает их в очередь, и кеширует результаты по ключу LockKey. Т.е., среди всех
-  * запросов с одинаковым LockKey выполняется только первый, а остальные получают результаты кеширования.
+  * запросов, и кеширует результаты по ключу LockKey. Т.е., среди всех одновременных
+  * запросов с одинаковым LockKey выполняется только первый (ведущий), а остальные получают его результат,
+  * либо результат из кеша.
+  *
+  * Блокировок нет: для каждого ключа, по которому сейчас выполняется запрос, в [[inFlight]] лежит его future,
+  * и остальные запросы просто подписываются на неё. Поэтому запросы с разными ключами никак не мешают друг другу.
+  * Если по ключу сейчас выполняется запрос с другим Req, то новый запрос дожидается его окончания и
+  * выполняется после него (как раньше, при блокировке по ключу), в своём потоке.
+  *
+  * Ошибка ведущего запроса получают и все присоединившиеся к нему. В кеш ошибки не попадают.
   *
   * @param expireDuration Время устаревания кеша с момента последней записи.
   * @param expireUnit     Временная единица expireDuration
-  * @param lockStripes    the minimum number of stripes (locks) for LockKey (see LockSet)
+  * @param lockStripes    Не используется, оставлен для совместимости
+  * @param maximumSize    Максимальное число ключей в кеше результатов
   * @tparam Req     Запрос (должен поддерживать equals). Желательно делать case class'ом.
   * @tparam Resp    Ответ
   * @tparam LockKey Ключ блокировки (должен поддерживать hashcode, equals). Желательно делать case class'ом, либо примитивом.
@@ -21,23 +36,173 @@ case class OnlyOnceCache[Req <: AnyRef, Resp <: AnyRef, LockKey <: AnyRef](expir
                                                                            expireUnit: TimeUnit,
                                                                            lockStripes: Int = 32,
                                                                            maximumSize: Long = 1000L) {
-  private val lockSet = LockSet.lock[LockKey](lockStripes)
+  import OnlyOnceCache._
 
   private val cache = CacheBuilder.newBuilder()
     .expireAfterWrite(expireDuration, expireUnit)
     .maximumSize(maximumSize)
     .build[LockKey, (Req, Resp)]()
 
+  private class Flight(val req: Req) {
+    val future = new CompletableFuture[Resp]()
+  }
+
+  private val inFlight = new ConcurrentHashMap[LockKey, Flight]()
+
+  private val executedCounter = new LongAdder
+  private val coalescedCounter = new LongAdder
+  private val cachedCounter = new LongAdder
+
+  /**
+    * Синхронный вызов. Ведущий запрос выполняет `body` в текущем потоке, остальные ждут его результат.
+    * Если по ключу выполняется другой запрос, текущий поток ждёт его окончания и повторяет попытку сам.
+    */
   def action(req: Req, getKey: Req => LockKey)(body: Req => Resp, onCached: Resp => Resp = a => a): Resp = {
-    val lockKey: LockKey = getKey(req)
-    lockSet.withLock(lockKey) {
-      val cached: (Req, Resp) = cache.getIfPresent(lockKey)
-      if (cached != null && cached._1 == req) onCached(cached._2)
-      else {
-        val result = body(req)
-        cache.put(lockKey, req -> result)
-        result
-      }
+    val key = getKey(req)
+    val start: Req => CompletableFuture[Resp] = r => CompletableFuture.completedFuture(body(r))
+    @tailrec def loop(): Resp = attempt(req, key, start, onCached) match {
+      case Right(future) =>
+        try future.get()
+        catch {case e: ExecutionException => throw e.getCause}
+      case Left(other) =>
+        try other.get()
+        catch {case _: ExecutionException => ()} // Исход чужого запроса не важен
+        loop()
+    }
+    loop()
+  }
+
+  /**
+    * Асинхронный вызов: ни ведущий запрос, ни присоединившиеся к нему не блокируют поток.
+    * Подходит для вызова из обработчиков netty, например, внутри [[webby.api.mvc.AsyncResult]].
+    *
+    * @param body Запуск запроса к сервису, только у ведущего запроса. Вызывается в текущем потоке, либо в `ec`,
+    *             если пришлось дождаться окончания другого запроса по этому ключу.
+    */
+  def actionAsync(req: Req, getKey: Req => LockKey)(body: Req => Future[Resp], onCached: Resp => Resp = a => a)
+                 (implicit ec: ExecutionContext): Future[Resp] = {
+    val key = getKey(req)
+    val start: Req => CompletableFuture[Resp] = r => toJava(body(r))
+    val executor = new Executor {
+      override def execute(command: Runnable): Unit = ec.execute(command)
     }
+    def loop(): CompletableFuture[Resp] = attempt(req, key, start, onCached) match {
+      case Right(future) => future
+      case Left(other) =>
+        // Повтор - в ec, а не в потоке, завершившем чужой запрос
+        other.handle[Unit](asJavaBiFunction((_, _) => ()))
+          .thenComposeAsync[Resp](asJavaFunction((_: Unit) => loop()), executor)
+    }
+    toScala(loop())
+  }
+
+  /**
+    * Одна попытка выполнить запрос: Right - future ответа (из кеша, своего или присоединённого запроса),
+    * Left - по ключу выполняется другой запрос, после его окончания нужно попробовать снова.
+    */
+  private def attempt(req: Req, key: LockKey, start: Req => CompletableFuture[Resp],
+                      onCached: Resp => Resp): Either[CompletableFuture[Resp], CompletableFuture[Resp]] = {
+    val cached: (Req, Resp) = cache.getIfPresent(key)
+    if (cached != null && cached._1 == req) {
+      cachedCounter.increment()
+      return Right(completed(onCached(cached._2)))
+    }
+    val flight = new Flight(req)
+    val existing: Flight = inFlight.putIfAbsent(key, flight)
+    if (existing == null) Right(lead(req, key, flight, start, onCached))
+    else if (existing.req == req) {
+      coalescedCounter.increment()
+      Right(existing.future.thenApply[Resp](asJavaFunction(onCached)))
+    } else Left(existing.future)
+  }
+
+  private def lead(req: Req, key: LockKey, flight: Flight, start: Req => CompletableFuture[Resp], onCached: Resp => Resp): CompletableFuture[Resp] = {
+    // Предыдущий ведущий мог завершиться между проверкой кеша и putIfAbsent
+    val cached: (Req, Resp) = cache.getIfPresent(key)
+    if (cached != null && cached._1 == req) {
+      inFlight.remove(key, flight)
+      flight.future.complete(cached._2)
+      cachedCounter.increment()
+      return completed(onCached(cached._2))
+    }
+    executedCounter.increment()
+    val started: CompletableFuture[Resp] =
+      try start(req)
+      catch {case NonFatal(e) => failed(e)}
+    started.whenComplete(new BiConsumer[Resp, Throwable] {
+      override def accept(resp: Resp, error: Throwable): Unit = {
+        // Сначала кладём в кеш, потом убираем из inFlight, чтобы новые запросы не выполнились повторно
+        if (error == null) cache.put(key, req -> resp)
+        inFlight.remove(key, flight)
+        if (error == null) flight.future.complete(resp)
+        else flight.future.completeExceptionally(unwrap(error))
+      }
+    })
+    flight.future
+  }
+
+  /** Число запросов, выполняемых прямо сейчас */
+  def inFlightCount: Int = inFlight.size()
+
+  /** Статистика вызовов с момента создания */
+  def stats: Stats = Stats(executed = executedCounter.sum(), coalesced = coalescedCounter.sum(), cached = cachedCounter.sum())
+
+  def invalidateAll(): Unit = cache.invalidateAll()
+}
+
+object OnlyOnceCache {
+
+  /**
+    * @param executed  Сколько раз действительно выполнялся запрос к сервису
+    * @param coalesced Сколько вызовов присоединилось к уже выполняющемуся запросу
+    * @param cached    Сколько вызовов получили ответ из кеша
+    */
+  case class Stats(executed: Long, coalesced: Long, cached: Long) {
+    def total: Long = executed + coalesced + cached
+  }
+
+  /** Выполняет колбэки в том же потоке, где завершилась future */
+  private object SameThreadContext extends ExecutionContext {
+    override def execute(runnable: Runnable): Unit = runnable.run()
+    override def reportFailure(cause: Throwable): Unit = ()
+  }
+
+  private def completed[R](value: R): CompletableFuture[R] = CompletableFuture.completedFuture(value)
+
+  private def failed[R](e: Throwable): CompletableFuture[R] = {
+    val f = new CompletableFuture[R]()
+    f.completeExceptionally(e)
+    f
+  }
+
+  private def unwrap(e: Throwable): Throwable = e match {
+    case ce: CompletionException if ce.getCause != null => ce.getCause
+    case _ => e
+  }
+
+  private def toJava[R](future: Future[R]): CompletableFuture[R] = {
+    val f = new CompletableFuture[R]()
+    future.onComplete {
+      case Success(v) => f.complete(v)
+      case Failure(e) => f.completeExceptionally(e)
+    }(SameThreadContext)
+    f
+  }
+
+  private def toScala[R](future: CompletableFuture[R]): Future[R] = {
+    val p = Promise[R]()
+    future.whenComplete(new BiConsumer[R, Throwable] {
+      override def accept(v: R, e: Throwable): Unit =
+        if (e == null) p.success(v) else p.failure(unwrap(e))
+    })
+    p.future
+  }
+
+  private def asJavaFunction[A, B](f: A => B): java.util.function.Function[A, B] = new java.util.function.Function[A, B] {
+    override def apply(a: A): B = f(a)
+  }
+
+  private def asJavaBiFunction[A, B, C](f: (A, B) => C): java.util.function.BiFunction[A, B, C] = new java.util.function.BiFunction[A, B, C] {
+    override def apply(a: A, b: B): C = f(a, b)
   }
 }
@@ -0,0 +1,90 @@
+package webby.commons.cache
+
+import java.util.concurrent.{ScheduledExecutorService, ScheduledFuture, TimeUnit}
+import javax.annotation.concurrent.ThreadSafe
+
+import scala.reflect.ClassTag
+
+/**
+  * Хранилище, поддерживающее ротацию для очистки от старых записей, см. [[IntIntPositiveValueMap.rotate()]]
+  */
+trait Rotatable {
+  def rotate(): Unit
+  def size: Int
+  def clear(): Unit
+  def release(): Unit
+}
+
+/**
+  * Основа для потокобезопасных вариантов [[IntIntPositiveValueMap]], [[IntObjectPositiveKeyMap]], [[LongPositiveSet]].
+  *
+  * Записи распределяются по хешу ключа между `shardCount` независимыми хранилищами (шардами).
+  * Каждый шард защищён своей блокировкой, поэтому потоки, работающие с разными ключами, почти не мешают друг другу.
+  * Объём памяти на запись тот же, что у одного хранилища.
+  *
+  * Ротация тоже идёт по шардам: в каждый момент заблокирован только один шард, и копируется только его часть данных.
+  * [[scheduleRotation]] размазывает ротацию шардов по всему периоду.
+  *
+  * @param requestedShardCount Число шардов, округляется вверх до степени двойки (минимум 2)
+  * @param newShard            Создать шард, получает число шардов
+  */
+@ThreadSafe
+abstract class ShardedRotatable[S <: Rotatable : ClassTag](requestedShardCount: Int, newShard: Int => S) {
+  val shardCount: Int = if (requestedShardCount <= 2) 2 else Integer.highestOneBit(requestedShardCount - 1) << 1
+  private val shardBits: Int = Integer.numberOfTrailingZeros(shardCount)
+
+  protected final val shards: Array[S] = Array.fill(shardCount)(newShard(shardCount))
+
+  /** Номер следующего шарда для [[rotateNextShard]], защищён блокировкой rotateLock */
+  private var nextRotateShard = 0
+  private val rotateLock = new Object
+
+  /**
+    * Шард для ключа. Берутся старшие биты произведения на золотое сечение, потому что
+    * внутри шарда HPPC использует младшие биты хеша, и они должны остаться разными.
+    */
+  @inline protected final def shardOf(key: Int): S = shards((key * 0x9E3779B9) >>> (32 - shardBits))
+
+  @inline protected final def shardOf(key: Long): S = shards(((key * 0x9E3779B97F4A7C15L) >>> (64 - shardBits)).toInt)
+
+  def size: Int = {
+    var total = 0
+    for (shard <- shards) total += shard.synchronized(shard.size)
+    total
+  }
+
+  def clear(): Unit = for (shard <- shards) shard.synchronized(shard.clear())
+
+  def release(): Unit = for (shard <- shards) shard.synchronized(shard.release())
+
+  /** Ротация одного шарда */
+  def rotateShard(index: Int): Unit = {
+    val shard = shards(index)
+    shard.synchronized(shard.rotate())
+  }
+
+  /**
+    * Ротация следующего по кругу шарда. Вызов `shardCount` раз равносилен одному [[rotate()]].
+    * Выбор шарда и его ротация идут под одной блокировкой: иначе поток, задержавшийся между ними,
+    * мог бы ротировать шард повторно сразу после очередного круга и удалить живые записи.
+    */
+  def rotateNextShard(): Unit = rotateLock.synchronized {
+    rotateShard(nextRotateShard)
+    nextRotateShard = (nextRotateShard + 1) % shardCount
+  }
+
+  /** Ротация всех шардов по очереди */
+  def rotate(): Unit = for (i <- 0 until shardCount) rotateShard(i)
+
+  /**
+    * Запустить фоновую ротацию: каждый шард ротируется раз в `period`, шарды - через равные промежутки.
+    *
+    * @return Задача, которую можно отменить
+    */
+  def scheduleRotation(scheduler: ScheduledExecutorService, period: Long, unit: TimeUnit): ScheduledFuture[_] = {
+    val step: Long = math.max(1L, unit.toNanos(period) / shardCount)
+    scheduler.scheduleAtFixedRate(new Runnable {
+      override def run(): Unit = rotateNextShard()
+    }, step, step, TimeUnit.NANOSECONDS)
+  }
+}
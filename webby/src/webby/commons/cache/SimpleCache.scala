@@ -1,9 +1,12 @@
 package webby.commons.cache
 
 import java.time.{LocalDateTime, ZoneId}
+import java.util.concurrent.atomic.AtomicBoolean
 
+import com.google.common.base.Ticker
 import com.google.common.net.HttpHeaders
 import org.apache.commons.codec.digest.DigestUtils
+import org.slf4j.LoggerFactory
 import webby.api.mvc._
 import webby.commons.time.StdDates
 
@@ -12,16 +15,55 @@ import webby.commons.time.StdDates
   * При устаревании кеша внутреннее значение обновляет только один поток, пока остальные получают старые данные.
   * Это позволяет избежать блокировки во время обновления кеша. Но получение первого значения блокирует все потоки, пока это значение не запишется в кешер.
   * cacheLoader не может возвращать null.
+  *
+  * Если задан `refreshAhead` (доля от expireMillis, от 0 до 1), то значение обновляется в фоне, в пуле
+  * [[CacheRefresh.executor]], как только его возраст превысит `refreshAhead * expireMillis`. Пока идёт
+  * обновление, все вызовы получают текущее значение, так что get не ждёт, пока к кешу обращаются достаточно часто.
+  * Если фоновое обновление не удалось, то продолжает отдаваться старое значение, а обновление повторится
+  * при следующем вызове. Но значение старше `expireMillis` (кеш долго не вызывали, или обновления всё время
+  * падают) не отдаётся: оно загружается синхронно, как без `refreshAhead`.
+  *
+  * @param expireMillis Время жизни значения
+  * @param cacheLoader  Загрузка значения
+  * @param refreshAhead Доля от expireMillis, после которой значение обновляется в фоне. 0 - не обновлять в фоне.
+  * @param ticker       Источник времени для возраста значения (в тестах - управляемый вручную)
   */
-class SimpleCache[V](expireMillis: Long, cacheLoader: => V) {
-  private var value: V = null.asInstanceOf[V]
-  private var expireOn: Long = 0
-  @volatile private var updatingNow: Boolean = false
-  private val updateSync = new Object
+class SimpleCache[V](expireMillis: Long, cacheLoader: => V, refreshAhead: Double = 0.0,
+                     ticker: Ticker = Ticker.systemTicker()) {
+  require(refreshAhead >= 0.0 && refreshAhead <= 1.0, "refreshAhead must be between 0 and 1")
+
+  /**
+    * @param loadedAt     Время загрузки по часам, для [[getIfModifiedSince]]
+    * @param loadedMillis Время загрузки по `ticker`, для возраста значения
+    */
+  private final class Entry(val value: V, val loadedAt: Long, val loadedMillis: Long) {
+    def expireOn: Long = loadedAt + expireMillis
+  }
+
+  @volatile private var entry: Entry = null
+  private val updatingNow = new AtomicBoolean(false)
+  private val initLock = new Object
+  private val refreshAfterMillis: Long =
+    if (refreshAhead > 0.0) (expireMillis * refreshAhead).toLong else expireMillis
+
+  val metrics = new CacheMetrics
 
   def get: V = {
-    val now: Long = System.currentTimeMillis()
-    if (now >= expireOn) getExpired else value
+    val e = entry
+    if (e == null) getInitial
+    else {
+      val age: Long = tickerMillis - e.loadedMillis
+      if (age < refreshAfterMillis) {
+        metrics.hit()
+        e.value
+      } else if (refreshAhead > 0.0 && age < expireMillis) {
+        refreshAsync()
+        metrics.staleHit()
+        e.value
+      } else {
+        getExpired(e)
+      }
+    }
   }
 
   /**
@@ -29,54 +71,82 @@ class SimpleCache[V](expireMillis: Long, cacheLoader: => V) {
     * Если да, то вернуть Some(value). Если же не поменялась, то None.
     */
   def getIfModifiedSince(time: Long): Option[V] = {
-    if (time >= expireOn) Some(getExpired) else None
+    val e = entry
+    if (e == null || time >= e.expireOn) Some(get) else None
   }
 
-  def invalidate(): Unit = {
-    updateSync.synchronized {
-      value = null.asInstanceOf[V]
-      expireOn = 0
-    }
+  def invalidate(): Unit = initLock.synchronized {
+    entry = null
   }
 
   // ------------------------------- Private & protected methods -------------------------------
 
-  protected def getExpired: V = {
-    val needUpdate: Boolean =
-      synchronized {
-        if (!updatingNow) {updatingNow = true; true} else false
-      }
-    if (needUpdate) {
-      updateSync.synchronized {
-        try {
-          value = cacheLoader
-        } catch {
-          case e: Exception =>
-            updatingNow = false
-            throw e
+  /** Первая загрузка: все вызовы ждут, пока её выполнит один поток */
+  private def getInitial: V = initLock.synchronized {
+    val e = entry
+    if (e != null) {
+      metrics.hit()
+      e.value
+    } else {
+      metrics.miss()
+      load(refresh = false).value
+    }
+  }
+
+  /** Синхронное обновление: загружает только один поток, остальные получают старое значение */
+  private def getExpired(e: Entry): V = {
+    if (updatingNow.compareAndSet(false, true)) {
+      metrics.miss()
+      try load(refresh = false).value
+      finally updatingNow.set(false)
+    } else {
+      metrics.staleHit()
+      e.value
+    }
+  }
+
+  private def refreshAsync(): Unit = {
+    if (updatingNow.compareAndSet(false, true)) {
+      try CacheRefresh.executor.execute(new Runnable {
+        override def run(): Unit = {
+          try load(refresh = true)
+          catch {case e: Exception => SimpleCache.log.error("Cannot refresh cache value", e)}
+          finally updatingNow.set(false)
         }
-        require(value != null, "CacheLoader cannot return null")
-        expireOn = System.currentTimeMillis() + expireMillis
-        updatingNow = false
-        value
+      })
+      catch {
+        case e: Exception =>
+          updatingNow.set(false)
+          throw e
       }
-    } else {
-      while (value == null) updateSync.synchronized(())
-      value
     }
   }
+
+  private def load(refresh: Boolean): Entry = {
+    val value: V = metrics.timeLoad(refresh)(cacheLoader)
+    require(value != null, "CacheLoader cannot return null")
+    val e = new Entry(value, System.currentTimeMillis(), tickerMillis)
+    entry = e
+    e
+  }
+
+  private def tickerMillis: Long = ticker.read() / 1000000L
+}
+
+object SimpleCache {
+  private val log = LoggerFactory.getLogger(getClass)
 }
 
 /**
   * Вариант [[SimpleCache]], который умеет обрабатывать запросы с заголовками if-modified-since,
   * if-none-match, умеет выставлять e-tag.
   */
-class SimpleCachePlainResultWithETag(expireMillis: Long, cacheLoader: => PlainResult)
+class SimpleCachePlainResultWithETag(expireMillis: Long, cacheLoader: => PlainResult, refreshAhead: Double = 0.0)
   extends SimpleCache[(PlainResult, String)](expireMillis, {
     val result: PlainResult = cacheLoader
     val eTag: String = DigestUtils.md5Hex(result.body)
     result.withHeader(HttpHeaders.ETAG, eTag) -> eTag
-  }) {
+  }, refreshAhead) {
 
   def eTagFrom(result: PlainResult): String = DigestUtils.md5Hex(result.body)
 
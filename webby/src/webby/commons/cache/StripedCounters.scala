@@ -0,0 +1,125 @@
+package webby.commons.cache
+
+import java.util.concurrent.atomic.{AtomicLong, LongAdder}
+import java.util.concurrent.{ConcurrentHashMap, ScheduledExecutorService, ScheduledFuture, TimeUnit}
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+  * Счётчики по строковому ключу для частых одновременных увеличений: ограничение частоты запросов,
+  * подсчёт запросов с одного ip и т.п. В отличие от [[NamedCache.inc]], увеличение не блокирует потоки и
+  * не теряет значения: каждый счётчик - это [[LongAdder]], разбитый на ячейки по потокам.
+  *
+  * Счётчик живёт окно `windowMillis` с момента первого увеличения, затем начинается заново с нуля.
+  * Истёкшие счётчики удаляются при [[compact]]. Он вызывается сам, когда счётчиков больше `compactThreshold`
+  * (не чаще раза за окно), а также может запускаться по расписанию через [[scheduleCompaction]].
+  *
+  * Пример ограничения частоты:
+  * {{{
+  *   val perIp = new StripedCounters(TimeUnit.MINUTES.toMillis(1))
+  *   if (perIp.inc(ip) > 100) return Results.TooManyRequests
+  * }}}
+  *
+  * @param windowMillis     Длина окна счётчика в миллисекундах
+  * @param compactThreshold Число счётчиков, после которого истёкшие удаляются автоматически
+  */
+@ThreadSafe
+class StripedCounters(val windowMillis: Long, compactThreshold: Int = 10000) {
+  require(windowMillis > 0, "windowMillis must be positive")
+
+  private final class Cell(val windowEnd: Long) extends LongAdder
+
+  private val cells = new ConcurrentHashMap[String, Cell]()
+  private val nextAutoCompaction = new AtomicLong(0L)
+
+  /**
+    * Прибавить `value` к счётчику. Возвращает значение счётчика в текущем окне после прибавления.
+    */
+  def add(key: String, value: Long, now: Long = System.currentTimeMillis()): Long = {
+    val cell = liveCell(key, now)
+    cell.add(value)
+    if (cells.size() > compactThreshold) autoCompact(now)
+    cell.sum()
+  }
+
+  /** Увеличить счётчик на единицу, возвращает новое значение */
+  def inc(key: String, now: Long = System.currentTimeMillis()): Long = add(key, 1L, now)
+
+  /** Прибавить, не вычисляя новое значение. Самый дешёвый вариант, когда результат не нужен. */
+  def addQuiet(key: String, value: Long, now: Long = System.currentTimeMillis()): Unit = {
+    liveCell(key, now).add(value)
+    if (cells.size() > compactThreshold) autoCompact(now)
+  }
+
+  /** Значение счётчика в текущем окне, 0 - если счётчика нет или его окно истекло */
+  def get(key: String, now: Long = System.currentTimeMillis()): Long = cells.get(key) match {
+    case null => 0L
+    case cell => if (cell.windowEnd > now) cell.sum() else 0L
+  }
+
+  /** Сколько миллисекунд осталось до конца окна счётчика, 0 - если счётчика нет */
+  def remainingMillis(key: String, now: Long = System.currentTimeMillis()): Long = cells.get(key) match {
+    case null => 0L
+    case cell => math.max(0L, cell.windowEnd - now)
+  }
+
+  def remove(key: String): Unit = cells.remove(key)
+
+  def clear(): Unit = cells.clear()
+
+  /** Число счётчиков, включая истёкшие, но ещё не удалённые */
+  def size: Int = cells.size()
+
+  /**
+    * Удалить истёкшие счётчики.
+    * @return Число удалённых счётчиков
+    */
+  def compact(now: Long = System.currentTimeMillis()): Int = {
+    var removed = 0
+    val it = cells.entrySet().iterator()
+    while (it.hasNext) {
+      val e = it.next()
+      // remove(key, value), чтобы не удалить счётчик, только что начатый заново другим потоком
+      if (e.getValue.windowEnd <= now && cells.remove(e.getKey, e.getValue)) removed += 1
+    }
+    removed
+  }
+
+  /**
+    * Запустить периодическое удаление истёкших счётчиков.
+    * @return Задача, которую можно отменить
+    */
+  def scheduleCompaction(scheduler: ScheduledExecutorService, period: Long, unit: TimeUnit): ScheduledFuture[_] =
+    scheduler.scheduleWithFixedDelay(new Runnable {
+      override def run(): Unit = compact()
+    }, period, period, unit)
+
+  /**
+    * Записать текущие значения живых счётчиков в ehcache как Int, со временем жизни до конца окна.
+    * Нужно, если значения читаются через [[NamedCache.get]] в другом месте.
+    */
+  def flushTo(cache: NamedCache, now: Long = System.currentTimeMillis()): Unit = {
+    val it = cells.entrySet().iterator()
+    while (it.hasNext) {
+      val e = it.next()
+      val cell = e.getValue
+      if (cell.windowEnd > now) {
+        val ttlSeconds: Int = math.max(1L, (cell.windowEnd - now + 999) / 1000).toInt
+        cache.set(e.getKey, math.min(cell.sum(), Int.MaxValue).toInt, ttlSeconds)
+      }
+    }
+  }
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  private def liveCell(key: String, now: Long): Cell = {
+    val cell = cells.get(key)
+    if (cell != null && cell.windowEnd > now) cell
+    else cells.compute(key, (_, old) => if (old != null && old.windowEnd > now) old else new Cell(now + windowMillis))
+  }
+
+  /** Удаление истёкших счётчиков одним потоком, не чаще раза за окно */
+  private def autoCompact(now: Long): Unit = {
+    val next = nextAutoCompaction.get()
+    if (now >= next && nextAutoCompaction.compareAndSet(next, now + windowMillis)) compact(now)
+  }
+}
@@ -1,16 +1,25 @@
 package webby.commons.cache
 
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{Callable, TimeUnit}
 import java.{lang => jl}
 
+import com.google.common.base.Ticker
 import com.google.common.cache.{CacheBuilder, CacheLoader, LoadingCache}
+import com.google.common.util.concurrent.{ListenableFuture, ListenableFutureTask}
 
 /**
   * Кеш, основанный на guava [[LoadingCache]].
   * Поэтому, null'ы недопустимы в качестве ключей и значений кеша.
   * Если требуется хранить примитивы (типа Int), тогда следует использовать обёртку Option[Int] для этого.
+  *
+  * Фабрики принимают `refreshAhead` - долю от времени жизни, после которой значение обновляется в фоне
+  * (в пуле [[CacheRefresh.executor]]), а вызовы тем временем получают старое значение. 0 - не обновлять в фоне.
+  * `ticker` - источник времени для истечения и обновления значений (в тестах - управляемый вручную).
   */
-abstract class TimedCache[K, RealK, V](val cache: LoadingCache[RealK, V]) {
+abstract class TimedCache[K, RealK, V](val cache: LoadingCache[RealK, V], val metrics: CacheMetrics = new CacheMetrics) {
+  // hits и misses берутся из статистики guava, если у кеша включён recordStats
+  metrics.useStatsOf(cache)
+
   def get(key: K): V = cache.get(transformKey(key))
 
   def invalidate(key: K): Unit = cache.invalidate(transformKey(key))
@@ -21,22 +30,47 @@ abstract class TimedCache[K, RealK, V](val cache: LoadingCache[RealK, V]) {
 
 object TimedCache {
 
-  def default[K <: AnyRef, V <: AnyRef](expireDuration: Long, expireUnit: TimeUnit)(cacheLoader: K => V): TimedCache[K, K, V] =
-    new TimedCache[K, K, V](
-      CacheBuilder.newBuilder().expireAfterWrite(expireDuration, expireUnit).build(new CacheLoader[K, V] {
-        def load(key: K): V = cacheLoader(key)
-      })) {
+  def default[K <: AnyRef, V <: AnyRef](expireDuration: Long, expireUnit: TimeUnit, refreshAhead: Double = 0.0,
+                                        ticker: Ticker = Ticker.systemTicker())(cacheLoader: K => V): TimedCache[K, K, V] = {
+    val metrics = new CacheMetrics
+    new TimedCache[K, K, V](builder(expireDuration, expireUnit, refreshAhead, ticker).build(loader(metrics, cacheLoader)), metrics) {
       protected def transformKey(key: K): K = key
     }
+  }
 
-  def intKey[V <: AnyRef](expireDuration: Long, expireUnit: TimeUnit)(cacheLoader: Int => V): TimedCache[Int, jl.Integer, V] =
-    new TimedCache[Int, jl.Integer, V](
-      CacheBuilder.newBuilder().expireAfterWrite(expireDuration, expireUnit).build(new CacheLoader[jl.Integer, V] {
-        def load(key: jl.Integer): V = cacheLoader(key)
-      })) {
+  def intKey[V <: AnyRef](expireDuration: Long, expireUnit: TimeUnit, refreshAhead: Double = 0.0,
+                          ticker: Ticker = Ticker.systemTicker())(cacheLoader: Int => V): TimedCache[Int, jl.Integer, V] = {
+    val metrics = new CacheMetrics
+    new TimedCache[Int, jl.Integer, V](builder(expireDuration, expireUnit, refreshAhead, ticker).build(loader[jl.Integer, V](metrics, cacheLoader(_))), metrics) {
       protected def transformKey(key: Int): Integer = key
     }
+  }
+
+  def stringKey[V <: AnyRef](expireDuration: Long, expireUnit: TimeUnit, refreshAhead: Double = 0.0,
+                             ticker: Ticker = Ticker.systemTicker())(cacheLoader: String => V): TimedCache[String, String, V] =
+    default[String, V](expireDuration, expireUnit, refreshAhead, ticker)(cacheLoader)
+
+  // ------------------------------- Private & protected methods -------------------------------
 
-  def stringKey[V <: AnyRef](expireDuration: Long, expireUnit: TimeUnit)(cacheLoader: String => V): TimedCache[String, String, V] =
-    default[String, V](expireDuration, expireUnit)(cacheLoader)
+  private def builder(expireDuration: Long, expireUnit: TimeUnit, refreshAhead: Double, ticker: Ticker): CacheBuilder[AnyRef, AnyRef] = {
+    require(refreshAhead >= 0.0 && refreshAhead <= 1.0, "refreshAhead must be between 0 and 1")
+    val expireNanos: Long = expireUnit.toNanos(expireDuration)
+    val b = CacheBuilder.newBuilder().ticker(ticker).expireAfterWrite(expireNanos, TimeUnit.NANOSECONDS).recordStats()
+    // При refreshAhead = 1 значение истекает одновременно с обновлением, поэтому фоновое обновление бессмысленно
+    if (refreshAhead > 0.0 && refreshAhead < 1.0) b.refreshAfterWrite(math.max(1L, (expireNanos * refreshAhead).toLong), TimeUnit.NANOSECONDS)
+    b
+  }
+
+  /** Загрузчик с метриками. Фоновое обновление (reload) выполняется в [[CacheRefresh.executor]]. */
+  private def loader[K, V](metrics: CacheMetrics, cacheLoader: K => V): CacheLoader[K, V] = new CacheLoader[K, V] {
+    def load(key: K): V = metrics.timeLoad(refresh = false)(cacheLoader(key))
+
+    override def reload(key: K, oldValue: V): ListenableFuture[V] = {
+      val task = ListenableFutureTask.create(new Callable[V] {
+        override def call(): V = metrics.timeLoad(refresh = true)(cacheLoader(key))
+      })
+      CacheRefresh.executor.execute(task)
+      task
+    }
+  }
 }
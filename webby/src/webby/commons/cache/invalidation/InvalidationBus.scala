@@ -0,0 +1,293 @@
+package webby.commons.cache.invalidation
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream}
+import java.util
+import java.util.concurrent.atomic.{AtomicLong, LongAdder}
+import java.util.concurrent.{ConcurrentHashMap, Executor, Executors, ScheduledExecutorService, TimeUnit}
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.slf4j.LoggerFactory
+
+import scala.util.Random
+
+/**
+  * Шина сброса кешей между узлами.
+  *
+  * События, опубликованные через [[publish]], копятся и раз в `flushIntervalMs` уходят другим узлам
+  * одним или несколькими пакетами. Перед отправкой события схлопываются: повторы одной записи
+  * остаются одним событием, а сброс всей таблицы поглощает события её записей.
+  *
+  * Принятые события передаются в `handler` через `executor`, по порядку приёма. Пока он работает,
+  * [[publish]] в этом потоке ничего не делает, чтобы события не гуляли по кругу.
+  *
+  * Пакеты одного узла нумеруются. Пропущенный номер ещё `reorderWindowMs` ждёт опоздавший пакет
+  * (UDP может переставить пакеты), и только потом считается потерей, см. [[InvalidationHandler.onLoss]].
+  * Истёкшие пропуски проверяются при приёме пакетов и, если задан `flushIntervalMs`, по таймеру.
+  *
+  * @param transport       Транспорт, например [[UdpMulticastTransport]] или [[LoopbackTransport]]
+  * @param handler         Получатель событий от других узлов
+  * @param flushIntervalMs Период отправки накопленных событий. 0 - отправлять только через [[flush]].
+  * @param reorderWindowMs Сколько ждать пропущенный пакет, прежде чем считать его потерянным
+  * @param executor        Где вызывать `handler`. По умолчанию в потоке транспорта, но если handler читает БД,
+  *                        лучше передать однопоточный пул, чтобы не задерживать приём пакетов.
+  */
+class InvalidationBus(transport: InvalidationTransport,
+                      handler: InvalidationHandler,
+                      flushIntervalMs: Long = 20L,
+                      reorderWindowMs: Long = 100L,
+                      executor: Executor = InvalidationBus.CallerThread) {
+  import InvalidationBus._
+
+  /** Случайный id узла, чтобы отличать свои пакеты */
+  val nodeId: Long = Random.nextLong()
+
+  private val pendingRecords = new util.LinkedHashMap[(String, Int), InvalidationKind]()
+  private val pendingResets = new util.LinkedHashSet[String]()
+  private val nextSeq = new AtomicLong(0)
+  private val peers = new ConcurrentHashMap[java.lang.Long, PeerState]()
+
+  private val sentEventCounter = new LongAdder
+  private val receivedEventCounter = new LongAdder
+  private val lossCounter = new LongAdder
+
+  private val scheduler: ScheduledExecutorService =
+    if (flushIntervalMs <= 0) null
+    else {
+      val s = Executors.newSingleThreadScheduledExecutor(
+        new BasicThreadFactory.Builder().namingPattern("invalidation-bus-%d").daemon(true).build())
+      s.scheduleWithFixedDelay(new Runnable {
+        override def run(): Unit = {
+          try flush()
+          catch {case e: Exception => log.error("Cannot send invalidation events", e)}
+          checkLosses(System.currentTimeMillis())
+        }
+      }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS)
+      s
+    }
+
+  transport.start(receive)
+
+  /**
+    * Поставить событие в очередь на отправку.
+    */
+  def publish(event: InvalidationEvent): Unit = if (!applyingFromPeer.get()) synchronized {
+    if (event.kind == InvalidationKind.ResetAll) {
+      if (pendingResets.add(event.table)) {
+        val it = pendingRecords.keySet().iterator()
+        while (it.hasNext) if (it.next()._1 == event.table) it.remove()
+      }
+    } else if (!pendingResets.contains(event.table)) {
+      pendingRecords.put(event.table -> event.id, event.kind)
+    }
+  }
+
+  /**
+    * Отправить накопленные события сейчас.
+    */
+  def flush(): Unit = {
+    val events: Vector[InvalidationEvent] = synchronized {
+      if (pendingResets.isEmpty && pendingRecords.isEmpty) Vector.empty
+      else {
+        val b = Vector.newBuilder[InvalidationEvent]
+        val resetIt = pendingResets.iterator()
+        while (resetIt.hasNext) b += InvalidationEvent.resetAll(resetIt.next())
+        val recordIt = pendingRecords.entrySet().iterator()
+        while (recordIt.hasNext) {
+          val e = recordIt.next()
+          b += InvalidationEvent(e.getKey._1, e.getKey._2, e.getValue)
+        }
+        pendingResets.clear()
+        pendingRecords.clear()
+        b.result()
+      }
+    }
+    if (events.nonEmpty) {
+      for (packet <- encode(nodeId, nextSeq, events, transport.maxPacketSize)) transport.send(packet)
+      sentEventCounter.add(events.size)
+    }
+  }
+
+  def close(): Unit = {
+    if (scheduler != null) scheduler.shutdown()
+    flush()
+    transport.close()
+  }
+
+  /** Сколько событий отправлено */
+  def sentEvents: Long = sentEventCounter.sum()
+
+  /** Сколько событий принято от других узлов */
+  def receivedEvents: Long = receivedEventCounter.sum()
+
+  /** Сколько раз обнаружена потеря пакетов */
+  def losses: Long = lossCounter.sum()
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  private def receive(packet: Array[Byte]): Unit = {
+    val decoded: Packet =
+      try decode(packet)
+      catch {
+        case e: Exception =>
+          log.warn("Invalid invalidation packet: " + e)
+          return
+      }
+    if (decoded == null || decoded.nodeId == nodeId) return
+
+    val now = System.currentTimeMillis()
+    val peer = peers.computeIfAbsent(decoded.nodeId, new java.util.function.Function[java.lang.Long, PeerState] {
+      override def apply(t: java.lang.Long): PeerState = new PeerState(decoded.seq - 1)
+    })
+    peer.synchronized(peer.received(decoded.seq, now + reorderWindowMs))
+    checkLosses(now)
+
+    receivedEventCounter.add(decoded.events.size)
+    inHandler {
+      for (event <- decoded.events) {
+        try handler(event)
+        catch {case e: Exception => log.error("Cannot apply invalidation event " + event, e)}
+      }
+    }
+  }
+
+  /** Сообщить о пропусках, которые так и не дождались своих пакетов */
+  private[invalidation] def checkLosses(now: Long): Unit = {
+    val it = peers.entrySet().iterator()
+    while (it.hasNext) {
+      val e = it.next()
+      val peer = e.getValue
+      if (peer.synchronized(peer.takeLost(now))) {
+        lossCounter.increment()
+        val lostNodeId: Long = e.getKey
+        inHandler(handler.onLoss(lostNodeId))
+      }
+    }
+  }
+
+  /** Выполнить вызовы handler в `executor`, не публикуя события в ответ */
+  private def inHandler(block: => Unit): Unit = executor.execute(new Runnable {
+    override def run(): Unit = {
+      applyingFromPeer.set(true)
+      try block
+      catch {case e: Exception => log.error("Cannot apply invalidation events", e)}
+      finally applyingFromPeer.set(false)
+    }
+  })
+}
+
+object InvalidationBus {
+  private val log = LoggerFactory.getLogger(getClass)
+
+  /** Поток сейчас применяет события другого узла */
+  private val applyingFromPeer: ThreadLocal[Boolean] = ThreadLocal.withInitial(() => false)
+
+  /** Выполнение в вызывающем потоке */
+  object CallerThread extends Executor {
+    override def execute(command: Runnable): Unit = command.run()
+  }
+
+  /** Пропуск больше стольких пакетов сразу считается потерей */
+  private final val MaxTrackedGap = 1024
+
+  /**
+    * Номера пакетов, принятых от одного узла.
+    *
+    * @param lastSeq Наибольший принятый номер
+    */
+  private final class PeerState(var lastSeq: Long) {
+    /**
+      * Пропущенные номера и время, до которого их ещё ждём.
+      * Пропуски с большими номерами появились позже и ждут дольше, поэтому первым истекает первый по номеру.
+      */
+    private val missing = new util.TreeMap[java.lang.Long, java.lang.Long]()
+    private var lost = false
+
+    def received(seq: Long, deadline: Long): Unit = {
+      if (seq > lastSeq) {
+        if (seq - lastSeq - 1 > MaxTrackedGap) lost = true
+        else {
+          var s = lastSeq + 1
+          while (s < seq) {
+            missing.put(s, deadline)
+            s += 1
+          }
+        }
+        lastSeq = seq
+      } else missing.remove(seq) // Опоздавший пакет
+    }
+
+    /** Были ли потери с прошлого вызова, с учётом пропусков, истёкших к `now` */
+    def takeLost(now: Long): Boolean = {
+      while (!missing.isEmpty && missing.firstEntry().getValue <= now) {
+        missing.pollFirstEntry()
+        lost = true
+      }
+      val l = lost
+      lost = false
+      l
+    }
+  }
+
+  private final val Magic: Short = 0x5749 // "WI"
+  private final val Version: Byte = 1
+  private final val HeaderSize = 2 + 1 + 8 + 8 + 2
+
+  private[invalidation] case class Packet(nodeId: Long, seq: Long, events: Vector[InvalidationEvent])
+
+  /**
+    * Разбить события на пакеты размером не больше maxPacketSize.
+    * Формат: magic(2) version(1) nodeId(8) seq(8) count(2), затем события: kind(1) id(4) table(writeUTF).
+    */
+  private[invalidation] def encode(nodeId: Long, seq: AtomicLong, events: Seq[InvalidationEvent], maxPacketSize: Int): Vector[Array[Byte]] = {
+    val packets = Vector.newBuilder[Array[Byte]]
+    val body = new ByteArrayOutputStream(math.min(maxPacketSize, 4096))
+    val bodyOut = new DataOutputStream(body)
+    val eventBuf = new ByteArrayOutputStream(64)
+    val eventOut = new DataOutputStream(eventBuf)
+    var count = 0
+
+    def emit(): Unit = if (count > 0) {
+      val packet = new ByteArrayOutputStream(HeaderSize + body.size())
+      val out = new DataOutputStream(packet)
+      out.writeShort(Magic)
+      out.writeByte(Version)
+      out.writeLong(nodeId)
+      out.writeLong(seq.incrementAndGet())
+      out.writeShort(count)
+      body.writeTo(out)
+      packets += packet.toByteArray
+      body.reset()
+      count = 0
+    }
+
+    for (event <- events) {
+      eventBuf.reset()
+      eventOut.writeByte(event.kind.code)
+      eventOut.writeInt(event.id)
+      eventOut.writeUTF(event.table)
+      if (HeaderSize + eventBuf.size() > maxPacketSize)
+        throw new IllegalArgumentException("Invalidation event does not fit into a packet: " + event)
+      if (HeaderSize + body.size() + eventBuf.size() > maxPacketSize || count == 0xFFFF) emit()
+      eventBuf.writeTo(bodyOut)
+      count += 1
+    }
+    emit()
+    packets.result()
+  }
+
+  /** Разобрать пакет, null - пакет не от [[InvalidationBus]] */
+  private[invalidation] def decode(packet: Array[Byte]): Packet = {
+    val in = new DataInputStream(new ByteArrayInputStream(packet))
+    if (packet.length < HeaderSize || in.readShort() != Magic || in.readByte() != Version) return null
+    val nodeId = in.readLong()
+    val seq = in.readLong()
+    val count = in.readUnsignedShort()
+    val events = Vector.newBuilder[InvalidationEvent]
+    for (_ <- 0 until count) {
+      val kind = InvalidationKind.byCode(in.readByte())
+      val id = in.readInt()
+      events += InvalidationEvent(in.readUTF(), id, kind)
+    }
+    Packet(nodeId, seq, events.result())
+  }
+}
@@ -0,0 +1,31 @@
+package webby.commons.cache.invalidation
+
+/**
+  * Событие сброса кеша таблицы, передаваемое между узлами через [[InvalidationBus]].
+  *
+  * @param table Полное имя таблицы, например ros.tag
+  * @param id    id записи, для [[InvalidationKind.ResetAll]] не используется (0)
+  */
+case class InvalidationEvent(table: String, id: Int, kind: InvalidationKind)
+
+object InvalidationEvent {
+  def resetAll(table: String): InvalidationEvent = InvalidationEvent(table, 0, InvalidationKind.ResetAll)
+}
+
+sealed abstract class InvalidationKind(val code: Byte)
+
+object InvalidationKind {
+  /** Запись добавлена или изменена */
+  case object Update extends InvalidationKind(1)
+  /** Запись удалена */
+  case object Delete extends InvalidationKind(2)
+  /** Сброшен весь кеш таблицы */
+  case object ResetAll extends InvalidationKind(3)
+
+  def byCode(code: Byte): InvalidationKind = code match {
+    case 1 => Update
+    case 2 => Delete
+    case 3 => ResetAll
+    case _ => throw new IllegalArgumentException("Unknown invalidation kind " + code)
+  }
+}
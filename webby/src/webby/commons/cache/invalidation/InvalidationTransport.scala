@@ -0,0 +1,34 @@
+package webby.commons.cache.invalidation
+
+/**
+  * Транспорт для пакетов [[InvalidationBus]]. Доставка не гарантируется, но потерянные пакеты
+  * обнаруживаются по номерам, см. [[InvalidationHandler.onLoss]].
+  */
+trait InvalidationTransport {
+  /**
+    * Начать приём пакетов. `receive` вызывается из потока транспорта, в том числе
+    * для собственных пакетов узла (их отбрасывает [[InvalidationBus]]).
+    */
+  def start(receive: Array[Byte] => Unit): Unit
+
+  /** Отправить пакет всем узлам */
+  def send(packet: Array[Byte]): Unit
+
+  /** Максимальный размер одного пакета в байтах */
+  def maxPacketSize: Int
+
+  def close(): Unit
+}
+
+/**
+  * Получатель событий от других узлов.
+  */
+trait InvalidationHandler {
+  def apply(event: InvalidationEvent): Unit
+
+  /**
+    * Часть пакетов от узла `nodeId` потеряна, т.е. какие-то изменения могли пройти мимо.
+    * Обычно в этом случае сбрасываются все кеши.
+    */
+  def onLoss(nodeId: Long): Unit
+}
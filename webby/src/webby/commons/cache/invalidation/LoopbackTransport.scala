@@ -0,0 +1,34 @@
+package webby.commons.cache.invalidation
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+  * Транспорт в пределах одной JVM: все транспорты, созданные одним [[LoopbackTransport.Hub]],
+  * получают пакеты друг друга (и свои) синхронно, в потоке отправителя. Нужен для тестов.
+  *
+  * @param dropPackets Отбрасывать ли отправляемые пакеты, для проверки потерь
+  */
+class LoopbackTransport(hub: LoopbackTransport.Hub, val maxPacketSize: Int) extends InvalidationTransport {
+  @volatile private var receiver: Array[Byte] => Unit = null
+  @volatile var dropPackets: Boolean = false
+
+  override def start(receive: Array[Byte] => Unit): Unit = {
+    receiver = receive
+    hub.transports.add(this)
+  }
+
+  override def send(packet: Array[Byte]): Unit = if (!dropPackets) {
+    val it = hub.transports.iterator()
+    while (it.hasNext) it.next().receiver(packet.clone())
+  }
+
+  override def close(): Unit = hub.transports.remove(this)
+}
+
+object LoopbackTransport {
+  class Hub {
+    private[LoopbackTransport] val transports = new CopyOnWriteArrayList[LoopbackTransport]()
+
+    def transport(maxPacketSize: Int = 1400): LoopbackTransport = new LoopbackTransport(this, maxPacketSize)
+  }
+}
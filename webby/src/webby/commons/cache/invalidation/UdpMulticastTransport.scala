@@ -0,0 +1,67 @@
+package webby.commons.cache.invalidation
+
+import java.net._
+import java.util
+
+import org.slf4j.LoggerFactory
+
+/**
+  * Транспорт через UDP multicast. Все узлы должны быть в одной сети и слушать одну группу и порт.
+  * Пример:
+  * {{{
+  *   TableCacheInvalidation.start(new UdpMulticastTransport(InetAddress.getByName("239.1.2.3"), 45600))
+  * }}}
+  *
+  * @param group         Адрес multicast-группы (224.0.0.0 - 239.255.255.255)
+  * @param port          Порт группы
+  * @param interface     Сетевой интерфейс, null - интерфейс по умолчанию
+  * @param ttl           Время жизни пакетов, 1 - только локальная сеть
+  * @param maxPacketSize Размер пакета, по умолчанию меньше MTU, чтобы пакеты не фрагментировались
+  */
+class UdpMulticastTransport(group: InetAddress,
+                            port: Int,
+                            interface: NetworkInterface = null,
+                            ttl: Int = 1,
+                            val maxPacketSize: Int = 1400) extends InvalidationTransport {
+  private val log = LoggerFactory.getLogger(getClass)
+  private val socket = new MulticastSocket(port)
+  socket.setTimeToLive(ttl)
+  if (interface != null) socket.setNetworkInterface(interface)
+  // Не отключаем loopback: на одной машине может работать несколько узлов
+  socket.setLoopbackMode(false)
+  socket.joinGroup(new InetSocketAddress(group, port), interface)
+
+  @volatile private var closed = false
+  private var thread: Thread = null
+
+  override def start(receive: Array[Byte] => Unit): Unit = {
+    thread = new Thread("invalidation-udp-" + port) {
+      override def run(): Unit = {
+        val buf = new Array[Byte](65536)
+        val packet = new DatagramPacket(buf, buf.length)
+        while (!closed) {
+          try {
+            packet.setLength(buf.length)
+            socket.receive(packet)
+            receive(util.Arrays.copyOfRange(buf, packet.getOffset, packet.getOffset + packet.getLength))
+          } catch {
+            case e: SocketException if closed => // сокет закрыт
+            case e: Exception => log.error("Cannot receive invalidation packet", e)
+          }
+        }
+      }
+    }
+    thread.setDaemon(true)
+    thread.start()
+  }
+
+  override def send(packet: Array[Byte]): Unit =
+    socket.send(new DatagramPacket(packet, packet.length, group, port))
+
+  override def close(): Unit = {
+    closed = true
+    try socket.leaveGroup(new InetSocketAddress(group, port), interface)
+    catch {case e: Exception => ()}
+    socket.close()
+  }
+}
@@ -16,6 +16,7 @@ trait AbstractRecordsCache {
     */
   def resetCache(): Unit = {
     listeners.foreach(_.onResetCache())
+    TableCacheInvalidation.publishReset(dbTable)
   }
 
   /**
@@ -24,8 +25,15 @@ trait AbstractRecordsCache {
   def resetRecord(id: Int, change: TrRecordChange): Unit = {
     change.validate(dbTable, id)
     listeners.foreach(_.onResetRecord(id, change))
+    TableCacheInvalidation.publishRecord(dbTable, id, change)
   }
 
+  /**
+    * Запись изменилась на другом узле (см. [[TableCacheInvalidation]]). Самого изменения здесь нет,
+    * поэтому запись нужно перечитать из БД. По умолчанию сбрасывает весь кеш.
+    */
+  def resetRecordFromPeer(id: Int): Unit = resetCache()
+
   /**
     * Добавить подписчика на события сброса всего кеша и события сброса кеша одной записи.
     */
@@ -37,5 +45,6 @@ trait AbstractRecordsCache {
   def addResetAnyListener(onResetAny: => Any): TableCacheEventListener = addEventListener(new TableCacheEventListener {
     override def onResetCache(): Unit = onResetAny
     override def onResetRecord(id: Int, change: TrRecordChange): Unit = onResetAny
+    override def onResetRecordFromPeer(id: Int): Unit = onResetAny
   })
 }
@@ -0,0 +1,156 @@
+package webby.commons.cache.table
+
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.{ExecutorService, LinkedBlockingQueue, ThreadPoolExecutor, TimeUnit}
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.slf4j.LoggerFactory
+import querio._
+import webby.commons.cache.IndexedRecordStore
+
+/**
+  * Потокобезопасный кеш для больших таблиц (10^5 - 10^6 записей).
+  * В отличие от [[TableCache]], записи хранятся в [[IndexedRecordStore]] (hppc), изменение одной записи
+  * не копирует всю карту, а сброс всего кеша перечитывает таблицу в фоне: пока идёт загрузка,
+  * читатели получают старые данные.
+  *
+  * Поддерживает вторичные индексы, которые обновляются вместе с записями:
+  * {{{
+  *   object VacancyCache extends ConcurrentTableCache(db, Vacancy) {
+  *     val byCompany = index(_.companyId)
+  *   }
+  *   VacancyCache.byCompany.records(companyId)
+  * }}}
+  *
+  * Первое обращение загружает таблицу синхронно.
+  *
+  * @param expectedSize Ожидаемое число записей
+  */
+class ConcurrentTableCache[TR <: TableRecord](db: DbTrait, val dbTable: TrTable[TR], expectedSize: Int = 1024) extends AbstractRecordsCache {
+  protected val store = new IndexedRecordStore[TR](expectedSize)
+  private val reloadScheduled = new AtomicBoolean(false)
+
+  /**
+    * Объявить вторичный индекс по значению, полученному из записи (обычно это поле таблицы).
+    * Индексы объявляются в конструкторе наследника.
+    */
+  protected def index[K](key: TR => K): IndexedRecordStore[TR]#Index[K] = store.index(key)
+
+  def byId(id: Int): Option[TR] = loaded.get(id)
+
+  def get(id: Int): Option[TR] = byId(id)
+
+  def apply(id: Int): TR = byId(id).get
+
+  def contains(id: Int): Boolean = loaded.contains(id)
+
+  def isValidId(id: Int): Boolean = contains(id)
+
+  /** Все записи, отсортированные по id */
+  def allRecords: Vector[TR] = loaded.values
+
+  def allIds: Array[Int] = loaded.ids
+
+  def size: Int = loaded.size
+
+  /**
+    * Сбросить весь кеш. Если таблица уже была загружена, то она перечитывается в фоне,
+    * а до окончания загрузки остаются доступны старые записи.
+    * Несколько сбросов подряд, пока перезагрузка не началась, дают одну перезагрузку.
+    * Сброс во время загрузки (в том числе первой) повторяет её после окончания.
+    */
+  override def resetCache(): Unit = {
+    if (store.markStale() && reloadScheduled.compareAndSet(false, true)) ConcurrentTableCache.reloadExecutor.execute(new Runnable {
+      override def run(): Unit =
+        try {
+          reloadScheduled.set(false)
+          reloadNow()
+        }
+        catch {case e: Exception => ConcurrentTableCache.log.error("Cannot reload cache for " + dbTable._fullTableName, e)}
+    })
+    super.resetCache()
+  }
+
+  /**
+    * Перечитать всю таблицу в текущем потоке.
+    */
+  def reloadNow(): Unit = {
+    val changed: Array[Int] = store.reload {add =>
+      readAllRecords(r => add(idFromRecord(r), r))
+    }
+    // Эти записи менялись во время загрузки, в новом снимке они могут быть устаревшими
+    for (id <- changed) refreshRecord(id)
+  }
+
+  /**
+    * Сбросить значение одной записи, т.е. перечитать кеш для этой записи.
+    */
+  override def resetRecord(id: Int, change: TrRecordChange): Unit = {
+    if (store.isTracking) {
+      change match {
+        case some: TrSomeChange => putRecord(id, some.mtr.toRecord.asInstanceOf[TR])
+        case del: TrDeleteChange => store.remove(id)
+        case _ => refreshRecord(id)
+      }
+    }
+    super.resetRecord(id, change)
+  }
+
+  override def resetRecordFromPeer(id: Int): Unit = {
+    if (store.isTracking) refreshRecord(id)
+    listeners.foreach(_.onResetRecordFromPeer(id))
+  }
+
+  // ------------------------------- Private & protected methods -------------------------------
+
+  private def loaded: IndexedRecordStore[TR] = {
+    if (!store.isLoaded) store.synchronized {
+      if (!store.isLoaded) reloadNow()
+    }
+    store
+  }
+
+  private def refreshRecord(id: Int): Unit = readRecord(id) match {
+    case Some(record) => putRecord(id, record)
+    case None => store.remove(id)
+  }
+
+  private def putRecord(id: Int, record: TR): Unit =
+    if (accept(record)) store.put(id, record) else store.remove(id)
+
+  /**
+    * Хранить ли запись в кеше. Позволяет кешировать только часть таблицы, см. [[PartialTableCache]].
+    */
+  protected def accept(record: TR): Boolean = true
+
+  /**
+    * Прочитать все записи таблицы, передавая их по одной в `add`.
+    */
+  protected def readAllRecords(add: TR => Unit): Unit =
+    db.query(_ selectFrom dbTable fetchLazy {it => it.foreach(add)})
+
+  protected def readRecord(id: Int): Option[TR] = db.query(
+    _ selectFrom dbTable where recordIdCondition(id) fetchOne())
+
+  /**
+    * Условие для выбора записи по id.
+    */
+  protected def recordIdCondition(id: Int): Condition = dbTable._primaryKey.get == id
+
+  /**
+    * Получить id из записи.
+    */
+  protected def idFromRecord(record: TR): Int = record._primaryKey
+}
+
+object ConcurrentTableCache {
+  private val log = LoggerFactory.getLogger(getClass)
+
+  /** Один поток на все фоновые перезагрузки, чтобы не читать несколько больших таблиц одновременно */
+  private lazy val reloadExecutor: ExecutorService = {
+    val executor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue[Runnable](),
+      new BasicThreadFactory.Builder().namingPattern("table-cache-reload-%d").daemon(true).build())
+    executor.allowCoreThreadTimeOut(true)
+    executor
+  }
+}
@@ -1,43 +1,27 @@
 package webby.commons.cache.table
 
 import querio.{Condition, DbTrait, TableRecord, TrTable}
-import webby.commons.collection.IterableWrapper.wrapIterable
 
-import scala.collection.immutable.IntMap
+/**
+  * Кеш части таблицы: хранит только записи, подходящие под условие [[condition]].
+  * При изменении записи она добавляется в кеш или удаляется из него в зависимости от [[test]].
+  *
+  * Выборки по отдельным полям делаются через вторичные индексы, см. [[ConcurrentTableCache.index]].
+  */
+abstract class PartialTableCache[TR <: TableRecord](db: DbTrait, dbTable: TrTable[TR], expectedSize: Int = 1024)
+  extends ConcurrentTableCache[TR](db, dbTable, expectedSize) {
 
-// TODO: класс недописан, его нельзя использовать
-abstract class PartialTableCache[TR <: TableRecord](db: DbTrait, val dbTable: TrTable[TR]) extends RecordsCache[TR] {
+  /** Условие для выбора записей из БД. */
+  protected def condition: Condition
 
-  trait View[V] {
-    /** Условие для выбора/фильтрации записи. */
-    def condition: Condition
+  /** То же условие, что и [[condition]], но проверяемое на уже прочитанной записи. */
+  protected def test(record: TR): Boolean
 
-    def test(record: TR): Boolean
+  override protected def accept(record: TR): Boolean = test(record)
 
-    def fillAll(records: Iterator[TR])
-  }
-  protected def makeViews: Iterable[View[_]]
-  protected val views: Vector[View[_]] = makeViews.toVector
-
-  /**
-    * Получить id из записи.
-    */
-  protected def idFromRecord(record: TR): Int = record._primaryKey
-
-  protected def readAllRecords(): IntMap[TR] = {
-    val map: IntMap[TR] = db.query(
-      _ select dbTable from dbTable
-        where views.map(_.condition).reduce(_ || _)
-        fetch()).mapToIntMap(r => idFromRecord(r) -> r)
-    for (view <- views) {
-      view.fillAll(map.valuesIterator.filter(view.test))
-    }
-    map
-  }
-
-  // TODO: Здесь нужна отдельная реализация resetRecord
-  // Возможно, не стоит наследоваться от RecordsCache - тогда нужно разбить тот класс на составляющие.
-
-  protected def readRecord(id: Int): Option[TR] = ???
+  override protected def readAllRecords(add: TR => Unit): Unit =
+    db.query(_ selectFrom dbTable where condition fetchLazy {it => it.foreach(add)})
 
+  override protected def readRecord(id: Int): Option[TR] = db.query(
+    _ selectFrom dbTable where recordIdCondition(id) && condition fetchOne())
 }
@@ -6,9 +6,10 @@ import scala.collection.immutable.IntMap
 
 /**
   * Простой кеш таблицы из БД. Кеширует все записи, поэтому таблица в БД не должна быть очень большой.
+  * Для больших таблиц лучше подходит [[ConcurrentTableCache]].
   */
 trait RecordsCache[TR] extends AbstractRecordsCache {
-  protected var _records: Map[Int, TR] = null
+  @volatile protected var _records: Map[Int, TR] = null
 
   /**
     * Вернуть запись по id
@@ -45,7 +46,7 @@ trait RecordsCache[TR] extends AbstractRecordsCache {
     * Сбросить весь кеш
     */
   override def resetCache() {
-    _records = null
+    synchronized(_records = null)
     super.resetCache()
   }
 
@@ -53,7 +54,7 @@ trait RecordsCache[TR] extends AbstractRecordsCache {
     * Сбросить значение одной записи, т.е. перечитать кеш для этой записи.
     */
   override def resetRecord(id: Int, change: TrRecordChange) {
-    _records match {
+    synchronized(_records match {
       case null =>
       case r =>
         change match {
@@ -65,15 +66,31 @@ trait RecordsCache[TR] extends AbstractRecordsCache {
               case None => _records = _records - id
             }
         }
-    }
+    })
     super.resetRecord(id, change)
   }
 
+  override def resetRecordFromPeer(id: Int): Unit = {
+    synchronized(_records match {
+      case null =>
+      case r =>
+        readRecord(id) match {
+          case Some(record) => _records = _records.updated(id, record)
+          case None => _records = _records - id
+        }
+    })
+    listeners.foreach(_.onResetRecordFromPeer(id))
+  }
+
   // ------------------------------- Private & protected methods -------------------------------
 
   private def records: Map[Int, TR] = {
-    if (_records == null) _records = readAllRecords()
-    _records
+    val r = _records
+    if (r != null) r
+    else synchronized {
+      if (_records == null) _records = readAllRecords()
+      _records
+    }
   }
 
   protected def readAllRecords(): Map[Int, TR]
@@ -7,4 +7,6 @@ import querio._
 trait TableCacheEventListener {
   def onResetCache() {}
   def onResetRecord(id: Int, change: TrRecordChange) {}
+  /** Запись изменилась на другом узле, см. [[AbstractRecordsCache.resetRecordFromPeer]] */
+  def onResetRecordFromPeer(id: Int) { onResetCache() }
 }
@@ -0,0 +1,67 @@
+package webby.commons.cache.table
+
+import java.util.concurrent.{ExecutorService, Executors}
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import querio.{AnyTable, TrDeleteChange, TrRecordChange}
+import webby.commons.cache.invalidation._
+
+/**
+  * Сброс кешей таблиц на других узлах. После [[start]] все вызовы [[AbstractRecordsCache.resetRecord]]
+  * и [[AbstractRecordsCache.resetCache]] рассылаются остальным узлам, а там применяются ко всем
+  * кешам таблицы из [[TableCacheMap]]. Так как сами записи не передаются, на других узлах изменённые записи
+  * перечитываются из БД, см. [[AbstractRecordsCache.resetRecordFromPeer]]. Это делается в отдельном потоке,
+  * а не в потоке приёма пакетов, чтобы чтение из БД не задерживало приём.
+  *
+  * Подключается при старте приложения:
+  * {{{
+  *   TableCacheInvalidation.start(new UdpMulticastTransport(InetAddress.getByName("239.1.2.3"), 45600))
+  * }}}
+  */
+object TableCacheInvalidation extends InvalidationHandler {
+  @volatile private var bus: InvalidationBus = null
+  /** Поток, в котором применяются события других узлов */
+  private var executor: ExecutorService = null
+
+  def start(transport: InvalidationTransport, flushIntervalMs: Long = 20L): InvalidationBus = synchronized {
+    if (bus != null) throw new IllegalStateException("TableCacheInvalidation already started")
+    executor = Executors.newSingleThreadExecutor(
+      new BasicThreadFactory.Builder().namingPattern("table-cache-invalidation-%d").daemon(true).build())
+    bus = new InvalidationBus(transport, this, flushIntervalMs, executor = executor)
+    bus
+  }
+
+  def stop(): Unit = synchronized {
+    if (bus != null) {
+      bus.close()
+      bus = null
+      executor.shutdown()
+      executor = null
+    }
+  }
+
+  def currentBus: Option[InvalidationBus] = Option(bus)
+
+  private[table] def publishRecord(table: AnyTable, id: Int, change: TrRecordChange): Unit = {
+    val b = bus
+    if (b != null) {
+      val kind = change match {
+        case _: TrDeleteChange => InvalidationKind.Delete
+        case _ => InvalidationKind.Update
+      }
+      b.publish(InvalidationEvent(table._fullTableName, id, kind))
+    }
+  }
+
+  private[table] def publishReset(table: AnyTable): Unit = {
+    val b = bus
+    if (b != null) b.publish(InvalidationEvent.resetAll(table._fullTableName))
+  }
+
+  override def apply(event: InvalidationEvent): Unit = event.kind match {
+    case InvalidationKind.ResetAll => TableCacheMap.get(event.table).foreach(_.resetCache())
+    case _ => TableCacheMap.get(event.table).foreach(_.resetRecordFromPeer(event.id))
+  }
+
+  override def onLoss(nodeId: Long): Unit = TableCacheMap.all.foreach(_.resetCache())
+}
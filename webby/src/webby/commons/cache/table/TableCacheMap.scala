@@ -4,9 +4,9 @@ package webby.commons.cache.table
   * Карта всех созданных TableCache'ов
   */
 object TableCacheMap {
-  private var map = Map[String, Set[AbstractRecordsCache]]()
+  @volatile private var map = Map[String, Set[AbstractRecordsCache]]()
 
-  def register(tc: AbstractRecordsCache) {
+  def register(tc: AbstractRecordsCache): Unit = synchronized {
     val key: String = tc.dbTable._fullTableName
     map = map.get(key) match {
       case Some(set) => map.updated(key, set + tc)
@@ -16,4 +16,7 @@ object TableCacheMap {
 
   /** Получить TableCache по его полному имени, например ros.tag */
   def get(fullName: String): Set[AbstractRecordsCache] = map.get(fullName).getOrElse(Set.empty)
+
+  /** Все зарегистрированные кеши */
+  def all: Iterable[AbstractRecordsCache] = map.values.flatten
 }
@@ -0,0 +1,72 @@
+package webby.commons.concurrent
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray, AtomicReferenceArray}
+import javax.annotation.Nullable
+
+/**
+  * Ограниченная неблокирующая очередь на кольцевом буфере для многих писателей и одного читателя (MPSC).
+  * Писатели занимают ячейки через CAS, без блокировок. Каждая ячейка хранит номер последовательности,
+  * по которому читатель понимает, что значение уже записано (алгоритм Д. Вьюкова).
+  *
+  * [[poll]] можно вызывать только из одного потока.
+  *
+  * @param requestedCapacity Ёмкость, округляется вверх до степени двойки
+  */
+final class MpscRingBuffer[A <: AnyRef](requestedCapacity: Int) {
+  val capacity: Int = if (requestedCapacity <= 2) 2 else Integer.highestOneBit(requestedCapacity - 1) << 1
+  private val mask: Int = capacity - 1
+  private val buffer = new AtomicReferenceArray[A](capacity)
+  private val sequences = new AtomicLongArray(capacity)
+  private val tail = new AtomicLong(0)
+  @volatile private var head: Long = 0
+
+  {
+    var i = 0
+    while (i < capacity) {
+      sequences.lazySet(i, i)
+      i += 1
+    }
+  }
+
+  /**
+    * Добавить элемент в очередь.
+    *
+    * @return false, если очередь заполнена
+    */
+  def offer(a: A): Boolean = {
+    var pos: Long = tail.get()
+    while (true) {
+      val idx = (pos & mask).toInt
+      val diff: Long = sequences.get(idx) - pos
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          buffer.lazySet(idx, a)
+          sequences.lazySet(idx, pos + 1)
+          return true
+        }
+        pos = tail.get()
+      } else if (diff < 0) return false
+      else pos = tail.get()
+    }
+    false
+  }
+
+  /** Забрать элемент из очереди, либо null, если она пуста. Вызывается только из потока-читателя. */
+  @Nullable def poll(): A = {
+    val h = head
+    val idx = (h & mask).toInt
+    if (sequences.get(idx) != h + 1) null.asInstanceOf[A]
+    else {
+      val a: A = buffer.get(idx)
+      buffer.lazySet(idx, null.asInstanceOf[A])
+      sequences.lazySet(idx, h + capacity)
+      head = h + 1
+      a
+    }
+  }
+
+  /** Примерное число элементов в очереди */
+  def size: Int = math.max(0, math.min(capacity.toLong, tail.get() - head)).toInt
+
+  def isEmpty: Boolean = size == 0
+}
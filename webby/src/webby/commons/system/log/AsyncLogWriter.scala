@@ -0,0 +1,163 @@
+package webby.commons.system.log
+
+import java.io._
+import java.nio.charset.Charset
+import java.util
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+import com.google.common.base.Charsets
+import webby.api.Logger
+import webby.commons.concurrent.MpscRingBuffer
+import webby.commons.io.FastBufferedOutputStream
+import webby.commons.system.{SigHandler, Signals}
+
+import scala.util.control.NonFatal
+
+/**
+  * LogWriter, который пишет в файл из отдельного потока.
+  *
+  * Вызывающие потоки только кодируют строку в байты и кладут её в неблокирующую очередь [[MpscRingBuffer]].
+  * Поток записи забирает всё, что накопилось, пишет пачкой в буфер и сбрасывает его в файл, когда очередь опустела.
+  * По сигналу USR2 файл переоткрывается в потоке записи.
+  *
+  * @param file          Файл лога
+  * @param bufferSize    Размер буфера перед записью в файл
+  * @param queueSize     Максимальное число строк в очереди
+  * @param blockWhenFull Что делать, когда очередь заполнена: true - ждать, пока поток записи её разгрузит,
+  *                      false - отбросить строку (число отброшенных строк см. в [[droppedLines]])
+  */
+class AsyncLogWriter(file: File,
+                     bufferSize: Int = 65536,
+                     queueSize: Int = 65536,
+                     blockWhenFull: Boolean = false,
+                     charset: Charset = Charsets.UTF_8) extends LogWriter {
+  private val queue = new MpscRingBuffer[Array[Byte]](queueSize)
+  private val dropped = new AtomicLong(0)
+  private var reportedDropped: Long = 0
+
+  @volatile private var running = true
+  @volatile private var reopenRequested = false
+  /** Поток записи ждёт новых строк, его надо разбудить */
+  @volatile private var idle = false
+
+  private var fileStream: OutputStream = null
+  private var stream: OutputStream = null
+
+  openWriter()
+
+  private val thread: Thread = new Thread(new Runnable {
+    override def run(): Unit = writeLoop()
+  }, "log-writer: " + file.getName)
+  thread.setDaemon(true)
+  thread.start()
+
+  Signals.install(Signals.USR2, new SigHandler {
+    def handle(signal: String) {
+      reopenRequested = true
+      LockSupport.unpark(thread)
+    }
+  })
+
+  /** Число строк, отброшенных из-за переполнения очереди */
+  def droppedLines: Long = dropped.get()
+
+  /** Число строк, ожидающих записи */
+  def pendingLines: Int = queue.size
+
+  override def write(bytes: Array[Byte]): Unit = publish(bytes)
+
+  /** Байты копируются, поэтому переданный массив можно сразу использовать повторно */
+  override def write(bytes: Array[Byte], offset: Int, length: Int): Unit =
+    publish(util.Arrays.copyOfRange(bytes, offset, offset + length))
+
+  override def write(str: String): Unit = publish(str.getBytes(charset))
+
+  override def writeLn(str: String): Unit = {
+    val strBytes: Array[Byte] = str.getBytes(charset)
+    val bytes: Array[Byte] = util.Arrays.copyOf(strBytes, strBytes.length + 1)
+    bytes(strBytes.length) = '\n'
+    publish(bytes)
+  }
+
+  /**
+    * Остановить поток записи, дождавшись, пока он запишет очередь.
+    */
+  override def closeWriter(): Unit = {
+    running = false
+    LockSupport.unpark(thread)
+    thread.join(TimeUnit.SECONDS.toMillis(10))
+  }
+
+  private def publish(bytes: Array[Byte]): Unit = {
+    if (!queue.offer(bytes)) {
+      if (blockWhenFull) {
+        while (running && !queue.offer(bytes)) {
+          LockSupport.unpark(thread)
+          LockSupport.parkNanos(50000)
+        }
+      } else dropped.incrementAndGet()
+    }
+    if (idle) LockSupport.unpark(thread)
+  }
+
+  private def writeLoop(): Unit = {
+    while (running || !queue.isEmpty) {
+      try {
+        if (reopenRequested) {
+          reopenRequested = false
+          closeStream()
+          openWriter()
+        }
+        var bytes: Array[Byte] = queue.poll()
+        if (bytes == null) {
+          if (stream != null) stream.flush()
+          reportDropped()
+          idle = true
+          // Ограничение по времени страхует от пропущенного unpark
+          if (running && !reopenRequested && queue.isEmpty) LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100))
+          idle = false
+        } else {
+          while (bytes != null) {
+            if (stream != null) stream.write(bytes)
+            bytes = queue.poll()
+          }
+        }
+      } catch {
+        // Поток записи не должен умирать: иначе очередь перестанет разгружаться и строки молча пропадут
+        case NonFatal(e) =>
+          Logger.error("LogWriter(" + file.getAbsolutePath + ") write failed", e)
+      }
+    }
+    try closeStream()
+    catch {case NonFatal(e) => Logger.error("LogWriter(" + file.getAbsolutePath + ") close failed", e)}
+    reportDropped()
+  }
+
+  private def reportDropped(): Unit = {
+    val d = dropped.get()
+    if (d != reportedDropped) {
+      Logger.warn("LogWriter(" + file.getAbsolutePath + ") queue is full, dropped " + (d - reportedDropped) + " lines")
+      reportedDropped = d
+    }
+  }
+
+  /** Открыть файл лога на дозапись. Вызывается из конструктора и из потока записи (USR2). */
+  protected def openStream(file: File): OutputStream = new FileOutputStream(file, true)
+
+  private def openWriter(): Unit = {
+    fileStream = openStream(file)
+    stream = new FastBufferedOutputStream(fileStream, bufferSize)
+  }
+
+  private def closeStream(): Unit = {
+    if (stream != null) {
+      stream.flush()
+      stream.close()
+      fileStream.close()
+    }
+    stream = null
+    fileStream = null
+  }
+}
@@ -0,0 +1,177 @@
+package webby.commons.system.log
+
+import java.time.{LocalDateTime, ZoneId}
+
+import webby.commons.time.StdDates
+
+/**
+  * Переиспользуемый буфер для сборки строки лога сразу в байтах UTF-8, без промежуточных String.
+  * Каждому потоку положен свой буфер, см. [[LogLineBuffer.get]].
+  */
+final class LogLineBuffer(initialCapacity: Int = LogLineBuffer.DefaultCapacity) {
+  private var _bytes = new Array[Byte](initialCapacity)
+  private var _length = 0
+
+  // Кеш отформатированной даты/времени с точностью до секунды
+  private val dateTimeBytes = new Array[Byte](19)
+  private var dateTimeSecond: Long = Long.MinValue
+  private var dateTimeZone: ZoneId = null
+
+  def bytes: Array[Byte] = _bytes
+  def length: Int = _length
+
+  /** Очистить буфер. Слишком разросшийся буфер заменяется на новый, чтобы поток не держал лишнюю память. */
+  def clear(): this.type = {
+    if (_bytes.length > LogLineBuffer.MaxRetainedCapacity) _bytes = new Array[Byte](LogLineBuffer.DefaultCapacity)
+    _length = 0
+    this
+  }
+
+  def append(b: Byte): this.type = {
+    ensureCapacity(1)
+    _bytes(_length) = b
+    _length += 1
+    this
+  }
+
+  def append(c: Char): this.type =
+    if (c < 0x80) append(c.toByte) else appendUtf8(String.valueOf(c))
+
+  /** null пишется как "null", как в StringBuilder */
+  def append(s: CharSequence): this.type =
+    if (s == null) appendUtf8("null", 0, 4) else appendUtf8(s, 0, s.length())
+
+  def appendUtf8(s: CharSequence): this.type = appendUtf8(s, 0, s.length())
+
+  /**
+    * Дописать часть строки в кодировке UTF-8. Непарные суррогаты заменяются на '?', как в String.getBytes.
+    */
+  def appendUtf8(s: CharSequence, start: Int, end: Int): this.type = {
+    ensureCapacity((end - start) * 3)
+    val b = _bytes
+    var n = _length
+    var i = start
+    while (i < end) {
+      val c = s.charAt(i)
+      if (c < 0x80) {
+        b(n) = c.toByte
+        n += 1
+      } else if (c < 0x800) {
+        b(n) = (0xc0 | (c >> 6)).toByte
+        b(n + 1) = (0x80 | (c & 0x3f)).toByte
+        n += 2
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+          val cp = Character.toCodePoint(c, s.charAt(i + 1))
+          // 4 байта на 2 символа, ensureCapacity уже выделил 6
+          b(n) = (0xf0 | (cp >> 18)).toByte
+          b(n + 1) = (0x80 | ((cp >> 12) & 0x3f)).toByte
+          b(n + 2) = (0x80 | ((cp >> 6) & 0x3f)).toByte
+          b(n + 3) = (0x80 | (cp & 0x3f)).toByte
+          n += 4
+          i += 1
+        } else {
+          b(n) = '?'
+          n += 1
+        }
+      } else {
+        b(n) = (0xe0 | (c >> 12)).toByte
+        b(n + 1) = (0x80 | ((c >> 6) & 0x3f)).toByte
+        b(n + 2) = (0x80 | (c & 0x3f)).toByte
+        n += 3
+      }
+      i += 1
+    }
+    _length = n
+    this
+  }
+
+  /** Дописать число десятичными цифрами */
+  def append(v: Long): this.type = {
+    if (v == Long.MinValue) return appendUtf8(java.lang.Long.toString(v))
+    ensureCapacity(20)
+    var value = v
+    if (value < 0) {
+      _bytes(_length) = '-'
+      _length += 1
+      value = -value
+    }
+    val start = _length
+    do {
+      _bytes(_length) = ('0' + (value % 10)).toByte
+      _length += 1
+      value /= 10
+    } while (value != 0)
+    // Цифры записаны в обратном порядке
+    var i = start
+    var j = _length - 1
+    while (i < j) {
+      val t = _bytes(i)
+      _bytes(i) = _bytes(j)
+      _bytes(j) = t
+      i += 1
+      j -= 1
+    }
+    this
+  }
+
+  def append(v: Int): this.type = append(v.toLong)
+
+  /**
+    * Дописать дату/время в формате 2012-07-18T13:55:02 (как [[LoggerSB.writeDateTime]]).
+    * Отформатированная строка кешируется до смены секунды.
+    */
+  def appendDateTime(millis: Long, zoneId: ZoneId): this.type = {
+    val second = Math.floorDiv(millis, 1000L)
+    if (second != dateTimeSecond || (zoneId ne dateTimeZone)) {
+      formatDateTime(StdDates.toLocalDateTime(second * 1000L, zoneId))
+      dateTimeSecond = second
+      dateTimeZone = zoneId
+    }
+    ensureCapacity(dateTimeBytes.length)
+    System.arraycopy(dateTimeBytes, 0, _bytes, _length, dateTimeBytes.length)
+    _length += dateTimeBytes.length
+    this
+  }
+
+  private def formatDateTime(v: LocalDateTime): Unit = {
+    val year = v.getYear
+    if (year < 0 || year > 9999) throw new IllegalArgumentException("Unsupported year " + year)
+    val d = dateTimeBytes
+    d(0) = ('0' + year / 1000).toByte
+    d(1) = ('0' + year / 100 % 10).toByte
+    d(2) = ('0' + year / 10 % 10).toByte
+    d(3) = ('0' + year % 10).toByte
+    d(4) = '-'
+    put2(d, 5, v.getMonthValue)
+    d(7) = '-'
+    put2(d, 8, v.getDayOfMonth)
+    d(10) = 'T'
+    put2(d, 11, v.getHour)
+    d(13) = ':'
+    put2(d, 14, v.getMinute)
+    d(16) = ':'
+    put2(d, 17, v.getSecond)
+  }
+
+  private def put2(d: Array[Byte], pos: Int, v: Int): Unit = {
+    d(pos) = ('0' + v / 10).toByte
+    d(pos + 1) = ('0' + v % 10).toByte
+  }
+
+  private def ensureCapacity(extra: Int): Unit = {
+    val required = _length + extra
+    if (required > _bytes.length) {
+      _bytes = java.util.Arrays.copyOf(_bytes, math.max(required, _bytes.length * 2))
+    }
+  }
+
+  override def toString: String = new String(_bytes, 0, _length, java.nio.charset.StandardCharsets.UTF_8)
+}
+
+object LogLineBuffer extends ThreadLocal[LogLineBuffer] {
+  val DefaultCapacity = 512
+  val MaxRetainedCapacity = 65536
+
+  override def initialValue(): LogLineBuffer = new LogLineBuffer()
+}
@@ -0,0 +1,17 @@
+package webby.commons.system.log
+
+/**
+  * Писатель лога в файл, который переоткрывается по сигналу USR2.
+  *
+  * @see [[SignalRollingSyncLogWriter]]
+  * @see [[AsyncLogWriter]]
+  */
+trait LogWriter {
+  def write(bytes: Array[Byte]): Unit
+  def write(bytes: Array[Byte], offset: Int, length: Int): Unit
+  def write(str: String): Unit
+  def writeLn(str: String): Unit
+
+  /** Дописать буферы и закрыть файл */
+  def closeWriter(): Unit
+}
@@ -12,6 +12,9 @@ class PageLog(val ip: String, val host: String, val method: String, val path: St
 
   var noLog = false
 
+  /** Имя маршрута, обработавшего запрос (см. [[webby.route.v2.LinkedRouteV2.qualifiedName]]), либо null */
+  var routeName: String = null
+
   private var _dbQueries: ArrayBuffer[QueryAndTime] = null
   def dbQueries: Iterable[QueryAndTime] = _dbQueries
 
@@ -22,6 +25,7 @@ class PageLog(val ip: String, val host: String, val method: String, val path: St
   private var _dbQueryCount = 0
   def dbQueryCount = _dbQueryCount
   private var _dbTotalTimeMs = 0L
+  def dbTotalTimeMs: Long = _dbTotalTimeMs
   def addDbQuery(sql: String, queryTimeMs: Long) {
     _dbQueryCount += 1
     _dbTotalTimeMs += queryTimeMs
@@ -30,7 +34,10 @@ class PageLog(val ip: String, val host: String, val method: String, val path: St
 
   private var _esQueries = 0
   private var _esTotalTimeMs = 0L
-  def addEsQuery(queryTimeMs: Long) {
+  def esQueryCount: Int = _esQueries
+  def esTotalTimeMs: Long = _esTotalTimeMs
+  /** Может вызываться из колбэков асинхронных запросов в других потоках */
+  def addEsQuery(queryTimeMs: Long): Unit = synchronized {
     _esQueries += 1
     _esTotalTimeMs += queryTimeMs
   }
@@ -49,15 +56,18 @@ class PageLog(val ip: String, val host: String, val method: String, val path: St
   def setUserSess(userId: Int, userEmail: String): Unit = {_userId = userId; _userEmail = userEmail}
 
   private var _resultStatus: Int = 0
+  def resultStatus: Int = _resultStatus
   def setResultStatus(resultStatus: Int): Unit = _resultStatus = resultStatus
 
   private var _finishedTime: Long = 0L
   def setFinishedTime(finished: Long): Unit = _finishedTime = finished
+  def totalTimeMs: Long = _finishedTime - started
 
   /**
    * Вернуть path, очищенный от escape символов типа %D0. Они не содержат никакой ценной информации, а лог из-за них раздувается.
    */
   protected def printCleanPath(sb: java.lang.StringBuilder) {
+    if (path == null) {sb.append("null"); return}
     var prev = 0
     var cur = 0
     while ( {cur = path.indexOf('%', prev); cur != -1}) {
@@ -67,6 +77,18 @@ class PageLog(val ip: String, val host: String, val method: String, val path: St
     if (prev < path.length) sb.append(path, prev, path.length)
   }
 
+  /** Аналог [[printCleanPath]] для [[writeTo]] */
+  protected def writeCleanPath(buf: LogLineBuffer) {
+    if (path == null) {buf.append(null: CharSequence); return}
+    var prev = 0
+    var cur = 0
+    while ( {cur = path.indexOf('%', prev); cur != -1}) {
+      if (cur != prev) buf.appendUtf8(path, prev, cur)
+      prev = cur + 3
+    }
+    if (prev < path.length) buf.appendUtf8(path, prev, path.length)
+  }
+
   def toLogString: String = new LoggerSB() {
     // Формат: 2012-07-18T13:55:02
     writeDateTime(StdDates.toLocalDateTime(started, zoneId))
@@ -87,6 +109,29 @@ class PageLog(val ip: String, val host: String, val method: String, val path: St
     +" url:" + method + ":" + host
     printCleanPath(sb)
   }.toString
+
+  /**
+   * Записать строку лога в буфер в кодировке UTF-8, без создания промежуточных объектов.
+   * Результат совпадает с [[toLogString]]. Пустые (null) поля пишутся как "null".
+   */
+  def writeTo(buf: LogLineBuffer): Unit = {
+    buf.appendDateTime(started, zoneId)
+
+    buf.append(" ip:").append(ip)
+    buf.append(" t:").append(_finishedTime - started)
+    if (_dbQueryCount > 0) buf.append(" db:").append(_dbTotalTimeMs).append('/').append(_dbQueryCount) else buf.append(" db:-")
+    if (_esQueries > 0) buf.append(" es:").append(_esTotalTimeMs).append('/').append(_esQueries) else buf.append(" es:-")
+    if (_userId != 0) {
+      buf.append(" user:").append(_userId)
+      if (_userEmail != null) buf.append(':').append(_userEmail)
+    } else buf.append(" user:-")
+    if (_resultStatus != 0) buf.append(" st:").append(_resultStatus) else buf.append(" st:-")
+    buf.append(" cab:").append(_cabanCookieGenCounter).append('/').append(_cabanShortCounter).append('/').append(_cabanLongCounter)
+    if (_cabanResolution != null) buf.append(" cr:").append(_cabanResolution)
+
+    buf.append(" url:").append(method).append(':').append(host)
+    writeCleanPath(buf)
+  }
 }
 
 object PageLog extends ThreadLocal[PageLog] {
@@ -104,6 +149,11 @@ object PageLog extends ThreadLocal[PageLog] {
     val log: PageLog = get()
     if (log != null) log.addEsQuery(queryTimeMs)
   }
+
+  def setRouteName(name: String) {
+    val log: PageLog = get()
+    if (log != null) log.routeName = name
+  }
 }
 
 case class QueryAndTime(sql: String, time: Long)
\ No newline at end of file
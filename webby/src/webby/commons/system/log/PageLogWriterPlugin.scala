@@ -16,11 +16,13 @@ abstract class LogWriterPlugin(app: Application) extends Plugin {
   val fileName: Option[String]
   def bufferSize: Int = 8192
 
-  lazy val writer: SignalRollingSyncLogWriter = fileName match {
-    case Some(f) => new SignalRollingSyncLogWriter(new File(f), bufferSize)
+  lazy val writer: LogWriter = fileName match {
+    case Some(f) => newWriter(new File(f))
     case None => null
   }
 
+  protected def newWriter(file: File): LogWriter = new SignalRollingSyncLogWriter(file, bufferSize)
+
   /**
    * Is the plugin enabled?
    */
@@ -52,16 +54,48 @@ class LogWriterHolder[T <: LogWriterPlugin](implicit ct: ClassTag[T]) extends Ap
     val plugin: T = get
     if (plugin != null) plugin.writer.write(sb.str)
   }
+
+  /**
+   * Записать строку, собранную в `fill`, с переводом строки в конце.
+   * Строка собирается в буфере текущего потока [[LogLineBuffer]] и только если плагин включён.
+   */
+  def writeLine(fill: LogLineBuffer => Unit): Unit = {
+    val plugin: T = get
+    if (plugin != null) {
+      val buf: LogLineBuffer = LogLineBuffer.get().clear()
+      fill(buf)
+      buf.append('\n')
+      plugin.writer.write(buf.bytes, 0, buf.length)
+    }
+  }
 }
 
 
 /**
  * Логгер обработки страниц page.log
  * Каждый запрос к серверу логируется сюда
+ *
+ * При pagelog.async = true запись идёт через [[AsyncLogWriter]], и потоки netty не ждут друг друга на записи в файл.
+ * pagelog.queue задаёт длину очереди строк, pagelog.when-full - что делать при её переполнении:
+ * drop (по умолчанию) - отбросить строку, block - ждать.
  */
 class PageLogWriterPlugin(app: Application) extends LogWriterPlugin(app) {
   override val fileName: Option[String] = app.configuration.getString("pagelog.file").filter(!_.isEmpty)
   override def bufferSize: Int = app.configuration.getInt("pagelog.buffer").getOrElse(32768)
+
+  val async: Boolean = app.configuration.getBoolean("pagelog.async").getOrElse(false)
+
+  override protected def newWriter(file: File): LogWriter =
+    if (async) new AsyncLogWriter(file, bufferSize,
+      queueSize = app.configuration.getInt("pagelog.queue").getOrElse(65536),
+      blockWhenFull = app.configuration.getString("pagelog.when-full", Some(Set("drop", "block"))).contains("block"))
+    else super.newWriter(file)
+
+  /** Число строк, отброшенных из-за переполнения очереди асинхронной записи */
+  def droppedLines: Long = writer match {
+    case w: AsyncLogWriter => w.droppedLines
+    case _ => 0L
+  }
 }
 
 /**
@@ -15,7 +15,7 @@ import webby.commons.system.{SigHandler, Signals}
   * @param file       Файл лога
   * @param bufferSize Размер буфера перед записью лога. Если 0, то лог пишется без буфера, т.е., сразу.
   */
-class SignalRollingSyncLogWriter(file: File, bufferSize: Int = 8192, charset: Charset = Charsets.UTF_8) {
+class SignalRollingSyncLogWriter(file: File, bufferSize: Int = 8192, charset: Charset = Charsets.UTF_8) extends LogWriter {
   private val lock = new Object
   private var fileStream: FileOutputStream = null
   private var stream: OutputStream = null
@@ -59,6 +59,7 @@ class SignalRollingSyncLogWriter(file: File, bufferSize: Int = 8192, charset: Ch
   }
 
   def write(bytes: Array[Byte]): Unit = lock synchronized stream.write(bytes)
+  def write(bytes: Array[Byte], offset: Int, length: Int): Unit = lock synchronized stream.write(bytes, offset, length)
   def write(str: String): Unit = lock synchronized stream.write(str.getBytes(charset))
   def writeLn(str: String): Unit = lock synchronized {
     stream.write(str.getBytes(charset))
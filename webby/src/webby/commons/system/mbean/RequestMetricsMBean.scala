@@ -0,0 +1,29 @@
+package webby.commons.system.mbean
+
+import java.util
+
+/**
+  * MBean для [[webby.commons.system.metrics.RequestMetrics]]
+  */
+trait RequestMetricsMBean {
+  MBeans.register(this, classOf[RequestMetricsMBean]).withName("RequestMetrics")
+
+  @Description("Времена запросов по маршрутам, мс: count, mean, p50, p90, p99, max")
+  def getRoutes: util.List[String]
+
+  @Description("Времена запросов по классам статуса ответа, мс")
+  def getStatusClasses: util.List[String]
+
+  @Description("Суммарное время запросов к БД за запрос, мс")
+  def getDbTime: String
+
+  @Description("Суммарное время запросов к ElasticSearch за запрос, мс")
+  def getEsTime: String
+
+  @Description("Включить или выключить сбор метрик")
+  def isEnabled: Boolean
+  def setEnabled(enabled: Boolean)
+
+  @Description("Обнулить все метрики")
+  def resetAll()
+}
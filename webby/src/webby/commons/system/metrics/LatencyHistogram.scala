@@ -0,0 +1,125 @@
+package webby.commons.system.metrics
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+  * Гистограмма времён (в миллисекундах) с логарифмически-линейными корзинами, как в HdrHistogram:
+  * значения до 16 хранятся точно, дальше каждая степень двойки делится на 8 корзин (точность ~12%).
+  *
+  * Запись не блокирует потоки: счётчики разбиты на полосы (stripes), и каждый поток пишет в свою полосу
+  * по номеру потока. При чтении полосы суммируются.
+  */
+final class LatencyHistogram {
+  import LatencyHistogram._
+
+  // Для каждой полосы: [0, BucketCount) - корзины, затем count, sum, max
+  private val stripes: Array[AtomicLongArray] = Array.fill(StripeCount)(new AtomicLongArray(BucketCount + 3))
+
+  def record(value: Long): Unit = {
+    val v = math.max(0L, value)
+    val stripe: AtomicLongArray = stripes((Thread.currentThread().getId & StripeMask).toInt)
+    stripe.incrementAndGet(bucketIndex(v))
+    stripe.incrementAndGet(CountIdx)
+    stripe.addAndGet(SumIdx, v)
+    var max = stripe.get(MaxIdx)
+    while (v > max && !stripe.compareAndSet(MaxIdx, max, v)) max = stripe.get(MaxIdx)
+  }
+
+  /** Согласованный в пределах полосы снимок текущих значений */
+  def snapshot(): LatencySnapshot = {
+    val buckets = new Array[Long](BucketCount)
+    var count = 0L
+    var sum = 0L
+    var max = 0L
+    for (stripe <- stripes) {
+      var i = 0
+      while (i < BucketCount) {
+        buckets(i) += stripe.get(i)
+        i += 1
+      }
+      count += stripe.get(CountIdx)
+      sum += stripe.get(SumIdx)
+      max = math.max(max, stripe.get(MaxIdx))
+    }
+    new LatencySnapshot(buckets, count, sum, max)
+  }
+
+  def reset(): Unit = {
+    for (stripe <- stripes) {
+      var i = 0
+      while (i < stripe.length()) {
+        stripe.set(i, 0L)
+        i += 1
+      }
+    }
+  }
+}
+
+object LatencyHistogram {
+  private val StripeCount: Int = {
+    val cpus = Runtime.getRuntime.availableProcessors()
+    math.min(8, Integer.highestOneBit(math.max(1, cpus - 1)) << 1)
+  }
+  private val StripeMask: Long = StripeCount - 1
+
+  private final val LinearMax = 16
+  private final val SubBuckets = 8
+  private final val SubBits = 3
+  /** Максимальная степень двойки, для которой есть корзины: 2^36 мс - больше двух лет */
+  private final val MaxExp = 36
+
+  final val BucketCount: Int = LinearMax + (MaxExp - 4 + 1) * SubBuckets
+  private final val CountIdx = BucketCount
+  private final val SumIdx = BucketCount + 1
+  private final val MaxIdx = BucketCount + 2
+
+  private[metrics] def bucketIndex(v: Long): Int =
+    if (v < LinearMax) v.toInt
+    else {
+      val exp = 63 - java.lang.Long.numberOfLeadingZeros(v)
+      if (exp > MaxExp) BucketCount - 1
+      else LinearMax + (exp - 4) * SubBuckets + ((v >> (exp - SubBits)) & (SubBuckets - 1)).toInt
+    }
+
+  /** Наибольшее значение, попадающее в корзину */
+  private[metrics] def bucketUpperBound(index: Int): Long =
+    if (index < LinearMax) index
+    else {
+      val exp = (index - LinearMax) / SubBuckets + 4
+      val sub = (index - LinearMax) % SubBuckets
+      ((SubBuckets + sub + 1).toLong << (exp - SubBits)) - 1
+    }
+}
+
+/**
+  * Снимок [[LatencyHistogram]]
+  */
+final class LatencySnapshot(buckets: Array[Long], val count: Long, val sum: Long, val max: Long) {
+
+  def mean: Double = if (count == 0) 0.0 else sum.toDouble / count
+
+  /**
+    * Значение процентиля, округлённое вверх до границы корзины (но не больше max).
+    *
+    * @param q Доля от 0 до 1, например 0.99
+    */
+  def percentile(q: Double): Long = {
+    if (count == 0) 0L
+    else {
+      val rank: Long = math.max(1L, math.ceil(q * count).toLong)
+      var seen = 0L
+      var i = 0
+      while (i < buckets.length) {
+        seen += buckets(i)
+        if (seen >= rank) return math.min(max, LatencyHistogram.bucketUpperBound(i))
+        i += 1
+      }
+      max
+    }
+  }
+
+  /** Строка для MBean: "count=10 mean=3.5 p50=3 p90=7 p99=12 max=15" */
+  def toShortString: String =
+    "count=" + count + " mean=" + ("%.1f" format mean) + " p50=" + percentile(0.5) + " p90=" + percentile(0.9) +
+      " p99=" + percentile(0.99) + " max=" + max
+}
@@ -0,0 +1,117 @@
+package webby.commons.system.metrics
+
+import java.util
+import java.util.concurrent.ConcurrentHashMap
+
+import webby.api.mvc.{Action, Results, SimpleAction}
+import webby.commons.system.log.PageLog
+import webby.commons.system.mbean.RequestMetricsMBean
+import webby.commons.text.SB
+
+import scala.collection.JavaConverters._
+
+/**
+  * Распределения времён обработки запросов, собираемые по [[PageLog]] каждого запроса:
+  *  - общее время по маршруту: классу и методу обработчика (см. [[PageLog.routeName]], "-" для запросов без маршрута),
+  *  - общее время по классу статуса ответа (2xx, 3xx, 4xx, 5xx),
+  *  - время запросов к БД и ElasticSearch за запрос (только для запросов, где они были).
+  *
+  * Значения копятся с момента старта (или с последнего [[reset]]). Доступны через
+  * [[RequestMetricsMBean]] и в текстовом формате Prometheus через [[action]].
+  */
+object RequestMetrics extends RequestMetricsMBean {
+  /** Сбор метрик включён. Выключается настройкой netty.metrics = false. */
+  @volatile var enabled: Boolean = true
+
+  private val routes = new ConcurrentHashMap[String, LatencyHistogram]()
+  private val statusClasses: Array[LatencyHistogram] = Array.fill(6)(new LatencyHistogram)
+  val dbTime = new LatencyHistogram
+  val esTime = new LatencyHistogram
+
+  private val Quantiles = Seq(0.5, 0.9, 0.99, 0.999)
+
+  /** Записать завершённый запрос. Время окончания в pageLog уже должно быть установлено. */
+  def record(pageLog: PageLog): Unit = if (enabled) {
+    val time: Long = pageLog.totalTimeMs
+    val routeName: String = if (pageLog.routeName == null) "-" else pageLog.routeName
+    var h: LatencyHistogram = routes.get(routeName)
+    if (h == null) h = routes.computeIfAbsent(routeName, _ => new LatencyHistogram)
+    h.record(time)
+
+    val statusClass: Int = pageLog.resultStatus / 100
+    statusClasses(if (statusClass >= 1 && statusClass <= 5) statusClass else 0).record(time)
+
+    if (pageLog.dbQueryCount > 0) dbTime.record(pageLog.dbTotalTimeMs)
+    if (pageLog.esQueryCount > 0) esTime.record(pageLog.esTotalTimeMs)
+  }
+
+  /** Снимки по маршрутам, отсортированные по имени */
+  def routeSnapshots: Seq[(String, LatencySnapshot)] =
+    routes.asScala.toVector.map(e => e._1 -> e._2.snapshot()).sortBy(_._1)
+
+  /** Снимки по классам статуса: "1xx".."5xx", а также "-" для запросов без статуса */
+  def statusSnapshots: Seq[(String, LatencySnapshot)] =
+    statusClasses.indices.map(i => (if (i == 0) "-" else i + "xx") -> statusClasses(i).snapshot()).filter(_._2.count > 0)
+
+  def reset(): Unit = {
+    routes.clear()
+    statusClasses.foreach(_.reset())
+    dbTime.reset()
+    esTime.reset()
+  }
+
+  /**
+    * Все метрики в текстовом формате Prometheus (summary).
+    */
+  def toPrometheusText: String = {
+    val sb = new SB(4096)
+    def summary(name: String, help: String, label: String, rows: Seq[(String, LatencySnapshot)]): Unit = {
+      sb + "# HELP " + name + " " + help + "\n"
+      sb + "# TYPE " + name + " summary\n"
+      for ((value, s) <- rows) {
+        val labels: String = if (label == null) "" else label + "=\"" + escapeLabel(value) + "\""
+        for (q <- Quantiles)
+          sb + name + "{" + labels + (if (label == null) "" else ",") + "quantile=\"" + q + "\"} " + s.percentile(q) + "\n"
+        val braces: String = if (label == null) "" else "{" + labels + "}"
+        sb + name + "_sum" + braces + " " + s.sum + "\n"
+        sb + name + "_count" + braces + " " + s.count + "\n"
+      }
+    }
+    summary("webby_request_duration_ms", "Request duration by route", "route", routeSnapshots)
+    summary("webby_request_status_duration_ms", "Request duration by response status class", "status", statusSnapshots)
+    summary("webby_request_db_duration_ms", "Total database time per request", null, Seq("" -> dbTime.snapshot()))
+    summary("webby_request_es_duration_ms", "Total ElasticSearch time per request", null, Seq("" -> esTime.snapshot()))
+    sb.str
+  }
+
+  /**
+    * Action, отдающий [[toPrometheusText]]. Подключается в маршрутах приложения, например:
+    * {{{
+    *   override def metrics: Handler = RequestMetrics.action
+    * }}}
+    * Доступ к нему стоит ограничить (по ip или отдельным доменом).
+    */
+  def action: Action = SimpleAction.nonBlocking {_ =>
+    PageLog.noLog()
+    Results.Ok(toPrometheusText, "text/plain; version=0.0.4; charset=utf-8")
+  }
+
+  // ------------------------------- MBean methods -------------------------------
+
+  override def getRoutes: util.List[String] = toMBeanList(routeSnapshots)
+  override def getStatusClasses: util.List[String] = toMBeanList(statusSnapshots)
+  override def getDbTime: String = dbTime.snapshot().toShortString
+  override def getEsTime: String = esTime.snapshot().toShortString
+  override def isEnabled: Boolean = enabled
+  override def setEnabled(enabled: Boolean): Unit = this.enabled = enabled
+  override def resetAll(): Unit = reset()
+
+  private def toMBeanList(rows: Seq[(String, LatencySnapshot)]): util.List[String] = {
+    val res = new util.ArrayList[String]()
+    for ((name, s) <- rows) res.add(name + ": " + s.toShortString)
+    res
+  }
+
+  private def escapeLabel(v: String): String =
+    v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+}
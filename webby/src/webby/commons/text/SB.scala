@@ -2,6 +2,8 @@ package webby.commons.text
 
 import java.lang.StringBuilder
 
+import io.netty.buffer.{ByteBuf, ByteBufAllocator, ByteBufUtil}
+
 /**
  * Класс для удобного составления строк (замена scala StringBuilder)
  */
@@ -10,6 +12,15 @@ class SB(capacity: Int = 16) extends Appendable with CharSequence {self =>
   override def toString: String = { beforeResult(); sb.toString }
   def str: String = toString
 
+  /**
+   * Закодировать содержимое в UTF-8 сразу в буфер netty, минуя промежуточные String и Array[Byte].
+   * По умолчанию используется пуловый аллокатор netty, который выделяет direct буферы.
+   */
+  def toByteBuf(alloc: ByteBufAllocator = ByteBufAllocator.DEFAULT): ByteBuf = {
+    beforeResult()
+    ByteBufUtil.writeUtf8(alloc, sb)
+  }
+
   def me: SB = this
   def isEmpty: Boolean = length() == 0
   def nonEmpty: Boolean = !isEmpty
@@ -0,0 +1,103 @@
+package webby.core.server
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ExecutorService, RejectedExecutionException, TimeUnit}
+
+import webby.api.Logger
+import webby.commons.concurrent.Executors
+
+import scala.util.control.NonFatal
+
+/**
+  * Выполняет action вне потоков netty, чтобы блокирующие action (запросы к БД, ElasticSearch)
+  * не останавливали обработку остальных соединений на том же event loop.
+  *
+  * Число принятых, но ещё не завершённых action ограничено `maxPending`. Если лимит исчерпан,
+  * [[tryExecute]] возвращает false, и сервер сразу отвечает 503.
+  *
+  * Action, которые не блокируют поток, можно оставить в потоках netty через [[webby.api.mvc.NonBlockingAction]].
+  *
+  * @param executor   Пул, выполняющий action
+  * @param maxPending Максимальное число action в очереди и в работе
+  */
+class ActionDispatcher(val executor: ExecutorService, val maxPending: Int) {
+  private val pending = new AtomicInteger(0)
+  private val running = new AtomicInteger(0)
+
+  /** Число action, ожидающих выполнения */
+  def queueSize: Int = math.max(0, pending.get() - running.get())
+
+  /** Число выполняющихся сейчас action */
+  def runningNum: Int = running.get()
+
+  /**
+    * Поставить задачу в очередь пула.
+    *
+    * @param name Описание задачи для имени потока, например "GET example.com/path"
+    * @return false, если очередь заполнена и задача не принята
+    */
+  def tryExecute(name: String)(task: => Unit): Boolean = {
+    if (pending.incrementAndGet() > maxPending) {
+      pending.decrementAndGet()
+      false
+    } else {
+      try {
+        executor.execute(new Runnable {
+          override def run(): Unit = {
+            running.incrementAndGet()
+            val thread = Thread.currentThread()
+            thread.setName("action@" + thread.getId + ": " + name)
+            try task
+            catch {case NonFatal(e) => Logger("netty").error("Unhandled exception in action " + name, e)}
+            finally {
+              thread.setName("action@" + thread.getId + ": [empty]")
+              running.decrementAndGet()
+              pending.decrementAndGet()
+            }
+          }
+        })
+        true
+      } catch {
+        case _: RejectedExecutionException =>
+          pending.decrementAndGet()
+          false
+      }
+    }
+  }
+
+  /** Остановить пул, дождавшись завершения принятых action */
+  def shutdown(timeout: Long, unit: TimeUnit): Unit = {
+    executor.shutdown()
+    executor.awaitTermination(timeout, unit)
+  }
+}
+
+object ActionDispatcher {
+  /**
+    * Создать диспетчер по настройкам сервера, либо None, если action выполняются в потоках netty
+    * (netty.action-dispatch = inline, по умолчанию).
+    */
+  def fromConfig(config: NettyServerConfig): Option[ActionDispatcher] = config.actionDispatch match {
+    case "pool" => Some(new ActionDispatcher(scalingPool(config), config.actionMaxPending))
+    case "virtual" =>
+      newVirtualThreadExecutor() match {
+        case Some(executor) => Some(new ActionDispatcher(executor, config.actionMaxPending))
+        case None =>
+          Logger.webby.warn("Virtual threads are not supported by this JVM, using thread pool for actions")
+          Some(new ActionDispatcher(scalingPool(config), config.actionMaxPending))
+      }
+    case _ => None
+  }
+
+  private def scalingPool(config: NettyServerConfig): ExecutorService =
+    Executors.scalingExecutor(config.actionThreadsMin, config.actionThreadsMax, 60, TimeUnit.SECONDS, "action-%d")
+
+  /** Executors.newVirtualThreadPerTaskExecutor() из JDK 21+. Вызывается через reflection, т.к. собираемся под Java 8. */
+  private def newVirtualThreadExecutor(): Option[ExecutorService] =
+    try {
+      Some(classOf[java.util.concurrent.Executors].getMethod("newVirtualThreadPerTaskExecutor")
+        .invoke(null).asInstanceOf[ExecutorService])
+    } catch {
+      case _: NoSuchMethodException => None
+    }
+}
@@ -9,17 +9,17 @@ import javax.management.remote.{JMXConnectorServerFactory, JMXServiceURL}
 import javax.management.{MBeanServer, ObjectName}
 
 import io.netty.bootstrap.ServerBootstrap
-import io.netty.channel.nio.{NioEventLoop, NioEventLoopGroup}
 import io.netty.channel.socket.SocketChannel
-import io.netty.channel.socket.nio.NioServerSocketChannel
-import io.netty.channel.{Channel, ChannelFuture, ChannelInitializer, ChannelOption}
+import io.netty.channel.unix.UnixChannelOption
+import io.netty.channel.{Channel, ChannelFuture, ChannelInitializer, ChannelOption, EventLoopGroup}
 import io.netty.handler.codec.http.{HttpObjectAggregator, HttpRequestDecoder, HttpResponseEncoder}
 import io.netty.util.concurrent
-import io.netty.util.concurrent.DefaultThreadFactory
+import io.netty.util.concurrent.SingleThreadEventExecutor
 import org.apache.commons.lang3.StringUtils
 import webby.api._
 import webby.commons.concurrent.{ThreadUtils, Threads}
-import webby.commons.system.mbean.AnnotatedStandardMBean
+import webby.commons.system.mbean.{AnnotatedStandardMBean, Description}
+import webby.commons.system.metrics.RequestMetrics
 import webby.core._
 import webby.core.system.{ApplicationProvider, ReloadableAppProvider, StaticAppProvider}
 
@@ -40,6 +40,8 @@ abstract class NettyServer(appProvider: ApplicationProvider, port: Int, address:
       val pipeline = ch.pipeline()
       pipeline.addLast("decoder", new HttpRequestDecoder())
       pipeline.addLast("encoder", new HttpResponseEncoder())
+      // Тела запросов к StreamingAction не агрегируются, а передаются в action по частям
+      pipeline.addLast("streaming", new StreamingRequestHandler(defaultUpStreamHandler))
       pipeline.addLast("aggregator", new HttpObjectAggregator(1024 * 1024))
       pipeline.addLast("handler", defaultUpStreamHandler)
     }
@@ -49,21 +51,41 @@ abstract class NettyServer(appProvider: ApplicationProvider, port: Int, address:
 
   def defaultUpStreamHandler: UpstreamHandler
   def workerThreadNum: Int
+  /** Настройки транспорта и сокетов. Вызывается один раз при создании сервера. */
+  def serverConfig: NettyServerConfig = new NettyServerConfig(Configuration.empty)
+
+  val config: NettyServerConfig = serverConfig
+
+  /** Пул для выполнения action вне потоков netty, если он включен настройкой netty.action-dispatch */
+  val actionDispatcher: Option[ActionDispatcher] = ActionDispatcher.fromConfig(config)
+
+  RequestMetrics.enabled = config.metrics
 
   // The HTTP server channel
-  val bossGroup = new NioEventLoopGroup(0, new DefaultThreadFactory("netty-boss"))
-  val workerGroup = new NioEventLoopGroup(workerThreadNum, new DefaultThreadFactory("netty-worker"))
+  val bossGroup: EventLoopGroup = config.newEventLoopGroup(config.acceptors, "netty-boss")
+  val workerGroup: EventLoopGroup = config.newEventLoopGroup(config.workerThreads.getOrElse(workerThreadNum), "netty-worker")
 
-  val httpChannel: Channel =
+  /**
+    * Принимающие каналы сервера. Их больше одного только для epoll транспорта с netty.acceptors > 1:
+    * тогда все они слушают один порт через SO_REUSEPORT, и ядро распределяет соединения между ними.
+    */
+  val httpChannels: Seq[Channel] =
     try {
       val bootstrap = new ServerBootstrap()
         .group(bossGroup, workerGroup)
-        .channel(classOf[NioServerSocketChannel])
+        .channel(config.serverChannelClass)
         .childHandler(new ServerChannelInitializer)
-        .option(ChannelOption.SO_BACKLOG, 1024.asInstanceOf[Integer]) // Длина очереди на соединение с сервером, see ServerSocket.bind()
+        .option(ChannelOption.SO_BACKLOG, config.backlog.asInstanceOf[Integer]) // Длина очереди на соединение с сервером, see ServerSocket.bind()
         .childOption(ChannelOption.SO_KEEPALIVE, java.lang.Boolean.TRUE)
-      val f: ChannelFuture = bootstrap.bind(new InetSocketAddress(address, port)).sync()
-      f.channel()
+        .childOption(ChannelOption.TCP_NODELAY, java.lang.Boolean.valueOf(config.tcpNoDelay))
+        .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, config.writeBufferWaterMark)
+        .childOption(ChannelOption.ALLOCATOR, config.allocator)
+      if (config.acceptors > 1) bootstrap.option(UnixChannelOption.SO_REUSEPORT, java.lang.Boolean.TRUE)
+      val bindAddress = new InetSocketAddress(address, port)
+      val first: ChannelFuture = bootstrap.bind(bindAddress).sync()
+      // Остальные каналы привязываем к фактическому адресу первого, на случай если port = 0
+      val rest: Seq[Channel] = (1 until config.acceptors).map(_ => bootstrap.bind(first.channel().localAddress()).sync().channel())
+      first.channel() +: rest
     } catch {
       case e: Throwable =>
         bossGroup.shutdownGracefully(0, 10, TimeUnit.SECONDS)
@@ -71,9 +93,12 @@ abstract class NettyServer(appProvider: ApplicationProvider, port: Int, address:
         throw e
     }
 
+  val httpChannel: Channel = httpChannels.head
+
   override val mainAddress: InetSocketAddress = httpChannel.localAddress().asInstanceOf[InetSocketAddress]
 
-  if (!profile.isTest) Logger.webby.warn("--------- Started " + profile.name + " server on " + mainAddress + "---------")
+  if (!profile.isTest) Logger.webby.warn("--------- Started " + profile.name + " server on " + mainAddress +
+    " (" + config.transportName + ", acceptors: " + config.acceptors + ") ---------")
 
   /**
     * Gracefully stop the server
@@ -90,8 +115,9 @@ abstract class NettyServer(appProvider: ApplicationProvider, port: Int, address:
     // Close all opened sockets
     bossGroup.shutdownGracefully(0, 10, TimeUnit.SECONDS)
     val wgFuture: concurrent.Future[_] = workerGroup.shutdownGracefully(0, 60, TimeUnit.SECONDS)
-    httpChannel.closeFuture().sync()
+    httpChannels.foreach(_.closeFuture().sync())
     wgFuture.awaitUninterruptibly()
+    actionDispatcher.foreach(_.shutdown(60, TimeUnit.SECONDS))
 
     Logger.webby.info("All channels closed. Stopping application.")
 
@@ -116,8 +142,13 @@ abstract class NettyServer(appProvider: ApplicationProvider, port: Int, address:
   //
   trait NettyServerMBean {
     def getAddress: String
+    def getTransport: String
+    def getAcceptorNum: Int
     def getWorkerThreadNum: Int
+    @Description("Число задач в очередях потоков netty плюс число action в очереди пула ActionDispatcher")
     def getPendingTaskNum: Int
+    def getActionQueueSize: Int
+    def getActionRunningNum: Int
     def stopServer(): Unit
 
     def threadInterrupt(id: Long): String
@@ -126,11 +157,16 @@ abstract class NettyServer(appProvider: ApplicationProvider, port: Int, address:
 
   object NettyServerMBeanImpl extends NettyServerMBean {
     override def getAddress: String = mainAddress.toString
-    override def getWorkerThreadNum: Int = workerGroup.executorCount()
+    override def getTransport: String = config.transportName
+    override def getAcceptorNum: Int = httpChannels.size
+    override def getWorkerThreadNum: Int = workerGroup.asInstanceOf[concurrent.MultithreadEventExecutorGroup].executorCount()
     override def getPendingTaskNum: Int = {
       import scala.collection.JavaConverters._
-      workerGroup.asScala.foldLeft(0)((sum, executor) => sum + executor.asInstanceOf[NioEventLoop].pendingTasks())
+      workerGroup.asScala.foldLeft(0)((sum, executor) => sum + executor.asInstanceOf[SingleThreadEventExecutor].pendingTasks()) +
+        getActionQueueSize
     }
+    override def getActionQueueSize: Int = actionDispatcher.fold(0)(_.queueSize)
+    override def getActionRunningNum: Int = actionDispatcher.fold(0)(_.runningNum)
     override def stopServer(): Unit = stop()
 
     override def threadInterrupt(id: Long): String = findThread(id).fold("Thread not found") {t => t.interrupt(); "ok"}
@@ -179,8 +215,10 @@ class ProdNettyServer(appProvider: ApplicationProvider, port: Int, address: Stri
   extends NettyServer(appProvider, port, address) {
 
   override def workerThreadNum = 50
+  override def serverConfig: NettyServerConfig =
+    new NettyServerConfig(appProvider.get.fold(_ => Configuration.empty, _.configuration))
   // Our upStream handler is stateless. Let's use this instance for every new connection
-  override val defaultUpStreamHandler: UpstreamHandler = new UpstreamHandler(this)
+  override val defaultUpStreamHandler: UpstreamHandler = new UpstreamHandler(this, actionDispatcher)
 }
 
 
@@ -191,7 +229,7 @@ class DevNettyServer(appProvider: ApplicationProvider, port: Int, address: Strin
     case reloadable: ReloadableAppProvider =>
       reloadable.onReloadAfterStartApp += {newApp =>
         Threads.withContextClassLoader(newApp.classloader) {
-          upStreamHandler = new UpstreamHandler(this)
+          upStreamHandler = new UpstreamHandler(this, actionDispatcher)
         }
       }
     case _ =>
@@ -199,7 +237,7 @@ class DevNettyServer(appProvider: ApplicationProvider, port: Int, address: Strin
 
   override def workerThreadNum = 4
   override def defaultUpStreamHandler: UpstreamHandler = upStreamHandler
-  protected var upStreamHandler: UpstreamHandler = new UpstreamHandler(this)
+  protected var upStreamHandler: UpstreamHandler = new UpstreamHandler(this, actionDispatcher)
 }
 
 
@@ -0,0 +1,68 @@
+package webby.core.server
+
+import io.netty.buffer.{ByteBufAllocator, PooledByteBufAllocator, UnpooledByteBufAllocator}
+import io.netty.channel.epoll.{Epoll, EpollEventLoopGroup, EpollServerSocketChannel}
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.ServerSocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.{EventLoopGroup, WriteBufferWaterMark}
+import io.netty.util.concurrent.DefaultThreadFactory
+import webby.api.Configuration
+
+/**
+  * Настройки транспорта и сокетов [[NettyServer]]. Читаются из секции netty конфигурации приложения:
+  * {{{
+  * netty {
+  *   native = true             # Использовать нативный epoll транспорт, если он доступен (Linux). Иначе NIO.
+  *   acceptors = 1             # Число принимающих каналов на одном порту через SO_REUSEPORT (только epoll)
+  *   worker-threads = 50       # Число рабочих потоков, по умолчанию задаётся сервером
+  *   backlog = 1024            # Длина очереди на соединение с сервером, see ServerSocket.bind()
+  *   tcp-nodelay = true
+  *   write-buffer-low = 32k    # WRITE_BUFFER_WATER_MARK
+  *   write-buffer-high = 64k
+  *   allocator = pooled        # pooled | unpooled
+  *
+  *   # Где выполнять action, см. ActionDispatcher:
+  *   #   inline - в потоках netty (по умолчанию),
+  *   #   pool - в отдельном масштабируемом пуле потоков,
+  *   #   virtual - в виртуальных потоках (JDK 21+), если они недоступны - в пуле.
+  *   action-dispatch = inline
+  *   action-threads-min = 8
+  *   action-threads-max = 200
+  *   action-max-pending = 1000 # При большем числе action в очереди и в работе сервер отвечает 503
+  *
+  *   metrics = true            # Собирать гистограммы времён запросов, см. RequestMetrics
+  * }
+  * }}}
+  */
+class NettyServerConfig(conf: Configuration) {
+  val native: Boolean = conf.getBoolean("netty.native", true) && Epoll.isAvailable
+  val acceptors: Int = if (native) math.max(1, conf.getInt("netty.acceptors", 1)) else 1
+  val workerThreads: Option[Int] = conf.getInt("netty.worker-threads")
+  val backlog: Int = conf.getInt("netty.backlog", 1024)
+  val tcpNoDelay: Boolean = conf.getBoolean("netty.tcp-nodelay", true)
+  val writeBufferWaterMark: WriteBufferWaterMark = new WriteBufferWaterMark(
+    conf.getBytes("netty.write-buffer-low", 32 * 1024).toInt,
+    conf.getBytes("netty.write-buffer-high", 64 * 1024).toInt)
+
+  val allocator: ByteBufAllocator = conf.getString("netty.allocator", Some(Set("pooled", "unpooled"))) match {
+    case Some("unpooled") => UnpooledByteBufAllocator.DEFAULT
+    case _ => PooledByteBufAllocator.DEFAULT
+  }
+
+  val actionDispatch: String = conf.getString("netty.action-dispatch", Some(Set("inline", "pool", "virtual"))).getOrElse("inline")
+  val actionThreadsMin: Int = conf.getInt("netty.action-threads-min", 8)
+  val actionThreadsMax: Int = math.max(actionThreadsMin, conf.getInt("netty.action-threads-max", 200))
+  val actionMaxPending: Int = conf.getInt("netty.action-max-pending", 1000)
+
+  val metrics: Boolean = conf.getBoolean("netty.metrics", true)
+
+  def transportName: String = if (native) "epoll" else "nio"
+
+  def serverChannelClass: Class[_ <: ServerSocketChannel] =
+    if (native) classOf[EpollServerSocketChannel] else classOf[NioServerSocketChannel]
+
+  def newEventLoopGroup(threads: Int, poolName: String): EventLoopGroup =
+    if (native) new EpollEventLoopGroup(threads, new DefaultThreadFactory(poolName))
+    else new NioEventLoopGroup(threads, new DefaultThreadFactory(poolName))
+}
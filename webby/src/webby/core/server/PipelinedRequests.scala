@@ -0,0 +1,50 @@
+package webby.core.server
+
+import java.util
+
+import io.netty.handler.codec.http.FullHttpRequest
+import io.netty.util.{AttributeKey, ReferenceCountUtil}
+
+/**
+  * Запросы соединения, пришедшие (HTTP pipelining), пока предыдущий запрос этого соединения
+  * выполняется в пуле [[ActionDispatcher]].
+  *
+  * autoRead = false не останавливает запросы, которые декодер уже разобрал из того же буфера, поэтому
+  * [[UpstreamHandler]] откладывает их сюда и обрабатывает по одному после завершения текущего, чтобы ответы
+  * ушли в порядке запросов.
+  *
+  * Используется только из event loop канала.
+  */
+private[server] class PipelinedRequests {
+  import PipelinedRequests._
+
+  private val queue = new util.ArrayDeque[Pending]()
+
+  /** Action этого соединения выполняется в пуле [[ActionDispatcher]] */
+  var busy: Boolean = false
+
+  def isEmpty: Boolean = queue.isEmpty
+
+  /**
+    * @param req    Запрос, для которого уже вызван retain()
+    * @param routed Обработчик, найденный [[StreamingRequestHandler]] по заголовкам запроса, либо null
+    */
+  def add(req: FullHttpRequest, routed: RoutedRequest): Unit = queue.add(new Pending(req, routed))
+
+  def poll(): Pending = queue.poll()
+
+  /** Освободить отложенные запросы, например, при закрытии соединения */
+  def releaseAll(): Unit = {
+    var p = queue.poll()
+    while (p != null) {
+      ReferenceCountUtil.release(p.req)
+      p = queue.poll()
+    }
+  }
+}
+
+private[server] object PipelinedRequests {
+  class Pending(val req: FullHttpRequest, val routed: RoutedRequest)
+
+  val Key: AttributeKey[PipelinedRequests] = AttributeKey.valueOf(classOf[PipelinedRequests], "pipelined")
+}
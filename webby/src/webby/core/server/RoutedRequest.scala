@@ -0,0 +1,25 @@
+package webby.core.server
+
+import io.netty.handler.codec.http.HttpVersion
+import io.netty.util.AttributeKey
+import webby.api.Application
+import webby.api.mvc.{Handler, RequestHeader, Result}
+import webby.commons.system.log.PageLog
+
+/**
+  * Запрос, для которого уже найден обработчик (или сразу получен результат).
+  * Создаётся по заголовкам запроса, до получения его тела.
+  */
+private[server] class RoutedRequest(val requestHeader: RequestHeader,
+                                    val handlerOrResult: Either[Result, (Handler, Application)],
+                                    val pageLog: PageLog,
+                                    val keepAlive: Boolean,
+                                    val version: HttpVersion)
+
+private[server] object RoutedRequest {
+  /**
+    * Атрибут канала, через который [[StreamingRequestHandler]] передаёт найденный обработчик
+    * обычного (не потокового) запроса в [[UpstreamHandler]], чтобы не искать маршрут дважды.
+    */
+  val Key: AttributeKey[RoutedRequest] = AttributeKey.valueOf(classOf[RoutedRequest], "routed")
+}
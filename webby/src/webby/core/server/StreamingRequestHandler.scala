@@ -0,0 +1,245 @@
+package webby.core.server
+
+import java.nio.channels.ClosedChannelException
+import java.util
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.{ChannelHandlerContext, ChannelInboundHandlerAdapter}
+import io.netty.handler.codec.http._
+import io.netty.util.ReferenceCountUtil
+import webby.api.mvc._
+import webby.api.{Application, Logger}
+import webby.commons.system.log.PageLog
+
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success, Try}
+
+/**
+  * Обработчик, стоящий в pipeline перед HttpObjectAggregator.
+  *
+  * По заголовкам запроса находит его обработчик. Если это [[StreamingAction]], то тело запроса
+  * отдаётся ему по частям, минуя агрегатор. Пока action обрабатывает очередную часть, чтение из канала
+  * приостанавливается (autoRead = false).
+  * Остальные запросы идут в агрегатор и далее в [[UpstreamHandler]] как обычно, а найденный обработчик
+  * передаётся туда через атрибут канала [[RoutedRequest.Key]]. Агрегатор может отклонить запрос (413), не передав
+  * его дальше, поэтому атрибут сбрасывается в начале каждого запроса.
+  *
+  * Сообщения, пришедшие после последней части тела потокового запроса (HTTP pipelining), откладываются
+  * до отправки ответа на него, чтобы ответы ушли в порядке запросов.
+  *
+  * Хранит состояние текущего запроса, поэтому создаётся на каждый канал.
+  */
+private[server] class StreamingRequestHandler(upstream: UpstreamHandler) extends ChannelInboundHandlerAdapter {
+  private val logger = Logger("netty")
+
+  /** Текущий потоковый запрос, ответ на который ещё не отправлен */
+  private var current: StreamingRequest = null
+  /** Сообщения следующих запросов, пришедшие, пока обрабатывается [[current]] */
+  private val deferred = new util.ArrayDeque[AnyRef]()
+
+  override def channelRead(ctx: ChannelHandlerContext, msg: AnyRef): Unit =
+    if (current != null && current.lastReceived) deferred.add(msg)
+    else read(ctx, msg)
+
+  private def read(ctx: ChannelHandlerContext, msg: AnyRef): Unit = msg match {
+    case req: HttpRequest if !req.isInstanceOf[FullHttpRequest] =>
+      ctx.channel().attr(RoutedRequest.Key).set(null)
+      val host: String = req.headers().get(HttpHeaderNames.HOST)
+      if (!req.decoderResult().isSuccess || host == null) ctx.fireChannelRead(req) // Ошибку вернёт UpstreamHandler
+      else {
+        upstream.setThreadName(req, host)
+        try {
+          val routed: RoutedRequest = upstream.route(req, host)
+          routed.handlerOrResult match {
+            case Right((action: StreamingAction, app)) =>
+              current = new StreamingRequest(ctx, routed, action, app)
+              current.start(req)
+            case _ =>
+              PageLog.remove()
+              ctx.channel().attr(RoutedRequest.Key).set(routed)
+              ctx.fireChannelRead(req)
+          }
+        } finally {
+          PageLog.remove()
+          upstream.clearThreadName()
+        }
+      }
+
+    case content: HttpContent if current != null =>
+      current.offer(content)
+
+    case _ =>
+      ctx.fireChannelRead(msg)
+  }
+
+  override def channelInactive(ctx: ChannelHandlerContext): Unit = {
+    if (current != null) current.abort(new ClosedChannelException)
+    releaseDeferred()
+    super.channelInactive(ctx)
+  }
+
+  override def exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable): Unit = {
+    if (current != null) current.abort(cause)
+    super.exceptionCaught(ctx, cause)
+  }
+
+
+  /** Потоковый запрос завершён: обработать отложенные сообщения следующих запросов */
+  private def completed(ctx: ChannelHandlerContext): Unit = {
+    current = null
+    while (current == null && !deferred.isEmpty) read(ctx, deferred.poll())
+    if (current == null || !current.lastReceived) ctx.channel().config().setAutoRead(true)
+  }
+
+  private def releaseDeferred(): Unit = {
+    while (!deferred.isEmpty) ReferenceCountUtil.release(deferred.poll())
+  }
+
+  private class StreamingRequest(ctx: ChannelHandlerContext, routed: RoutedRequest, action: StreamingAction, app: Application) {
+    private val eventLoopContext: ExecutionContext = ExecutionContext.fromExecutor(ctx.executor())
+    private val requestHeader: RequestHeader = routed.requestHeader
+
+    private var body: StreamingBody = null
+    /** Части тела, полученные из канала, но ещё не переданные в action */
+    private val queue = new util.ArrayDeque[HttpContent]()
+    /** Action ещё обрабатывает предыдущую часть */
+    private var busy = false
+    /** Ответ уже отправлен (или отправляется), оставшиеся части тела отбрасываются */
+    private var finished = false
+    private var received: Long = 0
+    /** Последняя часть тела уже получена из канала */
+    var lastReceived = false
+
+    def start(req: HttpRequest): Unit = {
+      if (HttpUtil.getContentLength(req, -1L) > action.maxContentLength) {
+        finish(Results.EntityTooLarge, keepAlive = false)
+        return
+      }
+      withPageLog {
+        try body = action.start(requestHeader)
+        catch {
+          case e: ResultException => finish(e.getResult(requestHeader), keepAlive = false)
+          case NonFatal(e) => finish(onError(e), keepAlive = false)
+        }
+      }
+      if (!finished && HttpUtil.is100ContinueExpected(req))
+        ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE, Unpooled.EMPTY_BUFFER))
+    }
+
+    def offer(content: HttpContent): Unit = {
+      if (content.isInstanceOf[LastHttpContent]) lastReceived = true
+      if (finished) {
+        release(content)
+        if (lastReceived) completed(ctx)
+      } else {
+        queue.add(content)
+        drain()
+      }
+    }
+
+    def abort(cause: Throwable): Unit = {
+      if (!finished) {
+        finished = true
+        if (body != null) {
+          try withPageLog(body.onAbort(cause))
+          catch {case NonFatal(e) => logger.warn("Error aborting streaming action", e)}
+        }
+        upstream.writePageLog(routed.pageLog)
+      }
+      releaseQueue()
+      current = null
+    }
+
+    /** Передать накопленные части тела в action, по одной, дожидаясь обработки каждой */
+    private def drain(): Unit = {
+      while (!busy && !finished && !queue.isEmpty) {
+        val content: HttpContent = queue.poll()
+        received += content.content().readableBytes()
+        if (received > action.maxContentLength) {
+          release(content)
+          failed(new IllegalStateException("Request body is too large"), Results.EntityTooLarge)
+        } else {
+          val future: Future[Unit] =
+            if (!content.content().isReadable) Future.unit
+            else {
+              try withPageLog(body.onChunk(content.content()))
+              catch {case NonFatal(e) => Future.failed(e)}
+            }
+          future.value match {
+            case Some(tryResult) => chunkProcessed(content, tryResult)
+            case None =>
+              busy = true
+              ctx.channel().config().setAutoRead(false)
+              future.onComplete {tryResult =>
+                busy = false
+                if (deferred.isEmpty) ctx.channel().config().setAutoRead(true)
+                chunkProcessed(content, tryResult)
+                drain()
+              }(eventLoopContext)
+          }
+        }
+      }
+    }
+
+    private def chunkProcessed(content: HttpContent, tryResult: Try[Unit]): Unit = {
+      val last: Boolean = content.isInstanceOf[LastHttpContent]
+      release(content)
+      if (!finished) tryResult match {
+        case Success(_) =>
+          if (last) {
+            val result: Result = withPageLog {
+              try upstream.onRequestCompletion(app, requestHeader, body.onComplete())
+              catch {
+                case e: ResultException => e.getResult(requestHeader)
+                case NonFatal(e) => onError(e)
+              }
+            }
+            // Следующие запросы обрабатываются после отправки ответа, в том числе AsyncResult
+            finish(result, routed.keepAlive, new Runnable {
+              override def run(): Unit = completed(ctx)
+            })
+          }
+        case Failure(e) =>
+          failed(e, onError(e))
+      }
+      else if (last) completed(ctx)
+    }
+
+    /** Ошибка при получении тела: уведомить action, отправить ответ и закрыть соединение (тело дочитано не до конца) */
+    private def failed(cause: Throwable, result: Result): Unit = {
+      try withPageLog(body.onAbort(cause))
+      catch {case NonFatal(e) => logger.warn("Error aborting streaming action", e)}
+      finish(result, keepAlive = false)
+      releaseQueue()
+    }
+
+    private def finish(result: Result, keepAlive: Boolean, afterWrite: Runnable = null): Unit = {
+      finished = true
+      PageLog.set(routed.pageLog)
+      try upstream.handleResult(ctx, routed, result, routed.pageLog, keepAlive, afterWrite)
+      finally {
+        upstream.writePageLog(PageLog.get())
+        PageLog.remove()
+      }
+    }
+
+    private def onError(e: Throwable): Result = {
+      logger.error("Error executing streaming action " + requestHeader.method.name() + " " +
+        requestHeader.domain + requestHeader.uri, e)
+      upstream.onActionError(app, requestHeader, e)
+    }
+
+    private def withPageLog[A](block: => A): A = {
+      PageLog.set(routed.pageLog)
+      try block
+      finally PageLog.remove()
+    }
+
+    private def release(content: HttpContent): Unit = ReferenceCountUtil.release(content)
+
+    private def releaseQueue(): Unit = {
+      while (!queue.isEmpty) release(queue.poll())
+    }
+  }
+}
@@ -4,8 +4,8 @@ import java.io.IOException
 import javax.annotation.Nullable
 
 import com.google.common.net.HttpHeaders._
-import io.netty.buffer.Unpooled
-import io.netty.channel.{ChannelFuture, ChannelFutureListener, ChannelHandlerContext, SimpleChannelInboundHandler}
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.{ChannelFuture, ChannelFutureListener, ChannelHandlerContext, DefaultFileRegion, SimpleChannelInboundHandler}
 import io.netty.handler.codec.http.HttpResponseStatus._
 import io.netty.handler.codec.http._
 import io.netty.util.CharsetUtil
@@ -15,11 +15,13 @@ import webby.api.mvc._
 import webby.api.{Application, Logger}
 import webby.commons.io.cookie.CookieEncoderV0
 import webby.commons.system.log.{LogWriterHolder, PageLog, PageLogWriterPlugin}
+import webby.commons.system.metrics.RequestMetrics
 
+import scala.util.control.NonFatal
 import scala.util.{Failure, Success}
 
 
-private[server] class UpstreamHandler(server: Server)
+private[server] class UpstreamHandler(server: Server, actionDispatcher: Option[ActionDispatcher] = None)
   extends SimpleChannelInboundHandler[FullHttpRequest] {
 
   // TODO: здесь возможны баги с этим контекстом. Например, когда запрос ушёл в async,
@@ -44,7 +46,28 @@ private[server] class UpstreamHandler(server: Server)
     if (ctx.channel().isActive) ctx.channel().close()
   }
 
+  override def channelInactive(ctx: ChannelHandlerContext): Unit = {
+    val pipelined = ctx.channel().attr(PipelinedRequests.Key).get()
+    if (pipelined != null) pipelined.releaseAll()
+    super.channelInactive(ctx)
+  }
+
   override def channelRead0(ctx: ChannelHandlerContext, req: FullHttpRequest) {
+    // Обработчик, найденный по заголовкам в StreamingRequestHandler, относится к этому запросу: забираем его сразу.
+    // Если же он остался от другого запроса, то маршрут ищется заново.
+    val routedByHeaders: RoutedRequest = ctx.channel().attr(RoutedRequest.Key).getAndSet(null) match {
+      case r if r != null && r.requestHeader.uri == req.uri && r.requestHeader.method == req.method => r
+      case _ => null
+    }
+    val pipelined = ctx.channel().attr(PipelinedRequests.Key).get()
+    if (pipelined != null && pipelined.busy) {
+      // Следующий запрос из того же буфера (HTTP pipelining), пока предыдущий выполняется в пуле.
+      // Он будет обработан в resumePipelined, после отправки ответа на предыдущий.
+      pipelined.add(req.retain(), routedByHeaders)
+    } else handleRequest(ctx, req, routedByHeaders)
+  }
+
+  private def handleRequest(ctx: ChannelHandlerContext, req: FullHttpRequest, @Nullable routedByHeaders: RoutedRequest) {
     if (!req.decoderResult().isSuccess) {
       sendError(ctx, BAD_REQUEST)
       return
@@ -56,80 +79,31 @@ private[server] class UpstreamHandler(server: Server)
       sendError(ctx, BAD_REQUEST)
       return
     }
-    Thread.currentThread().setName("netty@" + Thread.currentThread().getId + ": " +
-      req.method.name() + " " + host + req.uri)
-    val ip: String = req.headers().get(X_FORWARDED_FOR)
-
-    PageLog.set(new PageLog(ip = ip, host = host, method = req.method.name(), path = req.uri))
+    setThreadName(req, host)
+
+    // Обработчик запроса мог быть уже найден по заголовкам в StreamingRequestHandler
+    val routed: RoutedRequest = routedByHeaders match {
+      case null => route(req, host)
+      case r =>
+        PageLog.set(r.pageLog)
+        r
+    }
 
     try {
-      val keepAlive = HttpUtil.isKeepAlive(req)
-      //    val websocketableRequest = websocketable(msg)
-      val nettyVersion = req.protocolVersion
-      val reqHeaders = new Headers(req.headers())
-      //    val rCookies = getCookies(req)
-
-      class NettyRequestHeader(queryParams: UrlEncoded, uriPath: String) extends BaseRequestHeader {
-        override val requestId = requestIDs.incrementAndGet
-        override def uri = req.uri
-        override def path = uriPath
-        override def method = req.method
-        override def version = nettyVersion.text()
-        override def query = queryParams
-        override def headers = reqHeaders
-        //          lazy val remoteAddress = req.headers().get(X_FORWARDED_FOR)
-        override def remoteAddress: String = ip
-      }
-
-      // Разобрать GET параметры запроса.
-      // В случае ошибки разбора возвращаем результат Global.onBadRequest
-      var requestHeader: RequestHeader = null
-      val handlerOrResult: Either[Result, (Handler, Application)] =
-        try {
-          val uri: String = req.uri
-          var path: String = null
-          var query: String = null
-          val urlEncoded: UrlEncoded =
-            uri.indexOf('?') match {
-              case -1 =>
-                path = uri
-                EmptyUrlEncoded
-
-              case idx =>
-                path = uri.substring(0, idx)
-                query = uri.substring(idx + 1)
-                UrlEncoded.fromQuery(query)
-            }
-          requestHeader = new NettyRequestHeader(urlEncoded, path)
-          server.getHandlerFor(requestHeader)
-        } catch {
-          case e: Throwable =>
-            requestHeader = new NettyRequestHeader(EmptyUrlEncoded, StringUtils.substringBefore(req.uri, "?"))
-            server.applicationProvider.get match {
-              case Left(_) => Left(BadRequest("Bad request: " + e.getMessage))
-              case Right(a) => Left(a.global.onBadRequest(requestHeader, e.getMessage))
-            }
-        }
-
-      // attach the cleanup function to the channel context for after cleaning
-      //    ctx.setAttachment(cleanup _)
+      val requestHeader = routed.requestHeader
 
       // Обработка запроса и получение результата (выполнение Action)
-      val result: Result = handlerOrResult match {
+      val result: Result = routed.handlerOrResult match {
+        // Блокирующий action уходит в пул ActionDispatcher
+        case Right((action: Action, app)) if actionDispatcher.isDefined && !action.isInstanceOf[NonBlockingAction] =>
+          logger.trace("Dispatching this request to: " + action)
+          dispatch(ctx, routed, actionDispatcher.get, action, app, readBody(req))
+
         //execute normal action
         case Right((action: Action, app)) =>
           // Read input bytes, handle action, and return result
           logger.trace("Serving this request with: " + action)
-
-          val content = req.content()
-          val readableBytes: Int = content.readableBytes()
-          val bytes: Array[Byte] =
-            if (readableBytes > 0) {
-              val bytes = new Array[Byte](readableBytes)
-              content.readBytes(bytes)
-              bytes
-            } else Array.emptyByteArray
-          app.handleAction(action, requestHeader, bytes)
+          handleAction(app, action, requestHeader, readBody(req))
 
         case Left(e) =>
           logger.trace("No handler, got direct result: " + e)
@@ -140,97 +114,319 @@ private[server] class UpstreamHandler(server: Server)
           Results.InternalServerError("Invalid action type")
       }
 
-      // Вернуть результат
-      def handleResult(result: Result, pageLog: PageLog) {
-        result match {
-          case r: PlainResult =>
-            pageLog.setResultStatus(r.status.code())
-            val resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, r.status)
-            // Set response cookies
-            for (cookie <- r.cookies)
-              resp.headers().add(SET_COOKIE, CookieEncoderV0.encode(cookie))
-
-            // Set response headers
-            for ((name, value) <- r.headers)
-              resp.headers().add(name, value)
-
-            // Response header Connection: Keep-Alive is needed for HTTP 1.0
-            if (keepAlive && nettyVersion == HttpVersion.HTTP_1_0)
-              resp.headers().set(CONNECTION, "keep-alive")
-
-            resp.headers().set(CONTENT_LENGTH, r.body.length)
-
-            resp.content().writeBytes(r.body)
-            val writeFuture: ChannelFuture = ctx.writeAndFlush(resp)
-            if (!keepAlive) {
-              writeFuture.addListener(ChannelFutureListener.CLOSE)
-            }
-
-          //        case AsyncResult(p) => p.extend1 {
-          //          case Redeemed(v) => handle(v)
-          //          case Thrown(e) =>
-          //            server.applicationProvider.get match {
-          //              case Right(app) => handle(app.handleError(requestHeader, e))
-          //              case Left(_) => handle(Results.InternalServerError)
-          //            }
-          //        }
-
-          case ar: AsyncResult =>
-            val pageLog = PageLog.get()
-            ar.execute(pageLog).onComplete {tryResult=>
-              try {
-                tryResult match {
-                  case Success(r) =>
-                    handleResult(r, pageLog)
-                  case Failure(t) =>
-                    server.applicationProvider.get match {
-                      case Right(app) =>
-                        logger.error("Error executing async action " + requestHeader.method.name() + " " +
-                          requestHeader.domain + requestHeader.uri, t)
-                        handleResult(app.global.onError(requestHeader, t, None), pageLog)
-                      case Left(_) =>
-                        logger.error("Error executing async action", t)
-                        sendError(ctx, INTERNAL_SERVER_ERROR)
-                    }
-                }
-              } finally {
-                writePageLog(pageLog)
-              }
-            }
-            // Обнуляем PageLog потому что вызов writePageLog в блоке finally произойдёт до того
-            // как отработает действие с этим PageLog. Обнуление PageLog не позволит его преждевременно сохранить.
-            PageLog.remove()
-
-          case r =>
-            logger.error("Unsupported result type: " + r)
-            sendError(ctx, INTERNAL_SERVER_ERROR)
-        }
+      result match {
+        case null => ()
+        case ar: AsyncResult =>
+          // Ответ будет отправлен позже: следующие запросы соединения ждут его отправки
+          val pipelined = holdPipelined(ctx)
+          handleResult(ctx, routed, ar, PageLog.get(), routed.keepAlive, resumeAfterWrite(ctx, pipelined))
+        case _ => handleResult(ctx, routed, result, PageLog.get())
       }
-      handleResult(result, PageLog.get())
 
     } finally {
       writePageLog(PageLog.get())
-      Thread.currentThread().setName("netty@" + Thread.currentThread().getId + ": [empty]")
+      clearThreadName()
+    }
+  }
+
+  private def readBody(req: FullHttpRequest): Array[Byte] = {
+    val content = req.content()
+    val readableBytes: Int = content.readableBytes()
+    if (readableBytes > 0) {
+      val bytes = new Array[Byte](readableBytes)
+      content.readBytes(bytes)
+      bytes
+    } else Array.emptyByteArray
+  }
+
+  /** Выполнить action (вынесено отдельно, чтобы в тестах обойтись без [[Application]]) */
+  private[server] def handleAction(app: Application, action: Action, rh: RequestHeader, body: Array[Byte]): Result =
+    app.handleAction(action, rh, body)
+
+  /** Результат [[StreamingAction]] перед отправкой, см. [[webby.api.GlobalSettings.onRequestCompletion]] */
+  private[server] def onRequestCompletion(app: Application, rh: RequestHeader, result: Result): Result =
+    app.global.onRequestCompletion(rh, result)
+
+  /** Ответ на ошибку [[StreamingAction]] */
+  private[server] def onActionError(app: Application, rh: RequestHeader, e: Throwable): Result =
+    app.global.onError(rh, e, None)
+
+  /**
+    * Выполнить action в пуле [[ActionDispatcher]]. Результат отправляется из потока пула.
+    * Пока action выполняется и ответ не отправлен, чтение из канала приостановлено, а запросы, уже разобранные
+    * из того же буфера, откладываются в [[PipelinedRequests]], чтобы ответы на запросы одного соединения
+    * не перемешались.
+    *
+    * @return null, если action принят в пул, иначе 503 (очередь пула заполнена)
+    */
+  private def dispatch(ctx: ChannelHandlerContext, routed: RoutedRequest, dispatcher: ActionDispatcher,
+                       action: Action, app: Application, body: Array[Byte]): Result = {
+    val pageLog = PageLog.get()
+    val rh = routed.requestHeader
+    val pipelined = holdPipelined(ctx)
+    val resume = resumeAfterWrite(ctx, pipelined)
+    val accepted = dispatcher.tryExecute(rh.method.name() + " " + rh.host + rh.uri) {
+      PageLog.set(pageLog)
+      var handled = false
+      try {
+        handleResult(ctx, routed, handleAction(app, action, rh, body), pageLog, routed.keepAlive, resume)
+        handled = true
+      } finally {
+        writePageLog(PageLog.get())
+        PageLog.remove()
+        // Ответа не будет (action упал): продолжаем сразу
+        if (!handled) resume.run()
+      }
+    }
+    if (accepted) {
+      // PageLog сохранит поток пула
+      PageLog.remove()
+      null
+    } else {
+      pipelined.busy = false
+      ctx.channel().config().setAutoRead(true)
+      logger.warn("Action queue is full (" + dispatcher.maxPending + "), rejecting " + rh.method.name() + " " + rh.host + rh.uri)
+      Results.ServiceUnavailable("Server is overloaded")
+    }
+  }
+
+  /** Откладывать следующие запросы соединения, пока не отправлен ответ на текущий */
+  private def holdPipelined(ctx: ChannelHandlerContext): PipelinedRequests = {
+    val attr = ctx.channel().attr(PipelinedRequests.Key)
+    val pipelined = attr.get() match {
+      case null =>
+        val p = new PipelinedRequests
+        attr.set(p)
+        p
+      case p => p
     }
+    pipelined.busy = true
+    ctx.channel().config().setAutoRead(false)
+    pipelined
+  }
+
+  /** Вызов [[resumePipelined]] в event loop канала, для передачи в [[handleResult]] */
+  private def resumeAfterWrite(ctx: ChannelHandlerContext, pipelined: PipelinedRequests): Runnable = new Runnable {
+    override def run(): Unit = ctx.channel().eventLoop().execute(new Runnable {
+      override def run(): Unit = resumePipelined(ctx, pipelined)
+    })
+  }
 
-    /** Сохранить RequestLog в файл */
-    def writePageLog(@Nullable pageLog: PageLog): Unit = {
-      if (pageLog != null) {
-        pageLog match {
-          case null => ()
-          case rlog =>
-            if (!rlog.noLog) {
-              rlog.setFinishedTime(System.currentTimeMillis())
-              requestLogWriter.writeLn(rlog.toLogString)
-              PageLog.remove()
+  /**
+    * Вызывается в event loop канала после отправки ответа, из-за которого откладывались запросы:
+    * обработать отложенные запросы по порядку, пока ответ на очередной из них снова не станет отложенным,
+    * и возобновить чтение из канала.
+    */
+  private def resumePipelined(ctx: ChannelHandlerContext, pipelined: PipelinedRequests): Unit = {
+    pipelined.busy = false
+    while (!pipelined.busy && !pipelined.isEmpty) {
+      val next = pipelined.poll()
+      try handleRequest(ctx, next.req, next.routed)
+      catch {case NonFatal(e) => exceptionCaught(ctx, e)}
+      finally next.req.release()
+    }
+    if (!pipelined.busy) ctx.channel().config().setAutoRead(true)
+  }
+
+  private[server] def setThreadName(req: HttpRequest, host: String): Unit =
+    Thread.currentThread().setName("netty@" + Thread.currentThread().getId + ": " +
+      req.method.name() + " " + host + req.uri)
+
+  private[server] def clearThreadName(): Unit =
+    Thread.currentThread().setName("netty@" + Thread.currentThread().getId + ": [empty]")
+
+  /**
+    * Создать [[PageLog]] для запроса, разобрать GET параметры и найти обработчик запроса.
+    * Созданный PageLog остаётся установленным в текущем потоке.
+    * Работает только по заголовкам запроса, поэтому может вызываться до получения тела.
+    */
+  private[server] def route(req: HttpRequest, host: String): RoutedRequest = {
+    val ip: String = req.headers().get(X_FORWARDED_FOR)
+    val pageLog = new PageLog(ip = ip, host = host, method = req.method.name(), path = req.uri)
+    PageLog.set(pageLog)
+
+    val keepAlive = HttpUtil.isKeepAlive(req)
+    //    val websocketableRequest = websocketable(msg)
+    val reqHeaders = new Headers(req.headers())
+    //    val rCookies = getCookies(req)
+
+    // Разобрать GET параметры запроса.
+    // В случае ошибки разбора возвращаем результат Global.onBadRequest
+    var requestHeader: RequestHeader = null
+    val handlerOrResult: Either[Result, (Handler, Application)] =
+      try {
+        val uri: String = req.uri
+        var path: String = null
+        var query: String = null
+        val urlEncoded: UrlEncoded =
+          uri.indexOf('?') match {
+            case -1 =>
+              path = uri
+              EmptyUrlEncoded
+
+            case idx =>
+              path = uri.substring(0, idx)
+              query = uri.substring(idx + 1)
+              UrlEncoded.fromQuery(query)
+          }
+        requestHeader = new NettyRequestHeader(req, reqHeaders, urlEncoded, path, ip)
+        server.getHandlerFor(requestHeader)
+      } catch {
+        case e: Throwable =>
+          requestHeader = new NettyRequestHeader(req, reqHeaders, EmptyUrlEncoded, StringUtils.substringBefore(req.uri, "?"), ip)
+          server.applicationProvider.get match {
+            case Left(_) => Left(BadRequest("Bad request: " + e.getMessage))
+            case Right(a) => Left(a.global.onBadRequest(requestHeader, e.getMessage))
+          }
+      }
+
+    // attach the cleanup function to the channel context for after cleaning
+    //    ctx.setAttachment(cleanup _)
+
+    new RoutedRequest(requestHeader, handlerOrResult, pageLog, keepAlive, req.protocolVersion)
+  }
+
+  private class NettyRequestHeader(req: HttpRequest, reqHeaders: Headers, queryParams: UrlEncoded, uriPath: String, ip: String)
+    extends BaseRequestHeader {
+    override val requestId = requestIDs.incrementAndGet
+    override def uri = req.uri
+    override def path = uriPath
+    override def method = req.method
+    override def version = req.protocolVersion.text()
+    override def query = queryParams
+    override def headers = reqHeaders
+    //          lazy val remoteAddress = req.headers().get(X_FORWARDED_FOR)
+    override def remoteAddress: String = ip
+  }
+
+  /**
+    * Вернуть результат
+    *
+    * @param afterWrite Вызывается после отправки ответа (успешной или нет), в том числе для [[AsyncResult]].
+    *                   null - не вызывать.
+    */
+  private[server] def handleResult(ctx: ChannelHandlerContext, routed: RoutedRequest, result: Result, pageLog: PageLog,
+                                   keepAlive: Boolean, @Nullable afterWrite: Runnable) {
+    val requestHeader = routed.requestHeader
+    result match {
+      case r: PlainResult =>
+        pageLog.setResultStatus(r.status.code())
+        // Тело ответа отдаётся в netty без копирования: буфер результата передаётся как есть,
+        // а массив байт просто оборачивается.
+        val content: ByteBuf = r.takeContent() match {
+          case null => if (r.body.isEmpty) Unpooled.EMPTY_BUFFER else Unpooled.wrappedBuffer(r.body)
+          case buf => buf
+        }
+        val resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, r.status, content)
+        setResponseHeaders(resp, routed, r.headers, r.cookies, keepAlive)
+        resp.headers().set(CONTENT_LENGTH, content.readableBytes())
+
+        val writeFuture: ChannelFuture = ctx.writeAndFlush(resp)
+        if (!keepAlive) {
+          writeFuture.addListener(ChannelFutureListener.CLOSE)
+        }
+        onWritten(writeFuture, afterWrite)
+
+      case r: FileResult =>
+        pageLog.setResultStatus(r.status.code())
+        // Файл отдаётся через FileRegion (sendfile), его содержимое не читается в heap
+        val resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, r.status)
+        setResponseHeaders(resp, routed, r.headers, r.cookies, keepAlive)
+        resp.headers().set(CONTENT_LENGTH, r.length)
+        ctx.write(resp)
+        if (r.length > 0) ctx.write(new DefaultFileRegion(r.file.toFile, r.offset, r.length))
+        val writeFuture: ChannelFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT)
+        if (!keepAlive) {
+          writeFuture.addListener(ChannelFutureListener.CLOSE)
+        }
+        onWritten(writeFuture, afterWrite)
+
+      //        case AsyncResult(p) => p.extend1 {
+      //          case Redeemed(v) => handle(v)
+      //          case Thrown(e) =>
+      //            server.applicationProvider.get match {
+      //              case Right(app) => handle(app.handleError(requestHeader, e))
+      //              case Left(_) => handle(Results.InternalServerError)
+      //            }
+      //        }
+
+      case ar: AsyncResult =>
+        val pageLog = PageLog.get()
+        ar.execute(pageLog).onComplete {tryResult =>
+          try {
+            tryResult match {
+              case Success(r) =>
+                handleResult(ctx, routed, r, pageLog, keepAlive, afterWrite)
+              case Failure(t) =>
+                server.applicationProvider.get match {
+                  case Right(app) =>
+                    logger.error("Error executing async action " + requestHeader.method.name() + " " +
+                      requestHeader.domain + requestHeader.uri, t)
+                    handleResult(ctx, routed, app.global.onError(requestHeader, t, None), pageLog, keepAlive, afterWrite)
+                  case Left(_) =>
+                    logger.error("Error executing async action", t)
+                    onWritten(sendError(ctx, INTERNAL_SERVER_ERROR), afterWrite)
+                }
             }
+          } finally {
+            writePageLog(pageLog)
+          }
         }
-      }
+        // Обнуляем PageLog потому что вызов writePageLog в блоке finally произойдёт до того
+        // как отработает действие с этим PageLog. Обнуление PageLog не позволит его преждевременно сохранить.
+        PageLog.remove()
+
+      case r =>
+        logger.error("Unsupported result type: " + r)
+        onWritten(sendError(ctx, INTERNAL_SERVER_ERROR), afterWrite)
     }
   }
 
+  private def onWritten(writeFuture: ChannelFuture, @Nullable afterWrite: Runnable): Unit =
+    if (afterWrite != null) writeFuture.addListener(new ChannelFutureListener {
+      override def operationComplete(future: ChannelFuture): Unit = afterWrite.run()
+    })
+
+  /** Куки, заголовки результата и Connection */
+  private def setResponseHeaders(resp: HttpResponse, routed: RoutedRequest, headers: Seq[(String, String)],
+                                 cookies: Seq[io.netty.handler.codec.http.cookie.Cookie], keepAlive: Boolean): Unit = {
+    // Set response cookies
+    for (cookie <- cookies)
+      resp.headers().add(SET_COOKIE, CookieEncoderV0.encode(cookie))
+
+    // Set response headers
+    for ((name, value) <- headers)
+      resp.headers().add(name, value)
+
+    // Response header Connection: Keep-Alive is needed for HTTP 1.0
+    if (keepAlive && routed.version == HttpVersion.HTTP_1_0)
+      resp.headers().set(CONNECTION, "keep-alive")
+    else if (!keepAlive && routed.keepAlive)
+      resp.headers().set(CONNECTION, "close")
+  }
+
+  private[server] def handleResult(ctx: ChannelHandlerContext, routed: RoutedRequest, result: Result, pageLog: PageLog): Unit =
+    handleResult(ctx, routed, result, pageLog, routed.keepAlive, null)
+
+  /** Сохранить RequestLog в файл и записать время запроса в [[RequestMetrics]] */
+  private[server] def writePageLog(@Nullable pageLog: PageLog): Unit = {
+    if (pageLog != null) {
+      pageLog match {
+        case null => ()
+        case rlog =>
+          rlog.setFinishedTime(System.currentTimeMillis())
+          RequestMetrics.record(rlog)
+          if (!rlog.noLog) {
+            // Вызывается в finally: ошибка записи лога не должна ломать обработку соединения
+            try requestLogWriter.writeLine(rlog.writeTo)
+            catch {case e: Exception => logger.error("Cannot write page log", e)}
+            PageLog.remove()
+          }
+      }
+    }
+  }
 
-  private def sendError(ctx: ChannelHandlerContext, status: HttpResponseStatus) {
+  private[server] def sendError(ctx: ChannelHandlerContext, status: HttpResponseStatus): ChannelFuture = {
     val response: FullHttpResponse = new DefaultFullHttpResponse(
       HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer("Failure: " + status.toString + "\r\n", CharsetUtil.UTF_8))
     response.headers().set(CONTENT_TYPE, "text/plain; charset=UTF-8")
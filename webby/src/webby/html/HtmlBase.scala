@@ -1,5 +1,6 @@
 package webby.html
 
+import io.netty.buffer.ByteBuf
 import org.apache.commons.text.StringEscapeUtils
 import org.intellij.lang.annotations.Language
 import webby.api.mvc.{PlainResult, Results}
@@ -266,5 +267,8 @@ abstract class StdHtmlView(buf: HtmlBuffer = new HtmlBuffer) extends HtmlBase(bu
 
   override def toString: String = result
   def result: String = buf.result
+  /** Html результат в UTF-8 в пуловом буфере. См. [[HtmlBuffer#resultBuf]]. */
+  def resultBuf: ByteBuf = buf.resultBuf
   def resultOk: PlainResult = Results.Ok.html(result)
+  def resultOkBuf: PlainResult = Results.OkHtmlBuf(this)
 }
@@ -1,6 +1,7 @@
 package webby.html
 import javax.annotation.Nullable
 
+import io.netty.buffer.ByteBuf
 import webby.commons.text.SB
 
 import scala.collection.mutable.ArrayBuffer
@@ -117,4 +118,10 @@ class HtmlBuffer(capacity: Int = 1024) extends SB(capacity) {
 
   /** Вернуть html результат в виде строки. */
   def result: String = toString
+
+  /**
+    * Вернуть html результат, закодированный в UTF-8 в пуловом (обычно direct) буфере netty.
+    * Вызывающий становится владельцем буфера, и должен его освободить, либо отдать в [[webby.api.mvc.PlainResult#withContent]].
+    */
+  def resultBuf: ByteBuf = toByteBuf()
 }
@@ -1,17 +1,13 @@
 package webby.mvc.script
 
-import java.io.ByteArrayOutputStream
 import java.nio.file.{Files, Path}
-import java.util.zip.GZIPOutputStream
 
 import com.google.common.net.HttpHeaders._
 import io.netty.handler.codec.http.HttpResponseStatus
 import webby.api.App
-import webby.api.http.ContentTypes
-import webby.api.libs.MimeTypes
+import webby.api.controllers.StaticFileServer
 import webby.api.mvc._
 import webby.commons.system.log.PageLog
-import webby.commons.time.StdDates
 import webby.mvc.script.compiler.ScriptCompiler
 import webby.mvc.script.watcher.{FileExtTransform, TargetFileTransform, Watcher}
 import webby.mvc.{StdCtl, StdPaths}
@@ -45,7 +41,7 @@ class ScriptServer(val sourceDir: Path,
   }
 
   @tailrec
-  private def at(path: String, compilersLeft: List[ScriptCompiler])(implicit req: RequestHeader): PlainResult =
+  private def at(path: String, compilersLeft: List[ScriptCompiler])(implicit req: RequestHeader): Result =
     compilersLeft match {
       case Nil => serveFile(sourceDir.resolve(path), compilers.head.targetContentType)
       case compiler :: tail =>
@@ -88,21 +84,14 @@ class ScriptServer(val sourceDir: Path,
         }
     }
 
-  def serveFile(path: Path, contentType: String)(implicit req: RequestHeader): PlainResult = {
-    if (!Files.exists(path)) NotFoundRaw("File not found")
-    else {
-      // Если не найден файл для конвертации, но есть уже готовый файл, то мы просто отдаём готовый файл.
-      val lastModified = Files.getLastModifiedTime(path).toMillis
-      if (req.headers.get(IF_MODIFIED_SINCE).contains(lastModified.toString)) {
-        PlainResult(HttpResponseStatus.NOT_MODIFIED)
-      } else {
-        ScriptServer.maybeGzippedResult(Files.readAllBytes(path))
-          .withHeader(CONTENT_TYPE, contentType)
-          .withHeader(LAST_MODIFIED, StdDates.httpDateFormatMillis(lastModified))
-          .withHeader(CACHE_CONTROL, "no-cache, no-store, must-revalidate")
-      }
-    }
-  }
+  /**
+    * Отдать файл. Если не найден файл для конвертации, но есть уже готовый файл, то мы просто отдаём готовый файл.
+    * Браузер каждый раз перепроверяет файл по ETag, поэтому после перекомпиляции сразу получает новую версию.
+    */
+  def serveFile(path: Path, contentType: String)(implicit req: RequestHeader): Result =
+    files.serve(path, contentType)
+
+  private val files = new StaticFileServer(cacheControl = "no-cache, no-store, must-revalidate")
 }
 
 object ScriptServer {
@@ -122,30 +111,17 @@ object ScriptServer {
   }
 
 
-  def serveFile(path: Path): PlainResult = {
-    path match {
-      case p if Files.exists(p) =>
-        // Если не найден файл для конвертации, но есть уже готовый файл, то мы просто отдаём готовый файл.
-        PlainResult(HttpResponseStatus.OK, Files.readAllBytes(p))
-          .withHeader(CONTENT_TYPE, MimeTypes.forFileName(path.getFileName.toString).getOrElse(ContentTypes.BINARY))
-      case p => Results.NotFoundRaw(p.toAbsolutePath.toString)
-    }
-  }
+  /** Отдать готовый файл с типом содержимого по расширению, см. [[StaticFileServer]] */
+  def serveFile(path: Path)(implicit req: RequestHeader): Result =
+    StaticFileServer.default.serve(path)
 
   def simpleServer(basePath: Path): (String) => Action =
-    (path: String) => SimpleAction {_ => PageLog.noLog(); serveFile(basePath.resolve(path))}
+    (path: String) => SimpleAction {implicit req => PageLog.noLog(); StaticFileServer.default.serve(basePath.resolve(path))}
 
 
   def maybeGzippedResult(resultBytes: Array[Byte])(implicit req: RequestHeader): PlainResult = {
-    if (req.headers.get(ACCEPT_ENCODING).exists(_.contains("gzip"))) {
-      PlainResult(HttpResponseStatus.OK, {
-        val bos = new ByteArrayOutputStream()
-        val stream = new GZIPOutputStream(bos)
-        stream.write(resultBytes)
-        stream.close()
-        bos.close()
-        bos.toByteArray
-      }).withHeader(CONTENT_ENCODING, "gzip")
+    if (StaticFileServer.acceptsEncoding(req.headers.get(ACCEPT_ENCODING).orNull, "gzip")) {
+      PlainResult(HttpResponseStatus.OK, StaticFileServer.gzip(resultBytes)).withHeader(CONTENT_ENCODING, "gzip")
     } else {
       PlainResult(HttpResponseStatus.OK, resultBytes)
     }
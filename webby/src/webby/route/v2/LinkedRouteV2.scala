@@ -1,11 +1,15 @@
 package webby.route.v2
 
-import java.lang.reflect.{InvocationTargetException, Method}
+import java.lang.invoke.{LambdaConversionException, LambdaMetafactory, MethodHandle, MethodHandles, MethodType}
+import java.lang.reflect.{Method, Modifier}
 import java.util.regex.{Matcher, Pattern}
 
 import io.netty.handler.codec.http.HttpMethod
 import webby.api.mvc.Handler
-import webby.route.{DomainProvider, Var}
+import webby.commons.system.log.PageLog
+import webby.route.{DomainProvider, IntVar, LongVar, StringVar, Var}
+
+import scala.util.control.NonFatal
 
 class LinkedRouteV2(val name: String,
                     val domainProvider: DomainProvider[_],
@@ -15,32 +19,235 @@ class LinkedRouteV2(val name: String,
                     routeLinksForDomainData: (Any) => RouteHandlers,
                     val vars: Vector[Var[_]],
                     val varIndices: Vector[Int],
-                    val linkMethod: Method) {
+                    val linkMethod: Method,
+                    val segments: Option[Vector[RouteSegment]] = None) {
   require(!vars.contains(null), "All variables must be used in url. " + toString)
   require(varIndices.size == linkMethod.getParameterTypes.size, "Method argument count mismatch. Seems method with the same name already exists. You should rename it, or make it final. " + toString)
 
+  /** Число групп в регулярке маршрута (по одной на каждое вхождение переменной в путь) */
+  val groupCount: Int = pattern.matcher("").groupCount()
+
+  private val groupIndices: Array[Int] = varIndices.toArray
+
+  /**
+   * Полное имя маршрута для метрик и логов: класс обработчиков, метод и типы его параметров,
+   * например "app.SiteHandlers.userPost(String,int)". В отличие от [[name]] не совпадает у одноимённых
+   * методов разных классов обработчиков и у перегруженных методов.
+   */
+  val qualifiedName: String =
+    linkMethod.getDeclaringClass.getName + "." + name + linkMethod.getParameterTypes.map(_.getSimpleName).mkString("(", ",", ")")
+
+  /**
+   * Вызов метода-обработчика, связанный при старте: класс, созданный через [[LambdaMetafactory]],
+   * который вызывает linkMethod обычной инструкцией invokevirtual/invokeinterface, как написанный вручную код.
+   * Для маршрутов с числом переменных больше [[LinkedRouteV2.MaxDirectArgs]], для недоступных (не public)
+   * методов, а также для классов, не видимых из загрузчика webby (классы приложения в dev режиме) -
+   * [[MethodHandle]], который принимает (routeLinks, массив строк переменных).
+   */
+  private[v2] val invoker: AnyRef = LinkedRouteV2.makeInvoker(linkMethod, vars)
+
+  /** Вызов связан через [[LambdaMetafactory]], а не через [[MethodHandle]] */
+  private[v2] def isDirectInvoker: Boolean = !invoker.isInstanceOf[MethodHandle]
+
+  /** Передавать строку переменной как есть, без разбора */
+  private val rawArgs: Array[Boolean] =
+    Array.tabulate(vars.size)(i => vars(i).isInstanceOf[StringVar] && linkMethod.getParameterTypes()(i) == classOf[String])
+
   def resolve(domain: Any, m: Matcher): Option[Handler] = {
-    val routeLinks = routeLinksForDomainData(domain)
+    val groups = Array.ofDim[String](groupCount)
     var i: Int = 0
-    val ln = varIndices.size
-    val args = Array.ofDim[AnyRef](ln)
-    while (i < ln) {
-      val group: String = m.group(varIndices(i) + 1)
-      val vr: Var[_] = vars(i)
-      try {
-        args(i) = vr.fromString(group).asInstanceOf[AnyRef]
-      } catch {
-        // Ошибка при разборке маршрута (как правило, это NumberFormatException, когда число слишком длинное для int).
-        case e: Throwable => return None
-      }
+    while (i < groupCount) {
+      groups(i) = m.group(i + 1)
       i += 1
     }
+    resolve(domain, groups)
+  }
+
+  /**
+   * @param groups Значения переменных в порядке их следования в пути, как группы регулярки [[pattern]]
+   */
+  def resolve(domain: Any, groups: Array[String]): Option[Handler] = {
+    import LinkedRouteV2._
+    val routeLinks: AnyRef = routeLinksForDomainData(domain)
     try {
-      Some(linkMethod.invoke(routeLinks, args: _*).asInstanceOf[Handler])
+      val handler: AnyRef = invoker match {
+        case f: Invoker0 => f(routeLinks)
+        case f: Invoker1I => f(routeLinks, intArg(groups, 0))
+        case f: Invoker1L => f(routeLinks, longArg(groups, 0))
+        case f: Invoker1 => f(routeLinks, arg(groups, 0))
+        case f: Invoker2II => f(routeLinks, intArg(groups, 0), intArg(groups, 1))
+        case f: Invoker2IL => f(routeLinks, intArg(groups, 0), longArg(groups, 1))
+        case f: Invoker2IR => f(routeLinks, intArg(groups, 0), arg(groups, 1))
+        case f: Invoker2LI => f(routeLinks, longArg(groups, 0), intArg(groups, 1))
+        case f: Invoker2LL => f(routeLinks, longArg(groups, 0), longArg(groups, 1))
+        case f: Invoker2LR => f(routeLinks, longArg(groups, 0), arg(groups, 1))
+        case f: Invoker2RI => f(routeLinks, arg(groups, 0), intArg(groups, 1))
+        case f: Invoker2RL => f(routeLinks, arg(groups, 0), longArg(groups, 1))
+        case f: Invoker2 => f(routeLinks, arg(groups, 0), arg(groups, 1))
+        case f: Invoker3 => f(routeLinks, arg(groups, 0), arg(groups, 1), arg(groups, 2))
+        case f: Invoker4 => f(routeLinks, arg(groups, 0), arg(groups, 1), arg(groups, 2), arg(groups, 3))
+        case mh: MethodHandle =>
+          val gi = groupIndices
+          val args = Array.ofDim[String](gi.length)
+          var i: Int = 0
+          while (i < gi.length) {
+            args(i) = groups(gi(i))
+            i += 1
+          }
+          mh.invokeExact(routeLinks, args)
+      }
+      PageLog.setRouteName(qualifiedName)
+      Some(handler.asInstanceOf[Handler])
     } catch {
-      case e: InvocationTargetException => throw e.getCause
+      // Ошибка при разборке маршрута (как правило, это NumberFormatException, когда число слишком длинное для int).
+      case _: LinkedRouteV2.VarParseException => None
+    }
+  }
+
+  /**
+   * Значение i-й переменной метода в виде объекта. Для маршрутов с тремя и более переменными Int и Long
+   * передаются так упакованными, распаковывает их созданный класс.
+   */
+  private def arg(groups: Array[String], i: Int): AnyRef = {
+    val s = groups(groupIndices(i))
+    if (rawArgs(i)) s
+    else {
+      try vars(i).fromString(s).asInstanceOf[AnyRef]
+      catch {case NonFatal(_) => throw LinkedRouteV2.VarParseFailed}
     }
   }
 
+  /** Значение i-й переменной типа Int, без упаковки */
+  private def intArg(groups: Array[String], i: Int): Int =
+    try Integer.parseInt(groups(groupIndices(i)))
+    catch {case _: NumberFormatException => throw LinkedRouteV2.VarParseFailed}
+
+  /** Значение i-й переменной типа Long, без упаковки */
+  private def longArg(groups: Array[String], i: Int): Long =
+    try java.lang.Long.parseLong(groups(groupIndices(i)))
+    catch {case _: NumberFormatException => throw LinkedRouteV2.VarParseFailed}
+
   override def toString: String = method.name() + " (" + basePath + ") " + pattern + " - " + name
 }
+
+object LinkedRouteV2 {
+  /** Максимальное число переменных, для которых вызов создаётся через [[LambdaMetafactory]] */
+  final val MaxDirectArgs = 4
+
+  /**
+   * Функциональные интерфейсы вызова (routeLinks, переменные...) => Handler, по числу переменных.
+   * Для одной и двух переменных есть варианты с Int (I) и Long (L) аргументами, чтобы не упаковывать числа,
+   * остальные аргументы (R) передаются объектами.
+   */
+  trait Invoker0 {def apply(links: AnyRef): AnyRef}
+  trait Invoker1 {def apply(links: AnyRef, a0: AnyRef): AnyRef}
+  trait Invoker1I {def apply(links: AnyRef, a0: Int): AnyRef}
+  trait Invoker1L {def apply(links: AnyRef, a0: Long): AnyRef}
+  trait Invoker2 {def apply(links: AnyRef, a0: AnyRef, a1: AnyRef): AnyRef}
+  trait Invoker2II {def apply(links: AnyRef, a0: Int, a1: Int): AnyRef}
+  trait Invoker2IL {def apply(links: AnyRef, a0: Int, a1: Long): AnyRef}
+  trait Invoker2IR {def apply(links: AnyRef, a0: Int, a1: AnyRef): AnyRef}
+  trait Invoker2LI {def apply(links: AnyRef, a0: Long, a1: Int): AnyRef}
+  trait Invoker2LL {def apply(links: AnyRef, a0: Long, a1: Long): AnyRef}
+  trait Invoker2LR {def apply(links: AnyRef, a0: Long, a1: AnyRef): AnyRef}
+  trait Invoker2RI {def apply(links: AnyRef, a0: AnyRef, a1: Int): AnyRef}
+  trait Invoker2RL {def apply(links: AnyRef, a0: AnyRef, a1: Long): AnyRef}
+  trait Invoker3 {def apply(links: AnyRef, a0: AnyRef, a1: AnyRef, a2: AnyRef): AnyRef}
+  trait Invoker4 {def apply(links: AnyRef, a0: AnyRef, a1: AnyRef, a2: AnyRef, a3: AnyRef): AnyRef}
+
+  /** Интерфейс вызова по типам аргументов, например, "RI" - (AnyRef, Int) */
+  private val invokerInterfaces: Map[String, Class[_]] = Map(
+    "" -> classOf[Invoker0],
+    "R" -> classOf[Invoker1], "I" -> classOf[Invoker1I], "L" -> classOf[Invoker1L],
+    "RR" -> classOf[Invoker2], "II" -> classOf[Invoker2II], "IL" -> classOf[Invoker2IL], "IR" -> classOf[Invoker2IR],
+    "LI" -> classOf[Invoker2LI], "LL" -> classOf[Invoker2LL], "LR" -> classOf[Invoker2LR],
+    "RI" -> classOf[Invoker2RI], "RL" -> classOf[Invoker2RL],
+    "RRR" -> classOf[Invoker3], "RRRR" -> classOf[Invoker4])
+
+  /** Ошибка разбора переменной маршрута, без стека */
+  private[v2] class VarParseException extends RuntimeException("Route variable parse failed", null, false, false)
+  private val VarParseFailed = new VarParseException
+
+  private val lookup: MethodHandles.Lookup = MethodHandles.lookup()
+
+  private val varFromString: MethodHandle =
+    lookup.findVirtual(classOf[Var[_]], "fromString", MethodType.methodType(classOf[AnyRef], classOf[String]))
+
+  /**
+   * Создать вызов linkMethod: экземпляр InvokerN, либо [[makeHandleInvoker]], если linkMethod недоступен
+   * для создаваемого класса или переменных больше [[MaxDirectArgs]].
+   */
+  private[v2] def makeInvoker(linkMethod: Method, vars: Vector[Var[_]]): AnyRef = {
+    val paramTypes: Array[Class[_]] = linkMethod.getParameterTypes
+    val n = paramTypes.length
+    if (n <= MaxDirectArgs && Modifier.isPublic(linkMethod.getModifiers) && Modifier.isPublic(linkMethod.getDeclaringClass.getModifiers)
+      && isVisible(linkMethod.getDeclaringClass) && isVisible(linkMethod.getReturnType) && paramTypes.forall(isVisible)) {
+      val shape: String =
+        if (n > 2) "R" * n
+        else Array.tabulate(n) {i =>
+          val vrClass = vars(i).getClass
+          if (vrClass == classOf[IntVar] && paramTypes(i) == classOf[Int]) 'I'
+          else if (vrClass == classOf[LongVar] && paramTypes(i) == classOf[Long]) 'L'
+          else 'R'
+        }.mkString
+      val samParams: Array[Class[_]] = classOf[AnyRef] +: shape.map {
+        case 'I' => classOf[Int]
+        case 'L' => classOf[Long]
+        case _ => classOf[AnyRef]
+      }.toArray[Class[_]]
+      val instantiatedParams: Array[Class[_]] = linkMethod.getDeclaringClass +: Array.tabulate[Class[_]](n) {i =>
+        if (shape(i) == 'R') boxed(paramTypes(i)) else paramTypes(i)
+      }
+      try {
+        val site = LambdaMetafactory.metafactory(lookup, "apply", MethodType.methodType(invokerInterfaces(shape)),
+          MethodType.methodType(classOf[AnyRef], samParams), lookup.unreflect(linkMethod),
+          MethodType.methodType(boxed(linkMethod.getReturnType), instantiatedParams))
+        site.getTarget.invokeWithArguments()
+      } catch {
+        case _: LambdaConversionException | _: LinkageError => makeHandleInvoker(linkMethod, vars)
+      }
+    } else makeHandleInvoker(linkMethod, vars)
+  }
+
+  private def boxed(cls: Class[_]): Class[_] = MethodType.methodType(cls).wrap().returnType()
+
+  /**
+   * Создаваемый класс определяется в загрузчике webby и видит только его классы. Классы приложения,
+   * загруженные дочерним загрузчиком (dev режим, см. ReloadableAppProvider), вызываются через [[MethodHandle]].
+   */
+  private def isVisible(cls: Class[_]): Boolean = cls.isPrimitive || {
+    try Class.forName(cls.getName, false, classOf[LinkedRouteV2].getClassLoader) eq cls
+    catch {case _: ClassNotFoundException | _: LinkageError => false}
+  }
+
+  /**
+   * Собрать MethodHandle вида (AnyRef, Array[String])AnyRef, который разбирает строки переменных и вызывает linkMethod.
+   * Любое исключение при разборе переменной заменяется на [[VarParseException]].
+   */
+  private[v2] def makeHandleInvoker(linkMethod: Method, vars: Vector[Var[_]]): MethodHandle = {
+    linkMethod.setAccessible(true)
+    var mh: MethodHandle = lookup.unreflect(linkMethod)
+    val paramTypes: Array[Class[_]] = linkMethod.getParameterTypes
+    for (i <- paramTypes.indices) {
+      parser(vars(i), paramTypes(i)).foreach {p =>
+        val onError: MethodHandle = MethodHandles.dropArguments(
+          MethodHandles.throwException(paramTypes(i), classOf[VarParseException]).bindTo(VarParseFailed),
+          0, classOf[Throwable], classOf[String])
+        mh = MethodHandles.filterArguments(mh, i + 1, MethodHandles.catchException(p, classOf[Throwable], onError))
+      }
+    }
+    mh.asType(MethodType.methodType(classOf[AnyRef], classOf[AnyRef], Array.fill[Class[_]](paramTypes.length)(classOf[String]): _*))
+      .asSpreader(classOf[Array[String]], paramTypes.length)
+  }
+
+  /** Разборщик строки в значение переменной типа (String)paramType, либо None, если строку можно передать как есть */
+  private def parser(vr: Var[_], paramType: Class[_]): Option[MethodHandle] = {
+    val vrClass = vr.getClass
+    if (vrClass == classOf[StringVar] && paramType == classOf[String]) None
+    else if (vrClass == classOf[IntVar] && paramType == classOf[Int])
+      Some(lookup.findStatic(classOf[Integer], "parseInt", MethodType.methodType(classOf[Int], classOf[String])))
+    else if (vrClass == classOf[LongVar] && paramType == classOf[Long])
+      Some(lookup.findStatic(classOf[java.lang.Long], "parseLong", MethodType.methodType(classOf[Long], classOf[String])))
+    else Some(varFromString.bindTo(vr).asType(MethodType.methodType(paramType, classOf[String])))
+  }
+}
@@ -39,7 +39,31 @@ class RequestHandlerV2(val pc: ParsedRouteConfigV2) {
     )(breakOut)
   }
 
+  // Те же маршруты, скомпилированные в деревья по сегментам пути, см. RouteTrie
+  val compiled: Vector[(DomainProvider[_], Map[String, RouteTrie])] =
+    m.map(row => row._1 -> row._2.map(rr => rr._1 -> new RouteTrie(rr._2)))
+
   def handle(domain: String, method: HttpMethod, path: String): Option[Handler] = {
+    for (row <- compiled) {
+      row._1.fromDomain(domain) match {
+        case Some(domainObj) =>
+          val (basePath, mainPath) = basePathSplitter.split(path, learning = false, hasVar = false)
+          val result: Option[Handler] = row._2.get(basePath) match {
+            case Some(trie) => trie.handle(domainObj.asInstanceOf[AnyRef], method, mainPath)
+            case None => None
+          }
+          if (result.isDefined) return result
+        case None => None
+      }
+    }
+    None
+  }
+
+  /**
+   * Поиск маршрута перебором регулярок по порядку. Результат всегда совпадает с [[handle]],
+   * используется для проверки и сравнения скорости.
+   */
+  def handleLinear(domain: String, method: HttpMethod, path: String): Option[Handler] = {
     for (row <- m) {
       row._1.fromDomain(domain) match {
         case Some(domainObj) =>
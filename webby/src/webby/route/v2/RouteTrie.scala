@@ -0,0 +1,248 @@
+package webby.route.v2
+
+import java.util
+import java.util.regex.Matcher
+import javax.annotation.Nullable
+
+import io.netty.handler.codec.http.HttpMethod
+import webby.api.mvc.Handler
+import webby.route.{IntVar, LongVar, StringVar, Var}
+
+import scala.collection.mutable
+
+/**
+  * Сегмент пути маршрута (часть mainPath между слешами). Используется в [[RouteTrie]].
+  */
+sealed trait RouteSegment
+
+object RouteSegment {
+  /** Сегмент из постоянного текста */
+  final case class Literal(text: String) extends RouteSegment
+
+  /**
+    * Сегмент, целиком занятый одной переменной со стандартным шаблоном.
+    *
+    * @param group   Номер группы в регулярке маршрута (с нуля)
+    * @param numeric true для шаблона "-?[0-9]+" (Int, Long), false для "[^/]*" (String)
+    */
+  final case class VarSlot(group: Int, numeric: Boolean) extends RouteSegment
+
+  /**
+    * Построитель списка сегментов маршрута, получающий части пути по порядку.
+    * Если маршрут нельзя разбить на сегменты (переменная делит сегмент с текстом или другой переменной,
+    * либо у неё свой шаблон), то [[result]] вернёт None, и такой маршрут будет проверяться регуляркой.
+    */
+  class Builder {
+    private val segments = Vector.newBuilder[RouteSegment]
+    private val literal = new java.lang.StringBuilder
+    private var slot: VarSlot = null
+    private var regular = true
+
+    /** Добавить постоянную часть пути (без экранирования) */
+    def addLiteral(s: String): Unit = {
+      var i = 0
+      while (i < s.length) {
+        val c = s.charAt(i)
+        if (c == '/') closeSegment()
+        else {
+          // Эти символы RouteV2Parser.sanitize не экранирует, и в регулярке они значат не то же, что в пути
+          if (slot != null || c == '\\' || c == '{' || c == '}' || c == '|') regular = false
+          literal.append(c)
+        }
+        i += 1
+      }
+    }
+
+    /** Добавить переменную, которой соответствует группа регулярки номер `group` */
+    def addVar(group: Int, vr: Var[_], customPattern: Boolean): Unit = {
+      if (literal.length() > 0 || slot != null || customPattern) regular = false
+      else vr match {
+        case _: IntVar | _: LongVar => slot = VarSlot(group, numeric = true)
+        case _: StringVar => slot = VarSlot(group, numeric = false)
+        case _ => regular = false
+      }
+    }
+
+    private def closeSegment(): Unit = {
+      if (slot != null) segments += slot
+      else segments += Literal(literal.toString)
+      slot = null
+      literal.setLength(0)
+    }
+
+    def result: Option[Vector[RouteSegment]] = {
+      closeSegment()
+      if (regular) Some(segments.result()) else None
+    }
+  }
+}
+
+/**
+  * Скомпилированные маршруты одного basePath.
+  *
+  * Маршруты, которые разбиваются на сегменты ([[LinkedRouteV2.segments]]), собраны в дерево по сегментам пути,
+  * отдельное для каждого http метода. Поиск по дереву не использует регулярки: переменные проверяются
+  * простым разбором символов. Остальные (нерегулярные) маршруты проверяются регулярками, как раньше.
+  *
+  * Результат совпадает с линейным поиском: выбирается первый по порядку объявления маршрут,
+  * у которого совпал метод и путь.
+  *
+  * @param routes Маршруты в порядке объявления
+  */
+class RouteTrie(routes: Vector[LinkedRouteV2]) {
+  import RouteTrie._
+
+  private val methods: Array[MethodRoutes] = {
+    val byMethod = mutable.LinkedHashMap[HttpMethod, (Node, mutable.Buffer[(LinkedRouteV2, Int)])]()
+    for ((route, index) <- routes.zipWithIndex) {
+      // Методы сравниваются по ссылке, как и при линейном поиске
+      val key: HttpMethod = byMethod.keys.find(_ eq route.method).getOrElse(route.method)
+      val (root, irregular) = byMethod.getOrElseUpdate(key, (new Node, mutable.Buffer[(LinkedRouteV2, Int)]()))
+      route.segments match {
+        case Some(segments) => root.add(segments, 0, route, index)
+        case None => irregular += route -> index
+      }
+    }
+    byMethod.map {case (method, (root, irregular)) =>
+      new MethodRoutes(method, root, irregular.map(_._1).toArray, irregular.map(_._2).toArray)
+    }(collection.breakOut)
+  }
+
+  def handle(domain: Any, method: HttpMethod, mainPath: String): Option[Handler] = {
+    var mr: MethodRoutes = null
+    var i = 0
+    while (i < methods.length) {
+      if (methods(i).method eq method) mr = methods(i)
+      i += 1
+    }
+    if (mr == null) return None
+
+    val segments: Array[String] = splitSegments(mainPath)
+    val found: Node = search(mr.root, segments, 0)
+    val foundIndex: Int = if (found == null) Int.MaxValue else found.routeIndex
+
+    // Нерегулярные маршруты, объявленные раньше найденного, имеют приоритет
+    i = 0
+    while (i < mr.irregular.length && mr.irregularIndices(i) < foundIndex) {
+      val matcher: Matcher = mr.irregular(i).pattern.matcher(mainPath)
+      if (matcher.matches()) return mr.irregular(i).resolve(domain, matcher)
+      i += 1
+    }
+
+    if (found == null) None
+    else {
+      val route = found.route
+      val groups = new Array[String](route.groupCount)
+      val routeSegments = route.segments.get
+      i = 0
+      while (i < segments.length) {
+        routeSegments(i) match {
+          case RouteSegment.VarSlot(group, _) => groups(group) = segments(i)
+          case _ => ()
+        }
+        i += 1
+      }
+      route.resolve(domain, groups)
+    }
+  }
+
+  /** Найти конечный узел с маршрутом, объявленным раньше всех */
+  @Nullable private def search(node: Node, segments: Array[String], i: Int): Node = {
+    if (i == segments.length) {
+      if (node.route != null) node else null
+    } else {
+      val segment = segments(i)
+      var best: Node = null
+      if (node.literals != null) {
+        val child = node.literals.get(segment)
+        if (child != null) best = earliest(best, search(child, segments, i + 1))
+      }
+      if (node.numericChild != null && isNumeric(segment)) best = earliest(best, search(node.numericChild, segments, i + 1))
+      if (node.anyChild != null) best = earliest(best, search(node.anyChild, segments, i + 1))
+      best
+    }
+  }
+}
+
+object RouteTrie {
+
+  private final class MethodRoutes(val method: HttpMethod,
+                                   val root: Node,
+                                   val irregular: Array[LinkedRouteV2],
+                                   val irregularIndices: Array[Int])
+
+  private final class Node {
+    var literals: util.HashMap[String, Node] = null
+    var numericChild: Node = null
+    var anyChild: Node = null
+    /** Маршрут, заканчивающийся в этом узле. Если таких несколько, то хранится объявленный первым. */
+    var route: LinkedRouteV2 = null
+    var routeIndex: Int = Int.MaxValue
+
+    def add(segments: Vector[RouteSegment], i: Int, route: LinkedRouteV2, index: Int): Unit = {
+      if (i == segments.length) {
+        if (this.route == null) {
+          this.route = route
+          routeIndex = index
+        }
+      } else {
+        val child: Node = segments(i) match {
+          case RouteSegment.Literal(text) =>
+            if (literals == null) literals = new util.HashMap[String, Node]()
+            var c = literals.get(text)
+            if (c == null) {c = new Node; literals.put(text, c)}
+            c
+          case RouteSegment.VarSlot(_, true) =>
+            if (numericChild == null) numericChild = new Node
+            numericChild
+          case RouteSegment.VarSlot(_, false) =>
+            if (anyChild == null) anyChild = new Node
+            anyChild
+        }
+        child.add(segments, i + 1, route, index)
+      }
+    }
+  }
+
+  @Nullable private def earliest(a: Node, b: Node): Node =
+    if (a == null) b
+    else if (b == null) a
+    else if (b.routeIndex < a.routeIndex) b
+    else a
+
+  /** Проверка сегмента на шаблон "-?[0-9]+" */
+  private[v2] def isNumeric(s: String): Boolean = {
+    val start = if (s.length > 0 && s.charAt(0) == '-') 1 else 0
+    if (start == s.length) false
+    else {
+      var i = start
+      while (i < s.length) {
+        val c = s.charAt(i)
+        if (c < '0' || c > '9') return false
+        i += 1
+      }
+      true
+    }
+  }
+
+  /** Разбить путь по слешам. Пустые сегменты сохраняются: "" => [""], "a/" => ["a", ""]. */
+  private[v2] def splitSegments(path: String): Array[String] = {
+    var count = 1
+    var i = path.indexOf('/')
+    while (i != -1) {
+      count += 1
+      i = path.indexOf('/', i + 1)
+    }
+    val result = new Array[String](count)
+    var start = 0
+    var n = 0
+    while (n < count - 1) {
+      val end = path.indexOf('/', start)
+      result(n) = path.substring(start, end)
+      start = end + 1
+      n += 1
+    }
+    result(n) = path.substring(start)
+    result
+  }
+}
@@ -56,6 +56,8 @@ object RouteV2Parser {
         basePathSplitter.split(firstPart, learning = true, hasVar = route.args.nonEmpty)
       }
       sb append sanitize(firstPartEnding)
+      val segments = new RouteSegment.Builder
+      segments.addLiteral(firstPartEnding)
       var i = 0
       while (pi.hasNext) {
         val (part, pattern) = splitRegexpPart(pi.next())
@@ -71,9 +73,12 @@ object RouteV2Parser {
         sb append vr.pattern
         sb append ')'
         sb append sanitize(part)
+        segments.addVar(i, vr, customPattern = pattern.isDefined)
+        segments.addLiteral(part)
         i += 1
       }
       val path: String = sb.toString
+      val routeSegments: Option[Vector[RouteSegment]] = segments.result
 
       for (method <- route.methods) {
         if (method == null) sys.error("Empty method")
@@ -86,7 +91,8 @@ object RouteV2Parser {
           routeLinksForDomainData = rp.routeHandlersForDomainData.asInstanceOf[(Any) => RouteHandlers],
           vars = varArray.toVector,
           varIndices = varIndices.toVector,
-          linkMethod = linkMethod)
+          linkMethod = linkMethod,
+          segments = routeSegments)
       }
     }
     ret
@@ -0,0 +1,130 @@
+package webby.api.controllers
+
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Path}
+import java.util.zip.GZIPInputStream
+
+import com.google.common.io.ByteStreams
+import com.google.common.net.HttpHeaders._
+import io.netty.handler.codec.http.{DefaultHttpHeaders, HttpResponseStatus}
+import org.scalatest.{BeforeAndAfterAll, FunSuite, Matchers}
+import webby.api.mvc.{FileResult, Headers, PlainResult, Result}
+
+class StaticFileServerTest extends FunSuite with Matchers with BeforeAndAfterAll {
+  private val dir: Path = Files.createTempDirectory("static-test")
+  private val server = new StaticFileServer(hotFileMaxSize = 1024)
+
+  private val small: Path = write("small.js", ("var x = 1;\n" * 50).getBytes)
+  private val large: Path = write("large.bin", Array.tabulate[Byte](10000)(_.toByte))
+
+  override protected def afterAll(): Unit = {
+    Files.list(dir).toArray.foreach(p => Files.delete(p.asInstanceOf[Path]))
+    Files.delete(dir)
+  }
+
+  test("small files are served from memory with validators") {
+    val r = plain(serve(small))
+    r.status shouldEqual HttpResponseStatus.OK
+    r.body shouldEqual Files.readAllBytes(small)
+    header(r, CONTENT_TYPE) should include("javascript")
+    header(r, ACCEPT_RANGES) shouldEqual "bytes"
+    header(r, VARY) shouldEqual ACCEPT_ENCODING
+    val etag = header(r, ETAG)
+    plain(serve(small, IF_NONE_MATCH -> etag)).status shouldEqual HttpResponseStatus.NOT_MODIFIED
+    plain(serve(small, IF_NONE_MATCH -> "\"other\"")).status shouldEqual HttpResponseStatus.OK
+    plain(serve(small, IF_MODIFIED_SINCE -> header(r, LAST_MODIFIED))).status shouldEqual HttpResponseStatus.NOT_MODIFIED
+  }
+
+  test("large files are served as file regions") {
+    val r = serve(large).asInstanceOf[FileResult]
+    r.status shouldEqual HttpResponseStatus.OK
+    (r.offset, r.length) shouldEqual ((0L, 10000L))
+    plain(serve(server, dir.resolve("missing.txt"))).status shouldEqual HttpResponseStatus.NOT_FOUND
+    plain(serve(server, dir)).status shouldEqual HttpResponseStatus.NOT_FOUND
+  }
+
+  test("compressible files are gzipped once, precompressed variants are preferred") {
+    val r = plain(serve(small, ACCEPT_ENCODING -> "gzip, deflate"))
+    header(r, CONTENT_ENCODING) shouldEqual "gzip"
+    header(r, ETAG) should endWith("-gzip\"")
+    ByteStreams.toByteArray(new GZIPInputStream(new java.io.ByteArrayInputStream(r.body))) shouldEqual Files.readAllBytes(small)
+    plain(serve(small, ACCEPT_ENCODING -> "gzip;q=0")).headers.toMap.get(CONTENT_ENCODING) shouldEqual None
+    plain(serve(small, ACCEPT_ENCODING -> "gzip", IF_NONE_MATCH -> header(r, ETAG))).status shouldEqual HttpResponseStatus.NOT_MODIFIED
+
+    val css = write("style.css", ("body {color: red}\n" * 100).getBytes)
+    write("style.css.br", "brotli bytes".getBytes)
+    Files.setLastModifiedTime(dir.resolve("style.css.br"), FileTime.fromMillis(Files.getLastModifiedTime(css).toMillis + 1000))
+    val br = plain(serve(css, ACCEPT_ENCODING -> "gzip, br"))
+    header(br, CONTENT_ENCODING) shouldEqual "br"
+    new String(br.body) shouldEqual "brotli bytes"
+    header(plain(serve(css, ACCEPT_ENCODING -> "gzip")), CONTENT_ENCODING) shouldEqual "gzip"
+  }
+
+  test("not modified response does not compress the file") {
+    val p = write("conditional.js", ("var a = 1;\n" * 50).getBytes)
+    val mtime = Files.getLastModifiedTime(p)
+    val r = plain(serve(p, ACCEPT_ENCODING -> "gzip", IF_MODIFIED_SINCE -> "Fri, 01 Jan 2100 00:00:00 GMT"))
+    r.status shouldEqual HttpResponseStatus.NOT_MODIFIED
+    header(r, ETAG) should endWith("-gzip\"")
+
+    // Тот же размер и время изменения: если бы 304 сжал файл, отдался бы старый сжатый вариант
+    val replaced = ("var b = 2;\n" * 50).getBytes
+    Files.write(p, replaced)
+    Files.setLastModifiedTime(p, mtime)
+    val gz = plain(serve(p, ACCEPT_ENCODING -> "gzip"))
+    ByteStreams.toByteArray(new GZIPInputStream(new java.io.ByteArrayInputStream(gz.body))) shouldEqual replaced
+  }
+
+  test("byte ranges") {
+    val r = serve(large, RANGE -> "bytes=100-199").asInstanceOf[FileResult]
+    r.status shouldEqual HttpResponseStatus.PARTIAL_CONTENT
+    (r.offset, r.length) shouldEqual ((100L, 100L))
+    r.headers.toMap.apply(CONTENT_RANGE) shouldEqual "bytes 100-199/10000"
+
+    val suffix = serve(large, RANGE -> "bytes=-10").asInstanceOf[FileResult]
+    (suffix.offset, suffix.length) shouldEqual ((9990L, 10L))
+
+    val smallRange = plain(serve(small, RANGE -> "bytes=4-"))
+    smallRange.status shouldEqual HttpResponseStatus.PARTIAL_CONTENT
+    smallRange.body shouldEqual Files.readAllBytes(small).drop(4)
+
+    plain(serve(large, RANGE -> "bytes=20000-")).status shouldEqual HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE
+    serve(large, RANGE -> "bytes=0-1,5-6").asInstanceOf[FileResult].status shouldEqual HttpResponseStatus.OK
+    serve(large, RANGE -> "bytes=0-1", IF_RANGE -> "\"stale\"").asInstanceOf[FileResult].status shouldEqual HttpResponseStatus.OK
+    val etag = serve(large).asInstanceOf[FileResult].headers.toMap.apply(ETAG)
+    serve(large, RANGE -> "bytes=0-1", IF_RANGE -> etag).asInstanceOf[FileResult].status shouldEqual HttpResponseStatus.PARTIAL_CONTENT
+  }
+
+  test("changed file gets a new etag") {
+    val p = write("changing.txt", "one".getBytes)
+    val etag1 = header(plain(serve(p)), ETAG)
+    Files.write(p, "two!".getBytes)
+    val r = plain(serve(p))
+    new String(r.body) shouldEqual "two!"
+    header(r, ETAG) should not equal etag1
+  }
+
+  test("content type passed by the caller is not shared between calls") {
+    val p = write("typed.dat", ("line\n" * 50).getBytes)
+    def typed(contentType: String): PlainResult = plain(server.serve(p, contentType, new Headers(new DefaultHttpHeaders())))
+    header(typed("text/plain"), CONTENT_TYPE) shouldEqual "text/plain"
+    val binary = typed(null)
+    header(binary, CONTENT_TYPE) shouldEqual "application/octet-stream"
+    binary.headers.toMap.get(VARY) shouldEqual None
+    header(typed("text/css"), CONTENT_TYPE) shouldEqual "text/css"
+  }
+
+  private def write(name: String, bytes: Array[Byte]): Path = Files.write(dir.resolve(name), bytes)
+
+  private def serve(path: Path, headers: (String, String)*): Result = serve(server, path, headers: _*)
+
+  private def serve(server: StaticFileServer, path: Path, headers: (String, String)*): Result = {
+    val h = new DefaultHttpHeaders()
+    for ((name, value) <- headers) h.add(name, value)
+    server.serve(path, null, new Headers(h))
+  }
+
+  private def plain(r: Result): PlainResult = r.asInstanceOf[PlainResult]
+
+  private def header(r: PlainResult, name: String): String = r.headers.toMap.apply(name)
+}
@@ -0,0 +1,34 @@
+package webby.api.http
+
+import org.scalatest.{FunSuite, Matchers}
+
+class AcceptHeaderTest extends FunSuite with Matchers {
+
+  test("parse sorts by q-value and specificity") {
+    AcceptHeader.parse("text/*;q=0.3, text/html;q=0.7, text/html;level=1, text/html;level=2;q=0.4, */*;q=0.5") shouldEqual Seq(
+      MediaRange("text/html;level=1"),
+      MediaRange("text/html"),
+      MediaRange("*/*"),
+      MediaRange("text/html;level=2"),
+      MediaRange("text/*"))
+    AcceptHeader.parse(null) shouldEqual Nil
+    AcceptHeader.parse(" , text/plain ;q=0.5,") shouldEqual Seq(MediaRange("text/plain"))
+  }
+
+  test("accepts checks the header without parsing it") {
+    val header = "text/html, application/xhtml+xml, image/*;q=0.9, bad"
+    AcceptHeader.accepts(header, "text/html") shouldBe true
+    AcceptHeader.accepts(header, "image/png") shouldBe true
+    AcceptHeader.accepts(header, "application/json") shouldBe false
+    AcceptHeader.accepts(header, "text") shouldBe false
+    AcceptHeader.accepts("*/*;q=0.1", "application/json") shouldBe true
+    AcceptHeader.accepts(null, "application/json") shouldBe true
+    AcceptHeader.accepts("", "application/json") shouldBe true
+  }
+
+  test("accepts agrees with parsed media ranges") {
+    val header = "text/*;q=0.3, text/html;level=1, application/json;q=0.5"
+    for (mime <- Seq("text/html", "text/plain", "application/json", "application/xml", "image/png"))
+      AcceptHeader.accepts(header, mime) shouldEqual AcceptHeader.parse(header).exists(_.accepts(mime))
+  }
+}
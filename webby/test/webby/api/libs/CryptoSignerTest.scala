@@ -26,6 +26,38 @@ class CryptoSignerTest extends WordSpec with Matchers {
 
       signer.verifyComposedLong(composed) shouldEqual Some(message)
     }
+
+    "sign strings exactly as their UTF-8 bytes" in {
+      val signer = new CryptoSigner("0123456789abcdef".getBytes)
+      for (text <- Seq("", "ascii", "кириллица", "emoji \uD83D\uDE00", "lone \uD800 surrogate")) {
+        signer.sign(text: CharSequence) shouldEqual signer.sign(text.getBytes("UTF-8"))
+        signer.sign(java.nio.ByteBuffer.wrap(text.getBytes("UTF-8"))) shouldEqual signer.sign(text.getBytes("UTF-8"))
+      }
+    }
+
+    "reject tampered composed messages" in {
+      val signer = new CryptoSigner("0123456789abcdef".getBytes)
+      val composed = signer.signComposeLong(12345L)
+      signer.verifyComposedLong(composed.dropRight(1) + "z") shouldEqual None
+      signer.verifyComposedLong("0" + composed.tail) shouldEqual None
+      signer.verifyComposedLong(composed.take(40)) shouldEqual None
+      signer.verifyComposed(signer.signCompose("not a number")) shouldEqual Some("not a number")
+      signer.verifyComposedLong(signer.signCompose("not a number")) shouldEqual None
+    }
+
+    "sign and verify compact binary tokens" in {
+      val signer = new CryptoSigner("0123456789abcdef".getBytes)
+      for (message <- Seq(0L, -1L, Long.MinValue, 0x12345678abcdef99L)) {
+        val token = signer.signTokenLong(message)
+        token.length shouldEqual 40
+        signer.verifyTokenLong(token) shouldEqual Some(message)
+      }
+      val token = signer.signTokenLong(42L)
+      signer.verifyTokenLong(token.updated(5, if (token(5) == 'A') 'B' else 'A')) shouldEqual None
+      signer.verifyTokenLong("short") shouldEqual None
+      signer.verifyTokenLong("привет!!") shouldEqual None
+      new CryptoSigner("another key".getBytes).verifyTokenLong(token) shouldEqual None
+    }
   }
 
 }
@@ -0,0 +1,43 @@
+package webby.api.mvc
+
+import java.util.concurrent.Executors
+
+import org.scalatest.{FunSuite, Matchers}
+import webby.commons.system.log.PageLog
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, ExecutionContext, Future, Promise}
+
+class AsyncResultTest extends FunSuite with Matchers {
+  private implicit val ec: ExecutionContext = ExecutionContext.fromExecutor(Executors.newFixedThreadPool(2))
+
+  private def await(f: Future[Result]): PlainResult = Await.result(f, 5.seconds).asInstanceOf[PlainResult]
+
+  test("future result applies finalizers when completed") {
+    val pageLog = new PageLog("127.0.0.1", "host", "GET", "/")
+    val response = Promise[Result]()
+    var bodyPageLog: PageLog = null
+    val ar = AsyncResult.future(null) {
+      bodyPageLog = PageLog.get()
+      PageLog.addEsQuery(3)
+      response.future
+    }.withHeader("X-Test", "1")
+
+    val f = ar.execute(pageLog)
+    Thread.sleep(50)
+    f.isCompleted shouldBe false
+    response.success(Results.Ok.text("done"))
+
+    val result = await(f)
+    result.headers should contain("X-Test" -> "1")
+    bodyPageLog shouldBe theSameInstanceAs(pageLog)
+    pageLog.esQueryCount shouldEqual 1
+  }
+
+  test("ResultException from body becomes result") {
+    val ar = AsyncResult.future(null) {
+      throw ResultException(Results.NotFoundRaw)
+    }
+    await(ar.execute(null)).status.code() shouldEqual 404
+  }
+}
@@ -0,0 +1,39 @@
+package webby.api.mvc
+
+import org.scalatest.{FunSuite, Matchers}
+
+class CookiesTest extends FunSuite with Matchers {
+
+  private val header = "_ga=GA1.2.3; sess=abc%20def ; _ym_uid=1\t;quoted=\"q v\"; empty=; dup=first; dup=second; " +
+    "plus=a+b; bad=%zz; lone=\"x; noValue; last=end"
+
+  test("single cookie lookup matches full parsing") {
+    val cookies = new CookiesImpl(header)
+    val names = Seq("_ga", "sess", "_ym_uid", "quoted", "empty", "dup", "plus", "bad", "lone", "noValue", "last", "missing", "ses")
+    for (name <- names) {
+      withClue(name) {
+        cookies.get(name) shouldEqual new CookiesImpl(header).asMap.get(name)
+        cookies.contains(name) shouldEqual new CookiesImpl(header).asMap.contains(name)
+      }
+    }
+  }
+
+  test("values are decoded on demand") {
+    val cookies = new CookiesImpl(header)
+    cookies.get("sess") shouldEqual Some("abc def ")
+    cookies.get("quoted") shouldEqual Some("q v")
+    cookies.get("dup") shouldEqual Some("first")
+    cookies.get("plus") shouldEqual Some("a b")
+    cookies.get("bad") shouldEqual None
+    cookies.contains("bad") shouldBe false
+    cookies("last") shouldEqual "end"
+  }
+
+  test("content type parsing") {
+    val ct = ContentTypePair.parse("Multipart/Form-Data; charset=\"UTF-8\"; boundary=xyz")
+    ct.name shouldEqual "multipart/form-data"
+    ct.charset shouldEqual "UTF-8"
+    ContentTypePair.parse("application/json").charset shouldEqual ContentTypePair.defaultCharset
+    ContentTypePair.parse(null) shouldBe ContentTypePair.empty
+  }
+}
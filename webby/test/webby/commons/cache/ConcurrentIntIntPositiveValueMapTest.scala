@@ -0,0 +1,47 @@
+package webby.commons.cache
+import org.scalatest.{FunSuite, Matchers}
+
+class ConcurrentIntIntPositiveValueMapTest extends FunSuite with Matchers {
+  test("Basic functionality") {
+    val cache = new ConcurrentIntIntPositiveValueMap(100, shardCount = 5)
+    cache.shardCount shouldEqual 8
+    cache.get(1, 5) shouldEqual 5
+    the[IllegalArgumentException] thrownBy cache.put(10, -2) getMessage() should include("Value cannot be negative")
+    for (i <- 0 until 100) cache.put(i, i * 2) shouldEqual 0
+    cache.size shouldEqual 100
+    cache.get(50, 0) shouldEqual 100
+    cache.putOrAdd(50, 0, 1) shouldEqual 101
+    cache.putIfAbsent(50, 0) shouldEqual false
+    cache.remove(50) shouldEqual 101
+    cache.containsKey(50) shouldEqual false
+    cache.size shouldEqual 99
+    cache.clear()
+    cache.size shouldEqual 0
+  }
+
+  test("Rotate by shards") {
+    val cache = new ConcurrentIntIntPositiveValueMap(100, shardCount = 4)
+    for (i <- 0 until 100) cache.put(i, i)
+    cache.rotate()
+    cache.size shouldEqual 100
+    for (i <- 0 until 10) cache.get(i, 0)
+    // Полный круг ротации по одному шарду равносилен одной общей ротации
+    for (_ <- 0 until cache.shardCount) cache.rotateNextShard()
+    cache.size shouldEqual 10
+    (0 until 10).forall(cache.containsKey) shouldEqual true
+  }
+
+  test("Concurrent counters") {
+    val cache = new ConcurrentIntIntPositiveValueMap(1000)
+    val threads = for (_ <- 1 to 4) yield new Thread(new Runnable {
+      override def run(): Unit = for (_ <- 0 until 100; key <- 0 until 1000) {
+        cache.putOrAdd(key, 1, 1)
+        if (key == 0) cache.rotateNextShard()
+      }
+    })
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    cache.size shouldEqual 1000
+    (0 until 1000).map(cache.get(_, 0)).toSet shouldEqual Set(400)
+  }
+}
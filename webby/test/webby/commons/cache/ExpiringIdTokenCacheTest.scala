@@ -0,0 +1,100 @@
+package webby.commons.cache
+
+import org.scalatest.{FunSuite, Matchers}
+
+class ExpiringIdTokenCacheTest extends FunSuite with Matchers {
+  case class Sess(id: Int, token: Long, endTime: Long)
+
+  private def newCache(maxSize: Int = 100) =
+    new ExpiringIdTokenCache[Sess](maxSize, missingTokenTtlMillis = 1000, maxMissingTokens = 3)(_.id, _.token, _.endTime)
+
+  test("lookup by id and token with expiry") {
+    val cache = newCache()
+    cache.put(0, Sess(1, 111L, 500))
+    cache.getById(100, 1) shouldEqual Sess(1, 111L, 500)
+    cache.getByToken(100, 111L) shouldEqual Sess(1, 111L, 500)
+    cache.getByToken(500, 111L) shouldEqual null
+
+    // Новая версия записи заменяет старый токен
+    cache.put(100, Sess(1, 222L, 1000))
+    cache.getByToken(200, 111L) shouldEqual null
+    cache.getByToken(200, 222L) shouldEqual Sess(1, 222L, 1000)
+
+    cache.put(2000, Sess(1, 222L, 1500))
+    cache.size shouldEqual 0
+
+    cache.put(0, Sess(2, 333L, 1000))
+    cache.removeById(2)
+    cache.getByToken(0, 333L) shouldEqual null
+  }
+
+  test("removing a record keeps its token if it was reassigned to another id") {
+    val cache = newCache()
+    cache.put(0, Sess(1, 111L, 1000))
+    cache.put(0, Sess(2, 111L, 1000))
+    cache.removeById(1)
+    cache.getByToken(0, 111L) shouldEqual Sess(2, 111L, 1000)
+    cache.getById(0, 2) shouldEqual Sess(2, 111L, 1000)
+
+    // То же при замене записи новой версией с другим токеном
+    cache.put(0, Sess(3, 222L, 1000))
+    cache.put(0, Sess(4, 222L, 1000))
+    cache.put(0, Sess(3, 333L, 1000))
+    cache.getByToken(0, 222L) shouldEqual Sess(4, 222L, 1000)
+  }
+
+  test("bounded size evicts expired, then soonest to expire") {
+    val cache = newCache(maxSize = 10)
+    for (i <- 1 to 10) cache.put(0, Sess(i, i, if (i <= 3) 50 else 1000 + i))
+    cache.put(100, Sess(11, 11, 2000))
+    cache.size shouldEqual 8
+    cache.getById(100, 4) shouldEqual Sess(4, 4, 1004)
+
+    for (i <- 12 to 13) cache.put(100, Sess(i, i, 2000))
+    cache.size shouldEqual 10
+    cache.put(100, Sess(14, 14, 2000))
+    cache.size shouldEqual 10
+    cache.getById(100, 4) shouldEqual null
+    cache.getById(100, 14) shouldEqual Sess(14, 14, 2000)
+  }
+
+  test("eviction follows expiry order, not insertion order") {
+    val cache = newCache(maxSize = 20)
+    val ids = scala.util.Random.shuffle((1 to 20).toVector)
+    for (i <- ids) cache.put(0, Sess(i, i, 1000 + i))
+    cache.put(0, Sess(21, 21, 5000))
+    cache.size shouldEqual 19
+    cache.getById(0, 1) shouldEqual null
+    cache.getById(0, 2) shouldEqual null
+    cache.getById(0, 3) shouldEqual Sess(3, 3, 1003)
+
+    // Замена записи переставляет её в порядке окончания
+    cache.put(0, Sess(3, 3, 6000))
+    cache.put(0, Sess(22, 22, 5000))
+    cache.put(0, Sess(23, 23, 5000))
+    cache.getById(0, 3) shouldEqual Sess(3, 3, 6000)
+    cache.getById(0, 4) shouldEqual null
+    cache.getById(0, 5) shouldEqual null
+  }
+
+  test("missing tokens") {
+    val cache = newCache()
+    cache.putMissingToken(0, 5L)
+    cache.isMissingToken(500, 5L) shouldEqual true
+    cache.isMissingToken(1000, 5L) shouldEqual false
+
+    cache.putMissingToken(0, 6L)
+    cache.put(0, Sess(6, 6L, 1000))
+    cache.isMissingToken(10, 6L) shouldEqual false
+
+    cache.putMissingToken(0, 7L)
+    cache.putMissingToken(0, 8L)
+    cache.putMissingToken(1500, 9L) // 5, 7, 8 истекли и удаляются
+    cache.missingTokenCount shouldEqual 1
+    cache.putMissingToken(1500, 10L)
+    cache.putMissingToken(1500, 11L)
+    cache.putMissingToken(1500, 12L) // все живые - список очищается
+    cache.missingTokenCount shouldEqual 1
+    cache.isMissingToken(1500, 12L) shouldEqual true
+  }
+}
@@ -0,0 +1,148 @@
+package webby.commons.cache
+
+import java.util.concurrent.CountDownLatch
+
+import org.scalatest.{FunSuite, Matchers}
+
+class IndexedRecordStoreTest extends FunSuite with Matchers {
+  case class Rec(id: Int, group: String, tag: String)
+
+  test("records and indexes stay in sync") {
+    val store = new IndexedRecordStore[Rec]()
+    val byGroup = store.index(_.group)
+    val byTag = store.index(_.tag)
+
+    store.put(1, Rec(1, "a", "x")) // не загружено - игнорируется
+    store.isLoaded shouldEqual false
+    store.reload {add =>
+      add(1, Rec(1, "a", "x"))
+      add(2, Rec(2, "a", null))
+      add(3, Rec(3, "b", "x"))
+    } shouldEqual Array.emptyIntArray
+
+    an[IllegalStateException] should be thrownBy store.index(_.id)
+
+    store.size shouldEqual 3
+    byGroup.ids("a") shouldEqual Array(1, 2)
+    byTag.records("x").map(_.id) shouldEqual Vector(1, 3)
+    byTag.keyCount shouldEqual 1
+
+    store.put(2, Rec(2, "b", "y"))
+    store.remove(3)
+    byGroup.ids("a") shouldEqual Array(1)
+    byGroup.ids("b") shouldEqual Array(2)
+    byTag.records("x").map(_.id) shouldEqual Vector(1)
+    byTag.first("y") shouldEqual Some(Rec(2, "b", "y"))
+    byGroup.contains("c") shouldEqual false
+    store.values.map(_.id) shouldEqual Vector(1, 2)
+
+    store.clear()
+    store.get(1) shouldEqual None
+    byGroup.ids("a") shouldEqual Array.emptyIntArray
+  }
+
+  test("readers see the old snapshot during reload") {
+    val store = new IndexedRecordStore[Rec]()
+    val byGroup = store.index(_.group)
+    store.reload(add => add(1, Rec(1, "a", "")))
+
+    val filling = new CountDownLatch(1)
+    val proceed = new CountDownLatch(1)
+    var changed: Array[Int] = null
+    val reloader = new Thread(new Runnable {
+      override def run(): Unit = changed = store.reload {add =>
+        add(1, Rec(1, "b", ""))
+        add(2, Rec(2, "b", ""))
+        filling.countDown()
+        proceed.await()
+      }
+    })
+    reloader.start()
+    filling.await()
+
+    store.size shouldEqual 1
+    byGroup.ids("a") shouldEqual Array(1)
+    store.put(5, Rec(5, "a", ""))
+    store.get(5) shouldEqual Some(Rec(5, "a", ""))
+
+    proceed.countDown()
+    reloader.join()
+    changed shouldEqual Array(5)
+    store.ids shouldEqual Array(1, 2)
+    byGroup.ids("b") shouldEqual Array(1, 2)
+    byGroup.ids("a") shouldEqual Array.emptyIntArray
+  }
+
+  test("sorted ids and values follow changes") {
+    val store = new IndexedRecordStore[Rec]()
+    store.reload {add =>
+      add(3, Rec(3, "a", ""))
+      add(1, Rec(1, "a", ""))
+    }
+    store.ids shouldEqual Array(1, 3)
+    store.ids(0) = 100 // Возвращается копия
+    store.ids shouldEqual Array(1, 3)
+    store.values should be theSameInstanceAs store.values
+
+    store.put(2, Rec(2, "b", ""))
+    store.ids shouldEqual Array(1, 2, 3)
+    store.put(2, Rec(2, "c", ""))
+    store.values.map(_.group) shouldEqual Vector("a", "c", "a")
+    store.remove(1)
+    store.ids shouldEqual Array(2, 3)
+    store.values.map(_.id) shouldEqual Vector(2, 3)
+    store.get(2) shouldEqual Some(Rec(2, "c", ""))
+    store.contains(1) shouldEqual false
+    store.size shouldEqual 2
+  }
+
+  test("reset during the initial load repeats the load") {
+    val store = new IndexedRecordStore[Rec]()
+    store.markStale() shouldEqual false // Данных нет, перезагружать нечего
+
+    var loads = 0
+    store.reload {add =>
+      loads += 1
+      add(1, Rec(1, "v" + loads, ""))
+      if (loads == 1) store.markStale() shouldEqual false
+    } shouldEqual Array.emptyIntArray
+    loads shouldEqual 2
+    store.get(1) shouldEqual Some(Rec(1, "v2", ""))
+    store.markStale() shouldEqual true // Загружено, перезагрузку запускает вызывающий
+
+    loads = 0
+    store.reload {add =>
+      loads += 1
+      add(1, Rec(1, "w" + loads, ""))
+      if (loads == 1) store.clear()
+    }
+    loads shouldEqual 2
+    store.get(1) shouldEqual Some(Rec(1, "w2", ""))
+  }
+
+  test("concurrent reads during writes") {
+    val store = new IndexedRecordStore[Rec]()
+    store.reload(add => add(0, Rec(0, "a", "")))
+    @volatile var stop = false
+    val writer = new Thread(new Runnable {
+      override def run(): Unit = {
+        var i = 1
+        while (!stop) {
+          store.put(i, Rec(i, "a", ""))
+          if (i > 1000) store.remove(i - 1000)
+          i += 1
+        }
+      }
+    })
+    writer.start()
+    try {
+      for (_ <- 1 to 200000) {
+        store.get(0) shouldEqual Some(Rec(0, "a", ""))
+        store.contains(0) shouldEqual true
+      }
+    } finally {
+      stop = true
+      writer.join()
+    }
+  }
+}
@@ -79,4 +79,18 @@ class IntIntPositiveValueMapTest extends FunSuite with Matchers {
     cache.rotate()
     cache.size shouldEqual 0
   }
+
+  test("Old values after rotate") {
+    val cache = new IntIntPositiveValueMap(10)
+    cache.put(1, 5)
+    cache.put(2, 7)
+    cache.put(3, 3)
+    cache.rotate()
+    cache.putOrAdd(1, 0, 1) shouldEqual 6
+    cache.put(2, 8) shouldEqual 7
+    cache.remove(3) shouldEqual 3
+    cache.rotate()
+    cache.get(1, 0) shouldEqual 6
+    cache.get(2, 0) shouldEqual 8
+  }
 }
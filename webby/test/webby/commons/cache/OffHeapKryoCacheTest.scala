@@ -0,0 +1,25 @@
+package webby.commons.cache
+
+import org.scalatest.{FunSuite, Matchers}
+
+class OffHeapKryoCacheTest extends FunSuite with Matchers {
+  test("beans round trip through off-heap store") {
+    val cache = new OffHeapKryoCache[OffHeapKryoCacheTest.Bean](4 * 1024 * 1024, classLoader = getClass.getClassLoader)
+    cache.set("a", new OffHeapKryoCacheTest.Bean(1, "first")) shouldEqual true
+    cache.set("b", new OffHeapKryoCacheTest.Bean(2, "x" * 100000)) shouldEqual true
+    cache.get("a").map(_.name) shouldEqual Some("first")
+    cache.get("b").map(_.name.length) shouldEqual Some(100000)
+    cache.get("c") shouldEqual None
+    var seen = Set[Int]()
+    cache.foreach((_, b) => seen += b.id)
+    seen shouldEqual Set(1, 2)
+    cache.remove("a") shouldEqual true
+    cache.contains("a") shouldEqual false
+  }
+}
+
+object OffHeapKryoCacheTest {
+  class Bean(var id: Int, var name: String) {
+    def this() = this(0, null)
+  }
+}
@@ -0,0 +1,63 @@
+package webby.commons.cache
+
+import org.scalatest.{FunSuite, Matchers}
+
+class OffHeapSlabStoreTest extends FunSuite with Matchers {
+  private def bytes(s: String): Array[Byte] = s.getBytes("UTF-8")
+
+  test("put, read, replace and remove") {
+    val store = new OffHeapSlabStore(maxBytes = 64 * 1024, slabSize = 16 * 1024)
+    store.put("a", bytes("hello"), 5, Long.MaxValue) shouldEqual true
+    store.put("ключ", bytes("world!!"), 6, 1000L) shouldEqual true
+    new String(store.get("a", 0)) shouldEqual "hello"
+    new String(store.get("ключ", 999)) shouldEqual "world!"
+    store.get("ключ", 1000) shouldEqual null
+    store.read("a", 0)(_.remaining()) shouldEqual Some(5)
+
+    store.put("a", bytes("x" * 500), 500, Long.MaxValue) shouldEqual true
+    new String(store.get("a", 0)) shouldEqual "x" * 500
+    store.size shouldEqual 2
+
+    store.remove("a") shouldEqual true
+    store.remove("a") shouldEqual false
+    store.contains("a", 0) shouldEqual false
+    store.keys.toSeq shouldEqual Seq("ключ")
+
+    store.put("big", new Array[Byte](20000), 20000, Long.MaxValue) shouldEqual false
+    store.clear()
+    store.size shouldEqual 0
+  }
+
+  test("evicts within a size class when memory is full") {
+    val store = new OffHeapSlabStore(maxBytes = 8 * 1024, slabSize = 4 * 1024)
+    val value = new Array[Byte](100)
+    for (i <- 0 until 1000) {
+      java.util.Arrays.fill(value, i.toByte)
+      store.put("k" + i, value, value.length, Long.MaxValue) shouldEqual true
+    }
+    store.allocatedBytes shouldEqual 8 * 1024
+    store.size should be < 1000
+    store.get("k999", 0).toSeq shouldEqual Seq.fill(100)(999.toByte)
+    store.get("k0", 0) shouldEqual null
+    // Все оставшиеся ключи читаются со своими значениями
+    for (key <- store.keys) store.get(key, 0)(0) shouldEqual key.drop(1).toInt.toByte
+  }
+
+  test("size class without slabs takes the least recently used slab of another class") {
+    val store = new OffHeapSlabStore(maxBytes = 8 * 1024, slabSize = 4 * 1024)
+    val small = new Array[Byte](100)
+    for (i <- 0 until 1000) store.put("k" + i, small, small.length, Long.MaxValue) shouldEqual true
+    store.allocatedBytes shouldEqual 8 * 1024
+    // Слабы заняты мелкими значениями, но класс крупных их получает
+    val large = Array.tabulate[Byte](3000)(_.toByte)
+    store.put("large", large, large.length, Long.MaxValue) shouldEqual true
+    store.get("large", 0).toSeq shouldEqual large.toSeq
+    store.allocatedBytes shouldEqual 8 * 1024
+    // Записи переданного слаба удалены, остальные на месте
+    store.size should be > 1
+    for (key <- store.keys if key != "large") store.get(key, 0).length shouldEqual 100
+    // Мелкие значения продолжают кешироваться в оставшемся слабе
+    store.put("k-new", small, small.length, Long.MaxValue) shouldEqual true
+    store.get("large", 0) should not be null
+  }
+}
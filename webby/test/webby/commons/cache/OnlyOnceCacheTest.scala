@@ -0,0 +1,111 @@
+package webby.commons.cache
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Promise}
+
+class OnlyOnceCacheTest extends FunSuite with Matchers {
+
+  test("cached result for the same request") {
+    val cache = OnlyOnceCache[String, String, String](1, TimeUnit.MINUTES)
+    val calls = new AtomicInteger
+    def call(req: String): String = cache.action(req, _.take(1))(r => calls.incrementAndGet() + r, "cached:" + _)
+
+    call("a1") shouldEqual "1a1"
+    call("a1") shouldEqual "cached:1a1"
+    call("a2") shouldEqual "2a2"
+    call("b1") shouldEqual "3b1"
+    cache.stats shouldEqual OnlyOnceCache.Stats(executed = 3, coalesced = 0, cached = 1)
+  }
+
+  test("concurrent callers join the running request") {
+    val cache = OnlyOnceCache[String, String, String](1, TimeUnit.MINUTES)
+    val calls = new AtomicInteger
+    val started = new CountDownLatch(1)
+    val release = new CountDownLatch(1)
+    val leader = new Thread(new Runnable {
+      override def run(): Unit = cache.action("x", identity[String])({r =>
+        calls.incrementAndGet()
+        started.countDown()
+        release.await()
+        r + "!"
+      })
+    })
+    leader.start()
+    started.await()
+
+    val followers = for (_ <- 1 to 8) yield new Thread(new Runnable {
+      override def run(): Unit = cache.action("x", identity[String])({_ => calls.incrementAndGet(); "wrong"})
+    })
+    followers.foreach(_.start())
+    while (cache.stats.coalesced < 8) Thread.sleep(1)
+    cache.inFlightCount shouldEqual 1
+    release.countDown()
+    leader.join()
+    followers.foreach(_.join())
+
+    calls.get() shouldEqual 1
+    cache.inFlightCount shouldEqual 0
+    cache.stats shouldEqual OnlyOnceCache.Stats(executed = 1, coalesced = 8, cached = 0)
+  }
+
+  test("async request, failure is shared but not cached") {
+    val cache = OnlyOnceCache[String, String, String](1, TimeUnit.MINUTES)
+    val p = Promise[String]()
+    val f1 = cache.actionAsync("x", identity[String])(_ => p.future)
+    val f2 = cache.actionAsync("x", identity[String])(_ => sys.error("must not be called"))
+    // Другой запрос с тем же ключом выполняется после текущего
+    val f3 = cache.actionAsync("x2", _ => "x")(r => scala.concurrent.Future.successful(r + "?"))
+    f1.isCompleted shouldEqual false
+    f3.isCompleted shouldEqual false
+
+    p.failure(new IllegalStateException("boom"))
+    an[IllegalStateException] should be thrownBy Await.result(f1, 1.second)
+    an[IllegalStateException] should be thrownBy Await.result(f2, 1.second)
+    Await.result(f3, 1.second) shouldEqual "x2?"
+
+    cache.action("x", identity[String])(_ + "ok") shouldEqual "xok"
+    cache.stats shouldEqual OnlyOnceCache.Stats(executed = 3, coalesced = 1, cached = 0)
+  }
+
+  test("request waiting for another request runs in its own thread") {
+    val cache = OnlyOnceCache[String, String, String](1, TimeUnit.MINUTES)
+    val started = new CountDownLatch(1)
+    @volatile var leaderMillis = 0L
+    @volatile var bodyThread: String = null
+    val t1 = new Thread(new Runnable {
+      override def run(): Unit = {
+        val t0 = System.currentTimeMillis()
+        cache.action("r1", _ => "k")({r =>
+          started.countDown()
+          Thread.sleep(200)
+          r
+        })
+        leaderMillis = System.currentTimeMillis() - t0
+      }
+    }, "T1")
+    val t2 = new Thread(new Runnable {
+      override def run(): Unit = {
+        started.await()
+        cache.action("r2", _ => "k")({r =>
+          bodyThread = Thread.currentThread().getName
+          Thread.sleep(1000)
+          r
+        }) shouldEqual "r2"
+      }
+    }, "T2")
+    t1.start()
+    t2.start()
+    t1.join()
+    t2.join()
+
+    bodyThread shouldEqual "T2"
+    leaderMillis should be < 900L
+    cache.stats shouldEqual OnlyOnceCache.Stats(executed = 2, coalesced = 0, cached = 0)
+  }
+}
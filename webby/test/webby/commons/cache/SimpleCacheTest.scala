@@ -0,0 +1,163 @@
+package webby.commons.cache
+
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, Executors, ThreadFactory, TimeUnit}
+
+import com.google.common.base.Ticker
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.JavaConverters._
+
+class SimpleCacheTest extends FunSuite with Matchers {
+
+  /** Время, которое идёт только по вызову [[advance]] */
+  private class ManualTicker extends Ticker {
+    private val nanos = new AtomicLong
+    override def read(): Long = nanos.get()
+    def advance(millis: Long): Unit = nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis))
+  }
+
+  test("first load is performed once while other threads wait") {
+    val loads = new AtomicInteger
+    val started = new CountDownLatch(1)
+    val release = new CountDownLatch(1)
+    val cache = new SimpleCache[Integer](60000, {
+      started.countDown()
+      release.await()
+      loads.incrementAndGet()
+    })
+    val threads = new ConcurrentLinkedQueue[Thread]()
+    val pool = Executors.newFixedThreadPool(4, new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val t = new Thread(r)
+        threads.add(t)
+        t
+      }
+    })
+    try {
+      val futures = (0 until 4).map(_ => pool.submit(() => cache.get))
+      started.await()
+      // Один поток загружает значение, остальные ждут его на блокировке
+      eventually(threads.asScala.count(_.getState == Thread.State.BLOCKED) == 3)
+      release.countDown()
+      futures.map(_.get(5, TimeUnit.SECONDS).intValue()) shouldEqual Seq(1, 1, 1, 1)
+      loads.get() shouldEqual 1
+      cache.metrics.misses shouldEqual 1
+      cache.metrics.hits shouldEqual 3
+    } finally pool.shutdown()
+  }
+
+  test("refresh ahead serves stale value while reloading in background") {
+    val ticker = new ManualTicker
+    val loads = new AtomicInteger
+    val release = new CountDownLatch(1)
+    val cache = new SimpleCache[Integer](200, {
+      val n = loads.incrementAndGet()
+      if (n > 1) release.await()
+      n
+    }, refreshAhead = 0.5, ticker = ticker)
+    cache.get shouldEqual 1
+    ticker.advance(99)
+    cache.get shouldEqual 1
+    loads.get() shouldEqual 1
+    ticker.advance(1)
+    // Возраст достиг половины времени жизни: запускается фоновое обновление, отдаётся старое значение
+    cache.get shouldEqual 1
+    cache.get shouldEqual 1
+    release.countDown()
+    eventually(cache.get == 2)
+    loads.get() shouldEqual 2
+    cache.metrics.refreshes shouldEqual 1
+    cache.metrics.staleHits should be >= 2L
+    cache.metrics.loadTime.snapshot().count shouldEqual 2
+  }
+
+  test("failed refresh keeps old value") {
+    val ticker = new ManualTicker
+    val loads = new AtomicInteger
+    val cache = new SimpleCache[Integer](100, {
+      val n = loads.incrementAndGet()
+      if (n == 2) sys.error("load failed")
+      n
+    }, refreshAhead = 0.5, ticker = ticker)
+    cache.get shouldEqual 1
+    ticker.advance(60)
+    cache.get shouldEqual 1
+    eventually(cache.metrics.refreshFailures == 1)
+    cache.get shouldEqual 1
+    eventually(cache.get == 3)
+  }
+
+  test("refresh ahead does not serve value older than expireMillis") {
+    val ticker = new ManualTicker
+    val loads = new AtomicInteger
+    val cache = new SimpleCache[Integer](100, loads.incrementAndGet(), refreshAhead = 0.5, ticker = ticker)
+    cache.get shouldEqual 1
+    // Кеш долго не вызывали: значение устарело полностью и загружается синхронно
+    ticker.advance(100)
+    cache.get shouldEqual 2
+    cache.metrics.refreshes shouldEqual 0
+    cache.metrics.staleHits shouldEqual 0
+    cache.metrics.misses shouldEqual 2
+  }
+
+  test("expired value is reloaded synchronously while refreshes fail") {
+    val ticker = new ManualTicker
+    val loads = new AtomicInteger
+    val cache = new SimpleCache[Integer](100, {
+      val n = loads.incrementAndGet()
+      if (n == 2) sys.error("load failed")
+      n
+    }, refreshAhead = 0.5, ticker = ticker)
+    cache.get shouldEqual 1
+    ticker.advance(60)
+    cache.get shouldEqual 1
+    eventually(cache.metrics.refreshFailures == 1)
+    ticker.advance(40)
+    cache.get shouldEqual 3
+  }
+
+  test("timed cache counts hits and misses") {
+    val cache = TimedCache.stringKey[String](1, TimeUnit.MINUTES)(_.toUpperCase)
+    cache.get("a") shouldEqual "A"
+    cache.get("a") shouldEqual "A"
+    cache.get("b") shouldEqual "B"
+    cache.metrics.misses shouldEqual 2
+    cache.metrics.hits shouldEqual 1
+  }
+
+  test("timed cache refreshes ahead in background and expires by ticker") {
+    val ticker = new ManualTicker
+    val loads = new AtomicInteger
+    val release = new CountDownLatch(1)
+    val cache = TimedCache.stringKey[String](100, TimeUnit.MILLISECONDS, refreshAhead = 0.5, ticker = ticker) {key =>
+      val n = loads.incrementAndGet()
+      if (n == 2) release.await()
+      key + n
+    }
+    cache.get("a") shouldEqual "a1"
+    ticker.advance(49)
+    cache.get("a") shouldEqual "a1"
+    loads.get() shouldEqual 1
+    ticker.advance(2)
+    // Пора обновлять: значение перезагружается в фоне, а пока отдаётся старое
+    cache.get("a") shouldEqual "a1"
+    cache.get("a") shouldEqual "a1"
+    release.countDown()
+    eventually(cache.get("a") == "a2")
+    cache.metrics.refreshes shouldEqual 1
+
+    // Значение старше времени жизни не отдаётся, а загружается заново
+    ticker.advance(100)
+    cache.get("a") shouldEqual "a3"
+    loads.get() shouldEqual 3
+  }
+
+  private def eventually(cond: => Boolean): Unit = {
+    val deadline = System.currentTimeMillis() + 5000
+    while (!cond) {
+      if (System.currentTimeMillis() > deadline) fail("Condition not met in time")
+      Thread.sleep(5)
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package webby.commons.cache
+
+import org.scalatest.{FunSuite, Matchers}
+
+class StripedCountersTest extends FunSuite with Matchers {
+
+  test("counters live for one window") {
+    val counters = new StripedCounters(windowMillis = 1000)
+    counters.inc("a", now = 0) shouldEqual 1
+    counters.add("a", 5, now = 500) shouldEqual 6
+    counters.get("a", now = 999) shouldEqual 6
+    counters.remainingMillis("a", now = 900) shouldEqual 100
+    counters.get("a", now = 1000) shouldEqual 0
+    counters.inc("a", now = 1000) shouldEqual 1
+    counters.get("b") shouldEqual 0
+  }
+
+  test("compaction removes expired counters") {
+    val counters = new StripedCounters(windowMillis = 1000, compactThreshold = 10)
+    for (i <- 0 until 10) counters.inc("k" + i, now = 0)
+    counters.inc("late", now = 500)
+    // Автоматическая очистка сработала, но ничего ещё не истекло
+    counters.size shouldEqual 11
+    counters.compact(now = 1000) shouldEqual 10
+    counters.size shouldEqual 1
+    counters.inc("late", now = 1200) shouldEqual 2
+  }
+
+  test("concurrent increments are not lost") {
+    val counters = new StripedCounters(windowMillis = 60000)
+    val threads = for (_ <- 1 to 8) yield new Thread(new Runnable {
+      override def run(): Unit = for (i <- 0 until 20000) counters.addQuiet("k" + (i % 10), 1)
+    })
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    (0 until 10).map(i => counters.get("k" + i)).toSet shouldEqual Set(16000)
+  }
+}
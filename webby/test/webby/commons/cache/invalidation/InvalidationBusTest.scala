@@ -0,0 +1,165 @@
+package webby.commons.cache.invalidation
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{Executors, ThreadFactory, TimeUnit}
+
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable.ArrayBuffer
+
+class InvalidationBusTest extends FunSuite with Matchers {
+
+  class Recorder extends InvalidationHandler {
+    val events = ArrayBuffer[InvalidationEvent]()
+    val threads = ArrayBuffer[String]()
+    @volatile var losses = 0
+    var bus: InvalidationBus = _
+    override def apply(event: InvalidationEvent): Unit = {
+      events += event
+      threads += Thread.currentThread().getName
+      // Публикация во время применения чужих событий игнорируется
+      bus.publish(event)
+    }
+    override def onLoss(nodeId: Long): Unit = losses += 1
+  }
+
+  private def node(hub: LoopbackTransport.Hub, maxPacketSize: Int = 1400, reorderWindowMs: Long = 0): (InvalidationBus, Recorder, LoopbackTransport) = {
+    val recorder = new Recorder
+    val transport = hub.transport(maxPacketSize)
+    val bus = new InvalidationBus(transport, recorder, flushIntervalMs = 0, reorderWindowMs = reorderWindowMs)
+    recorder.bus = bus
+    (bus, recorder, transport)
+  }
+
+  /** Транспорт, в который пакеты подаются вручную, в любом порядке */
+  class ManualTransport extends InvalidationTransport {
+    var receive: Array[Byte] => Unit = _
+    override def start(receive: Array[Byte] => Unit): Unit = this.receive = receive
+    override def send(packet: Array[Byte]): Unit = ()
+    override def maxPacketSize: Int = 1400
+    override def close(): Unit = ()
+  }
+
+  /** Пакеты узла 42 с номерами 1..n, по событию в каждом */
+  private def peerPackets(n: Int): Vector[Array[Byte]] = {
+    val seq = new AtomicLong
+    (1 to n).toVector.map(i => InvalidationBus.encode(42L, seq, Seq(InvalidationEvent("t", i, InvalidationKind.Update)), 1400).head)
+  }
+
+  test("events are coalesced and delivered to other nodes only") {
+    val hub = new LoopbackTransport.Hub
+    val (bus1, rec1, _) = node(hub)
+    val (bus2, rec2, _) = node(hub)
+
+    bus1.publish(InvalidationEvent("a.t1", 1, InvalidationKind.Update))
+    bus1.publish(InvalidationEvent("a.t1", 1, InvalidationKind.Delete))
+    bus1.publish(InvalidationEvent("a.t2", 5, InvalidationKind.Update))
+    bus1.publish(InvalidationEvent.resetAll("a.t2"))
+    bus1.publish(InvalidationEvent("a.t2", 6, InvalidationKind.Update))
+    bus1.flush()
+
+    rec1.events shouldBe empty
+    rec2.events.toSet shouldEqual Set(
+      InvalidationEvent.resetAll("a.t2"),
+      InvalidationEvent("a.t1", 1, InvalidationKind.Delete))
+    bus1.sentEvents shouldEqual 2
+    bus2.receivedEvents shouldEqual 2
+
+    bus2.flush()
+    bus2.sentEvents shouldEqual 0
+  }
+
+  test("large batches are split into packets") {
+    val hub = new LoopbackTransport.Hub
+    val (bus1, _, _) = node(hub, maxPacketSize = 200)
+    val (_, rec2, _) = node(hub)
+    val events = for (i <- 1 to 100) yield InvalidationEvent("schema.table_" + (i % 7), i, InvalidationKind.Update)
+    events.foreach(bus1.publish)
+    bus1.flush()
+    rec2.events shouldEqual events
+    rec2.losses shouldEqual 0
+
+    val packets = InvalidationBus.encode(1L, new AtomicLong, events, 200)
+    packets.size should be > 1
+    all(packets.map(_.length)) should be <= 200
+    packets.flatMap(p => InvalidationBus.decode(p).events) shouldEqual events
+  }
+
+  test("lost packets are detected") {
+    val hub = new LoopbackTransport.Hub
+    val (bus1, _, transport1) = node(hub)
+    val (_, rec2, _) = node(hub)
+    bus1.publish(InvalidationEvent("t", 1, InvalidationKind.Update))
+    bus1.flush()
+    transport1.dropPackets = true
+    bus1.publish(InvalidationEvent("t", 2, InvalidationKind.Update))
+    bus1.flush()
+    transport1.dropPackets = false
+    rec2.losses shouldEqual 0
+    bus1.publish(InvalidationEvent("t", 3, InvalidationKind.Update))
+    bus1.flush()
+    rec2.losses shouldEqual 1
+    rec2.events.map(_.id) shouldEqual Seq(1, 3)
+  }
+
+  test("reordered packets within the window are not a loss") {
+    val transport = new ManualTransport
+    val recorder = new Recorder
+    val bus = new InvalidationBus(transport, recorder, flushIntervalMs = 0, reorderWindowMs = 100)
+    recorder.bus = bus
+    val packets = peerPackets(4)
+    Seq(0, 2, 1, 3).foreach(i => transport.receive(packets(i)))
+
+    recorder.events.map(_.id) shouldEqual Seq(1, 3, 2, 4)
+    bus.checkLosses(System.currentTimeMillis() + 1000)
+    recorder.losses shouldEqual 0
+    bus.losses shouldEqual 0
+  }
+
+  test("missing packet is a loss after the window") {
+    val transport = new ManualTransport
+    val recorder = new Recorder
+    val bus = new InvalidationBus(transport, recorder, flushIntervalMs = 0, reorderWindowMs = 100)
+    recorder.bus = bus
+    val packets = peerPackets(3)
+    val start = System.currentTimeMillis()
+    transport.receive(packets(0))
+    transport.receive(packets(2))
+    bus.checkLosses(start)
+    recorder.losses shouldEqual 0
+
+    bus.checkLosses(start + 1000)
+    recorder.losses shouldEqual 1
+    // Опоздавший пакет применяется, но потеря уже засчитана один раз
+    transport.receive(packets(1))
+    bus.checkLosses(start + 2000)
+    recorder.losses shouldEqual 1
+    recorder.events.map(_.id) shouldEqual Seq(1, 3, 2)
+  }
+
+  test("handler runs in the executor without publishing back") {
+    val executor = Executors.newSingleThreadExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = new Thread(r, "invalidation-test")
+    })
+    val hub = new LoopbackTransport.Hub
+    val (bus1, _, _) = node(hub)
+    val recorder = new Recorder
+    val bus2 = new InvalidationBus(hub.transport(), recorder, flushIntervalMs = 0, executor = executor)
+    recorder.bus = bus2
+
+    bus1.publish(InvalidationEvent("t", 1, InvalidationKind.Update))
+    bus1.flush()
+    executor.shutdown()
+    executor.awaitTermination(5, TimeUnit.SECONDS) shouldBe true
+
+    recorder.events.map(_.id) shouldEqual Seq(1)
+    recorder.threads shouldEqual Seq("invalidation-test")
+    bus2.receivedEvents shouldEqual 1
+    bus2.flush()
+    bus2.sentEvents shouldEqual 0
+  }
+
+  test("foreign packets are ignored") {
+    InvalidationBus.decode("hello world, this is not ours".getBytes) shouldEqual null
+  }
+}
@@ -0,0 +1,53 @@
+package webby.commons.concurrent
+
+import org.scalatest.{FreeSpec, Matchers}
+
+import scala.collection.mutable
+
+class MpscRingBufferTest extends FreeSpec with Matchers {
+  "MpscRingBuffer" - {
+    "should round capacity up to a power of two" in {
+      new MpscRingBuffer[String](1).capacity shouldEqual 2
+      new MpscRingBuffer[String](5).capacity shouldEqual 8
+      new MpscRingBuffer[String](8).capacity shouldEqual 8
+    }
+
+    "should keep order and reject elements when full" in {
+      val rb = new MpscRingBuffer[String](4)
+      rb.poll() shouldBe null
+      for (i <- 1 to 4) rb.offer("v" + i) shouldEqual true
+      rb.offer("v5") shouldEqual false
+      rb.size shouldEqual 4
+      rb.poll() shouldEqual "v1"
+      rb.offer("v5") shouldEqual true
+      Seq.fill(4)(rb.poll()) shouldEqual Seq("v2", "v3", "v4", "v5")
+      rb.isEmpty shouldEqual true
+    }
+
+    "should not lose elements from concurrent producers" in {
+      val rb = new MpscRingBuffer[Integer](64)
+      val producers = 4
+      val perProducer = 10000
+      val threads = for (p <- 0 until producers) yield new Thread(new Runnable {
+        override def run(): Unit = for (i <- 0 until perProducer) {
+          val v: Integer = p * perProducer + i
+          while (!rb.offer(v)) Thread.`yield`()
+        }
+      })
+      threads.foreach(_.start())
+      val seen = mutable.BitSet()
+      var received = 0
+      while (received < producers * perProducer) {
+        val v = rb.poll()
+        if (v == null) Thread.`yield`()
+        else {
+          seen += v.intValue()
+          received += 1
+        }
+      }
+      threads.foreach(_.join())
+      seen.size shouldEqual producers * perProducer
+      rb.poll() shouldBe null
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package webby.commons.system.log
+
+import java.io.{File, FileOutputStream, OutputStream}
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicBoolean
+
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.JavaConverters._
+
+class AsyncLogWriterTest extends FunSuite with Matchers {
+
+  private def tempFile(): File = {
+    val f = File.createTempFile("async-log-writer", ".log")
+    f.deleteOnExit()
+    f
+  }
+
+  private def lines(f: File): Seq[String] = Files.readAllLines(f.toPath, StandardCharsets.UTF_8).asScala
+
+  /** Записать строки "t-i" из нескольких потоков */
+  private def writeConcurrently(writer: AsyncLogWriter, threads: Int, perThread: Int): Unit = {
+    val workers = for (t <- 0 until threads) yield new Thread(new Runnable {
+      override def run(): Unit = for (i <- 0 until perThread) writer.writeLn(t + "-" + i)
+    })
+    workers.foreach(_.start())
+    workers.foreach(_.join())
+  }
+
+  test("lines that do not fit into the queue are dropped and counted") {
+    val f = tempFile()
+    val writer = new AsyncLogWriter(f, bufferSize = 64, queueSize = 2)
+    writeConcurrently(writer, threads = 4, perThread = 50000)
+    writer.closeWriter()
+
+    writer.droppedLines should be > 0L
+    lines(f).size + writer.droppedLines shouldEqual 200000
+  }
+
+  test("blocking mode keeps every line") {
+    val f = tempFile()
+    val writer = new AsyncLogWriter(f, bufferSize = 64, queueSize = 2, blockWhenFull = true)
+    writeConcurrently(writer, threads = 4, perThread = 20000)
+    writer.closeWriter()
+
+    writer.droppedLines shouldEqual 0
+    val written = lines(f)
+    written.size shouldEqual 80000
+    // Строки одного потока идут по порядку
+    for (t <- 0 until 4) written.filter(_.startsWith(t + "-")) shouldEqual (0 until 20000).map(t + "-" + _)
+  }
+
+  test("file is reopened on USR2") {
+    val f = tempFile()
+    val rotated = new File(f.getPath + ".1")
+    rotated.deleteOnExit()
+    val writer = new AsyncLogWriter(f)
+    writer.writeLn("before")
+    while (writer.pendingLines > 0 || f.length() == 0) Thread.sleep(5)
+
+    f.renameTo(rotated) shouldBe true
+    sun.misc.Signal.raise(new sun.misc.Signal("USR2"))
+    val deadline = System.currentTimeMillis() + 5000
+    while (!f.exists() && System.currentTimeMillis() < deadline) Thread.sleep(5)
+    writer.writeLn("after")
+    writer.closeWriter()
+
+    lines(rotated) shouldEqual Seq("before")
+    lines(f) shouldEqual Seq("after")
+  }
+
+  test("writer thread survives a runtime exception") {
+    val f = tempFile()
+    val failOnce = new AtomicBoolean(true)
+    val writer = new AsyncLogWriter(f, bufferSize = 16) {
+      override protected def openStream(file: File): OutputStream = new FileOutputStream(file, true) {
+        override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+          if (failOnce.getAndSet(false)) throw new IllegalStateException("test failure")
+          super.write(b, off, len)
+        }
+      }
+    }
+    writer.writeLn("lost")
+    while (failOnce.get()) Thread.sleep(5)
+    writer.writeLn("written after the failure")
+    writer.closeWriter()
+
+    lines(f).last shouldEqual "written after the failure"
+  }
+}
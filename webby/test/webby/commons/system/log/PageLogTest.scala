@@ -0,0 +1,62 @@
+package webby.commons.system.log
+
+import java.nio.charset.StandardCharsets
+
+import org.scalatest.{FunSuite, Matchers}
+
+class PageLogTest extends FunSuite with Matchers {
+
+  private def bytesOf(log: PageLog): Array[Byte] = {
+    val buf = new LogLineBuffer(16)
+    log.writeTo(buf)
+    java.util.Arrays.copyOf(buf.bytes, buf.length)
+  }
+
+  test("writeTo produces the same bytes as toLogString") {
+    val simple = new PageLog("127.0.0.1", "example.com", "GET", "/path")
+    simple.setFinishedTime(simple.started + 15)
+
+    val full = new PageLog("10.0.0.2", "пример.рф", "POST", "/%D0%BF%D1%80/тест?q=%20x&e=😀")
+    full.setFinishedTime(full.started + 1234567)
+    full.addDbQuery("select 1", 12)
+    full.addDbQuery("select 2", 30)
+    full.addEsQuery(7)
+    full.setUserSess(-42, "user@пример.рф")
+    full.setResultStatus(404)
+    full.setCabanCookieGenCounter(1)
+    full.setCabanShortCounter(22)
+    full.setCabanLongCounter(333)
+    full.setCabanResolution("1920x1080")
+
+    val noEmail = new PageLog("::1", "h", "GET", "%")
+    noEmail.setUserSess(Int.MaxValue, null)
+
+    for (log <- Seq(simple, full, noEmail)) {
+      new String(bytesOf(log), StandardCharsets.UTF_8) shouldEqual log.toLogString
+      bytesOf(log) shouldEqual log.toLogString.getBytes(StandardCharsets.UTF_8)
+    }
+  }
+
+  test("writeTo writes null fields as in toLogString") {
+    // Запрос без X-Forwarded-For: ip == null
+    val noIp = new PageLog(null, null, null, null)
+    noIp.setFinishedTime(noIp.started + 3)
+    new String(bytesOf(noIp), StandardCharsets.UTF_8) shouldEqual noIp.toLogString
+    noIp.toLogString should include(" ip:null ")
+    noIp.toLogString should endWith(" url:null:nullnull")
+  }
+
+  test("LogLineBuffer numbers") {
+    val buf = new LogLineBuffer(4)
+    buf.append(0L).append(' ').append(-1).append(' ').append(Long.MaxValue).append(' ').append(Long.MinValue)
+    buf.toString shouldEqual "0 -1 9223372036854775807 -9223372036854775808"
+    buf.clear().length shouldEqual 0
+  }
+
+  test("LogLineBuffer replaces unpaired surrogates like String.getBytes") {
+    val s = "a\uD83Db\uDE00"
+    val buf = new LogLineBuffer()
+    buf.appendUtf8(s)
+    java.util.Arrays.copyOf(buf.bytes, buf.length) shouldEqual s.getBytes(StandardCharsets.UTF_8)
+  }
+}
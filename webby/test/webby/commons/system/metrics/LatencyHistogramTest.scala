@@ -0,0 +1,45 @@
+package webby.commons.system.metrics
+
+import org.scalatest.{FunSuite, Matchers}
+
+class LatencyHistogramTest extends FunSuite with Matchers {
+
+  test("bucket bounds") {
+    for (v <- (0L to 5000L) ++ Seq(65535L, 65536L, 1234567L, 1L << 36)) {
+      val idx = LatencyHistogram.bucketIndex(v)
+      LatencyHistogram.bucketUpperBound(idx) should be >= v
+      if (idx > 0) LatencyHistogram.bucketUpperBound(idx - 1) should be < v
+      // Точность корзины не хуже 12.5%
+      (LatencyHistogram.bucketUpperBound(idx) - v).toDouble should be <= math.max(0.0, v * 0.125)
+    }
+    LatencyHistogram.bucketIndex(Long.MaxValue) shouldEqual LatencyHistogram.BucketCount - 1
+  }
+
+  test("percentiles") {
+    val h = new LatencyHistogram
+    h.snapshot().percentile(0.99) shouldEqual 0
+    for (v <- 1 to 100) h.record(v)
+    val s = h.snapshot()
+    s.count shouldEqual 100
+    s.sum shouldEqual 5050
+    s.max shouldEqual 100
+    s.percentile(0.1) shouldEqual 10
+    s.percentile(0.5) should (be >= 50L and be <= 55L)
+    s.percentile(0.99) should (be >= 99L and be <= 100L)
+    s.percentile(1.0) shouldEqual 100
+    h.reset()
+    h.snapshot().count shouldEqual 0
+  }
+
+  test("concurrent recording") {
+    val h = new LatencyHistogram
+    val threads = for (_ <- 1 to 4) yield new Thread(new Runnable {
+      override def run(): Unit = for (i <- 0 until 10000) h.record(i % 200)
+    })
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    val s = h.snapshot()
+    s.count shouldEqual 40000
+    s.max shouldEqual 199
+  }
+}
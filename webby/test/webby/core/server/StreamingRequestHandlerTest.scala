@@ -0,0 +1,178 @@
+package webby.core.server
+
+import java.nio.channels.ClosedChannelException
+import java.nio.file.{Files, Path}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentLinkedQueue, Executor, Executors}
+
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http._
+import io.netty.util.CharsetUtil
+import org.scalatest.{BeforeAndAfterAll, FunSuite, Matchers}
+import webby.api.mvc._
+import webby.api.{Application, Profile}
+import webby.commons.system.log.PageLog
+import webby.core.system.ApplicationProvider
+
+import scala.collection.JavaConverters._
+import scala.concurrent.{ExecutionContext, Future}
+
+class StreamingRequestHandlerTest extends FunSuite with Matchers with BeforeAndAfterAll {
+  private val providerPath: Path = Files.createTempDirectory("webby-test")
+
+  /** Части тела и причины прерывания, полученные потоковыми action'ами */
+  private val chunks = new ConcurrentLinkedQueue[String]()
+  private val aborts = new ConcurrentLinkedQueue[Throwable]()
+  /** Временные файлы, созданные toTempFile */
+  private val tempFiles = new ConcurrentLinkedQueue[Path]()
+
+  private val ioExecutor = Executors.newSingleThreadExecutor()
+  private val ioTasks = new AtomicInteger
+  private val ioContext = ExecutionContext.fromExecutor(new Executor {
+    override def execute(command: Runnable): Unit = {
+      ioTasks.incrementAndGet()
+      ioExecutor.execute(command)
+    }
+  })
+
+  override protected def afterAll(): Unit = {
+    ioExecutor.shutdown()
+    Files.walk(providerPath).sorted(java.util.Comparator.reverseOrder()).forEach(p => Files.delete(p))
+  }
+
+  /** Тело, которое собирает части в строку. Части обрабатываются асинхронно. */
+  private class CollectingBody extends StreamingBody {
+    private val sb = new StringBuilder
+    override def onChunk(chunk: ByteBuf): Future[Unit] = {
+      val s = chunk.toString(CharsetUtil.UTF_8)
+      Future {
+        Thread.sleep(10)
+        chunks.add(s)
+        sb.append(s)
+        ()
+      }(ExecutionContext.global)
+    }
+    override def onComplete(): Result = Results.Ok(sb.toString(), "text/plain")
+    override def onAbort(cause: Throwable): Unit = aborts.add(cause)
+  }
+
+  private val server = new Server {
+    override lazy val applicationProvider: ApplicationProvider = new ApplicationProvider {
+      override def profile: Profile = Profile.Test
+      override def path = providerPath
+      override def get = Left(new IllegalStateException("No application"))
+    }
+
+    override def getHandlerFor(request: RequestHeader): Either[Result, (Handler, Application)] = request.path match {
+      case "/upload" => Right((StreamingAction(_ => new CollectingBody), null))
+      case "/limited" => Right((new StreamingAction {
+        override def maxContentLength: Long = 4
+        override def start(rh: RequestHeader): StreamingBody = new CollectingBody
+      }, null))
+      case "/tmp" => Right((StreamingAction.toTempFile(1000, ioContext) {(_, path) =>
+        tempFiles.add(path)
+        Results.Ok(new String(Files.readAllBytes(path), CharsetUtil.UTF_8), "text/plain")
+      }, null))
+      case path => Right((SimpleAction.nonBlocking {_ => Results.Ok("plain:" + path, "text/plain")}, null))
+    }
+  }
+
+  private val upstream = new UpstreamHandler(server, None) {
+    override private[server] def handleAction(app: Application, action: Action, rh: RequestHeader, body: Array[Byte]): Result =
+      action(rh, body)
+    override private[server] def onRequestCompletion(app: Application, rh: RequestHeader, result: Result): Result = result
+    override private[server] def onActionError(app: Application, rh: RequestHeader, e: Throwable): Result =
+      Results.InternalServerError(e.getMessage)
+  }
+
+  private def newChannel(): EmbeddedChannel = {
+    chunks.clear()
+    aborts.clear()
+    new EmbeddedChannel(new HttpRequestDecoder(), new StreamingRequestHandler(upstream), new HttpObjectAggregator(16), upstream)
+  }
+
+  private def send(ch: EmbeddedChannel, raw: String): Unit = ch.writeInbound(Unpooled.copiedBuffer(raw, CharsetUtil.US_ASCII))
+
+  /** Дождаться `n` ответов: части тела обрабатываются в других потоках и возвращаются в задачах event loop */
+  private def responses(ch: EmbeddedChannel, n: Int): Vector[FullHttpResponse] = {
+    val result = Vector.newBuilder[FullHttpResponse]
+    var received = 0
+    val deadline = System.currentTimeMillis() + 5000
+    while (received < n && System.currentTimeMillis() < deadline) {
+      ch.runPendingTasks()
+      var msg = ch.readOutbound[FullHttpResponse]()
+      while (msg != null) {
+        result += msg
+        received += 1
+        msg = ch.readOutbound[FullHttpResponse]()
+      }
+      if (received < n) Thread.sleep(5)
+    }
+    result.result()
+  }
+
+  private def text(r: FullHttpResponse): String = try r.content().toString(CharsetUtil.UTF_8) finally r.release()
+
+  private val chunkedUpload = "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n"
+
+  test("chunked body is passed to the action chunk by chunk") {
+    val ch = newChannel()
+    send(ch, "POST /upload HTTP/1.1\r\nHost: test\r\n" + chunkedUpload + "GET /after HTTP/1.1\r\nHost: test\r\n\r\n")
+    responses(ch, 2).map(text) shouldEqual Vector("hello world", "plain:/after")
+    chunks.asScala.toVector shouldEqual Vector("hello", " world")
+    aborts shouldBe empty
+    ch.config().isAutoRead shouldBe true
+    ch.finishAndReleaseAll()
+  }
+
+  test("body over maxContentLength is rejected and the action aborted") {
+    val ch = newChannel()
+    send(ch, "POST /limited HTTP/1.1\r\nHost: test\r\n" + chunkedUpload)
+    val r = responses(ch, 1)
+    r.map(_.status()) shouldEqual Vector(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE)
+    r.foreach(_.release())
+    ch.runPendingTasks()
+    aborts.asScala.toVector.map(_.getMessage) shouldEqual Vector("Request body is too large")
+    ch.isOpen shouldBe false
+    ch.finishAndReleaseAll()
+  }
+
+  test("closing the connection before the last chunk aborts the action") {
+    val ch = newChannel()
+    send(ch, "POST /upload HTTP/1.1\r\nHost: test\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n")
+    ch.close()
+    aborts.asScala.toVector.map(_.getClass) shouldEqual Vector(classOf[ClosedChannelException])
+    ch.finishAndReleaseAll()
+  }
+
+  test("toTempFile writes chunks in ioContext and deletes the file") {
+    val ch = newChannel()
+    val tasksBefore = ioTasks.get()
+    send(ch, "POST /tmp HTTP/1.1\r\nHost: test\r\n" + chunkedUpload)
+    responses(ch, 1).map(text) shouldEqual Vector("hello world")
+    ioTasks.get() - tasksBefore shouldEqual 2
+    tempFiles.asScala.foreach(Files.exists(_) shouldBe false)
+    ch.finishAndReleaseAll()
+  }
+
+  test("request rejected by the aggregator does not pass its route to the next request") {
+    val ch = newChannel()
+    send(ch, "POST /big HTTP/1.1\r\nHost: test\r\nContent-Length: 100\r\n\r\n" + "x" * 100 +
+      "GET /next HTTP/1.1\r\nHost: test\r\n\r\n")
+    val r = responses(ch, 2)
+    r.head.status() shouldEqual HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE
+    r.map(text).last shouldEqual "plain:/next"
+    ch.attr(RoutedRequest.Key).get() shouldBe null
+    ch.finishAndReleaseAll()
+
+    // Оставшийся от другого запроса обработчик не используется
+    val plain = new EmbeddedChannel(new HttpRequestDecoder(), new HttpObjectAggregator(16), upstream)
+    val stale = upstream.route(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/big"), "test")
+    PageLog.remove()
+    plain.attr(RoutedRequest.Key).set(stale)
+    send(plain, "GET /next HTTP/1.1\r\nHost: test\r\n\r\n")
+    responses(plain, 1).map(text) shouldEqual Vector("plain:/next")
+    plain.finishAndReleaseAll()
+  }
+}
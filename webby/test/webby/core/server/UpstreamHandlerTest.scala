@@ -0,0 +1,113 @@
+package webby.core.server
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.Executors
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.{FullHttpResponse, HttpObjectAggregator, HttpRequestDecoder}
+import io.netty.util.CharsetUtil
+import org.scalatest.{BeforeAndAfterAll, FunSuite, Matchers}
+import webby.api.mvc._
+import webby.api.{Application, Profile}
+import webby.core.system.ApplicationProvider
+
+import scala.concurrent.ExecutionContext
+
+class UpstreamHandlerTest extends FunSuite with Matchers with BeforeAndAfterAll {
+  private val providerPath: Path = Files.createTempDirectory("webby-test")
+
+  override protected def afterAll(): Unit =
+    Files.walk(providerPath).sorted(java.util.Comparator.reverseOrder()).forEach(p => Files.delete(p))
+
+  /** Результат, который будет готов через `delayMillis` */
+  private def delayed(rh: RequestHeader, text: String, delayMillis: Long): AsyncResult =
+    new AsyncResult(rh, {Thread.sleep(delayMillis); Results.Ok(text, "text/plain")})(ExecutionContext.global)
+
+  private val server = new Server {
+    override lazy val applicationProvider: ApplicationProvider = new ApplicationProvider {
+      override def profile: Profile = Profile.Test
+      override def path = providerPath
+      override def get = Left(new IllegalStateException("No application"))
+    }
+
+    override def getHandlerFor(request: RequestHeader): Either[Result, (Handler, Application)] = request.path match {
+      case "/slow" => Right((SimpleAction {_ => Thread.sleep(200); Results.Ok("slow", "text/plain")}, null))
+      case "/fast" => Right((SimpleAction {_ => Results.Ok("fast", "text/plain")}, null))
+      case "/nonBlocking" => Right((SimpleAction.nonBlocking {_ => Results.Ok("nonBlocking", "text/plain")}, null))
+      case "/async" => Right((SimpleAction.nonBlocking {rh => delayed(rh, "async", 200)}, null))
+      case "/pooledAsync" => Right((SimpleAction {rh => delayed(rh, "pooledAsync", 200)}, null))
+      case _ => Left(Results.NotFoundRaw)
+    }
+  }
+
+  /** Канал с UpstreamHandler, который выполняет action сам, без Application */
+  private def newChannel(dispatcher: ActionDispatcher): EmbeddedChannel = {
+    val handler = new UpstreamHandler(server, Some(dispatcher)) {
+      override private[server] def handleAction(app: Application, action: Action, rh: RequestHeader, body: Array[Byte]): Result =
+        action(rh, body)
+    }
+    new EmbeddedChannel(new HttpRequestDecoder(), new HttpObjectAggregator(1024 * 1024), handler)
+  }
+
+  /** Отправить запросы одним буфером и дождаться ответов на все */
+  private def pipeline(dispatcher: ActionDispatcher, paths: String*): Seq[String] = {
+    val ch = newChannel(dispatcher)
+    try pipeline(ch, dispatcher, paths: _*).map(_.content().toString(CharsetUtil.UTF_8))
+    finally ch.finishAndReleaseAll()
+  }
+
+  private def pipeline(ch: EmbeddedChannel, dispatcher: ActionDispatcher, paths: String*): Seq[FullHttpResponse] = {
+    val raw = paths.map(p => "GET " + p + " HTTP/1.1\r\nHost: test\r\n\r\n").mkString
+    ch.writeInbound(Unpooled.copiedBuffer(raw, CharsetUtil.US_ASCII))
+    val responses = Vector.newBuilder[FullHttpResponse]
+    var received = 0
+    val deadline = System.currentTimeMillis() + 5000
+    while (received < paths.size && System.currentTimeMillis() < deadline) {
+      // Ответ на action из пула пишется в потоке пула, а отложенные запросы обрабатываются в задаче event loop
+      while (dispatcher.queueSize + dispatcher.runningNum > 0) Thread.sleep(5)
+      ch.runPendingTasks()
+      var msg = ch.readOutbound[FullHttpResponse]()
+      while (msg != null) {
+        responses += msg
+        received += 1
+        msg = ch.readOutbound[FullHttpResponse]()
+      }
+      Thread.sleep(5)
+    }
+    responses.result()
+  }
+
+  test("pipelined requests are answered in order") {
+    val dispatcher = new ActionDispatcher(Executors.newFixedThreadPool(4), 100)
+    try {
+      pipeline(dispatcher, "/slow", "/fast") shouldEqual Seq("slow", "fast")
+      pipeline(dispatcher, "/slow", "/nonBlocking") shouldEqual Seq("slow", "nonBlocking")
+      pipeline(dispatcher, "/slow", "/nonBlocking", "/slow", "/fast") shouldEqual Seq("slow", "nonBlocking", "slow", "fast")
+    } finally dispatcher.executor.shutdownNow()
+  }
+
+  test("pipelined requests wait for an async result to be written") {
+    val dispatcher = new ActionDispatcher(Executors.newFixedThreadPool(4), 100)
+    try {
+      pipeline(dispatcher, "/async", "/nonBlocking") shouldEqual Seq("async", "nonBlocking")
+      pipeline(dispatcher, "/pooledAsync", "/nonBlocking", "/fast") shouldEqual Seq("pooledAsync", "nonBlocking", "fast")
+      pipeline(dispatcher, "/async", "/slow", "/async", "/fast") shouldEqual Seq("async", "slow", "async", "fast")
+    } finally dispatcher.executor.shutdownNow()
+  }
+
+  test("full action queue is answered with 503 and reading resumes") {
+    val dispatcher = new ActionDispatcher(Executors.newFixedThreadPool(1), 0)
+    val ch = newChannel(dispatcher)
+    try {
+      val r = pipeline(ch, dispatcher, "/slow", "/nonBlocking")
+      r.map(_.status().code()) shouldEqual Seq(503, 200)
+      r.map(_.content().toString(CharsetUtil.UTF_8)) shouldEqual Seq("Server is overloaded", "nonBlocking")
+      ch.config().isAutoRead shouldBe true
+      ch.attr(PipelinedRequests.Key).get().busy shouldBe false
+    } finally {
+      ch.finishAndReleaseAll()
+      dispatcher.executor.shutdownNow()
+    }
+  }
+}
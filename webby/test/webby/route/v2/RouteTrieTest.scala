@@ -0,0 +1,197 @@
+package webby.route.v2
+
+import io.netty.handler.codec.http.HttpMethod
+import org.scalatest.prop.TableDrivenPropertyChecks
+import org.scalatest.{FunSuite, Inspectors, Matchers}
+import webby.api.mvc.Handler
+import webby.commons.system.log.PageLog
+import webby.route._
+
+class RouteTrieTest extends FunSuite with Matchers with TableDrivenPropertyChecks with Inspectors {
+
+  val handler: RequestHandlerV2 = new RouteConfigV2 {
+    override def basePathSplitter: BasePathSplitter = SimpleBasePathSplitter
+    override def routePacks: Array[RoutePack[_]] = Array(RoutePack(_TrieTestHandlers, _TrieTest, EmptyDomainProvider))
+  }.parse.createRequestHandler
+
+  val samplePaths: Seq[String] = Seq(
+    "/", "/simple", "/simple/", "/simple/x", "/unknown",
+    "/user/5", "/user/-5", "/user/-", "/user/", "/user/abc", "/user/5a", "/user/99999999999", "/user/5/edit",
+    "/user/new", "/user/new/edit", "/user/5/post/7", "/user/bob/post/7", "/user/5/post/x",
+    "/long/12345678901", "/long/x",
+    "/ias/5,qwe", "/ias/x,qwe", "/customs/foo/bar", "/customs/",
+    "/file/a.b", "/file/axb", "/e/?param=value&another=3",
+    "/both/1", "/both/x", "/sh/aaa/qwe/1", "/sh/AAA/qwe/1")
+
+  test("segments") {
+    Table[String, Option[Vector[RouteSegment]]](("route", "segments")
+      , ("simple", Some(Vector(RouteSegment.Literal(""))))
+      , ("userById", Some(Vector(RouteSegment.VarSlot(0, numeric = true))))
+      , ("userNew", Some(Vector(RouteSegment.Literal("new"))))
+      , ("userPost", Some(Vector(RouteSegment.VarSlot(0, numeric = false), RouteSegment.Literal("post"), RouteSegment.VarSlot(1, numeric = true))))
+      , ("intAndStr", None)
+      , ("customStr", None)
+      , ("dotted", Some(Vector(RouteSegment.Literal("a.b"))))
+    ).forEvery {case (routeName, segments) =>
+      handler.pc.routes.find(_.name == routeName).get.segments shouldEqual segments
+    }
+  }
+
+  test("trie and linear search give the same results") {
+    val methods = Seq(HttpMethod.GET, HttpMethod.POST, HttpMethod.PUT)
+    forEvery(for (path <- samplePaths; method <- methods) yield (method, path)) {case (method, path) =>
+      withClue(method + " " + path) {
+        handler.handle("test", method, path) shouldEqual handler.handleLinear("test", method, path)
+      }
+    }
+  }
+
+  test("routeTestInput") {
+    Table[HttpMethod, String, Option[String]](("method", "path", "result")
+      , (HttpMethod.GET, "/simple", Some("simple"))
+      , (HttpMethod.GET, "/user/5", Some("userById:5"))
+      , (HttpMethod.GET, "/user/new", Some("userByName:new"))
+      , (HttpMethod.POST, "/user/new", Some("userNew"))
+      , (HttpMethod.GET, "/user/99999999999", None)
+      , (HttpMethod.GET, "/user/bob/post/7", Some("userPost:bob,7"))
+      , (HttpMethod.GET, "/both/1", Some("bothInt:1"))
+      , (HttpMethod.GET, "/both/x", Some("bothStr:x"))
+      , (HttpMethod.GET, "/file/axb", None)
+      , (HttpMethod.POST, "/simple", None)
+      , (HttpMethod.GET, "/five/1/2/3/c/5", Some("five:1,2,3,c,5"))
+      , (HttpMethod.GET, "/five/1/2/3/c/x", None)
+    ).forEvery {case (method, path, result) =>
+      handler.handle("test", method, path).map(_.asInstanceOf[_TestHandler].msg) shouldEqual result
+    }
+  }
+
+  test("handler exceptions are not wrapped") {
+    (the[IllegalStateException] thrownBy handler.handle("test", HttpMethod.GET, "/fail/1")).getMessage shouldEqual "fail:1"
+  }
+
+  test("routes with up to 4 vars are linked via LambdaMetafactory") {
+    forEvery(handler.pc.routes.filter(_.vars.size <= LinkedRouteV2.MaxDirectArgs))(_.isDirectInvoker shouldEqual true)
+    handler.pc.routes.find(_.name == "five").get.isDirectInvoker shouldEqual false
+  }
+
+  test("Int and Long vars of one and two var routes are passed unboxed") {
+    def invoker(name: String): AnyRef = handler.pc.routes.find(_.name == name).get.invoker
+    invoker("userById") shouldBe a[LinkedRouteV2.Invoker1I]
+    invoker("longVar") shouldBe a[LinkedRouteV2.Invoker1L]
+    invoker("userByName") shouldBe a[LinkedRouteV2.Invoker1]
+    invoker("userPost") shouldBe a[LinkedRouteV2.Invoker2RI]
+    invoker("intAndStr") shouldBe a[LinkedRouteV2.Invoker2IR]
+    invoker("shuffleStr") shouldBe a[LinkedRouteV2.Invoker3]
+    handler.handle("test", HttpMethod.GET, "/long/12345678901").map(_.asInstanceOf[_TestHandler].msg) shouldEqual Some("longVar:12345678901")
+    handler.handle("test", HttpMethod.GET, "/ias/5,qwe").map(_.asInstanceOf[_TestHandler].msg) shouldEqual Some("intAndStr:5,qwe")
+  }
+
+  test("handlers loaded by a child classloader fall back to MethodHandle") {
+    val name = classOf[_ChildLoaderLinks].getName
+    val location = classOf[_ChildLoaderLinks].getProtectionDomain.getCodeSource.getLocation
+    // Загрузчик, который сам грузит только класс обработчиков, как projectClassLoader в dev режиме
+    val loader = new java.net.URLClassLoader(Array(location), getClass.getClassLoader) {
+      override def loadClass(className: String, resolve: Boolean): Class[_] = getClassLoadingLock(className).synchronized {
+        if (className != name) super.loadClass(className, resolve)
+        else Option(findLoadedClass(className)).getOrElse(findClass(className))
+      }
+    }
+    val cls = loader.loadClass(name)
+    cls should not be theSameInstanceAs(classOf[_ChildLoaderLinks])
+    val links = cls.newInstance().asInstanceOf[RouteHandlers]
+    val route = new LinkedRouteV2("item", EmptyDomainProvider, HttpMethod.GET, "", java.util.regex.Pattern.compile("/item/(-?[0-9]+)"),
+      _ => links, Vector(new IntVar("id", None)), Vector(0), cls.getMethod("item", classOf[Int]))
+
+    route.isDirectInvoker shouldEqual false
+    route.resolve("test", Array("5")) shouldEqual Some(_ChildLoaderHandler("item:5"))
+    route.resolve("test", Array("x")) shouldEqual None
+    loader.close()
+  }
+
+  test("route name for metrics includes handler class and parameter types") {
+    PageLog.set(new PageLog("127.0.0.1", "test", "GET", "/user/5"))
+    try {
+      handler.handle("test", HttpMethod.GET, "/user/5")
+      PageLog.get().routeName shouldEqual _TrieTestHandlers.getClass.getName + ".userById(int)"
+    } finally PageLog.remove()
+
+    def route(cls: Class[_], paramType: Class[_]): LinkedRouteV2 =
+      new LinkedRouteV2("item", EmptyDomainProvider, HttpMethod.GET, "", java.util.regex.Pattern.compile("/item/([^/]+)"),
+        _ => null, Vector(new StringVar("id", None)), Vector(0), cls.getMethod("item", paramType))
+    val names = Seq(route(classOf[_ChildLoaderLinks], classOf[Int]), route(classOf[_OtherLinks], classOf[Int]),
+      route(classOf[_OtherLinks], classOf[String])).map(_.qualifiedName)
+    names shouldEqual Seq(classOf[_ChildLoaderLinks].getName + ".item(int)", classOf[_OtherLinks].getName + ".item(int)",
+      classOf[_OtherLinks].getName + ".item(String)")
+  }
+
+  test("splitSegments") {
+    RouteTrie.splitSegments("") shouldEqual Array("")
+    RouteTrie.splitSegments("a") shouldEqual Array("a")
+    RouteTrie.splitSegments("a/") shouldEqual Array("a", "")
+    RouteTrie.splitSegments("a//b") shouldEqual Array("a", "", "b")
+  }
+
+  test("isNumeric") {
+    forAll(Seq("0", "15", "-15"))(RouteTrie.isNumeric(_) shouldEqual true)
+    forAll(Seq("", "-", "1-", "a", "1a", "--1"))(RouteTrie.isNumeric(_) shouldEqual false)
+  }
+
+  // ---------------------- routes ----------------------
+
+  trait _TrieTestTrait[R] extends BaseRoute[R] {
+    protected def toDomain: String = "test"
+
+    def simple: R = get"/simple"
+    def userById(id: Int): R = get"/user/$id"
+    def userNew: R = post"/user/new"
+    def userByName(name: String): R = getPost"/user/$name"
+    def userEdit(id: Long): R = get"/user/$id/edit"
+    def userPost(name: String, post: Int): R = get"/user/$name/post/$post"
+    def longVar(id: Long): R = get"/long/$id"
+    def intAndStr(a: Int, b: String): R = get"/ias/$a,$b"
+    def customStr(s: String): R = get"/customs/$s<.*>"
+    def dotted: R = get"/file/a.b"
+    def bothInt(a: Int): R = get"/both/$a"
+    def bothStr(a: String): R = get"/both/$a<[a-z]+>"
+    def shuffleStr(a: String, b: String, c: String): R = get"/sh/$c<[a-z]+>/$b<qwe>/$a<.*>"
+    def five(a: Int, b: Long, c: Int, d: String, e: Int): R = get"/five/$a/$b/$c/$d/$e"
+    def fail(a: Int): R = get"/fail/$a"
+  }
+
+  object _TrieTest extends RouteRoute with _TrieTestTrait[Route]
+
+  object _TrieTestHandlers extends RouteHandlers with _TrieTestTrait[Handler] {
+    override def simple: Handler = _TestHandler("simple")
+    override def userById(id: Int): Handler = _TestHandler(s"userById:$id")
+    override def userNew: Handler = _TestHandler("userNew")
+    override def userByName(name: String): Handler = _TestHandler(s"userByName:$name")
+    override def userEdit(id: Long): Handler = _TestHandler(s"userEdit:$id")
+    override def userPost(name: String, post: Int): Handler = _TestHandler(s"userPost:$name,$post")
+    override def longVar(id: Long): Handler = _TestHandler(s"longVar:$id")
+    override def intAndStr(a: Int, b: String): Handler = _TestHandler(s"intAndStr:$a,$b")
+    override def customStr(s: String): Handler = _TestHandler(s"customStr:$s")
+    override def dotted: Handler = _TestHandler("dotted")
+    override def bothInt(a: Int): Handler = _TestHandler(s"bothInt:$a")
+    override def bothStr(a: String): Handler = _TestHandler(s"bothStr:$a")
+    override def shuffleStr(a: String, b: String, c: String): Handler = _TestHandler(s"shuffleStr:$a,$b,$c")
+    override def five(a: Int, b: Long, c: Int, d: String, e: Int): Handler = _TestHandler(s"five:$a,$b,$c,$d,$e")
+    override def fail(a: Int): Handler = throw new IllegalStateException(s"fail:$a")
+  }
+
+  case class _TestHandler(msg: String) extends Handler
+}
+
+/** Обработчики для загрузки отдельным загрузчиком классов, см. RouteTrieTest */
+class _ChildLoaderLinks extends RouteHandlers {
+  override protected def toDomain: String = "test"
+  def item(id: Int): Handler = _ChildLoaderHandler("item:" + id)
+}
+
+case class _ChildLoaderHandler(msg: String) extends Handler
+
+/** Обработчики с тем же именем метода, что и в [[_ChildLoaderLinks]], и его перегрузкой */
+class _OtherLinks extends RouteHandlers {
+  override protected def toDomain: String = "test"
+  def item(id: Int): Handler = _ChildLoaderHandler("other:" + id)
+  def item(name: String): Handler = _ChildLoaderHandler("other:" + name)
+}